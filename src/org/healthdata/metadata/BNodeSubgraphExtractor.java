@@ -0,0 +1,131 @@
+package org.healthdata.metadata;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.RepositoryResult;
+
+/**
+ * Collects the complete blank node subgraph below a set of blank nodes: their
+ * statements, the statements of the blank nodes they refer to, and so on
+ * (e.g. a distribution together with its format). The statements having a blank
+ * node subject are indexed in a single pass over the source context, the first
+ * time they are needed, and the closure is computed with a worklist traversal,
+ * visiting every blank node only once (also in presence of shared or cyclic
+ * references).
+ *
+ * @author agent
+ *
+ */
+class BNodeSubgraphExtractor {
+
+	private final RepositoryConnection conn;
+	private final Resource context;
+
+	private Map<BNode, List<Statement>> statementsByBNode;
+	private final Set<BNode> visited = new HashSet<BNode>();
+	private final LinkedList<BNode> worklist = new LinkedList<BNode>();
+
+
+	public BNodeSubgraphExtractor(RepositoryConnection conn, Resource context) {
+		this.conn = conn;
+		this.context = context;
+	}
+
+
+	/**
+	 * Adds <code>bNode</code> to the roots of the subgraph, unless it was already added
+	 * (either as a root, or as a blank node reachable from another root).
+	 */
+	public void addRoot(BNode bNode) {
+		if (visited.add(bNode)) {
+			worklist.add(bNode);
+		}
+	}
+
+	/**
+	 * Returns the statements of the blank node subgraph reachable from the roots added
+	 * since the previous call. Blank nodes returned by a previous call are not revisited.
+	 */
+	public List<Statement> extract() throws RepositoryException {
+		List<Statement> result = new ArrayList<Statement>();
+		if (worklist.isEmpty()) {
+			return result;
+		}
+		if (statementsByBNode == null) {
+			indexBNodeStatements();
+		}
+		while ( ! worklist.isEmpty()) {
+			List<Statement> statements = statementsByBNode.get(worklist.removeFirst());
+			if (statements == null) {
+				continue;
+			}
+			for (Statement statement : statements) {
+				result.add(statement);
+				Value object = statement.getObject();
+				if (object instanceof BNode) {
+					addRoot((BNode) object);
+				}
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Indexes a statement of the source context, having a blank node subject. It allows
+	 * a caller that reads the source context anyway to build the index in the same pass;
+	 * after all the statements were passed, {@link #setIndexed()} must be called.
+	 */
+	public void index(Statement statement) {
+		if (statementsByBNode == null) {
+			statementsByBNode = new HashMap<BNode, List<Statement>>();
+		}
+		BNode subject = (BNode) statement.getSubject();
+		List<Statement> bNodeStatements = statementsByBNode.get(subject);
+		if (bNodeStatements == null) {
+			bNodeStatements = new ArrayList<Statement>(4);
+			statementsByBNode.put(subject, bNodeStatements);
+		}
+		bNodeStatements.add(statement);
+	}
+
+	/**
+	 * Marks the index complete, i.e. all the statements of the source context having
+	 * a blank node subject were passed to {@link #index(Statement)}.
+	 */
+	public void setIndexed() {
+		if (statementsByBNode == null) {
+			statementsByBNode = new HashMap<BNode, List<Statement>>();
+		}
+	}
+
+
+	private void indexBNodeStatements() throws RepositoryException {
+		statementsByBNode = new HashMap<BNode, List<Statement>>();
+		RepositoryResult<Statement> statements = conn.getStatements(null, null, null, false, context);
+		try {
+			while (statements.hasNext()) {
+				Statement statement = statements.next();
+				if (statement.getSubject() instanceof BNode) {
+					index(statement);
+				}
+			}
+		}
+		finally {
+			statements.close();
+		}
+	}
+
+}
@@ -0,0 +1,361 @@
+package org.healthdata.metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.healthdata.metadata.util.CompressionUtil;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.helpers.StatementCollector;
+import org.openrdf.rio.rdfxml.RDFXMLParser;
+
+/**
+ * A canonical form of a (small) RDF graph, which can be compared with the
+ * graph produced by another conversion run. Statements are written in N-Triples
+ * syntax, and blank nodes, whose ids are different in every run, are replaced by
+ * skolem IRIs (<code>http://healthdata.gov/.well-known/genid/DATASET_ID/LABEL</code>),
+ * so that the statements can be added to and removed from a triple store. <br>
+ * The labels are computed separately for every group of blank nodes connected to
+ * each other (by statements between blank nodes), by refining the labels of the
+ * nodes of the group with the predicates and objects of their statements, and with
+ * the subjects and predicates of the statements referring to them, until no more
+ * nodes can be distinguished this way. The result does not depend on the order
+ * of the statements, and it handles cycles of blank nodes. A group that is
+ * unchanged keeps its labels, while a change anywhere inside a group changes the
+ * labels of all its nodes, so its statements are replaced as a whole. <br>
+ * Blank nodes that can not be distinguished (e.g. two blank nodes with identical
+ * content, referred to by the same subject with the same predicate) are told apart
+ * by numbering them, one by one, and refining the labels of their group again.
+ *
+ * @author agent
+ *
+ */
+class CanonicalGraph {
+
+	public static final CanonicalGraph EMPTY = new CanonicalGraph(new TreeSet<String>());
+
+	public static final String SKOLEM_IRI_BASE = "http://healthdata.gov/.well-known/genid/";
+
+	private static final int BNODE_LABEL_LENGTH = 16;
+
+	private final SortedSet<String> statements;
+
+
+	private CanonicalGraph(SortedSet<String> statements) {
+		this.statements = statements;
+	}
+
+
+	/**
+	 * Reads and canonicalizes an RDF/XML file (which may be gzip compressed), 
+	 * containing the metadata of a dataset.
+	 */
+	public static CanonicalGraph read(File rdfFile, String datasetId) throws RDFParseException, RDFHandlerException, IOException {
+		InputStream is = CompressionUtil.openInputStream(rdfFile);
+		try {
+			return read(is, HealthDataConstants.HEALTHDATA_GOV_DATASET_BASE_URI + rdfFile.getName(), datasetId);
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Reads and canonicalizes an RDF/XML document, containing the metadata of a dataset. 
+	 * The stream is not closed.
+	 */
+	public static CanonicalGraph read(InputStream is, String baseURI, String datasetId) throws RDFParseException, RDFHandlerException, IOException {
+		List<Statement> statements = new ArrayList<Statement>();
+		RDFParser parser = new RDFXMLParser();
+		parser.setRDFHandler(new StatementCollector(statements));
+		parser.parse(is, baseURI);
+		return fromStatements(statements, datasetId);
+	}
+
+	/**
+	 * Canonicalizes the statements of a dataset. The skolem IRIs of the blank nodes 
+	 * contain the id of the dataset, so that they are different from the ones of 
+	 * other datasets stored in the same triple store.
+	 */
+	public static CanonicalGraph fromStatements(List<Statement> statements, String datasetId) {
+		BNodeLabeler labeler = new BNodeLabeler(statements, SKOLEM_IRI_BASE + datasetId + "/");
+		SortedSet<String> canonicalStatements = new TreeSet<String>();
+		for (Statement statement : statements) {
+			canonicalStatements.add(labeler.toNTriples(statement.getSubject()) + " " +
+					labeler.toNTriples(statement.getPredicate()) + " " +
+					labeler.toNTriples(statement.getObject()) + " .");
+		}
+		return new CanonicalGraph(canonicalStatements);
+	}
+
+
+	/**
+	 * Returns the canonical statements (N-Triples lines, without the line break) in sorted order.
+	 */
+	public SortedSet<String> getStatements() {
+		return Collections.unmodifiableSortedSet(statements);
+	}
+
+	public int size() {
+		return statements.size();
+	}
+
+	/**
+	 * Returns the statements of this graph that are not in <code>other</code>, in sorted order.
+	 */
+	public List<String> minus(CanonicalGraph other) {
+		List<String> res = new ArrayList<String>();
+		for (String statement : statements) {
+			if ( ! other.statements.contains(statement)) {
+				res.add(statement);
+			}
+		}
+		return res;
+	}
+
+
+	//**************************** Utility functions *****************************************//
+
+	private static String sha1Hex(String text) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(text.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			//every Java platform is required to support SHA-1
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String escape(String text) {
+		StringBuilder sb = new StringBuilder(text.length() + 2);
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '\\': sb.append("\\\\"); break;
+			case '"': sb.append("\\\""); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default: sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+
+	/**
+	 * Computes the skolem IRIs of the blank nodes of a graph.
+	 */
+	private static class BNodeLabeler {
+
+		private final String skolemIRIPrefix;
+		private final Map<BNode, List<Statement>> outgoing = new HashMap<BNode, List<Statement>>();
+		private final Map<BNode, List<Statement>> incoming = new HashMap<BNode, List<Statement>>();
+		/** the group of connected blank nodes of every blank node */
+		private final Map<BNode, List<BNode>> groups = new HashMap<BNode, List<BNode>>();
+		private final Map<BNode, String> labels = new HashMap<BNode, String>();
+
+		BNodeLabeler(List<Statement> statements, String skolemIRIPrefix) {
+			this.skolemIRIPrefix = skolemIRIPrefix;
+			for (Statement statement : statements) {
+				if (statement.getSubject() instanceof BNode) {
+					addStatement(outgoing, (BNode) statement.getSubject(), statement);
+				}
+				if (statement.getObject() instanceof BNode) {
+					addStatement(incoming, (BNode) statement.getObject(), statement);
+				}
+			}
+			findGroups();
+			for (List<BNode> group : new HashSet<List<BNode>>(groups.values())) {
+				refineLabels(group);
+			}
+			distinguishEqualLabels();
+		}
+
+		private static void addStatement(Map<BNode, List<Statement>> statementsByBNode, BNode bNode, Statement statement) {
+			List<Statement> bNodeStatements = statementsByBNode.get(bNode);
+			if (bNodeStatements == null) {
+				bNodeStatements = new ArrayList<Statement>(4);
+				statementsByBNode.put(bNode, bNodeStatements);
+			}
+			bNodeStatements.add(statement);
+		}
+
+		private void findGroups() {
+			Set<BNode> bNodes = new HashSet<BNode>(outgoing.keySet());
+			bNodes.addAll(incoming.keySet());
+			for (BNode bNode : bNodes) {
+				if (groups.containsKey(bNode)) {
+					continue;
+				}
+				List<BNode> group = new ArrayList<BNode>();
+				LinkedList<BNode> toVisit = new LinkedList<BNode>();
+				toVisit.add(bNode);
+				groups.put(bNode, group);
+				while ( ! toVisit.isEmpty()) {
+					BNode node = toVisit.removeFirst();
+					group.add(node);
+					labels.put(node, "");
+					for (BNode neighbour : getBNodeNeighbours(node)) {
+						if ( ! groups.containsKey(neighbour)) {
+							groups.put(neighbour, group);
+							toVisit.add(neighbour);
+						}
+					}
+				}
+			}
+		}
+
+		private List<BNode> getBNodeNeighbours(BNode bNode) {
+			List<BNode> neighbours = new ArrayList<BNode>();
+			if (outgoing.containsKey(bNode)) {
+				for (Statement statement : outgoing.get(bNode)) {
+					if (statement.getObject() instanceof BNode) {
+						neighbours.add((BNode) statement.getObject());
+					}
+				}
+			}
+			if (incoming.containsKey(bNode)) {
+				for (Statement statement : incoming.get(bNode)) {
+					if (statement.getSubject() instanceof BNode) {
+						neighbours.add((BNode) statement.getSubject());
+					}
+				}
+			}
+			return neighbours;
+		}
+
+		/**
+		 * Replaces the label of every node of the group with a hash of its label and of
+		 * its statements, until the number of different labels in the group does not grow.
+		 */
+		private void refineLabels(List<BNode> group) {
+			int labelCount = countDistinctLabels(group);
+			while (true) {
+				Map<BNode, String> newLabels = new HashMap<BNode, String>();
+				for (BNode bNode : group) {
+					newLabels.put(bNode, computeRefinedLabel(bNode));
+				}
+				labels.putAll(newLabels);
+				int newLabelCount = countDistinctLabels(group);
+				if (newLabelCount == labelCount) {
+					return;
+				}
+				labelCount = newLabelCount;
+			}
+		}
+
+		private String computeRefinedLabel(BNode bNode) {
+			List<String> content = new ArrayList<String>();
+			if (outgoing.containsKey(bNode)) {
+				for (Statement statement : outgoing.get(bNode)) {
+					content.add("> " + toNTriples(statement.getPredicate()) + " " + toNTriples(statement.getObject()));
+				}
+			}
+			if (incoming.containsKey(bNode)) {
+				for (Statement statement : incoming.get(bNode)) {
+					content.add("< " + toNTriples(statement.getSubject()) + " " + toNTriples(statement.getPredicate()));
+				}
+			}
+			Collections.sort(content);
+			StringBuilder sb = new StringBuilder(labels.get(bNode)).append('\n');
+			for (String line : content) {
+				sb.append(line).append('\n');
+			}
+			return sha1Hex(sb.toString()).substring(0, BNODE_LABEL_LENGTH);
+		}
+
+		private int countDistinctLabels(List<BNode> group) {
+			Set<String> distinctLabels = new HashSet<String>();
+			for (BNode bNode : group) {
+				distinctLabels.add(labels.get(bNode));
+			}
+			return distinctLabels.size();
+		}
+
+		/**
+		 * Numbers the blank nodes that still have the same label, and refines the labels
+		 * of their groups, until every blank node has a different label. The nodes with 
+		 * the same label are interchangeable, so the order in which they are numbered 
+		 * does not change the canonical statements.
+		 */
+		private void distinguishEqualLabels() {
+			while (true) {
+				Map<String, List<BNode>> bNodesByLabel = new HashMap<String, List<BNode>>();
+				boolean found = false;
+				for (BNode bNode : labels.keySet()) {
+					String label = labels.get(bNode);
+					List<BNode> bNodes = bNodesByLabel.get(label);
+					if (bNodes == null) {
+						bNodes = new ArrayList<BNode>(1);
+						bNodesByLabel.put(label, bNodes);
+					}
+					bNodes.add(bNode);
+					found |= (bNodes.size() > 1);
+				}
+				if ( ! found) {
+					return;
+				}
+				for (Map.Entry<String, List<BNode>> entry : bNodesByLabel.entrySet()) {
+					List<BNode> bNodes = entry.getValue();
+					for (int i = 0; bNodes.size() > 1 && i < bNodes.size(); i++) {
+						BNode bNode = bNodes.get(i);
+						//the refinement of a previously numbered node may have already distinguished this one
+						if (labels.get(bNode).equals(entry.getKey())) {
+							labels.put(bNode, sha1Hex(entry.getKey() + "#" + i).substring(0, BNODE_LABEL_LENGTH));
+							refineLabels(groups.get(bNode));
+						}
+					}
+				}
+			}
+		}
+
+		String toNTriples(Value value) {
+			if (value instanceof BNode) {
+				return "<" + skolemIRIPrefix + labels.get(value) + ">";
+			}
+			else if (value instanceof Literal) {
+				Literal literal = (Literal) value;
+				String res = "\"" + escape(literal.getLabel()) + "\"";
+				if (literal.getLanguage() != null) {
+					res += "@" + literal.getLanguage();
+				}
+				else if (literal.getDatatype() != null) {
+					res += "^^<" + literal.getDatatype().stringValue() + ">";
+				}
+				return res;
+			}
+			else {
+				return "<" + value.stringValue() + ">";
+			}
+		}
+	}
+
+}
@@ -0,0 +1,606 @@
+package org.healthdata.metadata;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.healthdata.metadata.util.AtomicFileOutput;
+import org.healthdata.metadata.util.CompressionUtil;
+import org.healthdata.metadata.util.ConfigMap;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+import org.openrdf.rio.rdfxml.RDFXMLParser;
+
+/**
+ * A compact, faceted index of the converted dataset metadata files (i.e. the output
+ * of the {@link Updater}), which answers questions like "all datasets from agency X
+ * with monthly periodicity, covering 2010" without reparsing the metadata files. <br>
+ * The index is built in a single streaming pass over the files, and it can be saved
+ * to, and reloaded from, a binary file. The facets are:
+ * <ul>
+ * <li><code>agency</code> and <code>periodicity</code>: the values of the properties
+ * to which the "Agency" and "Collection Frequency" relations are converted, as
+ * specified in the configuration of the conversion. In queries the values can be given
+ * either as URIs, or as keys of the corresponding value maps (e.g. "Monthly")</li>
+ * <li>temporal coverage: the beginning and the end of the <code>dct:temporal</code>
+ * interval, queried by overlap with a date range</li>
+ * </ul>
+ *
+ * @author agent
+ *
+ */
+public class CatalogIndex {
+
+	public static final String FACET_AGENCY = "agency";
+	public static final String FACET_PERIODICITY = "periodicity";
+	public static final String CRITERION_FROM = "from";
+	public static final String CRITERION_TO = "to";
+
+	private static final int FILE_MAGIC = 0x48444349;
+	private static final int FILE_VERSION = 1;
+
+	/** Dates are stored as yyyymmdd int values; NO_DATE marks a missing date */
+	private static final int NO_DATE = 0;
+	private static final int MIN_DATE = 0;
+	private static final int MAX_DATE = 99991231;
+	private static final Pattern DATE_PATTERN = Pattern.compile("(\\d{4})-(\\d{2})-(\\d{2})");
+	private static final Pattern YEAR_PATTERN = Pattern.compile("\\d{4}");
+
+	private final List<String> datasetURIs = new ArrayList<String>();
+	private final List<String> fileNames = new ArrayList<String>();
+	private int[] coverageStarts = new int[16];
+	private int[] coverageEnds = new int[16];
+	/** facet name -> facet value -> datasets with that value */
+	private final Map<String, Map<String, BitSet>> facets = new LinkedHashMap<String, Map<String, BitSet>>();
+
+
+	private CatalogIndex() {
+		facets.put(FACET_AGENCY, new HashMap<String, BitSet>());
+		facets.put(FACET_PERIODICITY, new HashMap<String, BitSet>());
+	}
+
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		run(args);
+	}
+
+	/**
+	 * Runs the tool with the arguments of {@link #main(String[])}.
+	 *
+	 * @return true, if the arguments were valid, and the index was built or queried
+	 */
+	public static boolean run(String[] args) {
+		if (args != null && args.length == 4 && "-build".equals(args[0])) {
+			return buildIndex(args[1], args[2], args[3]);
+		}
+		else if (args != null && args.length >= 3 && "-query".equals(args[0])) {
+			return queryIndex(args[1], args[2], Arrays.copyOfRange(args, 3, args.length));
+		}
+		else {
+			System.out.println("USAGE: CatalogIndex -build DIR_FOR_NEW_METADATA_FILES (or ARCHIVE_FILE) INDEX_FILE CONFIG_PROPERTIES_FILE");
+			System.out.println("       CatalogIndex -query INDEX_FILE CONFIG_PROPERTIES_FILE [agency=VALUE] [periodicity=VALUE] [from=YYYY[-MM-DD]] [to=YYYY[-MM-DD]]");
+			System.out.println("       (a query without criteria lists the values of the facets)");
+			return false;
+		}
+	}
+
+	private static boolean buildIndex(String metadataDir, String indexFileName, String configPropFileName) {
+		try {
+			long start = System.nanoTime();
+			CatalogIndex index = build(new File(metadataDir), new ConversionPlan(configPropFileName));
+			index.save(new File(indexFileName));
+			System.out.println("Indexed " + index.size() + " datasets in " + (System.nanoTime() - start) / 1000000 + " ms");
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private static boolean queryIndex(String indexFileName, String configPropFileName, String[] criteria) {
+		try {
+			long start = System.nanoTime();
+			CatalogIndex index = load(new File(indexFileName));
+			System.out.println("Loaded " + index.size() + " datasets in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+			if (criteria.length == 0) {
+				for (String facet : index.facets.keySet()) {
+					System.out.println(facet + ": " + index.getFacetValueCounts(facet));
+				}
+				return true;
+			}
+
+			List<FacetDefinition> facetDefs = getFacetDefinitions(new ConversionPlan(configPropFileName));
+			Map<String, String> facetValues = new HashMap<String, String>();
+			int from = MIN_DATE;
+			int to = MAX_DATE;
+			for (String criterion : criteria) {
+				int eqIdx = criterion.indexOf('=');
+				String name = (eqIdx > 0 ? criterion.substring(0, eqIdx) : criterion);
+				String value = (eqIdx > 0 ? criterion.substring(eqIdx + 1) : "");
+				if (CRITERION_FROM.equals(name) || CRITERION_TO.equals(name)) {
+					int date = parseDate(value, CRITERION_TO.equals(name));
+					if (date < 0) {
+						System.out.println("Invalid date in criterion '" + criterion + "'. Expected YYYY or YYYY-MM-DD.");
+						return false;
+					}
+					if (CRITERION_FROM.equals(name)) {
+						from = date;
+					}
+					else {
+						to = date;
+					}
+				}
+				else if (index.facets.containsKey(name)) {
+					facetValues.put(name, resolveFacetValue(facetDefs, name, value));
+				}
+				else {
+					System.out.println("Unknown criterion '" + criterion + "'. Facets: " + index.facets.keySet());
+					return false;
+				}
+			}
+
+			long queryStart = System.nanoTime();
+			BitSet result = index.find(facetValues, from, to);
+			long queryTime = System.nanoTime() - queryStart;
+			for (String datasetURI : index.getDatasetURIs(result)) {
+				System.out.println(datasetURI);
+			}
+			System.out.println(result.cardinality() + " datasets found in " + (queryTime / 1000) + " us");
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+
+	//*************************** Building the index ***************************//
+
+	/**
+	 * Builds the index of all the metadata files (compressed or not) in <code>metadataDir</code>, 
+	 * or, if <code>metadataDir</code> is a metadata archive, of all the datasets in the archive. 
+	 * The properties of the facets are taken from the configuration of the conversion described by <code>plan</code>.
+	 */
+	static CatalogIndex build(File metadataDir, ConversionPlan plan) throws IOException {
+		CatalogIndex index = new CatalogIndex();
+		List<FacetDefinition> facetDefs = getFacetDefinitions(plan);
+		RDFParser parser = new RDFXMLParser();
+		if (MetadataArchive.isArchive(metadataDir)) {
+			MetadataArchive archive = new MetadataArchive(metadataDir);
+			try {
+				for (String datasetId : archive.getDatasetIds()) {
+					index.addFile(parser, archive.openInputStream(datasetId), datasetId, 
+							datasetId + HealthDataConstants.RDF_FILE_EXTENSION, facetDefs);
+				}
+			}
+			finally {
+				archive.close();
+			}
+			return index;
+		}
+
+		File[] files = metadataDir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return MetadataArchive.getDatasetId(name) != null;
+			}
+		});
+		if (files == null) {
+			throw new IOException("Could not list the files of " + metadataDir);
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			index.addFile(parser, CompressionUtil.openInputStream(file), MetadataArchive.getDatasetId(file.getName()), 
+					file.getName(), facetDefs);
+		}
+		return index;
+	}
+
+	/**
+	 * Adds the datasets described in a metadata file to the index, and closes the stream.
+	 */
+	private void addFile(RDFParser parser, InputStream is, String datasetId, String fileName, 
+			List<FacetDefinition> facetDefs) throws IOException {
+		DatasetStatementCollector collector = new DatasetStatementCollector();
+		parser.setRDFHandler(collector);
+		try {
+			parser.parse(is, HealthDataConstants.HEALTHDATA_GOV_DATASET_BASE_URI + datasetId + HealthDataConstants.RDF_FILE_EXTENSION);
+		}
+		catch (RDFParseException e) {
+			System.out.println("Could not parse " + fileName + ". It will not be indexed. " + e.getMessage());
+			return;
+		}
+		catch (RDFHandlerException e) {
+			System.out.println("Could not parse " + fileName + ". It will not be indexed. " + e.getMessage());
+			return;
+		}
+		finally {
+			is.close();
+		}
+		for (Resource dsResource : collector.getDatasets()) {
+			addDataset(dsResource, fileName, collector, facetDefs);
+		}
+	}
+
+
+	private void addDataset(Resource dsResource, String fileName, DatasetStatementCollector collector,
+			List<FacetDefinition> facetDefs) {
+		int id = datasetURIs.size();
+		datasetURIs.add(dsResource.stringValue());
+		fileNames.add(fileName);
+
+		for (FacetDefinition facetDef : facetDefs) {
+			for (Statement stm : collector.getStatements(dsResource)) {
+				if (facetDef.matches(stm.getPredicate(), collector.getNamespaces())) {
+					addFacetValue(facetDef.name, stm.getObject().stringValue(), id);
+				}
+			}
+		}
+
+		int coverageStart = NO_DATE;
+		int coverageEnd = NO_DATE;
+		Value coverage = collector.getObject(dsResource, HealthDataConstants.URI_PROP_DCT_TEMPORAL);
+		if (coverage instanceof Resource) {
+			coverageStart = getInstantDate(collector, (Resource) coverage, HealthDataConstants.URI_PROP_TIME_HAS_BEGINNING);
+			coverageEnd = getInstantDate(collector, (Resource) coverage, HealthDataConstants.URI_PROP_TIME_HAS_END);
+		}
+		setCoverage(id, coverageStart, coverageEnd);
+	}
+
+	private int getInstantDate(DatasetStatementCollector collector, Resource coverage, String instantProperty) {
+		Value instant = collector.getObject(coverage, instantProperty);
+		if (instant instanceof Resource) {
+			Value date = collector.getObject((Resource) instant, HealthDataConstants.URI_PROP_TIME_IN_XSD_DATETIME);
+			if (date == null) {
+				date = collector.getObject((Resource) instant, HealthDataConstants.URI_PROP_TIME_IN_XSD_DATE);
+			}
+			if (date != null) {
+				Matcher matcher = DATE_PATTERN.matcher(date.stringValue());
+				if (matcher.find()) {
+					return toDateValue(matcher);
+				}
+			}
+		}
+		return NO_DATE;
+	}
+
+	private void addFacetValue(String facet, String value, int id) {
+		Map<String, BitSet> values = facets.get(facet);
+		BitSet datasets = values.get(value);
+		if (datasets == null) {
+			datasets = new BitSet();
+			values.put(value, datasets);
+		}
+		datasets.set(id);
+	}
+
+	private void setCoverage(int id, int coverageStart, int coverageEnd) {
+		if (id >= coverageStarts.length) {
+			coverageStarts = Arrays.copyOf(coverageStarts, Math.max(id + 1, coverageStarts.length * 2));
+			coverageEnds = Arrays.copyOf(coverageEnds, coverageStarts.length);
+		}
+		coverageStarts[id] = coverageStart;
+		coverageEnds[id] = coverageEnd;
+	}
+
+
+	//*************************** Querying the index ***************************//
+
+	public int size() {
+		return datasetURIs.size();
+	}
+
+	/**
+	 * Returns the datasets that have all the given facet values (facet name -> value),
+	 * and whose temporal coverage overlaps the [from, to] interval (dates in yyyymmdd form).
+	 * If the interval is not restricted (i.e. it is [0, 99991231]), datasets without
+	 * temporal coverage are also returned.
+	 */
+	public BitSet find(Map<String, String> facetValues, int from, int to) {
+		BitSet result = new BitSet(size());
+		result.set(0, size());
+		for (Map.Entry<String, String> entry : facetValues.entrySet()) {
+			Map<String, BitSet> values = facets.get(entry.getKey());
+			BitSet datasets = (values == null ? null : values.get(entry.getValue()));
+			if (datasets == null) {
+				return new BitSet();
+			}
+			result.and(datasets);
+		}
+		if (from > MIN_DATE || to < MAX_DATE) {
+			for (int id = result.nextSetBit(0); id >= 0; id = result.nextSetBit(id + 1)) {
+				int start = coverageStarts[id];
+				int end = coverageEnds[id];
+				boolean hasCoverage = (start != NO_DATE || end != NO_DATE);
+				if ( ! hasCoverage || (start != NO_DATE && start > to) || (end != NO_DATE && end < from)) {
+					result.clear(id);
+				}
+			}
+		}
+		return result;
+	}
+
+	public List<String> getDatasetURIs(BitSet datasets) {
+		List<String> res = new ArrayList<String>();
+		for (int id = datasets.nextSetBit(0); id >= 0; id = datasets.nextSetBit(id + 1)) {
+			res.add(datasetURIs.get(id));
+		}
+		return res;
+	}
+
+	public String getFileName(int id) {
+		return fileNames.get(id);
+	}
+
+	public Map<String, Integer> getFacetValueCounts(String facet) {
+		Map<String, Integer> res = new TreeMap<String, Integer>();
+		Map<String, BitSet> values = facets.get(facet);
+		if (values != null) {
+			for (Map.Entry<String, BitSet> entry : values.entrySet()) {
+				res.put(entry.getKey(), entry.getValue().cardinality());
+			}
+		}
+		return res;
+	}
+
+
+	//*************************** Persistence ***************************//
+
+	/**
+	 * Writes the index to <code>indexFile</code>, through a temporary file, so that a
+	 * failed build leaves the previous index in place.
+	 */
+	public void save(File indexFile) throws IOException {
+		AtomicFileOutput output = new AtomicFileOutput(indexFile);
+		try {
+			DataOutputStream out = new DataOutputStream(output.getOutputStream());
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			int n = size();
+			out.writeInt(n);
+			for (int id = 0; id < n; id++) {
+				out.writeUTF(datasetURIs.get(id));
+				out.writeUTF(fileNames.get(id));
+				out.writeInt(coverageStarts[id]);
+				out.writeInt(coverageEnds[id]);
+			}
+			out.writeInt(facets.size());
+			for (Map.Entry<String, Map<String, BitSet>> facet : facets.entrySet()) {
+				out.writeUTF(facet.getKey());
+				out.writeInt(facet.getValue().size());
+				for (Map.Entry<String, BitSet> value : facet.getValue().entrySet()) {
+					BitSet datasets = value.getValue();
+					out.writeUTF(value.getKey());
+					out.writeInt(datasets.cardinality());
+					for (int id = datasets.nextSetBit(0); id >= 0; id = datasets.nextSetBit(id + 1)) {
+						out.writeInt(id);
+					}
+				}
+			}
+			out.flush();
+			output.commit();
+		}
+		finally {
+			output.abort();
+		}
+	}
+
+	public static CatalogIndex load(File indexFile) throws IOException {
+		DataInputStream in = new DataInputStream(CompressionUtil.openInputStream(indexFile));
+		try {
+			if (in.readInt() != FILE_MAGIC) {
+				throw new IOException(indexFile + " is not a catalog index file");
+			}
+			int version = in.readInt();
+			if (version != FILE_VERSION) {
+				throw new IOException("Unsupported catalog index version " + version + " in " + indexFile + ". Please rebuild the index.");
+			}
+			CatalogIndex index = new CatalogIndex();
+			int n = in.readInt();
+			index.coverageStarts = new int[Math.max(n, 1)];
+			index.coverageEnds = new int[Math.max(n, 1)];
+			for (int id = 0; id < n; id++) {
+				index.datasetURIs.add(in.readUTF());
+				index.fileNames.add(in.readUTF());
+				index.coverageStarts[id] = in.readInt();
+				index.coverageEnds[id] = in.readInt();
+			}
+			int facetCount = in.readInt();
+			for (int i = 0; i < facetCount; i++) {
+				String facet = in.readUTF();
+				Map<String, BitSet> values = new HashMap<String, BitSet>();
+				index.facets.put(facet, values);
+				int valueCount = in.readInt();
+				for (int j = 0; j < valueCount; j++) {
+					String value = in.readUTF();
+					BitSet datasets = new BitSet(n);
+					int count = in.readInt();
+					for (int k = 0; k < count; k++) {
+						datasets.set(in.readInt());
+					}
+					values.put(value, datasets);
+				}
+			}
+			return index;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+
+	//**************************** Utility functions *****************************************//
+
+	/**
+	 * Returns the definitions of the agency and periodicity facets, based on the
+	 * relations-to-properties map of the conversion configuration.
+	 */
+	private static List<FacetDefinition> getFacetDefinitions(ConversionPlan plan) {
+		List<FacetDefinition> facetDefs = new ArrayList<FacetDefinition>();
+		ConfigMap relationsMap = plan.getConfigMapForConfigKey(DatasetMetadataUpdater.KEY_CONVERT_RELATIONS_TO_PROPERTIES_FILE);
+		addFacetDefinition(facetDefs, FACET_AGENCY, HealthDataConstants.KEY_AGENCY, relationsMap, plan);
+		addFacetDefinition(facetDefs, FACET_PERIODICITY, HealthDataConstants.KEY_COLLECTION_FREQUENCY, relationsMap, plan);
+		return facetDefs;
+	}
+
+	private static void addFacetDefinition(List<FacetDefinition> facetDefs, String facet, String relationKey,
+			ConfigMap relationsMap, ConversionPlan plan) {
+		String value = (relationsMap == null ? null : relationsMap.get(relationKey));
+		if (value == null) {
+			System.out.println("WARNING: The '" + relationKey + "' relation is not converted to a property. " +
+					"The '" + facet + "' facet will be empty.");
+			return;
+		}
+		String[] valueParts = value.split("\\s*\\|\\s*");
+		ConfigMap valueMap = (valueParts.length > 1 ? plan.getConfigMap(valueParts[1]) : null);
+		facetDefs.add(new FacetDefinition(facet, valueParts[0], valueMap));
+	}
+
+	private static String resolveFacetValue(List<FacetDefinition> facetDefs, String facet, String value) {
+		for (FacetDefinition facetDef : facetDefs) {
+			if (facetDef.name.equals(facet) && facetDef.valueMap != null) {
+				String uri = facetDef.valueMap.get(value);
+				if (uri != null) {
+					return uri;
+				}
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Parses a date of the form YYYY-MM-DD or YYYY. A year alone denotes its first day,
+	 * or, if <code>endOfPeriod</code> is true, its last day.
+	 *
+	 * @return the date as YYYYMMDD, or -1 if <code>value</code> is not a valid date
+	 */
+	private static int parseDate(String value, boolean endOfPeriod) {
+		value = value.trim();
+		Matcher matcher = DATE_PATTERN.matcher(value);
+		if (matcher.matches()) {
+			int month = Integer.parseInt(matcher.group(2));
+			int day = Integer.parseInt(matcher.group(3));
+			if (month < 1 || month > 12 || day < 1 || day > 31) {
+				return -1;
+			}
+			return toDateValue(matcher);
+		}
+		if (YEAR_PATTERN.matcher(value).matches()) {
+			return Integer.parseInt(value) * 10000 + (endOfPeriod ? 1231 : 101);
+		}
+		return -1;
+	}
+
+	private static int toDateValue(Matcher dateMatcher) {
+		return Integer.parseInt(dateMatcher.group(1)) * 10000 +
+				Integer.parseInt(dateMatcher.group(2)) * 100 +
+				Integer.parseInt(dateMatcher.group(3));
+	}
+
+
+	private static class FacetDefinition {
+
+		final String name;
+		final String propertyName;
+		final ConfigMap valueMap;
+
+		FacetDefinition(String name, String propertyName, ConfigMap valueMap) {
+			this.name = name;
+			this.propertyName = propertyName;
+			this.valueMap = valueMap;
+		}
+
+		/**
+		 * Checks whether <code>predicate</code> is the property of the facet, which might
+		 * be specified in the configuration either as a full URI or as a prefixed name.
+		 */
+		boolean matches(URI predicate, Map<String, String> namespaces) {
+			if (propertyName.equals(predicate.stringValue())) {
+				return true;
+			}
+			int colonIdx = propertyName.indexOf(':');
+			if (colonIdx > 0) {
+				String ns = namespaces.get(propertyName.substring(0, colonIdx));
+				return ns != null && predicate.stringValue().equals(ns + propertyName.substring(colonIdx + 1));
+			}
+			return false;
+		}
+	}
+
+
+	/**
+	 * Collects the statements of a single (small) metadata file, grouped by subject.
+	 */
+	private static class DatasetStatementCollector extends RDFHandlerBase {
+
+		private final Map<Resource, List<Statement>> statementsBySubject = new HashMap<Resource, List<Statement>>();
+		private final List<Resource> datasets = new ArrayList<Resource>();
+		private final Map<String, String> namespaces = new HashMap<String, String>();
+
+		@Override
+		public void handleNamespace(String prefix, String uri) {
+			namespaces.put(prefix, uri);
+		}
+
+		@Override
+		public void handleStatement(Statement st) {
+			List<Statement> statements = statementsBySubject.get(st.getSubject());
+			if (statements == null) {
+				statements = new ArrayList<Statement>();
+				statementsBySubject.put(st.getSubject(), statements);
+			}
+			statements.add(st);
+			if (RDF.TYPE.equals(st.getPredicate()) &&
+					HealthDataConstants.URI_CLASS_DCAT_DATASET.equals(st.getObject().stringValue()) &&
+					! datasets.contains(st.getSubject())) {
+				datasets.add(st.getSubject());
+			}
+		}
+
+		List<Resource> getDatasets() {
+			return datasets;
+		}
+
+		Map<String, String> getNamespaces() {
+			return namespaces;
+		}
+
+		List<Statement> getStatements(Resource subject) {
+			List<Statement> statements = statementsBySubject.get(subject);
+			return (statements == null ? new ArrayList<Statement>() : statements);
+		}
+
+		Value getObject(Resource subject, String property) {
+			for (Statement stm : getStatements(subject)) {
+				if (property.equals(stm.getPredicate().stringValue())) {
+					return stm.getObject();
+				}
+			}
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,159 @@
+package org.healthdata.metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.healthdata.metadata.util.ConfigCache;
+import org.healthdata.metadata.util.ConfigMap;
+
+/**
+ * The resolved configuration of a metadata conversion: the main configuration
+ * file of a {@link DatasetMetadataUpdater}, together with all the properties
+ * files it refers to (directly, or as value-to-URI maps). The files are loaded
+ * when the plan is created, so converting a dataset does not need to touch the
+ * file system for the configuration. <br>
+ * A plan can be shared by any number of conversions, including concurrent ones.
+ * The returned maps are immutable, and they can be read without any locking.
+ *
+ * @author agent
+ *
+ */
+class ConversionPlan {
+
+	private static final int MAX_CACHED_RULE_DISPATCH_TABLES = 32;
+
+	private final String configPropFileName;
+	private String configPropFilePathPrefix = "";
+	private final ConfigMap mainConfig;
+	private final ConcurrentMap<String, ConfigMap> configMapsByName = new ConcurrentHashMap<String, ConfigMap>();
+	/** the compiled rules, by the namespace prefixes used to resolve them (which are usually the same for all the datasets) */
+	private final ConcurrentMap<Map<String, String>, RuleDispatchTable> ruleDispatchTables = new ConcurrentHashMap<Map<String, String>, RuleDispatchTable>();
+
+
+	public ConversionPlan(String configPropFileName) {
+		this.configPropFileName = configPropFileName;
+		String configPropFileParent = new File(configPropFileName).getParent();
+		if (configPropFileParent != null) {
+			configPropFilePathPrefix = configPropFileParent + File.separator;
+		}
+		mainConfig = getConfigMap(configPropFileName);
+
+		//load all the files referred from the main configuration file
+		for (int i = 0; i < mainConfig.size(); i++) {
+			getConfigMapForConfigKey(mainConfig.getKey(i));
+		}
+	}
+
+
+	public String getConfigPropFileName() {
+		return configPropFileName;
+	}
+
+	public ConfigMap getMainConfig() {
+		return mainConfig;
+	}
+
+	/**
+	 * Loads the value-to-URI maps referred from the values (of the form
+	 * <code>property | value_map_file</code>) of the files specified by <code>keys</code>.
+	 */
+	public void loadValueMaps(String... keys) {
+		for (String key : keys) {
+			ConfigMap configMap = getConfigMapForConfigKey(key);
+			if (configMap == null) {
+				continue;
+			}
+			for (int i = 0; i < configMap.size(); i++) {
+				String[] valueParts = configMap.getValue(i).split("\\s*\\|\\s*");
+				if (valueParts.length > 1) {
+					getConfigMap(valueParts[1]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of distinct properties files loaded by this plan.
+	 */
+	public int size() {
+		return configMapsByName.size();
+	}
+
+
+	/**
+	 * Returns the rules of this plan compiled for the namespace prefixes <code>prefixToNamespaceMap</code>
+	 * (see {@link RuleDispatchTable}). The table is compiled only once for the same prefixes.
+	 */
+	public RuleDispatchTable getRuleDispatchTable(Map<String, String> prefixToNamespaceMap) {
+		RuleDispatchTable table = ruleDispatchTables.get(prefixToNamespaceMap);
+		if (table == null) {
+			table = new RuleDispatchTable(this, prefixToNamespaceMap);
+			//if the datasets use too many different prefixes, the tables are not cached
+			if (ruleDispatchTables.size() < MAX_CACHED_RULE_DISPATCH_TABLES) {
+				RuleDispatchTable prevTable = ruleDispatchTables.putIfAbsent(new HashMap<String, String>(prefixToNamespaceMap), table);
+				if (prevTable != null) {
+					table = prevTable;
+				}
+			}
+		}
+		return table;
+	}
+
+
+	public ConfigMap getConfigMapForConfigKey(String key) {
+		String propertiesFileName = mainConfig.get(key);
+
+		if (propertiesFileName == null) {
+			System.out.println("WARNING: There was no value specified for the key: '" + key + "' in the configuration properties files!");
+			return null;
+		}
+		else {
+			return getConfigMap(propertiesFileName);
+		}
+	}
+
+
+	public ConfigMap getConfigMap(String propertiesFileName) {
+		ConfigMap configMap = configMapsByName.get(propertiesFileName);
+		if (configMap == null) {
+			configMap = loadConfigMap(propertiesFileName);
+			ConfigMap prevConfigMap = configMapsByName.putIfAbsent(propertiesFileName, configMap);
+			if (prevConfigMap != null) {
+				configMap = prevConfigMap;
+			}
+		}
+		return configMap;
+	}
+
+
+	private ConfigMap loadConfigMap(String propertiesFileName) {
+		ConfigMap configMap = ConfigMap.EMPTY;
+		try {
+			if (HealthDataConstants.MAP_LITERAL_TO_URI.equals(propertiesFileName)) {
+				configMap = ConfigMap.identity();
+			}
+			else {
+				//if it is not fully specified, use the same path as for the main configuration file
+				if ( new File(propertiesFileName).getParent() == null ) {
+					propertiesFileName = configPropFilePathPrefix + propertiesFileName;
+				}
+				File propertiesFile = new File(propertiesFileName);
+				if (propertiesFile.exists()) {
+					configMap = ConfigCache.getConfigMap(propertiesFile);
+				}
+				else {
+					System.out.println("WARNING: '" + propertiesFile + "' could not be found. Metadata update will not work as excpected.");
+				}
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		return configMap;
+	}
+
+}
@@ -0,0 +1,338 @@
+package org.healthdata.metadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.healthdata.metadata.util.LatencyHistogram;
+import org.openrdf.rio.RDFParseException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class provides a local HTTP service that converts dataset metadata on demand,
+ * using the {@link DatasetMetadataUpdater}, without going through temporary files.
+ * The service is started with one or more main configuration files; each of them is
+ * turned into a {@link ConversionPlan} (i.e. all the configuration files are loaded)
+ * and exercised with a small warm-up document before the server starts to accept
+ * requests. A configuration is identified by the name of its main configuration file,
+ * without the extension (e.g. <code>main_configuration</code>). <br>
+ * Endpoints:
+ * <pre>
+ * POST /convert[?config=CONFIG_NAME][&name=DATASET_FILE_NAME]   the body is the RDF/XML to be converted
+ * GET  /metrics                                                 latency histograms and error counts
+ * </pre>
+ * If no configuration is specified, the first one is used. The dataset name is used
+ * only for creating the base URI of the document, as it is done for the downloaded files. <br>
+ * Requests are executed on a fixed size worker pool. At most <code>-queue=N</code>
+ * requests wait for a free worker; further connections are not accepted until
+ * one of the waiting requests is picked up.
+ *
+ * @author agent
+ *
+ */
+public class ConversionServer {
+
+	private static final String OPTION_THREADS = "-threads=";
+	private static final String OPTION_QUEUE = "-queue=";
+	private static final int DEFAULT_QUEUE_CAPACITY = 64;
+	private static final int WARMUP_ITERATIONS = 5;
+
+	private static final String CONTENT_TYPE_RDF_XML = "application/rdf+xml; charset=UTF-8";
+	private static final String CONTENT_TYPE_TEXT = "text/plain; charset=UTF-8";
+	private static final String DEFAULT_DATASET_NAME = "dataset.rdf";
+
+	private static final String WARMUP_DOCUMENT =
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+		"<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"\n" +
+		"    xmlns:dcat=\"http://www.w3.org/ns/dcat#\" xmlns:dct=\"http://purl.org/dc/terms/\">\n" +
+		"  <dcat:Dataset rdf:about=\"" + HealthDataConstants.HEALTHDATA_GOV_DATASET_BASE_URI + "warmup\">\n" +
+		"    <dct:title>Warm-up</dct:title>\n" +
+		"    <dct:modified>2012-01-01</dct:modified>\n" +
+		"  </dcat:Dataset>\n" +
+		"</rdf:RDF>\n";
+
+
+	private final Map<String, ConversionPlan> plans = new LinkedHashMap<String, ConversionPlan>();
+	private final Map<String, LatencyHistogram> conversionLatencies = new HashMap<String, LatencyHistogram>();
+	private final LatencyHistogram requestLatency = new LatencyHistogram("requests");
+	private final AtomicLong badRequestCount = new AtomicLong();
+	private final AtomicLong failedRequestCount = new AtomicLong();
+
+	private final int threadCount;
+	private final int queueCapacity;
+	private HttpServer server;
+	private ExecutorService workers;
+
+
+	public ConversionServer(int threadCount, int queueCapacity) {
+		this.threadCount = Math.max(1, threadCount);
+		this.queueCapacity = Math.max(0, queueCapacity);
+	}
+
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int threadCount = Runtime.getRuntime().availableProcessors();
+		int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+		int port = -1;
+		List<String> configFileNames = new ArrayList<String>();
+		try {
+			for (String arg : (args == null ? new String[0] : args)) {
+				if (arg.startsWith(OPTION_THREADS)) {
+					threadCount = Integer.parseInt(arg.substring(OPTION_THREADS.length()));
+				}
+				else if (arg.startsWith(OPTION_QUEUE)) {
+					queueCapacity = Integer.parseInt(arg.substring(OPTION_QUEUE.length()));
+				}
+				else if (port < 0) {
+					port = Integer.parseInt(arg);
+				}
+				else {
+					configFileNames.add(arg);
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid number: " + e.getMessage());
+			port = -1;
+		}
+		if (port < 0 || configFileNames.isEmpty()) {
+			System.out.println("USAGE: ConversionServer [-threads=N] [-queue=N] PORT CONFIG_PROPERTIES_FILE [CONFIG_PROPERTIES_FILE ...]");
+			return;
+		}
+
+		ConversionServer conversionServer = new ConversionServer(threadCount, queueCapacity);
+		for (String configFileName : configFileNames) {
+			conversionServer.addConfiguration(configFileName);
+		}
+		try {
+			conversionServer.start(port);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * Creates and prewarms the conversion plan for the main configuration file
+	 * <code>configPropFileName</code>. All configurations must be added before
+	 * the server is started.
+	 */
+	public void addConfiguration(String configPropFileName) {
+		String configName = getConfigName(configPropFileName);
+		long start = System.nanoTime();
+		ConversionPlan plan = DatasetMetadataUpdater.createConversionPlan(configPropFileName);
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			try {
+				DatasetMetadataUpdater.convertMetadata(new ByteArrayInputStream(WARMUP_DOCUMENT.getBytes("UTF-8")),
+						HealthDataConstants.HEALTHDATA_GOV_DATASET_BASE_URI, new ByteArrayOutputStream(), plan);
+			} catch (Exception e) {
+				System.out.println("Warm-up conversion failed for configuration '" + configName + "': " + e);
+				break;
+			}
+		}
+		plans.put(configName, plan);
+		conversionLatencies.put(configName, new LatencyHistogram("conversions (" + configName + ")"));
+		System.out.println("Configuration '" + configName + "' (" + plan.size() + " properties files) prepared in " +
+				(System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+
+	public void start(int port) throws IOException {
+		workers = Executors.newFixedThreadPool(threadCount);
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/convert", new ConvertHandler());
+		server.createContext("/metrics", new MetricsHandler());
+		server.setExecutor(new BoundedExecutor(workers, threadCount + queueCapacity));
+		server.start();
+		System.out.println("Conversion server listening on port " + server.getAddress().getPort() +
+				" with " + threadCount + " workers. Configurations: " + plans.keySet());
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			workers.shutdown();
+		}
+	}
+
+	public String getMetricsReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(requestLatency.getReport());
+		for (LatencyHistogram histogram : conversionLatencies.values()) {
+			sb.append(histogram.getReport());
+		}
+		sb.append("bad requests: ").append(badRequestCount.get()).append("\n");
+		sb.append("failed requests: ").append(failedRequestCount.get()).append("\n");
+		sb.append("conversion repositories: ").append(DatasetMetadataUpdater.getCreatedRepositoryCount()).append("\n");
+		return sb.toString();
+	}
+
+
+	//************************* Request handlers ****************************//
+
+	private class ConvertHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			long start = System.nanoTime();
+			try {
+				if ( ! "POST".equals(exchange.getRequestMethod())) {
+					exchange.getResponseHeaders().set("Allow", "POST");
+					sendText(exchange, 405, "Only POST is supported");
+					return;
+				}
+				Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+				String configName = params.get("config");
+				if (configName == null) {
+					configName = plans.keySet().iterator().next();
+				}
+				ConversionPlan plan = plans.get(configName);
+				if (plan == null) {
+					badRequestCount.incrementAndGet();
+					sendText(exchange, 404, "Unknown configuration '" + configName + "'. Available configurations: " + plans.keySet());
+					return;
+				}
+				String datasetName = params.get("name");
+				if (datasetName == null) {
+					datasetName = DEFAULT_DATASET_NAME;
+				}
+
+				byte[] result;
+				long conversionStart = System.nanoTime();
+				try {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					InputStream in = exchange.getRequestBody();
+					DatasetMetadataUpdater.convertMetadata(in, HealthDataConstants.HEALTHDATA_GOV_DATASET_BASE_URI + datasetName, out, plan);
+					result = out.toByteArray();
+				}
+				catch (RDFParseException e) {
+					badRequestCount.incrementAndGet();
+					sendText(exchange, 400, "Invalid RDF/XML: " + e.getMessage());
+					return;
+				}
+				conversionLatencies.get(configName).record(System.nanoTime() - conversionStart);
+
+				exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE_RDF_XML);
+				send(exchange, 200, result);
+			}
+			catch (Exception e) {
+				failedRequestCount.incrementAndGet();
+				e.printStackTrace();
+				sendText(exchange, 500, "Conversion failed: " + e);
+			}
+			finally {
+				requestLatency.record(System.nanoTime() - start);
+				exchange.close();
+			}
+		}
+	}
+
+
+	private class MetricsHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				sendText(exchange, 200, getMetricsReport());
+			}
+			finally {
+				exchange.close();
+			}
+		}
+	}
+
+
+	private void sendText(HttpExchange exchange, int status, String text) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE_TEXT);
+		send(exchange, status, (text + "\n").getBytes("UTF-8"));
+	}
+
+	private void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream os = exchange.getResponseBody();
+		os.write(body);
+		os.close();
+	}
+
+
+	//**************************** Utility functions *****************************************//
+
+	private String getConfigName(String configPropFileName) {
+		String name = new File(configPropFileName).getName();
+		int extStartIdx = name.lastIndexOf(".");
+		return (extStartIdx > 0 ? name.substring(0, extStartIdx) : name);
+	}
+
+	private Map<String, String> parseQuery(String query) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		if (query == null) {
+			return params;
+		}
+		for (String param : query.split("&")) {
+			int eqIdx = param.indexOf('=');
+			if (eqIdx > 0) {
+				params.put(URLDecoder.decode(param.substring(0, eqIdx), "UTF-8"),
+						URLDecoder.decode(param.substring(eqIdx + 1), "UTF-8"));
+			}
+		}
+		return params;
+	}
+
+
+	/**
+	 * Hands the exchanges over to the worker pool, but blocks the dispatcher thread of
+	 * the HTTP server, when more than <code>maxPending</code> exchanges are being
+	 * processed or are waiting for a worker. This way the work queue stays bounded,
+	 * and new connections are left in the accept backlog instead.
+	 */
+	private static class BoundedExecutor implements Executor {
+
+		private final Executor executor;
+		private final Semaphore permits;
+
+		BoundedExecutor(Executor executor, int maxPending) {
+			this.executor = executor;
+			this.permits = new Semaphore(maxPending);
+		}
+
+		public void execute(final Runnable command) {
+			permits.acquireUninterruptibly();
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							command.run();
+						}
+						finally {
+							permits.release();
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				permits.release();
+				throw e;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,43 @@
+package org.healthdata.metadata;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A JDK Flight Recorder event recording one step of the conversion of a dataset
+ * (parsing the original metadata, one of the steps of the update, or writing the result),
+ * so that a recording can attribute the conversion time to datasets and steps. <br>
+ * The fields are filled in only if the event is going to be committed (see
+ * {@link #shouldCommit()}), so the event costs (almost) nothing when it is not recorded.
+ *
+ * @author agent
+ *
+ */
+@Name("org.healthdata.metadata.ConversionStep")
+@Label("Conversion Step")
+@Category({"Healthdata", "Conversion"})
+@Description("A step of the conversion of the metadata of a dataset")
+@StackTrace(false)
+class ConversionStepEvent extends Event {
+
+	@Label("Dataset")
+	String datasetId;
+
+	@Label("Step")
+	String step;
+
+	@Label("Statements")
+	@Description("The number of statements of the converted graph after the step (of the original graph, for the parse step)")
+	long statementCount;
+
+	@Label("Bytes")
+	@Description("The size of the document read (parse step) or written (write step)")
+	@DataAmount(DataAmount.BYTES)
+	long bytes;
+
+}
@@ -0,0 +1,663 @@
+package org.healthdata.metadata;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import org.healthdata.metadata.RuleDispatchTable.Rule;
+import org.healthdata.metadata.RuleDispatchTable.RuleType;
+import org.healthdata.metadata.util.CompressionUtil;
+import org.healthdata.metadata.util.ConfigMap;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+import org.openrdf.rio.rdfxml.RDFXMLParser;
+
+/**
+ * Profiles the downloaded metadata files (i.e. the input of the {@link Updater}), to help
+ * maintaining the configuration of the conversion. The files are parsed in parallel, with
+ * streaming parsers (without loading them into a repository), and the report lists:
+ * <ul>
+ * <li>the predicates of the corpus, by the shape of their values (URI, BNode, or the kind
+ * of literal: date, date and time, year, number, URL, text or empty), with the number
+ * of statements and of files</li>
+ * <li>the labels of the <code>dct:relation</code>s, by the shape of their <code>rdf:value</code>,
+ * and the rule of the configuration handling them (if any)</li>
+ * <li>the entries of the preserve, replace and dct:relation configuration files, with the
+ * number of datasets they match, and the entries that never match (which can be pruned)</li>
+ * </ul>
+ * The input is a directory of (compressed) metadata files, as written by the {@link Downloader},
+ * or a {@link MetadataArchive}. The report is written to the standard output, or, with the
+ * <code>-report=FILE</code> option, to a file.
+ *
+ * @author agent
+ *
+ */
+public class CorpusProfiler {
+
+	private static final String OPTION_THREADS = "-threads=";
+	private static final String OPTION_REPORT = "-report=";
+
+	/** the configuration files whose entries are checked, and the type of their rules */
+	private static final Map<RuleType, String> CONFIG_KEYS_BY_RULE_TYPE = new LinkedHashMap<RuleType, String>();
+	static {
+		CONFIG_KEYS_BY_RULE_TYPE.put(RuleType.PRESERVE_URI_VALUES, DatasetMetadataUpdater.KEY_PRESERVE_PROPERTIES_WITH_URI_VALUES_FILE);
+		CONFIG_KEYS_BY_RULE_TYPE.put(RuleType.PRESERVE_LITERAL_VALUES, DatasetMetadataUpdater.KEY_PRESERVE_PROPERTIES_WITH_LITERAL_VALUES_FILE);
+		CONFIG_KEYS_BY_RULE_TYPE.put(RuleType.PRESERVE_BNODE_VALUES, DatasetMetadataUpdater.KEY_PRESERVE_PROPERTIES_WITH_BNODE_VALUES_FILE);
+		CONFIG_KEYS_BY_RULE_TYPE.put(RuleType.REPLACE, DatasetMetadataUpdater.KEY_REPLACE_PROPERTIES_FILE);
+		CONFIG_KEYS_BY_RULE_TYPE.put(RuleType.CONVERT_RELATION, DatasetMetadataUpdater.KEY_CONVERT_RELATIONS_TO_PROPERTIES_FILE);
+		CONFIG_KEYS_BY_RULE_TYPE.put(RuleType.PRESERVE_RELATION, DatasetMetadataUpdater.KEY_PRESERVE_RELATIONS_FILE);
+	}
+
+	private static final String SHAPE_URI = "uri";
+	private static final String SHAPE_BNODE = "bnode";
+	private static final String SHAPE_NONE = "none";
+	private static final Pattern DATE_PATTERN = Pattern.compile("\\d\\d\\d\\d-\\d\\d-\\d\\d");
+	private static final Pattern DATE_TIME_PATTERN = Pattern.compile("\\d\\d\\d\\d-\\d\\d-\\d\\d[ T]\\d\\d:\\d\\d(:\\d\\d)?.*");
+	private static final Pattern YEAR_PATTERN = Pattern.compile("\\d\\d\\d\\d");
+	private static final Pattern NUMBER_PATTERN = Pattern.compile("[-+]?\\d+([.,]\\d+)?");
+	private static final Pattern URL_PATTERN = Pattern.compile("(https?|ftp)://\\S+");
+
+	private final ConversionPlan plan;
+	private final int threadCount;
+
+	private int fileCount = 0;
+	private int datasetCount = 0;
+	private final List<String> failedFiles = new ArrayList<String>();
+	/** "predicate \t shape" -> count */
+	private final Map<String, Count> predicateCounts = new TreeMap<String, Count>();
+	/** "label \t shape" -> count */
+	private final Map<String, Count> relationCounts = new TreeMap<String, Count>();
+	/** the number of datasets matched by each rule (i.e. configuration file entry), in the order of the configuration files */
+	private final Map<RuleType, int[]> ruleMatchCounts = new LinkedHashMap<RuleType, int[]>();
+
+
+	public CorpusProfiler(ConversionPlan plan, int threadCount) {
+		this.plan = plan;
+		this.threadCount = threadCount;
+		for (Map.Entry<RuleType, String> entry : CONFIG_KEYS_BY_RULE_TYPE.entrySet()) {
+			ConfigMap configMap = plan.getConfigMapForConfigKey(entry.getValue());
+			ruleMatchCounts.put(entry.getKey(), new int[configMap == null ? 0 : configMap.size()]);
+		}
+	}
+
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		run(args);
+	}
+
+	/**
+	 * Runs the tool with the arguments of {@link #main(String[])}.
+	 *
+	 * @return true, if the arguments were valid, and the report was written
+	 */
+	public static boolean run(String[] args) {
+		int threadCount = Runtime.getRuntime().availableProcessors();
+		String reportFileName = null;
+		int argIdx = 0;
+		while (args != null && argIdx < args.length - 2) {
+			if (args[argIdx].startsWith(OPTION_THREADS)) {
+				try {
+					threadCount = Integer.parseInt(args[argIdx].substring(OPTION_THREADS.length()));
+				}
+				catch (NumberFormatException e) {
+					threadCount = 0;
+				}
+				if (threadCount < 1) {
+					System.out.println("Invalid option: " + args[argIdx] + " (the number of threads should be a positive number)");
+					args = null;
+					break;
+				}
+			}
+			else if (args[argIdx].startsWith(OPTION_REPORT)) {
+				reportFileName = args[argIdx].substring(OPTION_REPORT.length());
+			}
+			else {
+				break;
+			}
+			argIdx++;
+		}
+		if (args == null || args.length - argIdx != 2) {
+			System.out.println("USAGE: CorpusProfiler [-threads=N] [-report=REPORT_FILE] DIR_FOR_OLD_METADATA_FILES CONFIG_PROPERTIES_FILE");
+			System.out.println("       (DIR_FOR_OLD_METADATA_FILES may also be a metadata archive)");
+			return false;
+		}
+		String metadataDir = args[argIdx];
+		String configPropFileName = args[argIdx + 1];
+
+		try {
+			long start = System.nanoTime();
+			CorpusProfiler profiler = new CorpusProfiler(DatasetMetadataUpdater.createConversionPlan(configPropFileName), threadCount);
+			profiler.profile(new File(metadataDir));
+			long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+			PrintWriter out = (reportFileName == null ? new PrintWriter(new OutputStreamWriter(System.out, "UTF-8")) :
+				new PrintWriter(new OutputStreamWriter(new FileOutputStream(reportFileName), "UTF-8")));
+			try {
+				profiler.writeReport(out);
+			}
+			finally {
+				out.flush();
+				if (reportFileName != null) {
+					out.close();
+				}
+			}
+			System.out.println("Profiled " + profiler.fileCount + " files (" + profiler.datasetCount + " datasets) with " +
+					threadCount + " threads in " + elapsedMillis + " ms" +
+					(reportFileName == null ? "" : ". The report is in " + reportFileName));
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+
+	//*************************** Profiling ***************************//
+
+	/**
+	 * Profiles all the metadata files of <code>metadataDir</code>, which is either
+	 * a directory, or a metadata archive.
+	 */
+	public void profile(File metadataDir) throws IOException {
+		final MetadataArchive archive = (MetadataArchive.isArchive(metadataDir) ? new MetadataArchive(metadataDir) : null);
+		List<FileProfileTask> tasks = new ArrayList<FileProfileTask>();
+		if (archive != null) {
+			for (final String datasetId : archive.getDatasetIds()) {
+				tasks.add(new FileProfileTask(datasetId + HealthDataConstants.RDF_FILE_EXTENSION) {
+					InputStream openInputStream() throws IOException {
+						return archive.openInputStream(datasetId);
+					}
+				});
+			}
+		}
+		else {
+			File[] files = metadataDir.listFiles(new FilenameFilter() {
+				public boolean accept(File dir, String name) {
+					return MetadataArchive.getDatasetId(name) != null;
+				}
+			});
+			if (files == null) {
+				throw new IOException("Could not list the files of " + metadataDir);
+			}
+			Arrays.sort(files);
+			for (final File file : files) {
+				tasks.add(new FileProfileTask(file.getName()) {
+					InputStream openInputStream() throws IOException {
+						return CompressionUtil.openInputStream(file);
+					}
+				});
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			int maxPendingFiles = threadCount * 4;
+			LinkedList<Future<FileProfile>> pending = new LinkedList<Future<FileProfile>>();
+			for (FileProfileTask task : tasks) {
+				pending.add(executor.submit(task));
+				if (pending.size() >= maxPendingFiles) {
+					add(getResult(pending.removeFirst()));
+				}
+			}
+			while ( ! pending.isEmpty()) {
+				add(getResult(pending.removeFirst()));
+			}
+		}
+		finally {
+			executor.shutdownNow();
+			if (archive != null) {
+				archive.close();
+			}
+		}
+	}
+
+	private FileProfile getResult(Future<FileProfile> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a file to be profiled");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException("Failed to profile file: " + cause);
+		}
+	}
+
+	/**
+	 * Adds the profile of a single file to the profile of the corpus.
+	 */
+	private void add(FileProfile fileProfile) {
+		fileCount++;
+		if (fileProfile.error != null) {
+			System.out.println("Could not parse " + fileProfile.fileName + ". It will not be profiled. " + fileProfile.error);
+			failedFiles.add(fileProfile.fileName);
+			return;
+		}
+		datasetCount += fileProfile.datasetCount;
+		addCounts(predicateCounts, fileProfile.predicateCounts);
+		addCounts(relationCounts, fileProfile.relationCounts);
+		for (Map.Entry<RuleType, BitSet> entry : fileProfile.matchedRules.entrySet()) {
+			int[] counts = ruleMatchCounts.get(entry.getKey());
+			BitSet matched = entry.getValue();
+			for (int i = matched.nextSetBit(0); i >= 0 && i < counts.length; i = matched.nextSetBit(i + 1)) {
+				counts[i]++;
+			}
+		}
+	}
+
+	private static void addCounts(Map<String, Count> counts, Map<String, Integer> fileCounts) {
+		for (Map.Entry<String, Integer> entry : fileCounts.entrySet()) {
+			Count count = counts.get(entry.getKey());
+			if (count == null) {
+				count = new Count();
+				counts.put(entry.getKey(), count);
+			}
+			count.statements += entry.getValue();
+			count.files++;
+		}
+	}
+
+
+	/**
+	 * Parses and profiles a single metadata file (on a thread of the pool).
+	 */
+	private abstract class FileProfileTask implements Callable<FileProfile> {
+
+		private final String fileName;
+
+		FileProfileTask(String fileName) {
+			this.fileName = fileName;
+		}
+
+		abstract InputStream openInputStream() throws IOException;
+
+		public FileProfile call() throws IOException {
+			FileProfile fileProfile = new FileProfile(fileName);
+			StatementCollector collector = new StatementCollector();
+			RDFParser parser = new RDFXMLParser();
+			parser.setRDFHandler(collector);
+			InputStream is = new BufferedInputStream(openInputStream());
+			try {
+				parser.parse(is, HealthDataConstants.HEALTHDATA_GOV_DATASET_BASE_URI + fileName);
+			}
+			catch (RDFParseException e) {
+				fileProfile.error = e.getMessage();
+				return fileProfile;
+			}
+			catch (RDFHandlerException e) {
+				fileProfile.error = e.getMessage();
+				return fileProfile;
+			}
+			finally {
+				is.close();
+			}
+			fileProfile.profile(collector, plan);
+			return fileProfile;
+		}
+	}
+
+
+	/**
+	 * The profile of a single metadata file.
+	 */
+	private static class FileProfile {
+
+		final String fileName;
+		String error = null;
+		int datasetCount = 0;
+		final Map<String, Integer> predicateCounts = new HashMap<String, Integer>();
+		final Map<String, Integer> relationCounts = new HashMap<String, Integer>();
+		/** the indexes of the rules (of each type) matching any of the datasets of the file */
+		final Map<RuleType, BitSet> matchedRules = new HashMap<RuleType, BitSet>();
+
+		FileProfile(String fileName) {
+			this.fileName = fileName;
+		}
+
+		void profile(StatementCollector collector, ConversionPlan plan) {
+			for (Statement statement : collector.statements) {
+				increment(predicateCounts, statement.getPredicate().stringValue() + "\t" + getShape(statement.getObject()));
+			}
+			for (Value relation : collector.relations) {
+				if ( ! (relation instanceof Resource)) {
+					continue;
+				}
+				List<Value> labels = collector.getObjects((Resource) relation, RDFS.LABEL);
+				Value value = collector.getFirstObject((Resource) relation, RDF.VALUE);
+				String shape = (value == null ? SHAPE_NONE : getShape(value));
+				if (labels.isEmpty()) {
+					increment(relationCounts, "\t" + shape);
+				}
+				for (Value label : labels) {
+					increment(relationCounts, label.stringValue() + "\t" + shape);
+				}
+			}
+
+			//match the rules in the same way as the conversion does, with the rules resolved with the prefixes of the file
+			Map<String, String> prefixToNamespaceMap = new HashMap<String, String>(collector.namespaces);
+			prefixToNamespaceMap.put(HealthDataConstants.PREFIX_DBPEDIA_ONTOLOGY, HealthDataConstants.NS_DBPEDIA_ONTOLOGY);
+			prefixToNamespaceMap.put(HealthDataConstants.PREFIX_SCHEMA, HealthDataConstants.NS_SCHEMA);
+			prefixToNamespaceMap.put(HealthDataConstants.PREFIX_TIME, HealthDataConstants.NS_TIME);
+			RuleDispatchTable rules = plan.getRuleDispatchTable(prefixToNamespaceMap);
+			for (RuleType type : CONFIG_KEYS_BY_RULE_TYPE.keySet()) {
+				matchedRules.put(type, new BitSet());
+			}
+			for (Resource dsResource : collector.datasets) {
+				datasetCount++;
+				for (RuleType type : CONFIG_KEYS_BY_RULE_TYPE.keySet()) {
+					List<Rule> typeRules = rules.getRules(type);
+					for (int i = 0; i < typeRules.size(); i++) {
+						if (matches(typeRules.get(i), dsResource, collector)) {
+							matchedRules.get(type).set(i);
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Checks whether the conversion of the dataset would use <code>rule</code>
+		 * (i.e. whether the rule would copy, replace or convert anything).
+		 */
+		private static boolean matches(Rule rule, Resource dsResource, StatementCollector collector) {
+			switch (rule.type) {
+			case PRESERVE_URI_VALUES:
+			case PRESERVE_LITERAL_VALUES:
+			case PRESERVE_BNODE_VALUES:
+				for (Value value : collector.getObjects(dsResource, rule.property)) {
+					if ((rule.type == RuleType.PRESERVE_URI_VALUES && value instanceof URI) ||
+							(rule.type == RuleType.PRESERVE_LITERAL_VALUES && value instanceof Literal) ||
+							(rule.type == RuleType.PRESERVE_BNODE_VALUES && value instanceof BNode)) {
+						return true;
+					}
+				}
+				return collector.hasStatementWithObject(rule.property, dsResource);
+			case REPLACE:
+				for (Value value : collector.getObjects(dsResource, rule.property)) {
+					if (rule.subProperty == null ||
+							(value instanceof Resource && ! collector.getObjects((Resource) value, rule.subProperty).isEmpty())) {
+						return true;
+					}
+				}
+				return false;
+			case CONVERT_RELATION:
+			case PRESERVE_RELATION:
+				Resource relation = collector.getRelation(rule.relationLabel);
+				if (relation == null) {
+					return false;
+				}
+				return (rule.type == RuleType.PRESERVE_RELATION || collector.getFirstObject(relation, RDF.VALUE) != null);
+			default:
+				return false;
+			}
+		}
+
+		private static void increment(Map<String, Integer> counts, String key) {
+			Integer count = counts.get(key);
+			counts.put(key, (count == null ? 1 : count + 1));
+		}
+	}
+
+
+	/**
+	 * Collects the statements of a single (small) metadata file, together with its
+	 * namespaces, datasets and dct:relation values. The objects of the statements are
+	 * indexed by subject and predicate, and by predicate, and the relations by label,
+	 * so that matching the rules against a dataset does not scan all the statements.
+	 */
+	private static class StatementCollector extends RDFHandlerBase {
+
+		final List<Statement> statements = new ArrayList<Statement>();
+		final Map<String, String> namespaces = new HashMap<String, String>();
+		final List<Resource> datasets = new ArrayList<Resource>();
+		final Set<Value> relations = new HashSet<Value>();
+		private final Map<Resource, Map<URI, List<Value>>> objectsBySubject = new HashMap<Resource, Map<URI, List<Value>>>();
+		private final Map<URI, Set<Value>> objectsByPredicate = new HashMap<URI, Set<Value>>();
+		/** the first relation with each label, built when it is first needed (i.e. after all the statements are collected) */
+		private Map<String, Resource> relationsByLabel = null;
+
+		@Override
+		public void handleNamespace(String prefix, String uri) {
+			namespaces.put(prefix, uri);
+		}
+
+		@Override
+		public void handleStatement(Statement st) {
+			statements.add(st);
+			Map<URI, List<Value>> subjectObjects = objectsBySubject.get(st.getSubject());
+			if (subjectObjects == null) {
+				subjectObjects = new HashMap<URI, List<Value>>();
+				objectsBySubject.put(st.getSubject(), subjectObjects);
+			}
+			List<Value> objects = subjectObjects.get(st.getPredicate());
+			if (objects == null) {
+				objects = new ArrayList<Value>();
+				subjectObjects.put(st.getPredicate(), objects);
+			}
+			objects.add(st.getObject());
+			Set<Value> predicateObjects = objectsByPredicate.get(st.getPredicate());
+			if (predicateObjects == null) {
+				predicateObjects = new HashSet<Value>();
+				objectsByPredicate.put(st.getPredicate(), predicateObjects);
+			}
+			predicateObjects.add(st.getObject());
+			String predicate = st.getPredicate().stringValue();
+			if (RDF.TYPE.stringValue().equals(predicate) &&
+					HealthDataConstants.URI_CLASS_DCAT_DATASET.equals(st.getObject().stringValue()) &&
+					! datasets.contains(st.getSubject())) {
+				datasets.add(st.getSubject());
+			}
+			else if (HealthDataConstants.URI_PROP_DCT_RELATION.equals(predicate)) {
+				relations.add(st.getObject());
+			}
+		}
+
+		/**
+		 * Returns the objects of the statements of <code>subject</code> with <code>predicate</code>
+		 * (in the order of the statements). The returned list must not be modified.
+		 */
+		List<Value> getObjects(Resource subject, URI predicate) {
+			Map<URI, List<Value>> subjectObjects = objectsBySubject.get(subject);
+			List<Value> objects = (subjectObjects == null ? null : subjectObjects.get(predicate));
+			return (objects == null ? Collections.<Value>emptyList() : objects);
+		}
+
+		Value getFirstObject(Resource subject, URI predicate) {
+			List<Value> objects = getObjects(subject, predicate);
+			return (objects.isEmpty() ? null : objects.get(0));
+		}
+
+		boolean hasStatementWithObject(URI predicate, Value object) {
+			Set<Value> objects = objectsByPredicate.get(predicate);
+			return (objects != null && objects.contains(object));
+		}
+
+		/**
+		 * Returns the first of the relations (in the order of {@link #relations}) with
+		 * <code>label</code>, or null, if there is no such relation.
+		 */
+		Resource getRelation(String label) {
+			if (relationsByLabel == null) {
+				relationsByLabel = new HashMap<String, Resource>();
+				for (Value relation : relations) {
+					if (relation instanceof Resource) {
+						for (Value relationLabel : getObjects((Resource) relation, RDFS.LABEL)) {
+							if ( ! relationsByLabel.containsKey(relationLabel.stringValue())) {
+								relationsByLabel.put(relationLabel.stringValue(), (Resource) relation);
+							}
+						}
+					}
+				}
+			}
+			return relationsByLabel.get(label);
+		}
+	}
+
+
+	/**
+	 * Returns the shape of a value: <code>uri</code>, <code>bnode</code>, or, for literals,
+	 * the kind of their content (<code>empty</code>, <code>date</code>, <code>datetime</code>,
+	 * <code>year</code>, <code>number</code>, <code>url</code> or <code>text</code>),
+	 * followed by the datatype, if any (e.g. <code>date^^xsd:date</code>).
+	 */
+	static String getShape(Value value) {
+		if (value instanceof URI) {
+			return SHAPE_URI;
+		}
+		if (value instanceof BNode) {
+			return SHAPE_BNODE;
+		}
+		String text = value.stringValue().trim();
+		String shape;
+		if (text.length() == 0) {
+			shape = "empty";
+		}
+		else if (DATE_PATTERN.matcher(text).matches()) {
+			shape = "date";
+		}
+		else if (DATE_TIME_PATTERN.matcher(text).matches()) {
+			shape = "datetime";
+		}
+		else if (YEAR_PATTERN.matcher(text).matches()) {
+			shape = "year";
+		}
+		else if (NUMBER_PATTERN.matcher(text).matches()) {
+			shape = "number";
+		}
+		else if (URL_PATTERN.matcher(text).matches()) {
+			shape = "url";
+		}
+		else {
+			shape = "text";
+		}
+		URI datatype = ((Literal) value).getDatatype();
+		if (datatype != null) {
+			String datatypeName = datatype.stringValue();
+			if (datatypeName.startsWith(XMLSchema.NAMESPACE)) {
+				datatypeName = "xsd:" + datatypeName.substring(XMLSchema.NAMESPACE.length());
+			}
+			shape += "^^" + datatypeName;
+		}
+		return shape;
+	}
+
+
+	private static class Count {
+		long statements = 0;
+		int files = 0;
+	}
+
+
+	//*************************** Report ***************************//
+
+	public void writeReport(PrintWriter out) {
+		out.println("# Corpus profile: " + fileCount + " files, " + datasetCount + " datasets" +
+				(failedFiles.isEmpty() ? "" : ", " + failedFiles.size() + " files could not be parsed: " + failedFiles));
+		out.println();
+
+		out.println("## Predicates (predicate, value shape, statements, files)");
+		for (Map.Entry<String, Count> entry : predicateCounts.entrySet()) {
+			out.println(entry.getKey() + "\t" + entry.getValue().statements + "\t" + entry.getValue().files);
+		}
+		out.println();
+
+		out.println("## dct:relation labels (label, rdf:value shape, relations, files, rule)");
+		Map<String, String> rulesByLabel = getRuleTypesByRelationLabel();
+		for (Map.Entry<String, Count> entry : relationCounts.entrySet()) {
+			String label = entry.getKey().substring(0, entry.getKey().indexOf('\t'));
+			String rule = rulesByLabel.get(label);
+			out.println(entry.getKey() + "\t" + entry.getValue().statements + "\t" + entry.getValue().files + "\t" +
+					(rule == null ? "-" : rule));
+		}
+		out.println();
+
+		out.println("## Configuration entries (file, entry, matching datasets)");
+		List<String> unmatchedEntries = new ArrayList<String>();
+		for (Map.Entry<RuleType, int[]> entry : ruleMatchCounts.entrySet()) {
+			String configFileName = plan.getMainConfig().get(CONFIG_KEYS_BY_RULE_TYPE.get(entry.getKey()));
+			ConfigMap configMap = plan.getConfigMapForConfigKey(CONFIG_KEYS_BY_RULE_TYPE.get(entry.getKey()));
+			int[] counts = entry.getValue();
+			for (int i = 0; i < counts.length; i++) {
+				String line = configFileName + "\t" + configMap.getKey(i);
+				out.println(line + "\t" + counts[i]);
+				if (counts[i] == 0) {
+					unmatchedEntries.add(line);
+				}
+			}
+		}
+		out.println();
+
+		out.println("## Configuration entries never matched (" + unmatchedEntries.size() + ")");
+		for (String line : unmatchedEntries) {
+			out.println(line);
+		}
+	}
+
+	/**
+	 * Returns the rules handling the dct:relation labels of the configuration (and the labels
+	 * read by the coverage conversion), by label.
+	 */
+	private Map<String, String> getRuleTypesByRelationLabel() {
+		Map<String, String> res = new HashMap<String, String>();
+		res.put(HealthDataConstants.KEY_COVERAGE_PERIOD_START, "coverage");
+		res.put(HealthDataConstants.KEY_COVERAGE_PERIOD_END, "coverage");
+		RuleDispatchTable rules = plan.getRuleDispatchTable(new HashMap<String, String>());
+		for (RuleType type : new RuleType[] {RuleType.CONVERT_RELATION, RuleType.PRESERVE_RELATION}) {
+			String typeName = (type == RuleType.CONVERT_RELATION ? "convert" : "preserve");
+			for (Rule rule : rules.getRules(type)) {
+				String prevTypeName = res.get(rule.relationLabel);
+				if (prevTypeName == null) {
+					res.put(rule.relationLabel, typeName);
+				}
+				else if ( ! prevTypeName.contains(typeName)) {
+					res.put(rule.relationLabel, prevTypeName + "," + typeName);
+				}
+			}
+		}
+		return res;
+	}
+
+}
@@ -1,20 +1,26 @@
 package org.healthdata.metadata;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import org.healthdata.metadata.util.IdentityProperties;
-import org.healthdata.metadata.util.LinkedProperties;
+import java.util.Set;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.healthdata.metadata.RepositoryPool.PooledRepository;
+import org.healthdata.metadata.RuleDispatchTable.Rule;
+import org.healthdata.metadata.RuleDispatchTable.RuleType;
+import org.healthdata.metadata.util.AtomicFileOutput;
+import org.healthdata.metadata.util.CompressionUtil;
+import org.healthdata.metadata.util.ConfigMap;
+import org.healthdata.metadata.util.FlightRecorderEvent;
+import org.healthdata.metadata.util.URIInterner;
 import org.openrdf.model.BNode;
 import org.openrdf.model.Literal;
 import org.openrdf.model.Namespace;
@@ -25,6 +31,7 @@ import org.openrdf.model.Value;
 import org.openrdf.model.ValueFactory;
 import org.openrdf.model.impl.BNodeImpl;
 import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.NamespaceImpl;
 import org.openrdf.model.impl.StatementImpl;
 import org.openrdf.model.impl.URIImpl;
 import org.openrdf.model.vocabulary.OWL;
@@ -32,14 +39,12 @@ import org.openrdf.model.vocabulary.RDF;
 import org.openrdf.model.vocabulary.RDFS;
 import org.openrdf.repository.RepositoryException;
 import org.openrdf.repository.RepositoryResult;
-import org.openrdf.repository.sail.SailRepository;
 import org.openrdf.repository.sail.SailRepositoryConnection;
 import org.openrdf.rio.RDFFormat;
 import org.openrdf.rio.RDFHandlerException;
 import org.openrdf.rio.RDFParseException;
 import org.openrdf.rio.rdfxml.util.RDFXMLPrettyWriter;
 import org.openrdf.sail.SailException;
-import org.openrdf.sail.memory.MemoryStore;
 
 /**
  * This class provides functionality to convert a single metadata file describing
@@ -60,12 +65,12 @@ class DatasetMetadataUpdater {
 	private static final Value URI_DATASET = new URIImpl(NS_DCAT + "Dataset");
 	
 	
-	private static final String KEY_PRESERVE_PROPERTIES_WITH_URI_VALUES_FILE = "Preserve_Properties_With_URI_Values_File";
-	private static final String KEY_PRESERVE_PROPERTIES_WITH_LITERAL_VALUES_FILE = "Preserve_Properties_With_Literal_Values_File";
-	private static final String KEY_PRESERVE_PROPERTIES_WITH_BNODE_VALUES_FILE = "Preserve_Properties_With_BNode_Values_File";
-	private static final String KEY_REPLACE_PROPERTIES_FILE = "Replace_Properties_Map_File";
-	private static final String KEY_CONVERT_RELATIONS_TO_PROPERTIES_FILE = "Convert_dct:Relations_To_Properties_Map_File";
-	private static final String KEY_PRESERVE_RELATIONS_FILE = "Preserve_dct:Relations_File";
+	static final String KEY_PRESERVE_PROPERTIES_WITH_URI_VALUES_FILE = "Preserve_Properties_With_URI_Values_File";
+	static final String KEY_PRESERVE_PROPERTIES_WITH_LITERAL_VALUES_FILE = "Preserve_Properties_With_Literal_Values_File";
+	static final String KEY_PRESERVE_PROPERTIES_WITH_BNODE_VALUES_FILE = "Preserve_Properties_With_BNode_Values_File";
+	static final String KEY_REPLACE_PROPERTIES_FILE = "Replace_Properties_Map_File";
+	static final String KEY_CONVERT_RELATIONS_TO_PROPERTIES_FILE = "Convert_dct:Relations_To_Properties_Map_File";
+	static final String KEY_PRESERVE_RELATIONS_FILE = "Preserve_dct:Relations_File";
 	private static final String KEY_NEW_PROPERTIES_TO_VALUES_PROPERTIES_FILE = "New_Properties_To_Values_Map_File";
 	private static final String KEY_URIS_TO_LABELS_PROPERTIES_FILE = "URIs_To_Labels_Map_File";
 	private static final String KEY_SAMEAS_FILE = "SameAs_Map_File";
@@ -74,32 +79,112 @@ class DatasetMetadataUpdater {
 	private static final Resource ORIG_CONTEXT = new BNodeImpl("orig_context");
 	private static final Resource NEW_CONTEXT = new BNodeImpl("new_context");
 	
-	private enum ValueType {URI, Literal, BNode};
+	/** the repositories reused by the conversions (of all the threads) */
+	private static final RepositoryPool REPOSITORY_POOL = new RepositoryPool();
+
+	private static final FlightRecorderEvent.Type CONVERSION_STEP_EVENT =
+			FlightRecorderEvent.forClass("org.healthdata.metadata.ConversionStepEvent");
 
-	private MemoryStore sail;
-	private SailRepository repository;
+	private PooledRepository repository;
 	private SailRepositoryConnection conn;
-	private String configPropFilePathPrefix = "";
+	private ConversionPlan plan;
+	private BNodeSubgraphExtractor bNodeSubgraphExtractor;
+	/** the statements of ORIG_CONTEXT routed to the rules of the plan */
+	private RuleDispatchTable.Routing routing;
+	private Resource dsResource;
+	/** the distinct URI values of the dataset properties added to NEW_CONTEXT, in the order they were added */
+	private final Set<URI> dsURIValues = new LinkedHashSet<URI>();
 	private Map<String, String> prefixToNamespaceMap;
+	/** the id of the dataset (used only to identify the dataset in the recorded <code>ConversionStepEvent</code>s) */
+	private String datasetId;
 
 
 	public DatasetMetadataUpdater(String rdfFileName, String configPropFileName) throws SailException, RepositoryException, RDFParseException, IOException {
-		File rdfFile = new File(rdfFileName);
-		String configPropFileParent = new File(configPropFileName).getParent();
-		if (configPropFileParent != null) {
-			configPropFilePathPrefix = configPropFileParent + File.separator;
-		}
-		sail = new MemoryStore();
-		sail.initialize();
-		repository = new SailRepository(sail);
+		this(rdfFileName, createConversionPlan(configPropFileName));
+	}
+
+	public DatasetMetadataUpdater(String rdfFileName, ConversionPlan plan) throws SailException, RepositoryException, RDFParseException, IOException {
+		this.plan = plan;
+		initializeRepository();
+		boolean initialized = false;
+		try {
+			File rdfFile = new File(rdfFileName);
+			datasetId = getDatasetId(rdfFile.getName());
+			FlightRecorderEvent event = beginStep();
+			if (CompressionUtil.isCompressed(rdfFile)) {
+				InputStream is = CompressionUtil.openInputStream(rdfFile);
+				try {
+					conn.add(is, HealthDataConstants.HEALTHDATA_GOV_DATASET_BASE_URI + rdfFileName, RDFFormat.RDFXML, ORIG_CONTEXT);
+				}
+				finally {
+					is.close();
+				}
+			}
+			else {
+				conn.add(rdfFile, HealthDataConstants.HEALTHDATA_GOV_DATASET_BASE_URI + rdfFileName, RDFFormat.RDFXML, ORIG_CONTEXT);
+			}
+			endParseStep(event, rdfFile.length());
+			
+			addNewPrefixes();
+			
+			initializePrefixToNamespaceMap();
+			initialized = true;
+		}
+		finally {
+			if ( ! initialized) {
+				close();
+			}
+		}
+	}
+
+	/**
+	 * Creates an updater for the RDF/XML document read from <code>in</code>
+	 * (which is not closed by this constructor).
+	 */
+	public DatasetMetadataUpdater(InputStream in, String baseURI, ConversionPlan plan) throws SailException, RepositoryException, RDFParseException, IOException {
+		this.plan = plan;
+		initializeRepository();
+		boolean initialized = false;
+		try {
+			datasetId = getDatasetId(baseURI.substring(baseURI.lastIndexOf('/') + 1));
+			FlightRecorderEvent event = beginStep();
+			//the input is counted only if the step is recorded
+			CountingInputStream countingIn = (event.isEnabled() ? new CountingInputStream(in) : null);
+			conn.add(countingIn == null ? in : countingIn, baseURI, RDFFormat.RDFXML, ORIG_CONTEXT);
+			endParseStep(event, countingIn == null ? 0 : countingIn.getByteCount());
+			
+			addNewPrefixes();
+			
+			initializePrefixToNamespaceMap();
+			initialized = true;
+		}
+		finally {
+			if ( ! initialized) {
+				close();
+			}
+		}
+	}
+
+	private void initializeRepository() throws SailException, RepositoryException {
+		repository = REPOSITORY_POOL.acquire();
 		conn = repository.getConnection();
-		conn.add(rdfFile, HealthDataConstants.HEALTHDATA_GOV_DATASET_BASE_URI + rdfFileName, RDFFormat.RDFXML, ORIG_CONTEXT);
-		
-		addNewPrefixes();
-		
-		initializePrefixToNamespaceMap();
+		bNodeSubgraphExtractor = new BNodeSubgraphExtractor(conn, ORIG_CONTEXT);
+	}
+
+	/**
+	 * Creates a conversion plan for the main configuration file <code>configPropFileName</code>,
+	 * with all the configuration files (including the value maps) already loaded.
+	 */
+	static ConversionPlan createConversionPlan(String configPropFileName) {
+		ConversionPlan plan = new ConversionPlan(configPropFileName);
+		plan.loadValueMaps(KEY_REPLACE_PROPERTIES_FILE, KEY_CONVERT_RELATIONS_TO_PROPERTIES_FILE);
+		return plan;
 	}
 
+	/**
+	 * Adds the namespaces used by the conversion, replacing the ones with the same prefix
+	 * declared by the dataset (so it has to be done for every dataset, after reading it).
+	 */
 	private void addNewPrefixes() throws RepositoryException {
 		conn.setNamespace(HealthDataConstants.PREFIX_DBPEDIA_ONTOLOGY, HealthDataConstants.NS_DBPEDIA_ONTOLOGY);
 		conn.setNamespace(HealthDataConstants.PREFIX_SCHEMA, HealthDataConstants.NS_SCHEMA);
@@ -109,17 +194,31 @@ class DatasetMetadataUpdater {
 	private void initializePrefixToNamespaceMap() throws RepositoryException {
 		prefixToNamespaceMap = new HashMap<String, String>();
 		RepositoryResult<Namespace> namespaces = conn.getNamespaces();
-		while (namespaces.hasNext()) {
-			Namespace namespace = namespaces.next();
-			prefixToNamespaceMap.put(namespace.getPrefix(), namespace.getName());
+		try {
+			while (namespaces.hasNext()) {
+				Namespace namespace = namespaces.next();
+				prefixToNamespaceMap.put(namespace.getPrefix(), namespace.getName());
+			}
+		}
+		finally {
+			namespaces.close();
 		}
 	}
 
 	
 	public static void main(String[] args) {
+		run(args);
+	}
+
+	/**
+	 * Runs the tool with the arguments of {@link #main(String[])}.
+	 *
+	 * @return true, if the arguments were valid, and the metadata file was converted
+	 */
+	public static boolean run(String[] args) {
 		if (args == null || args.length < 2 || args.length > 3 ) {
 			System.out.println("USAGE: DatasetMetadataUpdater RDF_INPUT_FILE [RDF_OUTPUT_FILE] CONFIG_PROPERTIES_FILE");
-			return;
+			return false;
 		}
 		String rdfFileName = args[0];
 		String configPropFileName = args[args.length-1];
@@ -134,177 +233,302 @@ class DatasetMetadataUpdater {
 			}
 		}
 		
-		convertMetadataRdfFile(rdfFileName, resultFileName, configPropFileName);
+		return convertMetadataRdfFile(rdfFileName, resultFileName, configPropFileName);
 	}
 
-	public static void convertMetadataRdfFile(String rdfFileName,
+	public static boolean convertMetadataRdfFile(String rdfFileName,
 			String resultFileName, String configPropFileName) {
+		return convertMetadataRdfFile(rdfFileName, resultFileName, createConversionPlan(configPropFileName));
+	}
+
+	/**
+	 * Converts a metadata file. The result file is replaced only if the conversion succeeds.
+	 * 
+	 * @return true, if the conversion succeeded
+	 */
+	public static boolean convertMetadataRdfFile(String rdfFileName,
+			String resultFileName, ConversionPlan plan) {
+		ConvertedMetadata result = convert(rdfFileName, plan);
+		if (result == null) {
+			return false;
+		}
 		try {
-			DatasetMetadataUpdater dsMetadataUpdater = new DatasetMetadataUpdater(rdfFileName, configPropFileName);
-			Properties mainConfigProperties = dsMetadataUpdater.getProperties(configPropFileName);
-			dsMetadataUpdater.doUpdate(mainConfigProperties);
-			dsMetadataUpdater.writeToFile(resultFileName);
-			dsMetadataUpdater.close();
+			result.writeToFile(new File(resultFileName));
+			return true;
 		}
 		catch (Exception e) {
 			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Converts the RDF/XML document read from <code>in</code>, and writes the result
+	 * (also as RDF/XML) to <code>out</code>. None of the streams are closed.
+	 */
+	public static void convertMetadata(InputStream in, String baseURI, OutputStream out,
+			ConversionPlan plan) throws SailException, RepositoryException, RDFParseException, RDFHandlerException, IOException {
+		convert(in, baseURI, plan).writeTo(out);
+	}
+
+	/**
+	 * Converts a metadata file, without writing the result.
+	 * 
+	 * @return the result of the conversion, or null, if the conversion failed
+	 */
+	static ConvertedMetadata convert(String rdfFileName, ConversionPlan plan) {
+		try {
+			DatasetMetadataUpdater dsMetadataUpdater = new DatasetMetadataUpdater(rdfFileName, plan);
+			try {
+				dsMetadataUpdater.doUpdate();
+				return dsMetadataUpdater.detachResult();
+			}
+			finally {
+				dsMetadataUpdater.close();
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Converts the RDF/XML document read from <code>in</code> (which is not closed), without writing the result.
+	 */
+	static ConvertedMetadata convert(InputStream in, String baseURI, ConversionPlan plan) 
+			throws SailException, RepositoryException, RDFParseException, IOException {
+		DatasetMetadataUpdater dsMetadataUpdater = new DatasetMetadataUpdater(in, baseURI, plan);
+		try {
+			dsMetadataUpdater.doUpdate();
+			return dsMetadataUpdater.detachResult();
+		}
+		finally {
+			dsMetadataUpdater.close();
 		}
 	}
 	
 
-	private void doUpdate(Properties configProperties) throws SailException, RepositoryException {
+	private void doUpdate() throws SailException, RepositoryException {
+		//the iterators are closed as soon as possible, as they keep the (pooled) repository locked
 		RepositoryResult<Statement> statements = conn.getStatements(null, RDF.TYPE, URI_DATASET, false);
-		if ( ! statements.hasNext() ) {
-			System.out.println("Could not find Datasource declaration in the RDF file");
-			return;
+		Resource dsResource;
+		try {
+			if ( ! statements.hasNext() ) {
+				System.out.println("Could not find Datasource declaration in the RDF file");
+				return;
+			}
+			dsResource = statements.next().getSubject();
+		}
+		finally {
+			statements.close();
 		}
-		Resource dsResource = statements.next().getSubject();
+		this.dsResource = dsResource;
 		
 		//this could be a viable alternative in case that listing "rdf:type" in the "to be preserved" properties file 
 		//would not work, or it would have unwanted side effects:
 		//conn.add(dsResource, RDF.TYPE, URI_DATASET, NEW_CONTEXT);
 		
-		if (configProperties.isEmpty()) {
+		if (plan.getMainConfig().isEmpty()) {
 			System.out.println("Main Configuration Properties is empty. Execution will be aborted.");
 			return;
 		}
 		
+		//route the statements of the dataset to the preserve, replace and dct:relation rules in a single pass
+		FlightRecorderEvent event = beginStep();
+		RuleDispatchTable rules = plan.getRuleDispatchTable(prefixToNamespaceMap);
+		routing = rules.route(conn.getStatements(null, null, null, false, ORIG_CONTEXT), dsResource, bNodeSubgraphExtractor);
+		endStep(event, "route");
+		
 		//step 1 & 4: 
 		//step 3 (remove non URI values) is also addressed by separating the preservable properties by type of values
-		copyValidProperties(getPropertiesForConfigKey(configProperties, KEY_PRESERVE_PROPERTIES_WITH_URI_VALUES_FILE), ValueType.URI, dsResource);
-		copyValidProperties(getPropertiesForConfigKey(configProperties, KEY_PRESERVE_PROPERTIES_WITH_LITERAL_VALUES_FILE), ValueType.Literal, dsResource);
-		copyValidProperties(getPropertiesForConfigKey(configProperties, KEY_PRESERVE_PROPERTIES_WITH_BNODE_VALUES_FILE), ValueType.BNode, dsResource);
+		event = beginStep();
+		copyValidProperties(rules.getRules(RuleType.PRESERVE_URI_VALUES));
+		copyValidProperties(rules.getRules(RuleType.PRESERVE_LITERAL_VALUES));
+		copyValidProperties(rules.getRules(RuleType.PRESERVE_BNODE_VALUES));
+		endStep(event, "preserveProperties");
 		
 		//step 1b
-		replaceProperties(getPropertiesForConfigKey(configProperties, KEY_REPLACE_PROPERTIES_FILE), dsResource);
+		event = beginStep();
+		replaceProperties(rules.getRules(RuleType.REPLACE), dsResource);
+		endStep(event, "replaceProperties");
 
 		//step 2 & 4:
-		transformKeyValuesToTriples(getPropertiesForConfigKey(configProperties, KEY_CONVERT_RELATIONS_TO_PROPERTIES_FILE), dsResource);
+		event = beginStep();
+		transformKeyValuesToTriples(rules.getRules(RuleType.CONVERT_RELATION), dsResource);
+		endStep(event, "convertRelations");
 
 		//step 2b:
-		copyValidKeyValues(getPropertiesForConfigKey(configProperties, KEY_PRESERVE_RELATIONS_FILE), dsResource);
+		event = beginStep();
+		copyValidKeyValues(rules.getRules(RuleType.PRESERVE_RELATION), dsResource);
+		endStep(event, "preserveRelations");
+
+		//copy the complete subgraphs (including the nested BNodes) of the BNode values kept in steps 1, 1b and 2b at once
+		event = beginStep();
+		conn.add(bNodeSubgraphExtractor.extract(), NEW_CONTEXT);
+		endStep(event, "copyBNodeSubgraphs");
 
 		//step 5:
 		//dates are converted xsd:date during steps 1 & 2
 
 		//step 5b:
+		event = beginStep();
 		transformCoverage(dsResource);
+		endStep(event, "transformCoverage");
 		
 		//step 6:
-		addNewPropertyValues(getPropertiesForConfigKey(configProperties, KEY_NEW_PROPERTIES_TO_VALUES_PROPERTIES_FILE), dsResource);
+		event = beginStep();
+		addNewPropertyValues(getConfigMapForConfigKey(KEY_NEW_PROPERTIES_TO_VALUES_PROPERTIES_FILE), dsResource);
+		endStep(event, "addNewPropertyValues");
 		
 		//step 7:
-		addLabelsForURIs(getPropertiesForConfigKey(configProperties, KEY_URIS_TO_LABELS_PROPERTIES_FILE), dsResource);
+		event = beginStep();
+		addLabelsForURIs(getConfigMapForConfigKey(KEY_URIS_TO_LABELS_PROPERTIES_FILE), dsResource);
+		endStep(event, "addLabels");
 		
 		//step 8:
-		addSameAsStatements(getPropertiesForConfigKey(configProperties, KEY_SAMEAS_FILE), dsResource);
+		event = beginStep();
+		addSameAsStatements(getConfigMapForConfigKey(KEY_SAMEAS_FILE), dsResource);
+		endStep(event, "addSameAs");
 		
 	}
 
 	
 	//*********************************************************************//
 
-	private void copyValidProperties(Properties propertyList, ValueType valueType, Resource dsResource) throws RepositoryException {
-		Enumeration<?> keys = propertyList.propertyNames();
-		while (keys.hasMoreElements()){
-			String key = keys.nextElement().toString();
+	/**
+	 * Begins a <code>ConversionStepEvent</code>. As with any JFR event, this is (almost) free
+	 * when the event is not recorded, or when JFR is not available.
+	 */
+	private static FlightRecorderEvent beginStep() {
+		FlightRecorderEvent event = CONVERSION_STEP_EVENT.newEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Ends <code>event</code>, and, if it is recorded, commits it with the number of statements
+	 * of the converted graph (counted only in this case).
+	 */
+	private void endStep(FlightRecorderEvent event, String step) throws RepositoryException {
+		endStep(event, step, NEW_CONTEXT, 0);
+	}
+
+	private void endParseStep(FlightRecorderEvent event, long bytes) throws RepositoryException {
+		endStep(event, "parse", ORIG_CONTEXT, bytes);
+	}
+
+	private void endStep(FlightRecorderEvent event, String step, Resource context, long bytes) throws RepositoryException {
+		event.end();
+		if (event.shouldCommit()) {
+			event.set("datasetId", datasetId);
+			event.set("step", step);
+			event.set("statementCount", conn.size(context));
+			event.set("bytes", bytes);
+			event.commit();
+		}
+	}
+
+	/**
+	 * Returns the dataset id of a metadata file name, or the file name itself, if it
+	 * does not have the extension of a metadata file.
+	 */
+	private static String getDatasetId(String fileName) {
+		String datasetId = MetadataArchive.getDatasetId(fileName);
+		return (datasetId == null ? fileName : datasetId);
+	}
+
+	
+	//*********************************************************************//
+
+	private void copyValidProperties(List<Rule> preserveRules) throws RepositoryException {
+		for (Rule rule : preserveRules) {
 			//copy triples involving the current property that have dsResource as their subject
-			RepositoryResult<Statement> statements = conn.getStatements(dsResource, new URIImpl(convertNameToAbsoluteURI(key)), null, false, ORIG_CONTEXT);
-			while (statements.hasNext()) {
-				Statement statement = statements.next();
+			for (Statement statement : routing.getStatementsWithDsSubject(rule)) {
 				Value value = statement.getObject();
-				if (valueType == ValueType.URI && value instanceof URI) {
-					conn.add(statement, NEW_CONTEXT);
+				if (rule.type == RuleType.PRESERVE_URI_VALUES && value instanceof URI) {
+					addToNewContext(statement);
 				}
-				else if (valueType == ValueType.Literal && value instanceof Literal) {
+				else if (rule.type == RuleType.PRESERVE_LITERAL_VALUES && value instanceof Literal) {
 					statement = fixDateObjectIfNecessary(statement);
-					conn.add(statement, NEW_CONTEXT);
+					addToNewContext(statement);
 				}
-				else if (valueType == ValueType.BNode && value instanceof BNode) {
-					conn.add(statement, NEW_CONTEXT);
+				else if (rule.type == RuleType.PRESERVE_BNODE_VALUES && value instanceof BNode) {
+					addToNewContext(statement);
 					copyBNode((BNode)value);
 				}
 				else {
-					assert false : "The object of statement '" + statement + "' is not of the expected type: " + valueType;
+					assert false : "The object of statement '" + statement + "' is not of the expected type: " + rule.type;
 				}
 			}
 			
 			//copy triples involving the current property that have dsResource as their object
-			statements = conn.getStatements(null, new URIImpl(convertNameToAbsoluteURI(key)), dsResource, false, ORIG_CONTEXT);
-			conn.add(statements, NEW_CONTEXT);
+			for (Statement statement : routing.getStatementsWithDsObject(rule)) {
+				addToNewContext(statement);
+			}
 		}
 	}
 
 
 	//*********************************************************************//
 	
-	private void replaceProperties(Properties propertiesToPropertiesMap, Resource dsResource) throws RepositoryException {
-		
-		Enumeration<?> keys = propertiesToPropertiesMap.propertyNames();
-		while (keys.hasMoreElements()){
-			String key = keys.nextElement().toString();
-			String value = propertiesToPropertiesMap.getProperty(key);
-
-			//separate multiple property names in the key (the second property name being a property on the BNode that is the value of the first property)
-			String[] keyParts = splitMapKey(key);
-			String oldPropertyName = keyParts[0];
-			String oldSubPropertyName = (keyParts.length > 1 ? keyParts[1] : null);
-			//separate new property name from file name of the value-to-URI map
-			String[] valueParts = splitMapValue(value);
-			String newPropertyName = valueParts[0];
-			Properties propertyValueToURIMap = null;
-			if (valueParts.length > 1) {
-				propertyValueToURIMap = getProperties(valueParts[1]);
-			}
-			
-			transformProperty(dsResource, oldPropertyName, oldSubPropertyName ,newPropertyName, propertyValueToURIMap);
+	private void replaceProperties(List<Rule> replaceRules, Resource dsResource) throws RepositoryException {
+		for (Rule rule : replaceRules) {
+			transformProperty(dsResource, rule);
 		}
 	}
 
-	private void transformProperty(Resource dsResource, String oldPropertyName, String oldSubPropertyName, 
-			String newPropertyName, Properties valueToURIMap) throws RepositoryException {
-		RepositoryResult<Statement> statements = conn.getStatements(dsResource, new URIImpl(convertNameToAbsoluteURI(oldPropertyName)), null, false, ORIG_CONTEXT);
-		if ( ! statements.hasNext() ) {
+	private void transformProperty(Resource dsResource, Rule rule) throws RepositoryException {
+		String oldPropertyName = rule.propertyName;
+		String oldSubPropertyName = rule.subPropertyName;
+		String newPropertyName = rule.newPropertyName;
+		ConfigMap valueToURIMap = rule.valueToURIMap;
+		List<Statement> statements = routing.getStatementsWithDsSubject(rule);
+		if (statements.isEmpty()) {
 			System.out.println("Could not find property '" + oldPropertyName + "' in the RDF file");
 			return;
 		}
 
-		URIImpl newPropURI = new URIImpl(convertNameToAbsoluteURI(newPropertyName));
+		URI newPropURI = rule.newProperty;
 
 		//repeat for all possible values of the oldProperty
-		while (statements.hasNext()) {
-			Statement statement = statements.next();
+		for (Statement statement : statements) {
 			Value object = statement.getObject();
 			
 			//if simple property to property conversion
 			if (oldSubPropertyName == null) {
 				if (object instanceof URI || object instanceof Literal) { 
 					Value newValue = convertValue(valueToURIMap, object);
-					conn.add(dsResource, newPropURI, newValue, NEW_CONTEXT);
+					addToNewContext(dsResource, newPropURI, newValue);
 				}
 				else {	//object is a BNode
 					System.out.println("Warning: The property '" + oldPropertyName + "' has a BNode property value. " +
 							"We replace the property with '" + newPropertyName + "' and keep the BNode property value. " +
 									"This may not be what you want!");
-					conn.add(dsResource, newPropURI, object, NEW_CONTEXT);
+					addToNewContext(dsResource, newPropURI, object);
 					copyBNode((BNode)object);
 				}
 			}
 			else {	//i.e. in case we have a subproperty
-				URIImpl oldSubPropURI = new URIImpl(convertNameToAbsoluteURI(oldSubPropertyName));
+				URI oldSubPropURI = rule.subProperty;
 				
 				if (object instanceof BNode) {
 					RepositoryResult<Statement> bNodeStatements = conn.getStatements((BNode)object, oldSubPropURI, null, false, ORIG_CONTEXT);
-					if ( ! bNodeStatements.hasNext() ) {
-						System.out.println("Could not find sub-property '" + oldSubPropertyName + "' in the RDF file");
-						return;
+					try {
+						if ( ! bNodeStatements.hasNext() ) {
+							System.out.println("Could not find sub-property '" + oldSubPropertyName + "' in the RDF file");
+							return;
+						}
+						
+						while (bNodeStatements.hasNext()) {
+							Statement bNodeStatement = bNodeStatements.next();
+							Value bNodeObject = bNodeStatement.getObject();
+							Value newValue = convertValue(valueToURIMap, bNodeObject);
+							addToNewContext(dsResource, newPropURI, newValue);
+						}
 					}
-					
-					while (bNodeStatements.hasNext()) {
-						Statement bNodeStatement = bNodeStatements.next();
-						Value bNodeObject = bNodeStatement.getObject();
-						Value newValue = convertValue(valueToURIMap, bNodeObject);
-						conn.add(dsResource, newPropURI, newValue, NEW_CONTEXT);
+					finally {
+						bNodeStatements.close();
 					}
 				}
 				else {
@@ -318,35 +542,16 @@ class DatasetMetadataUpdater {
 	
 	//*********************************************************************//
 	
-	private void transformKeyValuesToTriples(Properties relationsToPropertiesMap, 
+	private void transformKeyValuesToTriples(List<Rule> convertRelationRules, 
 			Resource dsResource) throws SailException, RepositoryException {
 		
-		Enumeration<?> keys = relationsToPropertiesMap.propertyNames();
-		while (keys.hasMoreElements()){
-			String key = keys.nextElement().toString();
-			String value = relationsToPropertiesMap.getProperty(key);
-
-			// remove suffixes from keys (of form " (N)", where N is a number) that were added to ensure uniquness of keys
-			Pattern pattern = Pattern.compile("(\\s*\\(\\d+\\))$");
-			Matcher matcher = pattern.matcher(key);
-			if (matcher.find()) {
-				key = matcher.replaceFirst("");
-			}
-			
-			//separate property name from file name of the value-to-URI map
-			String[] valueParts = splitMapValue(value);
-			String propertyName = valueParts[0];
-			Properties propertyValueToURIMap = null;
-			if (valueParts.length > 1) {
-				propertyValueToURIMap = getProperties(valueParts[1]);
-			}
-			
-			transformKeyValueToTriple(dsResource, key, propertyName, propertyValueToURIMap);
+		for (Rule rule : convertRelationRules) {
+			transformKeyValueToTriple(dsResource, rule.relationLabel, rule.newProperty, rule.valueToURIMap);
 		}
 	}
-	
+
 	private void transformKeyValueToTriple(Resource dsResource, 
-			String key, String newProperty, Properties valueToURIMap) throws SailException, RepositoryException {
+			String key, URI newProperty, ConfigMap valueToURIMap) throws SailException, RepositoryException {
 		
 		Value object = getRelationValueForKey(key);
 		if (object == null) {
@@ -354,37 +559,32 @@ class DatasetMetadataUpdater {
 		}
 		Value newValue = convertValue(valueToURIMap, object);
 		
-		Statement newStatement = new StatementImpl(dsResource, new URIImpl(newProperty), newValue);
+		Statement newStatement = new StatementImpl(dsResource, newProperty, newValue);
 		newStatement = fixDateObjectIfNecessary(newStatement);
 		
-		conn.add(newStatement, NEW_CONTEXT);
+		addToNewContext(newStatement);
 		conn.commit();
 
 	}
 
 	private Value getRelationValueForKey(String key) throws RepositoryException {
-		RepositoryResult<Statement> statements;
 		Resource relation = getRelationBNode(key);
 		if (relation == null) {
 			return null;
 		}
-		statements = conn.getStatements(relation, RDF.VALUE, null, true);
-		if ( ! statements.hasNext() ) {
+		Value object = routing.getValue(relation);
+		if (object == null) {
 			System.out.println("Could not find rdf:value on the dct:relation with label '" + key + "' in the RDF file");
 			return null;
 		}
-		Value object = statements.next().getObject();
 		return object;
 	}
 
 	private Resource getRelationBNode(String key) throws RepositoryException {
-		RepositoryResult<Statement> statements = conn.getStatements(null, RDFS.LABEL, new LiteralImpl(key), true);
-		
 		Resource relation = null;
-		while (statements.hasNext()) {
-			relation = statements.next().getSubject();
-			RepositoryResult<Statement> relStatements = conn.getStatements(null, new URIImpl(HealthDataConstants.URI_PROP_DCT_RELATION), relation, false, ORIG_CONTEXT);
-			if (relStatements.hasNext()) {
+		for (Resource subject : routing.getSubjectsWithLabel(new LiteralImpl(key))) {
+			relation = subject;
+			if (routing.isRelation(relation)) {
 				break;
 			}
 		}
@@ -398,13 +598,11 @@ class DatasetMetadataUpdater {
 	
 	//*********************************************************************//
 	
-	private void copyValidKeyValues(Properties propertyList, 
+	private void copyValidKeyValues(List<Rule> preserveRelationRules, 
 			Resource dsResource) throws SailException, RepositoryException {
 		
-		Enumeration<?> keys = propertyList.propertyNames();
-		while (keys.hasMoreElements()){
-			String key = keys.nextElement().toString();
-			copyValidKeyValue(dsResource, key);
+		for (Rule rule : preserveRelationRules) {
+			copyValidKeyValue(dsResource, rule.relationLabel);
 		}
 	}
 
@@ -417,8 +615,8 @@ class DatasetMetadataUpdater {
 		}
 
 		RepositoryResult<Statement> relationStatements = conn.getStatements(dsResource, 
-				new URIImpl(HealthDataConstants.URI_PROP_DCT_RELATION), relation, false, ORIG_CONTEXT);
-		conn.add(relationStatements, NEW_CONTEXT);
+				URIInterner.getURI(HealthDataConstants.URI_PROP_DCT_RELATION), relation, false, ORIG_CONTEXT);
+		addToNewContext(relationStatements);
 		copyBNode((BNode)relation);
 	}
 
@@ -456,23 +654,23 @@ class DatasetMetadataUpdater {
 		 */
 		ValueFactory factory = conn.getValueFactory();
 		BNode bNodeCoverage = factory.createBNode();
-		conn.add(dsResource, new URIImpl(HealthDataConstants.URI_PROP_DCT_TEMPORAL), bNodeCoverage, NEW_CONTEXT);
-		conn.add(bNodeCoverage, RDF.TYPE, new URIImpl(HealthDataConstants.URI_CLASS_DCT_PERIOD_OF_TIME), NEW_CONTEXT);
-		conn.add(bNodeCoverage, RDF.TYPE, new URIImpl(HealthDataConstants.URI_CLASS_TIME_INTERVAL), NEW_CONTEXT);
+		addToNewContext(dsResource, URIInterner.getURI(HealthDataConstants.URI_PROP_DCT_TEMPORAL), bNodeCoverage);
+		conn.add(bNodeCoverage, RDF.TYPE, URIInterner.getURI(HealthDataConstants.URI_CLASS_DCT_PERIOD_OF_TIME), NEW_CONTEXT);
+		conn.add(bNodeCoverage, RDF.TYPE, URIInterner.getURI(HealthDataConstants.URI_CLASS_TIME_INTERVAL), NEW_CONTEXT);
 		
 		if (covStart != null) {
 			BNode bNodeBeginning = factory.createBNode();
-			conn.add(bNodeCoverage, new URIImpl(HealthDataConstants.URI_PROP_TIME_HAS_BEGINNING), bNodeBeginning, NEW_CONTEXT);
-			conn.add(bNodeBeginning, RDF.TYPE, new URIImpl(HealthDataConstants.URI_CLASS_TIME_INSTANT), NEW_CONTEXT);
-			conn.add(bNodeBeginning, new URIImpl(HealthDataConstants.URI_PROP_TIME_IN_XSD_DATETIME), 
+			conn.add(bNodeCoverage, URIInterner.getURI(HealthDataConstants.URI_PROP_TIME_HAS_BEGINNING), bNodeBeginning, NEW_CONTEXT);
+			conn.add(bNodeBeginning, RDF.TYPE, URIInterner.getURI(HealthDataConstants.URI_CLASS_TIME_INSTANT), NEW_CONTEXT);
+			conn.add(bNodeBeginning, URIInterner.getURI(HealthDataConstants.URI_PROP_TIME_IN_XSD_DATETIME), 
 					new LiteralImpl(convertDateToXsdDate(covStart.stringValue())), NEW_CONTEXT);
 		}
 
 		if (covEnd != null) {
 			BNode bNodeEnd = factory.createBNode();
-			conn.add(bNodeCoverage, new URIImpl(HealthDataConstants.URI_PROP_TIME_HAS_END), bNodeEnd, NEW_CONTEXT);
-			conn.add(bNodeEnd, RDF.TYPE, new URIImpl(HealthDataConstants.URI_CLASS_TIME_INSTANT), NEW_CONTEXT);
-			conn.add(bNodeEnd, new URIImpl(HealthDataConstants.URI_PROP_TIME_IN_XSD_DATETIME), 
+			conn.add(bNodeCoverage, URIInterner.getURI(HealthDataConstants.URI_PROP_TIME_HAS_END), bNodeEnd, NEW_CONTEXT);
+			conn.add(bNodeEnd, RDF.TYPE, URIInterner.getURI(HealthDataConstants.URI_CLASS_TIME_INSTANT), NEW_CONTEXT);
+			conn.add(bNodeEnd, URIInterner.getURI(HealthDataConstants.URI_PROP_TIME_IN_XSD_DATETIME), 
 					new LiteralImpl(convertDateToXsdDate(covEnd.stringValue())), NEW_CONTEXT);
 		}
 	}
@@ -481,11 +679,10 @@ class DatasetMetadataUpdater {
 	
 	//*********************************************************************//
 	
-	private void addNewPropertyValues(Properties newPropertyValueMap, Resource dsResource) throws RepositoryException {
-		Enumeration<?> keys = newPropertyValueMap.propertyNames();
-		while (keys.hasMoreElements()){
-			String key = keys.nextElement().toString();
-			String value = newPropertyValueMap.getProperty(key);
+	private void addNewPropertyValues(ConfigMap newPropertyValueMap, Resource dsResource) throws RepositoryException {
+		for (int i = 0; i < newPropertyValueMap.size(); i++) {
+			String key = newPropertyValueMap.getKey(i);
+			String value = newPropertyValueMap.getValue(i);
 			if (value == null || value.isEmpty()) {
 				System.out.println("There is no value specified for property '" + key + "' in the '" + KEY_NEW_PROPERTIES_TO_VALUES_PROPERTIES_FILE + "' configuration file. Entry will be ignored.");
 				continue;
@@ -493,7 +690,7 @@ class DatasetMetadataUpdater {
 			Value object = null;
 			try {
 				if ( ! value.contains("^^") && ! value.startsWith("\"")) {
-					object = new URIImpl(value);
+					object = URIInterner.getURI(value);
 				}
 			}
 			catch (IllegalArgumentException e) {
@@ -502,19 +699,17 @@ class DatasetMetadataUpdater {
 			if (object == null) {
 				object = new LiteralImpl(value);
 			}
-			conn.add(dsResource, new URIImpl(convertNameToAbsoluteURI(key)), object, NEW_CONTEXT);
+			addToNewContext(dsResource, getURIForName(key), object);
 		}
 	}
 
 	
 	//*********************************************************************//
 	
-	private void addLabelsForURIs(Properties uriToLabelMap, Resource dsResource) throws RepositoryException {
-		ArrayList<URI> listOfURIValues = getLisOfURIPropertyValues(dsResource);
-		
-		for (URI uri : listOfURIValues){
+	private void addLabelsForURIs(ConfigMap uriToLabelMap, Resource dsResource) throws RepositoryException {
+		for (URI uri : getURIPropertyValues(dsResource)){
 			String key = uri.stringValue();
-			String value = uriToLabelMap.getProperty(key);
+			String value = uriToLabelMap.get(key);
 			if (value == null || value.isEmpty()) {
 				System.out.println("There is no value specified for property '" + key + "' in the '" + KEY_URIS_TO_LABELS_PROPERTIES_FILE + "' configuration file. Entry will be ignored.");
 				continue;
@@ -523,107 +718,212 @@ class DatasetMetadataUpdater {
 		}
 	}
 
-	private ArrayList<URI> getLisOfURIPropertyValues(Resource dsResource)
-			throws RepositoryException {
-		ArrayList<URI> listOfURIValues = new ArrayList<URI>();
-		RepositoryResult<Statement> statements = conn.getStatements(dsResource, null, null, false, NEW_CONTEXT);
-		while (statements.hasNext()) { 
-			Statement statement = statements.next();
-			Value object = statement.getObject();
-			if (object instanceof URI) {
-				listOfURIValues.add((URI) object);
-			}
-		}
-		return listOfURIValues;
+	/**
+	 * Returns the distinct URI values of the properties of <code>dsResource</code> 
+	 * in the new context, without querying the repository (see {@link #addToNewContext(Statement)}).
+	 */
+	private Set<URI> getURIPropertyValues(Resource dsResource) {
+		assert dsResource.equals(this.dsResource);
+		return dsURIValues;
 	}
 
 	
 	//*********************************************************************//
 	
-	private void addSameAsStatements(Properties sameAsMap, Resource dsResource) throws RepositoryException {
-		ArrayList<URI> listOfURIValues = getLisOfURIPropertyValues(dsResource);
-		
-		for (URI uri : listOfURIValues){
+	private void addSameAsStatements(ConfigMap sameAsMap, Resource dsResource) throws RepositoryException {
+		for (URI uri : getURIPropertyValues(dsResource)){
 			String key = uri.stringValue();
-			String value = sameAsMap.getProperty(key);
+			String value = sameAsMap.get(key);
 			if (value == null || value.isEmpty()) {
 				//System.out.println("There is no value specified for property '" + key + "' in the '" + KEY_SAMEAS_FILE + "' configuration file. Entry will be ignored.");
 				continue;
 			}
-			conn.add(new URIImpl(convertNameToAbsoluteURI(key)), OWL.SAMEAS, new URIImpl(convertNameToAbsoluteURI(value)), NEW_CONTEXT);
+			conn.add(new URIImpl(convertNameToAbsoluteURI(key)), OWL.SAMEAS, getURIForName(value), NEW_CONTEXT);
 		}
 	}
 
 	//*********************************************************************//
 	
-	private void writeToFile(String resultFileName) throws RepositoryException, RDFHandlerException, IOException {
-		File outputFile = new File(resultFileName);
-		OutputStream os = new FileOutputStream(outputFile);
-		RDFXMLPrettyWriter writer = new RDFXMLPrettyWriter(os);
-		//in order the following statement to compile the sesame-rio-rdfxml-3.0-alpha1.jar must be included at the top of the CLASSPATH
-		//writer.setBaseURI(HealthDataConstants.HEALTHDATA_GOV_DATASET_BASE_URI);
-		conn.export(writer, NEW_CONTEXT);
-		os.close();
+	/**
+	 * Copies the namespaces and the statements of NEW_CONTEXT out of the repository, 
+	 * so that they can be written after the repository was returned to the pool.
+	 */
+	private ConvertedMetadata detachResult() throws RepositoryException {
+		List<Namespace> namespaces = new ArrayList<Namespace>();
+		RepositoryResult<Namespace> nsIter = conn.getNamespaces();
+		try {
+			while (nsIter.hasNext()) {
+				Namespace ns = nsIter.next();
+				namespaces.add(new NamespaceImpl(ns.getPrefix(), ns.getName()));
+			}
+		}
+		finally {
+			nsIter.close();
+		}
+		List<Statement> statements = new ArrayList<Statement>();
+		RepositoryResult<Statement> stIter = conn.getStatements(null, null, null, false, NEW_CONTEXT);
+		try {
+			while (stIter.hasNext()) {
+				statements.add(stIter.next());
+			}
+		}
+		finally {
+			stIter.close();
+		}
+		return new ConvertedMetadata(datasetId, namespaces, statements);
+	}
+
+
+	/**
+	 * The result of the conversion of a dataset, detached from the (pooled) repository
+	 * of the conversion. This way the result can be serialized by another thread (see
+	 * {@link Updater}), while the repository is already used by the next conversion.
+	 */
+	static class ConvertedMetadata {
+
+		private final String datasetId;
+		private final List<Namespace> namespaces;
+		private final List<Statement> statements;
+
+		private ConvertedMetadata(String datasetId, List<Namespace> namespaces, List<Statement> statements) {
+			this.datasetId = datasetId;
+			this.namespaces = namespaces;
+			this.statements = statements;
+		}
+
+		public String getDatasetId() {
+			return datasetId;
+		}
+
+		/**
+		 * Writes the result to <code>file</code> (gzip compressed, if its name has the
+		 * gzip extension). The file is replaced only when it is complete.
+		 */
+		public void writeToFile(File file) throws RDFHandlerException, IOException {
+			AtomicFileOutput output = new AtomicFileOutput(file);
+			try {
+				writeTo(output.getOutputStream());
+				output.commit();
+			}
+			finally {
+				output.abort();
+			}
+		}
+
+		/**
+		 * Writes the result as RDF/XML to <code>os</code> (which is not closed), the same
+		 * way as the repository would export it: the namespaces first, and then the statements.
+		 */
+		public void writeTo(OutputStream os) throws RDFHandlerException {
+			FlightRecorderEvent event = beginStep();
+			//the output is counted only if the step is recorded
+			CountingOutputStream countingOs = (event.isEnabled() ? new CountingOutputStream(os) : null);
+			RDFXMLPrettyWriter writer = new RDFXMLPrettyWriter(countingOs == null ? os : countingOs);
+			//in order the following statement to compile the sesame-rio-rdfxml-3.0-alpha1.jar must be included at the top of the CLASSPATH
+			//writer.setBaseURI(HealthDataConstants.HEALTHDATA_GOV_DATASET_BASE_URI);
+			writer.startRDF();
+			for (Namespace ns : namespaces) {
+				writer.handleNamespace(ns.getPrefix(), ns.getName());
+			}
+			for (Statement statement : statements) {
+				writer.handleStatement(statement);
+			}
+			writer.endRDF();
+			event.end();
+			if (event.shouldCommit()) {
+				event.set("datasetId", datasetId);
+				event.set("step", "write");
+				event.set("statementCount", (long) statements.size());
+				event.set("bytes", countingOs.getByteCount());
+				event.commit();
+			}
+		}
 	}
 	
 	
-	private void close() throws SailException, RepositoryException {
-		conn.close();
-		sail.shutDown();
+	/**
+	 * Returns the repository (cleared) to the pool, to be reused by the next conversion.
+	 */
+	private void close() {
+		if (repository != null) {
+			REPOSITORY_POOL.release(repository);
+			repository = null;
+			conn = null;
+		}
+	}
+
+	/**
+	 * Returns the number of repositories created for the conversions so far.
+	 */
+	static int getCreatedRepositoryCount() {
+		return REPOSITORY_POOL.getCreatedCount();
 	}
 
 	
 	//**************************** Utility functions *****************************************//
 	
-	private Properties getPropertiesForConfigKey(Properties configProperties, String key) {
-		String propertiesFileName = configProperties.getProperty(key);
-		
-		if (propertiesFileName == null) {
-			System.out.println("WARNING: There was no value specified for the key: '" + key + "' in the configuration properties files!");
-			return null;
-		}
-		else {
-			return getProperties(propertiesFileName);
-		}
+	private ConfigMap getConfigMapForConfigKey(String key) {
+		return plan.getConfigMapForConfigKey(key);
+	}
+	
+	
+	/**
+	 * Adds a statement to the new context, keeping track of the URI values of the dataset properties.
+	 */
+	private void addToNewContext(Statement statement) throws RepositoryException {
+		conn.add(statement, NEW_CONTEXT);
+		trackURIValue(statement.getSubject(), statement.getObject());
 	}
 	
+	private void addToNewContext(Resource subject, URI predicate, Value object) throws RepositoryException {
+		conn.add(subject, predicate, object, NEW_CONTEXT);
+		trackURIValue(subject, object);
+	}
 	
-	private Properties getProperties(String propertiesFileName) {
-		Properties properties = new LinkedProperties();
+	private void addToNewContext(RepositoryResult<Statement> statements) throws RepositoryException {
 		try {
-			if (HealthDataConstants.MAP_LITERAL_TO_URI.equals(propertiesFileName)) {
-				properties = IdentityProperties.getInstance();
-			}
-			else {
-				//if it is not fully specified, use the same path as for the main configuration file 
-				if ( new File(propertiesFileName).getParent() == null ) {
-					propertiesFileName = configPropFilePathPrefix + propertiesFileName;
-				}
-				File propertiesFile = new File(propertiesFileName);
-				if (propertiesFile.exists()) {
-					FileReader reader = new FileReader(propertiesFile);
-					properties.load(reader);
-					reader.close();
-				}
-				else {
-					System.out.println("WARNING: '" + propertiesFile + "' could not be found. Metadata update will not work as excpected.");
-				}
+			while (statements.hasNext()) {
+				addToNewContext(statements.next());
 			}
 		}
-		catch (IOException e) {
-			e.printStackTrace();
+		finally {
+			statements.close();
 		}
-		return properties;
 	}
 	
+	private void trackURIValue(Resource subject, Value object) {
+		if (object instanceof URI && subject.equals(dsResource)) {
+			dsURIValues.add((URI) object);
+		}
+	}
 	
-	private void copyBNode(BNode bNode) throws RepositoryException {
-		RepositoryResult<Statement> bNodeStatements = conn.getStatements(bNode, null, null, false, ORIG_CONTEXT);
-		conn.add(bNodeStatements, NEW_CONTEXT);
+	
+	/**
+	 * Marks the statements of <code>bNode</code>, and of all the BNodes reachable from it,
+	 * to be copied to the new context (see {@link BNodeSubgraphExtractor}).
+	 */
+	private void copyBNode(BNode bNode) {
+		bNodeSubgraphExtractor.addRoot(bNode);
+	}
+	
+	
+	/**
+	 * Returns the (interned) URI for a property or value name coming from the configuration files.
+	 */
+	private URI getURIForName(String name) {
+		return URIInterner.getURI(convertNameToAbsoluteURI(name));
 	}
 	
 	
 	private String convertNameToAbsoluteURI(String id) {		
+		return convertNameToAbsoluteURI(id, prefixToNamespaceMap);
+	}
+
+	/**
+	 * Expands the prefix of <code>id</code>, if it is a name of the form <code>prefix:localName</code>
+	 * with a known prefix.
+	 */
+	static String convertNameToAbsoluteURI(String id, Map<String, String> prefixToNamespaceMap) {		
 		String uri = id;
 		if (id.contains(":")) {
 			String possiblePrefix = id.substring(0, id.indexOf(":"));
@@ -636,12 +936,12 @@ class DatasetMetadataUpdater {
 	}
 
 
-	private Value convertValue(Properties valueToURIMap, Value currValue) {
+	private Value convertValue(ConfigMap valueToURIMap, Value currValue) {
 		Value newValue = currValue;
 		if (valueToURIMap != null) {
-			String uriForValue = valueToURIMap.getProperty(currValue.stringValue());
+			String uriForValue = valueToURIMap.get(currValue.stringValue());
 			if (uriForValue != null) {
-				newValue = new URIImpl(uriForValue);
+				newValue = URIInterner.getURI(uriForValue);
 			}
 		}
 		return newValue;
@@ -674,12 +974,12 @@ class DatasetMetadataUpdater {
 	}
 	
 	
-	private String[] splitMapKey(String value) {
+	static String[] splitMapKey(String value) {
 		return value.split("\\s*\\>\\s*");
 	}
 	
 	
-	private String[] splitMapValue(String value) {
+	static String[] splitMapValue(String value) {
 		return value.split("\\s*\\|\\s*");
 	}
 	
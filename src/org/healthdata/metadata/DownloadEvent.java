@@ -0,0 +1,42 @@
+package org.healthdata.metadata;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A JDK Flight Recorder event recording the download of the metadata of a dataset
+ * (including all the retries). Datasets that were not downloaded, because they already
+ * existed, are not recorded.
+ *
+ * @author agent
+ *
+ */
+@Name("org.healthdata.metadata.Download")
+@Label("Dataset Download")
+@Category({"Healthdata", "Download"})
+@Description("The download of the metadata of a dataset, including the retries")
+@StackTrace(false)
+class DownloadEvent extends Event {
+
+	@Label("Dataset")
+	String datasetId;
+
+	@Label("URL")
+	String url;
+
+	@Label("Bytes")
+	@DataAmount(DataAmount.BYTES)
+	long bytes;
+
+	@Label("Attempts")
+	int attempts;
+
+	@Label("Succeeded")
+	boolean succeeded;
+
+}
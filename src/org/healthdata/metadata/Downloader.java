@@ -1,124 +1,561 @@
 package org.healthdata.metadata;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.io.IOUtils;
+import org.healthdata.metadata.util.AtomicFileOutput;
+import org.healthdata.metadata.util.CompressionUtil;
+import org.healthdata.metadata.util.FlightRecorderEvent;
+import org.healthdata.metadata.util.RetryPolicy;
 
 /**
  * This class provides functionality to download all metadata files describing
- * a healthdata.org dataset.
- * 
+ * a healthdata.org dataset. <br>
+ * With the <code>-gzip</code> option the files are saved gzip compressed
+ * (<code>DATASET_ID.rdf.gz</code>), and with the <code>-archive</code> option all
+ * of them are saved into a single {@link MetadataArchive}, whose name is given
+ * instead of the directory name. In both cases the files are compressed while
+ * they are downloaded. <br>
+ * Every file is downloaded into a temporary file, which is renamed only when it is
+ * complete. The completed datasets are recorded in a {@link RunJournal}, and with the
+ * <code>-resume</code> option the datasets completed by a previous (interrupted) run
+ * are not downloaded again. <br>
+ * All the connections to the hub have a connect and a read timeout, and failed
+ * downloads are retried as described by the {@link RetryPolicy}.
+ * The datasets that could not be downloaded are listed in a dead-letter file
+ * (<code>downloader.failed</code> in the download directory, or <code>ARCHIVE_FILE.failed</code>),
+ * which can be given to the <code>-replay=FILE</code> option to download only those datasets. <br>
+ * The datasets are downloaded from <code>hub.healthdata.gov</code>, unless another hub
+ * (e.g. a {@link FixtureServer}) is specified with the <code>-hub=BASE_URL</code> option. <br>
+ * With the <code>-shard=K/N</code> option only the K-th of N disjoint shards of the datasets
+ * is downloaded (see {@link ShardSpec}), and the manifest of the shard is written next to
+ * the other files of the shard, to be combined with the others by the {@link ShardMerger}.
+ *
  * @author csnyulas
  *
  */
 public class Downloader {
 
-	
+
 	private static final boolean FORCE_UPDATE_OPTION = true;
-	
+
+	static final String OPTION_GZIP = "-gzip";
+	static final String OPTION_ARCHIVE = "-archive";
+	static final String OPTION_RESUME = "-resume";
+	private static final String OPTION_REPLAY = "-replay=";
+	private static final String OPTION_CONNECT_TIMEOUT = "-connectTimeout=";
+	private static final String OPTION_READ_TIMEOUT = "-readTimeout=";
+	private static final String OPTION_RETRIES = "-retries=";
+	private static final String OPTION_BACKOFF = "-backoff=";
+	static final String OPTION_HUB = "-hub=";
+	static final String OPTION_SHARD = "-shard=";
+
+	private static final String RUN_NAME = "downloader";
+	private static final String JOURNAL_FILE_NAME = RUN_NAME + RunJournal.JOURNAL_FILE_EXTENSION;
+	static final String DEAD_LETTER_FILE_EXTENSION = ".failed";
+	private static final String DEAD_LETTER_FILE_NAME = RUN_NAME + DEAD_LETTER_FILE_EXTENSION;
+
+	private static final String STATUS_DOWNLOADED = "downloaded";
+
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	public static final long DEFAULT_INITIAL_BACKOFF = 1000;
+	private static final long MAX_BACKOFF = 60000;
+
+	private static final FlightRecorderEvent.Type DOWNLOAD_EVENT =
+			FlightRecorderEvent.forClass("org.healthdata.metadata.DownloadEvent");
+
+	private String hubBase = HealthDataConstants.HUB_HEALTHDATA_GOV_BASE;
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private int readTimeout = DEFAULT_READ_TIMEOUT;
+	private final RetryPolicy retryPolicy = new RetryPolicy(DEFAULT_MAX_RETRIES, DEFAULT_INITIAL_BACKOFF, MAX_BACKOFF);
+	private ShardSpec shard = ShardSpec.ALL;
+
+	/** the datasets that could not be downloaded in the current run, with the reason */
+	private final Map<String, String> failedDatasets = new LinkedHashMap<String, String>();
+	/** the reason of the last failed download */
+	private String lastFailure;
+
 
 	/**
 	 * @param args
 	 */
 	public static void main(String[] args) {
-		if (args == null || args.length != 1 ) {
-			System.out.println("USAGE: HealthdataMetadataUpdater DIR_FOR_METADATA_FILES");
-			return;
-		}
-		String workingDir = args[0];
-		
+		run(args);
+	}
+
+	/**
+	 * Runs the tool with the arguments of {@link #main(String[])}.
+	 *
+	 * @return true, if the arguments were valid, and the download run was completed
+	 * (the datasets that could not be downloaded are listed in the dead-letter file)
+	 */
+	public static boolean run(String[] args) {
 		Downloader hdMetadataDownloader = new Downloader();
-		hdMetadataDownloader.downloadMetadataFiles(workingDir);
+		boolean compress = false;
+		boolean archive = false;
+		boolean resume = false;
+		String replayFileName = null;
+		int argIdx = 0;
+		try {
+			while (args != null && argIdx < args.length - 1) {
+				String arg = args[argIdx];
+				if (arg.equals(OPTION_GZIP)) {
+					compress = true;
+				}
+				else if (arg.equals(OPTION_ARCHIVE)) {
+					archive = true;
+				}
+				else if (arg.equals(OPTION_RESUME)) {
+					resume = true;
+				}
+				else if (arg.startsWith(OPTION_REPLAY)) {
+					replayFileName = arg.substring(OPTION_REPLAY.length());
+				}
+				else if (arg.startsWith(OPTION_CONNECT_TIMEOUT)) {
+					hdMetadataDownloader.setConnectTimeout(Integer.parseInt(arg.substring(OPTION_CONNECT_TIMEOUT.length())));
+				}
+				else if (arg.startsWith(OPTION_READ_TIMEOUT)) {
+					hdMetadataDownloader.setReadTimeout(Integer.parseInt(arg.substring(OPTION_READ_TIMEOUT.length())));
+				}
+				else if (arg.startsWith(OPTION_RETRIES)) {
+					hdMetadataDownloader.setMaxRetries(Integer.parseInt(arg.substring(OPTION_RETRIES.length())));
+				}
+				else if (arg.startsWith(OPTION_BACKOFF)) {
+					hdMetadataDownloader.setInitialBackoff(Long.parseLong(arg.substring(OPTION_BACKOFF.length())));
+				}
+				else if (arg.startsWith(OPTION_HUB)) {
+					hdMetadataDownloader.setHubBase(arg.substring(OPTION_HUB.length()));
+				}
+				else if (arg.startsWith(OPTION_SHARD)) {
+					hdMetadataDownloader.setShard(ShardSpec.parse(arg.substring(OPTION_SHARD.length())));
+				}
+				else {
+					break;
+				}
+				argIdx++;
+			}
+		} catch (IllegalArgumentException e) {
+			//also a NumberFormatException
+			System.out.println("Invalid option: " + e.getMessage());
+			args = null;
+		}
+		if (args == null || args.length - argIdx != 1 ) {
+			System.out.println("USAGE: HealthdataMetadataUpdater [-gzip | -archive] [-resume] [-replay=DEAD_LETTER_FILE] [-hub=HUB_BASE_URL] [-shard=K/N] " +
+					"[-connectTimeout=MS] [-readTimeout=MS] [-retries=N] [-backoff=MS] DIR_FOR_METADATA_FILES (or ARCHIVE_FILE, with -archive)");
+			return false;
+		}
+		String workingDir = args[argIdx];
+
+		List<String> replayDatasetIds = null;
+		if (replayFileName != null) {
+			try {
+				replayDatasetIds = readDeadLetterFile(new File(replayFileName));
+			} catch (IOException e) {
+				System.out.println("Could not read the dead-letter file " + replayFileName + ": " + e.getMessage());
+				return false;
+			}
+		}
+
+		if (archive) {
+			if (resume) {
+				System.out.println("The " + OPTION_RESUME + " option is not supported with " + OPTION_ARCHIVE + ". All the datasets will be downloaded.");
+			}
+			return hdMetadataDownloader.downloadMetadataArchive(new File(workingDir), replayDatasetIds);
+		}
+		else {
+			return hdMetadataDownloader.downloadMetadataFiles(workingDir, compress, resume, replayDatasetIds);
+		}
+	}
+
+
+	/**
+	 * Sets the base URL of the hub, under which the dataset list (<code>api/2/rest/dataset</code>)
+	 * and the metadata files of the datasets (<code>dataset/DATASET_ID.rdf</code>) are found.
+	 */
+	public void setHubBase(String hubBase) {
+		this.hubBase = (hubBase.endsWith("/") ? hubBase : hubBase + "/");
 	}
 
-	
-	public void downloadMetadataFiles(String workingDir) {
+	public String getHubBase() {
+		return hubBase;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		retryPolicy.setMaxRetries(maxRetries);
+	}
+
+	public void setInitialBackoff(long initialBackoff) {
+		retryPolicy.setInitialBackoff(initialBackoff);
+	}
+
+	/**
+	 * Restricts the downloads to a shard of the datasets (see {@link ShardSpec}).
+	 */
+	public void setShard(ShardSpec shard) {
+		this.shard = shard;
+	}
+
+
+	public boolean downloadMetadataFiles(String workingDir) {
+		return downloadMetadataFiles(workingDir, false, false, null);
+	}
+
+	/**
+	 * Downloads the metadata files of all the datasets (gzip compressed, if <code>compress</code>
+	 * is true). If <code>resume</code> is true, the datasets recorded as completed in the journal
+	 * of the previous run, whose files exist, are skipped. If <code>replayDatasetIds</code> is
+	 * not null, only those datasets are downloaded (e.g. the ones that failed in a previous run).
+	 *
+	 * @return true, if the run was completed (even if some datasets could not be downloaded)
+	 */
+	public boolean downloadMetadataFiles(String workingDir, boolean compress, boolean resume, List<String> replayDatasetIds) {
 		try {
-			List<String> datasetIds = getListOfDatasets(new URL(HealthDataConstants.HUB_HEALTHDATA_GOV_API_2_REST_DATASET));
+			List<String> datasetIds = getDatasetIds(replayDatasetIds);
+			if (datasetIds == null) {
+				return false;
+			}
 			System.out.println(datasetIds);
-			for (String datasetId : datasetIds) {
-				System.out.println("Processing: " + datasetId);
-				String datasetDownloadUrl = HealthDataConstants.HUB_HEALTHDATA_GOV_DATASET_PREFIX + datasetId + HealthDataConstants.RDF_FILE_EXTENSION;
-				File metadataFile = new File(createAbsoluteRDFFileName(workingDir, datasetId));
-				downloadFile(datasetDownloadUrl, metadataFile, FORCE_UPDATE_OPTION);
+			failedDatasets.clear();
+			ShardManifest manifest = new ShardManifest(shard);
+			//a replay completes the previous run, so it continues its journal
+			RunJournal journal = new RunJournal(new File(workingDir, shard.getFileName(JOURNAL_FILE_NAME)), resume || replayDatasetIds != null);
+			int skippedCount = 0;
+			try {
+				for (String datasetId : datasetIds) {
+					File metadataFile = new File(createAbsoluteRDFFileName(workingDir, datasetId, compress));
+					if (resume && journal.isCompleted(datasetId) && metadataFile.exists()) {
+						skippedCount++;
+						manifest.add(datasetId, ShardManifest.STATUS_SKIPPED);
+						continue;
+					}
+					System.out.println("Processing: " + datasetId);
+					String datasetDownloadUrl = getDatasetDownloadUrl(datasetId);
+					if (downloadFile(datasetDownloadUrl, metadataFile, FORCE_UPDATE_OPTION)) {
+						journal.markCompleted(datasetId, metadataFile);
+						manifest.add(datasetId, STATUS_DOWNLOADED);
+					}
+					else {
+						failedDatasets.put(datasetId, lastFailure);
+						manifest.add(datasetId, ShardManifest.STATUS_FAILED);
+					}
+				}
+			}
+			finally {
+				journal.close();
 			}
+			if (resume) {
+				System.out.println("Resumed: " + skippedCount + " datasets completed by the previous run were skipped");
+			}
+			writeDeadLetterFile(new File(workingDir, shard.getFileName(DEAD_LETTER_FILE_NAME)));
+			if (shard.isPartial()) {
+				manifest.write(new File(workingDir, shard.getFileName(RUN_NAME)));
+			}
+			return true;
 		} catch (MalformedURLException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		return false;
 	}
 
+	/**
+	 * Downloads the metadata files of all the datasets into a single archive. If <code>replayDatasetIds</code>
+	 * is not null, only those datasets are downloaded, and they are added to the datasets of the existing archive.
+	 * The datasets that could not be downloaded keep their entry of the existing archive (if any).
+	 * The archive is replaced only when it is complete.
+	 *
+	 * @return true, if the archive was replaced (even if some datasets could not be downloaded)
+	 */
+	public boolean downloadMetadataArchive(File archiveFile, List<String> replayDatasetIds) {
+		try {
+			List<String> datasetIds = getDatasetIds(replayDatasetIds);
+			if (datasetIds == null) {
+				return false;
+			}
+			System.out.println(datasetIds);
+			failedDatasets.clear();
+			ShardManifest manifest = new ShardManifest(shard);
+			archiveFile = shard.getFile(archiveFile);
+			File tempArchiveFile = new File(archiveFile.getPath() + AtomicFileOutput.TEMP_FILE_EXTENSION);
+			//every dataset is downloaded to a temporary file first, so that a failed attempt does not leave a partial entry in the archive
+			File downloadFile = File.createTempFile("dataset", HealthDataConstants.RDF_FILE_EXTENSION);
+			MetadataArchive previousArchive = (archiveFile.exists() ? new MetadataArchive(archiveFile) : null);
+			MetadataArchive.Writer archiveWriter = new MetadataArchive.Writer(tempArchiveFile);
+			try {
+				if (replayDatasetIds != null && previousArchive != null) {
+					copyDatasets(previousArchive, archiveWriter, datasetIds);
+				}
+				for (String datasetId : datasetIds) {
+					System.out.println("Processing: " + datasetId);
+					if (downloadFile(getDatasetDownloadUrl(datasetId), downloadFile, FORCE_UPDATE_OPTION)) {
+						InputStream is = new FileInputStream(downloadFile);
+						try {
+							IOUtils.copy(is, archiveWriter.beginDataset(datasetId));
+							archiveWriter.endDataset();
+						}
+						finally {
+							is.close();
+						}
+						manifest.add(datasetId, STATUS_DOWNLOADED);
+					}
+					else {
+						failedDatasets.put(datasetId, lastFailure);
+						if (previousArchive != null && archiveWriter.copyDataset(previousArchive, datasetId)) {
+							System.out.println("The metadata of " + datasetId + " downloaded by the previous run is kept");
+						}
+						manifest.add(datasetId, ShardManifest.STATUS_FAILED);
+					}
+				}
+			}
+			finally {
+				archiveWriter.close();
+				downloadFile.delete();
+				if (previousArchive != null) {
+					previousArchive.close();
+				}
+			}
+			if ( (archiveFile.exists() && ! archiveFile.delete()) || ! tempArchiveFile.renameTo(archiveFile)) {
+				System.out.println("Could not replace " + archiveFile + ". The metadata files are in " + tempArchiveFile);
+				return false;
+			}
+			writeDeadLetterFile(new File(archiveFile.getPath() + DEAD_LETTER_FILE_EXTENSION));
+			if (shard.isPartial()) {
+				manifest.write(archiveFile);
+			}
+			return true;
+		} catch (MalformedURLException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
 
-	public String createAbsoluteRDFFileName(String dirName, String fileName) {
-		return dirName + (dirName.endsWith(File.separator) ? "" : File.separator) + fileName + HealthDataConstants.RDF_FILE_EXTENSION;
+	/**
+	 * Returns the datasets of the shard: the ones to be replayed, if <code>replayDatasetIds</code>
+	 * is not null, otherwise all the datasets of the hub.
+	 */
+	private List<String> getDatasetIds(List<String> replayDatasetIds) throws IOException {
+		List<String> datasetIds = (replayDatasetIds == null ? getListOfDatasets() : replayDatasetIds);
+		if (datasetIds == null || ! shard.isPartial()) {
+			return datasetIds;
+		}
+		datasetIds = shard.select(datasetIds);
+		System.out.println("Shard " + shard + ": " + datasetIds.size() + " datasets");
+		return datasetIds;
+	}
+
+	/**
+	 * Copies the datasets of an archive, except <code>excludedDatasetIds</code>, to a new archive.
+	 */
+	private void copyDatasets(MetadataArchive archive, MetadataArchive.Writer archiveWriter, List<String> excludedDatasetIds) throws IOException {
+		for (String datasetId : archive.getDatasetIds()) {
+			if ( ! excludedDatasetIds.contains(datasetId)) {
+				archiveWriter.copyDataset(archive, datasetId);
+			}
+		}
 	}
 
-	
-	public void downloadFile(String datasetDownloadUrl, File file, boolean forceUpdate) {
+
+	/**
+	 * Returns the datasets that could not be downloaded by the last run, with the reason of the (last) failure.
+	 */
+	public Map<String, String> getFailedDatasets() {
+		return failedDatasets;
+	}
+
+	/**
+	 * Writes the ids of the datasets that could not be downloaded (one per line, followed
+	 * by a tab and the reason of the failure), or deletes the file, if there were no failures.
+	 */
+	private void writeDeadLetterFile(File deadLetterFile) throws IOException {
+		if (failedDatasets.isEmpty()) {
+			deadLetterFile.delete();
+			return;
+		}
+		AtomicFileOutput output = new AtomicFileOutput(deadLetterFile);
 		try {
-			if ( ! file.exists() || forceUpdate) {
-				InputStream is = getInputStream(new URL(datasetDownloadUrl));
-				FileWriter writer = new FileWriter(file);
-				IOUtils.copy(is, writer);
-				is.close();
-				writer.close();
+			Writer writer = new OutputStreamWriter(output.getOutputStream(), "UTF-8");
+			for (Map.Entry<String, String> failedDataset : failedDatasets.entrySet()) {
+				writer.write(failedDataset.getKey() + "\t" + failedDataset.getValue().replaceAll("\\s+", " ") + "\n");
 			}
+			writer.flush();
+			output.commit();
 		}
-		catch (IOException e) {
-			e.printStackTrace();
+		finally {
+			output.abort();
 		}
+		System.out.println(failedDatasets.size() + " datasets could not be downloaded. Their list is in " + deadLetterFile);
 	}
 
-	
-	private static InputStream getInputStream(URL url) throws IOException{
-		if(url.getProtocol().equals("http")) {
-			URLConnection conn;
-			conn = url.openConnection();
-			conn.setRequestProperty("Accept", "application/rdf+xml");
-			conn.addRequestProperty("Accept", "text/xml");
-			conn.addRequestProperty("Accept", "*/*");
-			return conn.getInputStream();
+	static List<String> readDeadLetterFile(File deadLetterFile) throws IOException {
+		List<String> datasetIds = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(deadLetterFile), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tabIdx = line.indexOf('\t');
+				String datasetId = (tabIdx < 0 ? line : line.substring(0, tabIdx)).trim();
+				if (datasetId.length() > 0) {
+					datasetIds.add(datasetId);
+				}
+			}
 		}
-		else {
-			return url.openStream();
+		finally {
+			reader.close();
 		}
+		return datasetIds;
 	}
 
 
-	public List<String> getListOfDatasets(URL conceptURL) throws IOException {
-		InputStream is = null;
+	private String getDatasetDownloadUrl(String datasetId) {
+		return hubBase + HealthDataConstants.HUB_DATASET_PATH + datasetId + HealthDataConstants.RDF_FILE_EXTENSION;
+	}
+
+	public String createAbsoluteRDFFileName(String dirName, String fileName) {
+		return dirName + (dirName.endsWith(File.separator) ? "" : File.separator) + fileName + HealthDataConstants.RDF_FILE_EXTENSION;
+	}
+
+	public String createAbsoluteRDFFileName(String dirName, String fileName, boolean compress) {
+		return CompressionUtil.getFileName(createAbsoluteRDFFileName(dirName, fileName), compress);
+	}
+
+	/**
+	 * Returns the name of the metadata file of a dataset in <code>dirName</code>: the
+	 * uncompressed one, if it exists, otherwise the compressed one, if that exists.
+	 * If neither exists, the name of the uncompressed file is returned.
+	 */
+	public String findRDFFileName(String dirName, String fileName) {
+		String rdfFileName = createAbsoluteRDFFileName(dirName, fileName);
+		if ( ! new File(rdfFileName).exists()) {
+			String compressedRDFFileName = createAbsoluteRDFFileName(dirName, fileName, true);
+			if (new File(compressedRDFFileName).exists()) {
+				return compressedRDFFileName;
+			}
+		}
+		return rdfFileName;
+	}
+
+
+	/**
+	 * Downloads a file, retrying failed attempts. The file is replaced only when the download is complete.
+	 *
+	 * @return true, if the file was downloaded (or it already existed)
+	 */
+	public boolean downloadFile(final String datasetDownloadUrl, final File file, boolean forceUpdate) {
+		if (file.exists() && ! forceUpdate) {
+			return true;
+		}
+		FlightRecorderEvent event = DOWNLOAD_EVENT.newEvent();
+		event.begin();
+		final long[] bytesAndAttempts = new long[2];
+		boolean downloaded = false;
+		try {
+			retryPolicy.run(datasetDownloadUrl, new RetryPolicy.Attempt<Void>() {
+				public Void run() throws IOException {
+					bytesAndAttempts[1]++;
+					InputStream is = getInputStream(new URL(datasetDownloadUrl));
+					AtomicFileOutput output = new AtomicFileOutput(file);
+					try {
+						bytesAndAttempts[0] = IOUtils.copyLarge(is, output.getOutputStream());
+						output.commit();
+					}
+					finally {
+						output.abort();
+						is.close();
+					}
+					return null;
+				}
+			});
+			downloaded = true;
+		}
+		catch (IOException e) {
+			lastFailure = e.toString();
+			System.out.println("Could not download " + datasetDownloadUrl + ": " + e);
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			String fileName = datasetDownloadUrl.substring(datasetDownloadUrl.lastIndexOf('/') + 1);
+			String datasetId = MetadataArchive.getDatasetId(fileName);
+			event.set("datasetId", (datasetId == null ? fileName : datasetId));
+			event.set("url", datasetDownloadUrl);
+			event.set("bytes", (downloaded ? bytesAndAttempts[0] : 0));
+			event.set("attempts", (int) bytesAndAttempts[1]);
+			event.set("succeeded", downloaded);
+			event.commit();
+		}
+		return downloaded;
+	}
+
+
+	private InputStream getInputStream(URL url) throws IOException{
+		return RetryPolicy.openInputStream(url, connectTimeout, readTimeout, "application/rdf+xml", "text/xml", "*/*");
+	}
+
+
+	/**
+	 * Returns the ids of all the datasets of the hub.
+	 */
+	public List<String> getListOfDatasets() throws IOException {
+		return getListOfDatasets(new URL(hubBase + HealthDataConstants.HUB_API_2_REST_DATASET_PATH));
+	}
+
+	public List<String> getListOfDatasets(final URL conceptURL) throws IOException {
+		String response;
 		try {
-			is = getInputStream(conceptURL);
+			response = retryPolicy.run(conceptURL.toString(), new RetryPolicy.Attempt<String>() {
+				public String run() throws IOException {
+					InputStream is = getInputStream(conceptURL);
+					try {
+						StringWriter writer = new StringWriter();
+						IOUtils.copy(is, writer);
+						writer.close();
+						return writer.toString();
+					}
+					finally {
+						is.close();
+					}
+				}
+			});
 		} catch (IOException e) {
 			//log.log(Level.WARNING, "IO Exception when accessing HealthData hub. URL: " + conceptURL, e);
-			System.out.println("IO Exception when accessing HealthData hub. URL: " + conceptURL);
+			System.out.println("IO Exception when accessing HealthData hub. URL: " + conceptURL + " " + e);
 			return null;
 		}
-		if (is == null) { return null; }
 //		Success success =  (Success) xstream.fromXML(is);
 //		if (success == null) { return null; }
 //		return success.getData().getClassBeanList();
 
-		StringWriter writer = new StringWriter();
-		IOUtils.copy(is, writer);
-		is.close();
-		writer.close();
-		
-		String response = writer.toString();
 		return parseJsonList(response);
 	}
 
-	
+
 	private List<String> parseJsonList(String response) {
 		if (response.startsWith("[")) {
 			response = response.substring(1);
@@ -126,7 +563,10 @@ public class Downloader {
 		if (response.endsWith("]")) {
 			response = response.substring(0, response.length()-1);
 		}
-		response = response.replaceAll("\"", "");
+		response = response.replaceAll("\"", "").trim();
+		if (response.length() == 0) {
+			return new ArrayList<String>();
+		}
 		return Arrays.asList(response.split(",[ ]*"));
 	}
 
@@ -0,0 +1,500 @@
+package org.healthdata.metadata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.healthdata.metadata.util.CompressionUtil;
+import org.healthdata.metadata.util.LatencyHistogram;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the healthdata.gov hub and for the BioPortal search service,
+ * serving recorded responses, so that {@link Downloader}, {@link Updater} and the
+ * vocabulary tools can be tested and benchmarked offline. <br>
+ * Endpoints:
+ * <pre>
+ * GET /hub/api/2/rest/dataset          the dataset list (the -list=FILE file, or the ids of all the served datasets)
+ * GET /hub/dataset/DATASET_ID.rdf      a dataset, from a directory of (compressed) metadata files, or from a {@link MetadataArchive}
+ * GET /bioportal/search/TERM?...       the recorded response SEARCH_DIR/TERM.xml (the term URL encoded), or an empty result page
+ * GET /fixture/stats                   request counts, injected faults and latencies (never delayed or failed)
+ * </pre>
+ * The tools are pointed to the server with <code>-hub=http://localhost:PORT/hub/</code>
+ * ({@link Downloader}, {@link Updater}) and <code>-bp=http://localhost:PORT/bioportal/</code>
+ * (vocabulary tools). <br>
+ * Faults can be injected in every request: a fixed delay (<code>-latency=MS</code>) plus a
+ * random one (<code>-jitter=MS</code>), HTTP 500 errors with a given probability
+ * (<code>-errorRate=P</code>), and throttling (<code>-throttle=N</code>: at most N requests per
+ * second, the others get HTTP 429). The random decisions depend only on the seed
+ * (<code>-seed=N</code>), the path of the request and on how many times that path was requested,
+ * and not on the timing or the order of the requests, so a run is reproducible.
+ *
+ * @author agent
+ *
+ */
+public class FixtureServer {
+
+	private static final String OPTION_LIST = "-list=";
+	private static final String OPTION_SEARCH = "-search=";
+	private static final String OPTION_LATENCY = "-latency=";
+	private static final String OPTION_JITTER = "-jitter=";
+	private static final String OPTION_ERROR_RATE = "-errorRate=";
+	private static final String OPTION_THROTTLE = "-throttle=";
+	private static final String OPTION_SEED = "-seed=";
+	private static final String OPTION_THREADS = "-threads=";
+	private static final int DEFAULT_THREAD_COUNT = 32;
+
+	private static final String HUB_CONTEXT = "/hub/";
+	private static final String BIOPORTAL_CONTEXT = "/bioportal/";
+
+	private static final String CONTENT_TYPE_RDF_XML = "application/rdf+xml; charset=UTF-8";
+	private static final String CONTENT_TYPE_XML = "application/xml; charset=UTF-8";
+	private static final String CONTENT_TYPE_JSON = "application/json; charset=UTF-8";
+	private static final String CONTENT_TYPE_TEXT = "text/plain; charset=UTF-8";
+
+	private static final String EMPTY_SEARCH_RESPONSE =
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+		"<success><accessedResource>/bioportal/search</accessedResource><accessDate></accessDate>" +
+		"<data><page><pageNum>1</pageNum><numPages>1</numPages><pageSize>0</pageSize>" +
+		"<numResultsPage>0</numResultsPage><numResultsTotal>0</numResultsTotal>" +
+		"<contents><searchResultList></searchResultList></contents></page></data></success>\n";
+
+
+	private final File datasetSource;
+	private final MetadataArchive datasetArchive;
+	private File datasetListFile;
+	private File searchDir;
+
+	private long latency = 0;
+	private int jitter = 0;
+	private double errorRate = 0;
+	private long seed = 0;
+	private TokenBucket throttle = null;
+
+	private final ConcurrentMap<String, AtomicInteger> requestCounts = new ConcurrentHashMap<String, AtomicInteger>();
+	private final LatencyHistogram requestLatency = new LatencyHistogram("request latency");
+	private final AtomicLong injectedErrorCount = new AtomicLong();
+	private final AtomicLong throttledCount = new AtomicLong();
+	private final AtomicLong notFoundCount = new AtomicLong();
+
+	private HttpServer server;
+	private ExecutorService workers;
+
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		List<String> positionalArgs = new ArrayList<String>();
+		String datasetListFileName = null;
+		String searchDirName = null;
+		long latency = 0;
+		int jitter = 0;
+		double errorRate = 0;
+		int throttle = 0;
+		long seed = 0;
+		int threadCount = DEFAULT_THREAD_COUNT;
+		try {
+			for (String arg : (args == null ? new String[0] : args)) {
+				if (arg.startsWith(OPTION_LIST)) {
+					datasetListFileName = arg.substring(OPTION_LIST.length());
+				}
+				else if (arg.startsWith(OPTION_SEARCH)) {
+					searchDirName = arg.substring(OPTION_SEARCH.length());
+				}
+				else if (arg.startsWith(OPTION_LATENCY)) {
+					latency = Long.parseLong(arg.substring(OPTION_LATENCY.length()));
+				}
+				else if (arg.startsWith(OPTION_JITTER)) {
+					jitter = Integer.parseInt(arg.substring(OPTION_JITTER.length()));
+				}
+				else if (arg.startsWith(OPTION_ERROR_RATE)) {
+					errorRate = Double.parseDouble(arg.substring(OPTION_ERROR_RATE.length()));
+				}
+				else if (arg.startsWith(OPTION_THROTTLE)) {
+					throttle = Integer.parseInt(arg.substring(OPTION_THROTTLE.length()));
+				}
+				else if (arg.startsWith(OPTION_SEED)) {
+					seed = Long.parseLong(arg.substring(OPTION_SEED.length()));
+				}
+				else if (arg.startsWith(OPTION_THREADS)) {
+					threadCount = Integer.parseInt(arg.substring(OPTION_THREADS.length()));
+				}
+				else {
+					positionalArgs.add(arg);
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid number: " + e.getMessage());
+			positionalArgs.clear();
+		}
+		if (positionalArgs.size() != 2) {
+			System.out.println("USAGE: FixtureServer [-list=DATASET_LIST_FILE] [-search=SEARCH_RESPONSES_DIR] " +
+					"[-latency=MS] [-jitter=MS] [-errorRate=P] [-throttle=REQUESTS_PER_SECOND] [-seed=N] [-threads=N] " +
+					"PORT DIR_OF_METADATA_FILES (or ARCHIVE_FILE)");
+			return;
+		}
+
+		try {
+			FixtureServer fixtureServer = new FixtureServer(new File(positionalArgs.get(1)));
+			if (datasetListFileName != null) {
+				fixtureServer.setDatasetListFile(new File(datasetListFileName));
+			}
+			if (searchDirName != null) {
+				fixtureServer.setSearchDir(new File(searchDirName));
+			}
+			fixtureServer.setLatency(latency, jitter);
+			fixtureServer.setErrorRate(errorRate, seed);
+			fixtureServer.setThrottle(throttle);
+			fixtureServer.start(Integer.parseInt(positionalArgs.get(0)), threadCount);
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid port: " + e.getMessage());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * @param datasetSource a directory of (compressed or uncompressed) metadata files,
+	 * 		as written by the {@link Downloader}, or a {@link MetadataArchive}
+	 */
+	public FixtureServer(File datasetSource) throws IOException {
+		this.datasetSource = datasetSource;
+		this.datasetArchive = (MetadataArchive.isArchive(datasetSource) ? new MetadataArchive(datasetSource) : null);
+		if (datasetArchive == null && ! datasetSource.isDirectory()) {
+			throw new IOException(datasetSource + " is neither a directory, nor a metadata archive");
+		}
+	}
+
+	public void setDatasetListFile(File datasetListFile) {
+		this.datasetListFile = datasetListFile;
+	}
+
+	public void setSearchDir(File searchDir) {
+		this.searchDir = searchDir;
+	}
+
+	public void setLatency(long latency, int jitter) {
+		this.latency = Math.max(0, latency);
+		this.jitter = Math.max(0, jitter);
+	}
+
+	public void setErrorRate(double errorRate, long seed) {
+		this.errorRate = errorRate;
+		this.seed = seed;
+	}
+
+	/**
+	 * Allows at most <code>requestsPerSecond</code> requests per second (0 means no limit).
+	 */
+	public void setThrottle(int requestsPerSecond) {
+		this.throttle = (requestsPerSecond > 0 ? new TokenBucket(requestsPerSecond) : null);
+	}
+
+
+	public void start(int port, int threadCount) throws IOException {
+		workers = Executors.newFixedThreadPool(Math.max(1, threadCount));
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext(HUB_CONTEXT, new FaultInjectingHandler(new HubHandler()));
+		server.createContext(BIOPORTAL_CONTEXT, new FaultInjectingHandler(new SearchHandler()));
+		server.createContext("/fixture/stats", new StatsHandler());
+		server.setExecutor(workers);
+		server.start();
+		System.out.println("Fixture server listening on port " + server.getAddress().getPort() +
+				", serving " + datasetSource + ". Hub: http://localhost:" + server.getAddress().getPort() + HUB_CONTEXT +
+				", BioPortal: http://localhost:" + server.getAddress().getPort() + BIOPORTAL_CONTEXT);
+	}
+
+	public void stop() throws IOException {
+		if (server != null) {
+			server.stop(0);
+			workers.shutdown();
+		}
+		if (datasetArchive != null) {
+			datasetArchive.close();
+		}
+	}
+
+	public String getStatsReport() {
+		long requestCount = 0;
+		for (AtomicInteger count : requestCounts.values()) {
+			requestCount += count.get();
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(requestLatency.getReport());
+		sb.append("requests: ").append(requestCount).append(" (").append(requestCounts.size()).append(" distinct paths)\n");
+		sb.append("injected errors: ").append(injectedErrorCount.get()).append("\n");
+		sb.append("throttled requests: ").append(throttledCount.get()).append("\n");
+		sb.append("not found: ").append(notFoundCount.get()).append("\n");
+		return sb.toString();
+	}
+
+
+	//************************* Request handlers ****************************//
+
+	/**
+	 * Delays, throttles or fails the requests, before passing them to the handler of the endpoint.
+	 */
+	private class FaultInjectingHandler implements HttpHandler {
+
+		private final HttpHandler handler;
+
+		FaultInjectingHandler(HttpHandler handler) {
+			this.handler = handler;
+		}
+
+		public void handle(HttpExchange exchange) throws IOException {
+			long start = System.nanoTime();
+			try {
+				if (throttle != null && ! throttle.tryAcquire()) {
+					throttledCount.incrementAndGet();
+					exchange.getResponseHeaders().set("Retry-After", "1");
+					sendText(exchange, 429, "Too many requests");
+					return;
+				}
+
+				String path = exchange.getRequestURI().getPath();
+				int requestIndex = getRequestCount(path).incrementAndGet();
+				//the decisions for the n-th request of a path are always the same
+				Random random = new Random(seed * 1000003L + path.hashCode() * 31L + requestIndex);
+				long delay = latency + (jitter > 0 ? random.nextInt(jitter + 1) : 0);
+				if (delay > 0) {
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				if (errorRate > 0 && random.nextDouble() < errorRate) {
+					injectedErrorCount.incrementAndGet();
+					sendText(exchange, 500, "Injected error");
+					return;
+				}
+
+				handler.handle(exchange);
+			}
+			catch (IOException e) {
+				//the client went away
+				System.out.println("Request " + exchange.getRequestURI() + " failed: " + e);
+			}
+			finally {
+				requestLatency.record(System.nanoTime() - start);
+				exchange.close();
+			}
+		}
+
+		private AtomicInteger getRequestCount(String path) {
+			AtomicInteger count = requestCounts.get(path);
+			if (count == null) {
+				count = new AtomicInteger();
+				AtomicInteger prevCount = requestCounts.putIfAbsent(path, count);
+				if (prevCount != null) {
+					count = prevCount;
+				}
+			}
+			return count;
+		}
+	}
+
+
+	private class HubHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			String path = exchange.getRequestURI().getPath().substring(HUB_CONTEXT.length());
+			if (path.equals(HealthDataConstants.HUB_API_2_REST_DATASET_PATH)) {
+				exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE_JSON);
+				if (datasetListFile != null) {
+					sendFile(exchange, datasetListFile);
+				}
+				else {
+					send(exchange, 200, createDatasetList().getBytes("UTF-8"));
+				}
+			}
+			else if (path.startsWith(HealthDataConstants.HUB_DATASET_PATH) && path.endsWith(HealthDataConstants.RDF_FILE_EXTENSION)) {
+				String datasetId = path.substring(HealthDataConstants.HUB_DATASET_PATH.length(),
+						path.length() - HealthDataConstants.RDF_FILE_EXTENSION.length());
+				InputStream is = openDataset(datasetId);
+				if (is == null) {
+					notFoundCount.incrementAndGet();
+					sendText(exchange, 404, "Unknown dataset '" + datasetId + "'");
+					return;
+				}
+				try {
+					exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE_RDF_XML);
+					send(exchange, 200, is);
+				}
+				finally {
+					is.close();
+				}
+			}
+			else {
+				notFoundCount.incrementAndGet();
+				sendText(exchange, 404, "Unknown hub resource '" + path + "'");
+			}
+		}
+	}
+
+
+	private class SearchHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			String path = exchange.getRequestURI().getPath().substring(BIOPORTAL_CONTEXT.length());
+			if ( ! path.startsWith("search/")) {
+				notFoundCount.incrementAndGet();
+				sendText(exchange, 404, "Unknown BioPortal resource '" + path + "'");
+				return;
+			}
+			String searchTerm = path.substring("search/".length());
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE_XML);
+			File responseFile = (searchDir == null ? null : new File(searchDir, URLEncoder.encode(searchTerm, "UTF-8") + ".xml"));
+			if (responseFile != null && responseFile.isFile()) {
+				sendFile(exchange, responseFile);
+			}
+			else {
+				send(exchange, 200, EMPTY_SEARCH_RESPONSE.getBytes("UTF-8"));
+			}
+		}
+	}
+
+
+	private class StatsHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				sendText(exchange, 200, getStatsReport());
+			}
+			finally {
+				exchange.close();
+			}
+		}
+	}
+
+
+	//**************************** Datasets *****************************************//
+
+	private String createDatasetList() {
+		List<String> datasetIds;
+		if (datasetArchive != null) {
+			datasetIds = datasetArchive.getDatasetIds();
+		}
+		else {
+			datasetIds = new ArrayList<String>();
+			String[] fileNames = datasetSource.list(new FilenameFilter() {
+				public boolean accept(File dir, String name) {
+					return MetadataArchive.getDatasetId(name) != null;
+				}
+			});
+			for (String fileName : fileNames) {
+				datasetIds.add(MetadataArchive.getDatasetId(fileName));
+			}
+		}
+		Collections.sort(datasetIds);
+		StringBuilder sb = new StringBuilder("[");
+		for (String datasetId : datasetIds) {
+			if (sb.length() > 1) {
+				sb.append(", ");
+			}
+			sb.append('"').append(datasetId).append('"');
+		}
+		return sb.append("]").toString();
+	}
+
+	/**
+	 * Returns the (decompressed) metadata file of a dataset, or null, if there is no such dataset.
+	 */
+	private InputStream openDataset(String datasetId) throws IOException {
+		if (datasetId.indexOf('/') >= 0 || datasetId.indexOf('\\') >= 0) {
+			return null;
+		}
+		if (datasetArchive != null) {
+			return datasetArchive.openInputStream(datasetId);
+		}
+		for (boolean compressed : new boolean[] {false, true}) {
+			File file = new File(datasetSource, CompressionUtil.getFileName(datasetId + HealthDataConstants.RDF_FILE_EXTENSION, compressed));
+			if (file.isFile()) {
+				return CompressionUtil.openInputStream(file);
+			}
+		}
+		return null;
+	}
+
+
+	//**************************** Utility functions *****************************************//
+
+	private void sendFile(HttpExchange exchange, File file) throws IOException {
+		InputStream is = new FileInputStream(file);
+		try {
+			send(exchange, 200, is);
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	private void send(HttpExchange exchange, int status, InputStream is) throws IOException {
+		exchange.sendResponseHeaders(status, 0);
+		OutputStream os = exchange.getResponseBody();
+		IOUtils.copy(is, os);
+		os.close();
+	}
+
+	private void sendText(HttpExchange exchange, int status, String text) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE_TEXT);
+		send(exchange, status, (text + "\n").getBytes("UTF-8"));
+	}
+
+	private void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream os = exchange.getResponseBody();
+		os.write(body);
+		os.close();
+	}
+
+
+	/**
+	 * Admits at most <code>rate</code> requests per second (with bursts of at most <code>rate</code> requests).
+	 */
+	private static class TokenBucket {
+
+		private final double rate;
+		private double tokens;
+		private long lastRefill = System.nanoTime();
+
+		TokenBucket(int rate) {
+			this.rate = rate;
+			this.tokens = rate;
+		}
+
+		synchronized boolean tryAcquire() {
+			long now = System.nanoTime();
+			tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+			lastRefill = now;
+			if (tokens < 1) {
+				return false;
+			}
+			tokens--;
+			return true;
+		}
+	}
+
+}
@@ -2,8 +2,11 @@ package org.healthdata.metadata;
 
 public class HealthDataConstants {
 
-	public static final String HUB_HEALTHDATA_GOV_API_2_REST_DATASET = "http://hub.healthdata.gov/api/2/rest/dataset";
-	public static final String HUB_HEALTHDATA_GOV_DATASET_PREFIX = "http://hub.healthdata.gov/dataset/";
+	public static final String HUB_HEALTHDATA_GOV_BASE = "http://hub.healthdata.gov/";
+	public static final String HUB_API_2_REST_DATASET_PATH = "api/2/rest/dataset";
+	public static final String HUB_DATASET_PATH = "dataset/";
+	public static final String HUB_HEALTHDATA_GOV_API_2_REST_DATASET = HUB_HEALTHDATA_GOV_BASE + HUB_API_2_REST_DATASET_PATH;
+	public static final String HUB_HEALTHDATA_GOV_DATASET_PREFIX = HUB_HEALTHDATA_GOV_BASE + HUB_DATASET_PATH;
 	public static final String RDF_FILE_EXTENSION = ".rdf";
 	public static final String HEALTHDATA_GOV_DATASET_BASE_URI = "http://healthdata.gov/data/dataset/";
 
@@ -11,9 +14,12 @@ public class HealthDataConstants {
 
 	public static final String URI_PROP_DCT_RELATION = "http://purl.org/dc/terms/relation"; 
 
+	public static final String KEY_AGENCY = "Agency"; 
+	public static final String KEY_COLLECTION_FREQUENCY = "Collection Frequency"; 
 	public static final String KEY_COVERAGE_PERIOD_START = "Coverage Period Start"; 
 	public static final String KEY_COVERAGE_PERIOD_END = "Coverage Period End"; 
 
+	public static final String URI_CLASS_DCAT_DATASET = "http://www.w3.org/ns/dcat#Dataset";
 	public static final String URI_PROP_DCT_TEMPORAL = "http://purl.org/dc/terms/temporal";
 	public static final String URI_CLASS_DCT_PERIOD_OF_TIME = "http://purl.org/dc/terms/PeriodOfTime";
 	public static final String URI_CLASS_TIME_INTERVAL = "http://www.w3.org/2006/time#Interval";
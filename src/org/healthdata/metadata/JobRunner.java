@@ -0,0 +1,208 @@
+package org.healthdata.metadata;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.healthdata.metadata.util.ConfigCache;
+import org.healthdata.metadata.util.URIInterner;
+import org.healthdata.metadata.vocabulary.ConceptSchemeGenerator;
+import org.healthdata.metadata.vocabulary.OWLAxiomGenerator;
+import org.healthdata.metadata.vocabulary.VocabularyGenerator;
+import org.healthdata.metadata.vocabulary.VocabularyPipeline;
+
+/**
+ * This class provides functionality to execute a sequence of tool invocations
+ * (e.g. {@link Downloader}, {@link Updater}, {@link OWLAxiomGenerator}, etc.),
+ * described in a job file, in a single JVM. This way the JVM startup, class loading
+ * and JIT warm-up costs are paid only once, and the shared caches (e.g. the parsed
+ * configuration files and the interned URIs) are reused by all the steps. <br>
+ * Each non empty line of the job file, which does not start with '#', describes a step,
+ * and it contains the name of the tool followed by its arguments (exactly as they
+ * would be passed to the main method of the tool), separated by white spaces.
+ * Arguments containing white spaces can be enclosed in double quotes. Example:
+ * <pre>
+ * Downloader output/downloaded_metadata
+ * Updater output/downloaded_metadata output/updated_metadata resources/main_configuration.properties
+ * OWLAxiomGenerator -st -i output/BETOS_CODES.txt output/BETOS_Code_instance.template output/BETOS_Code_instance.owl
+ * </pre>
+ * Each step is executed by calling the <code>public static boolean run(String[])</code>
+ * method of the tool, which takes the same arguments as its main method, and reports
+ * whether the tool succeeded. The execution stops at the first step that fails
+ * (i.e. whose run method returns false, or throws an exception).
+ *
+ * @author agent
+ *
+ */
+public class JobRunner {
+
+	private static final String COMMENT_PREFIX = "#";
+	private static final String RUN_METHOD_NAME = "run";
+
+	private static final Map<String, Class<?>> TOOLS = new LinkedHashMap<String, Class<?>>();
+	static {
+		registerTool(Downloader.class);
+		registerTool(Updater.class);
+		registerTool(DatasetMetadataUpdater.class);
+		registerTool(CatalogIndex.class);
+		registerTool(MetadataArchive.class);
+		registerTool(ShardMerger.class);
+		registerTool(CorpusProfiler.class);
+		registerTool(VocabularyGenerator.class);
+		registerTool(OWLAxiomGenerator.class);
+		registerTool(ConceptSchemeGenerator.class);
+		registerTool(VocabularyPipeline.class);
+	}
+
+	private static void registerTool(Class<?> toolClass) {
+		TOOLS.put(toolClass.getSimpleName(), toolClass);
+	}
+
+
+	/**
+	 * Runs the steps of the job file, and exits with status 1, if the job file
+	 * could not be read, or any of the steps failed, so that the failure is
+	 * visible to the scheduler running the job.
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if (args == null || args.length != 1) {
+			System.out.println("USAGE: JobRunner JOB_FILE");
+			System.out.println("Available tools: " + TOOLS.keySet());
+			System.exit(1);
+		}
+
+		JobRunner jobRunner = new JobRunner();
+		try {
+			List<String[]> steps = jobRunner.readJobFile(args[0]);
+			if ( ! jobRunner.runSteps(steps)) {
+				System.exit(1);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+
+	public List<String[]> readJobFile(String jobFileName) throws IOException {
+		List<String[]> steps = new ArrayList<String[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(new File(jobFileName)));
+		try {
+			String line = reader.readLine();
+			int lineNo = 1;
+			while (line != null) {
+				line = line.trim();
+				if (line.length() > 0 && ! line.startsWith(COMMENT_PREFIX)) {
+					String[] step = tokenize(line);
+					if ( ! TOOLS.containsKey(step[0])) {
+						throw new IOException("Unknown tool '" + step[0] + "' at line " + lineNo +
+								" of " + jobFileName + ". Available tools: " + TOOLS.keySet());
+					}
+					steps.add(step);
+				}
+				line = reader.readLine();
+				lineNo++;
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return steps;
+	}
+
+
+	/**
+	 * Executes the steps in order. The first element of each step is the name
+	 * of the tool, the rest are the arguments of the tool.
+	 *
+	 * @return true, if all the steps succeeded
+	 */
+	public boolean runSteps(List<String[]> steps) {
+		long runStart = System.nanoTime();
+		for (int i = 0; i < steps.size(); i++) {
+			String[] step = steps.get(i);
+			String toolName = step[0];
+			String[] toolArgs = Arrays.copyOfRange(step, 1, step.length);
+
+			System.out.println("=== Step " + (i + 1) + "/" + steps.size() + ": " + toolName + " " + Arrays.toString(toolArgs));
+			long stepStart = System.nanoTime();
+			boolean succeeded;
+			try {
+				succeeded = runTool(toolName, toolArgs);
+			}
+			catch (Throwable t) {
+				t.printStackTrace();
+				succeeded = false;
+			}
+			if ( ! succeeded) {
+				System.out.println("=== Step " + (i + 1) + " (" + toolName + ") failed. Remaining steps will be skipped.");
+				return false;
+			}
+			System.out.println("=== Step " + (i + 1) + " (" + toolName + ") finished in " +
+					(System.nanoTime() - stepStart) / 1000000 + " ms");
+		}
+		System.out.println("=== All " + steps.size() + " steps finished in " +
+				(System.nanoTime() - runStart) / 1000000 + " ms " +
+				"(cached configuration files: " + ConfigCache.size() + ", interned URIs: " + URIInterner.size() + ")");
+		return true;
+	}
+
+
+	/**
+	 * Calls the run method of the tool, and returns its result.
+	 */
+	private boolean runTool(String toolName, String[] toolArgs) throws Throwable {
+		Class<?> toolClass = TOOLS.get(toolName);
+		Method runMethod = toolClass.getDeclaredMethod(RUN_METHOD_NAME, String[].class);
+		runMethod.setAccessible(true);
+		try {
+			return Boolean.TRUE.equals(runMethod.invoke(null, (Object) toolArgs));
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+
+	/*
+	 * Splits a line at white spaces, except the ones inside double quotes.
+	 */
+	private String[] tokenize(String line) {
+		List<String> tokens = new ArrayList<String>();
+		StringBuilder token = new StringBuilder();
+		boolean inQuotes = false;
+		boolean hasToken = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				inQuotes = ! inQuotes;
+				hasToken = true;
+			}
+			else if (Character.isWhitespace(c) && ! inQuotes) {
+				if (hasToken) {
+					tokens.add(token.toString());
+					token.setLength(0);
+					hasToken = false;
+				}
+			}
+			else {
+				token.append(c);
+				hasToken = true;
+			}
+		}
+		if (hasToken) {
+			tokens.add(token.toString());
+		}
+		return tokens.toArray(new String[tokens.size()]);
+	}
+
+}
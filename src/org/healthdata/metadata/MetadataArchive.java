@@ -0,0 +1,276 @@
+package org.healthdata.metadata;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.healthdata.metadata.util.CompressionUtil;
+
+/**
+ * A single file holding the metadata files of all the datasets of a run (as
+ * written by {@link Downloader} or {@link Updater}), instead of one file per dataset. <br>
+ * The archive is a zip file with one (deflated) <code>DATASET_ID.rdf</code> entry
+ * per dataset. The entries are compressed while they are written, one after the
+ * other, so neither a dataset nor the archive is ever held in memory. The central
+ * directory at the end of the zip file serves as the index of the archive: a
+ * single dataset can be read without scanning (or decompressing) the others.
+ * Since the archive is a plain zip file, it can also be inspected and extracted
+ * by standard tools.
+ *
+ * @author agent
+ *
+ */
+public class MetadataArchive {
+
+	public static final String ARCHIVE_FILE_EXTENSION = ".zip";
+
+	private final ZipFile zipFile;
+
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		run(args);
+	}
+
+	/**
+	 * Runs the tool with the arguments of {@link #main(String[])}.
+	 *
+	 * @return true, if the arguments were valid, and the archive was read or written
+	 */
+	public static boolean run(String[] args) {
+		if (args == null || args.length < 1 || args.length > 3 ||
+				(args[0].equals("-pack") && args.length != 3)) {
+			System.out.println("USAGE: MetadataArchive ARCHIVE_FILE [DATASET_ID [OUTPUT_FILE]]");
+			System.out.println("       MetadataArchive -pack DIR_OF_METADATA_FILES ARCHIVE_FILE");
+			return false;
+		}
+		try {
+			if (args[0].equals("-pack")) {
+				int count = pack(new File(args[1]), new File(args[2]));
+				System.out.println(count + " metadata files packed into " + args[2]);
+				return true;
+			}
+
+			MetadataArchive archive = new MetadataArchive(new File(args[0]));
+			try {
+				if (args.length == 1) {
+					for (String datasetId : archive.getDatasetIds()) {
+						System.out.println(datasetId);
+					}
+				}
+				else if ( ! archive.contains(args[1])) {
+					System.out.println("There is no dataset with id '" + args[1] + "' in " + args[0]);
+					return false;
+				}
+				else {
+					InputStream is = archive.openInputStream(args[1]);
+					OutputStream os = (args.length == 3 ? CompressionUtil.openOutputStream(new File(args[2])) : System.out);
+					try {
+						IOUtils.copy(is, os);
+					}
+					finally {
+						is.close();
+						if (os == System.out) {
+							os.flush();
+						}
+						else {
+							os.close();
+						}
+					}
+				}
+			}
+			finally {
+				archive.close();
+			}
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+
+	/**
+	 * Opens an archive for reading. Only the index is read at this point.
+	 */
+	public MetadataArchive(File archiveFile) throws IOException {
+		zipFile = new ZipFile(archiveFile);
+	}
+
+	public static boolean isArchive(File file) {
+		return file.isFile() && file.getName().endsWith(ARCHIVE_FILE_EXTENSION);
+	}
+
+	/**
+	 * Returns the ids of the datasets in the archive, in the order they were written.
+	 */
+	public List<String> getDatasetIds() {
+		List<String> datasetIds = new ArrayList<String>(zipFile.size());
+		Enumeration<? extends ZipEntry> entries = zipFile.entries();
+		while (entries.hasMoreElements()) {
+			String name = entries.nextElement().getName();
+			if (name.endsWith(HealthDataConstants.RDF_FILE_EXTENSION)) {
+				datasetIds.add(name.substring(0, name.length() - HealthDataConstants.RDF_FILE_EXTENSION.length()));
+			}
+		}
+		return datasetIds;
+	}
+
+	public boolean contains(String datasetId) {
+		return zipFile.getEntry(getEntryName(datasetId)) != null;
+	}
+
+	/**
+	 * Returns the (decompressed) content of the metadata file of a dataset, or
+	 * null, if the dataset is not in the archive.
+	 */
+	public InputStream openInputStream(String datasetId) throws IOException {
+		ZipEntry entry = zipFile.getEntry(getEntryName(datasetId));
+		return (entry == null ? null : zipFile.getInputStream(entry));
+	}
+
+	public void close() throws IOException {
+		zipFile.close();
+	}
+
+
+	/**
+	 * Packs all the metadata files (compressed or not) of <code>metadataDir</code> into a new archive.
+	 */
+	public static int pack(File metadataDir, File archiveFile) throws IOException {
+		File[] files = metadataDir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return getDatasetId(name) != null;
+			}
+		});
+		if (files == null) {
+			throw new IOException("Could not list the files of " + metadataDir);
+		}
+		Arrays.sort(files);
+
+		Writer writer = new Writer(archiveFile);
+		try {
+			for (File file : files) {
+				InputStream is = CompressionUtil.openInputStream(file);
+				try {
+					IOUtils.copy(is, writer.beginDataset(getDatasetId(file.getName())));
+					writer.endDataset();
+				}
+				finally {
+					is.close();
+				}
+			}
+		}
+		finally {
+			writer.close();
+		}
+		return files.length;
+	}
+
+	/**
+	 * Returns the dataset id of a metadata file name (<code>DATASET_ID.rdf</code>
+	 * or <code>DATASET_ID.rdf.gz</code>), or null, if it is not a metadata file name.
+	 */
+	static String getDatasetId(String fileName) {
+		if (fileName.endsWith(CompressionUtil.GZIP_FILE_EXTENSION)) {
+			fileName = fileName.substring(0, fileName.length() - CompressionUtil.GZIP_FILE_EXTENSION.length());
+		}
+		if (fileName.endsWith(HealthDataConstants.RDF_FILE_EXTENSION)) {
+			return fileName.substring(0, fileName.length() - HealthDataConstants.RDF_FILE_EXTENSION.length());
+		}
+		return null;
+	}
+
+	private static String getEntryName(String datasetId) {
+		return datasetId + HealthDataConstants.RDF_FILE_EXTENSION;
+	}
+
+
+	/**
+	 * Writes a new archive, one dataset at a time.
+	 */
+	public static class Writer {
+
+		private final ZipOutputStream zos;
+		private final List<String> datasetIds = new ArrayList<String>();
+		private boolean inDataset = false;
+
+		public Writer(File archiveFile) throws IOException {
+			zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archiveFile), 64 * 1024));
+			zos.setLevel(Deflater.DEFAULT_COMPRESSION);
+		}
+
+		/**
+		 * Starts the entry of a dataset, and returns the stream to which its metadata
+		 * file has to be written. The returned stream should not be closed.
+		 */
+		public OutputStream beginDataset(String datasetId) throws IOException {
+			if (inDataset) {
+				endDataset();
+			}
+			zos.putNextEntry(new ZipEntry(getEntryName(datasetId)));
+			datasetIds.add(datasetId);
+			inDataset = true;
+			return CompressionUtil.nonClosing(zos);
+		}
+
+		public void endDataset() throws IOException {
+			if (inDataset) {
+				zos.closeEntry();
+				inDataset = false;
+			}
+		}
+
+		/**
+		 * Copies the entry of a dataset from another archive.
+		 *
+		 * @return false, if the dataset is not in <code>archive</code>
+		 */
+		public boolean copyDataset(MetadataArchive archive, String datasetId) throws IOException {
+			InputStream is = archive.openInputStream(datasetId);
+			if (is == null) {
+				return false;
+			}
+			try {
+				IOUtils.copy(is, beginDataset(datasetId));
+				endDataset();
+			}
+			finally {
+				is.close();
+			}
+			return true;
+		}
+
+		/**
+		 * Returns the ids of the datasets written so far.
+		 */
+		public List<String> getDatasetIds() {
+			return Collections.unmodifiableList(datasetIds);
+		}
+
+		/**
+		 * Finishes the archive, writing its index.
+		 */
+		public void close() throws IOException {
+			endDataset();
+			zos.close();
+		}
+	}
+
+}
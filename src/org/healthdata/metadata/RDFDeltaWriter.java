@@ -0,0 +1,221 @@
+package org.healthdata.metadata;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.healthdata.metadata.util.AtomicFileOutput;
+
+/**
+ * Writes the differences between the outputs of two conversion runs, so that a
+ * triple store can be updated with the changes only, instead of reloading all
+ * the datasets. For every dataset whose converted graph changed, a patch file
+ * (<code>DATASET_ID.patch</code>) is written, in which every line is either
+ * <code>D s p o .</code> (statement to be removed) or <code>A s p o .</code>
+ * (statement to be added), with the statements in N-Triples syntax, and the
+ * blank nodes replaced by skolem IRIs as described in {@link CanonicalGraph}, so
+ * that the patches can be applied to a triple store loaded from the patches of the
+ * previous runs. The removals precede the additions. At the end of the run a summary (<code>summary.txt</code>)
+ * is written, listing the changed, new and deleted datasets. <br>
+ * The writer of a shard (see {@link ShardSpec}) handles only the patches of the datasets
+ * of its shard, and it writes its own summary (e.g. <code>summary.shard-3-of-8.txt</code>),
+ * so the shards can share the delta directory.
+ *
+ * @author agent
+ *
+ */
+class RDFDeltaWriter {
+
+	public static final String PATCH_FILE_EXTENSION = ".patch";
+	public static final String SUMMARY_FILE_NAME = "summary.txt";
+
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	private final File deltaDir;
+	private final ShardSpec shard;
+
+	private int unchangedCount = 0;
+	private int changedCount = 0;
+	private int newCount = 0;
+	private int deletedCount = 0;
+	private long addedStatementCount = 0;
+	private long removedStatementCount = 0;
+	private final StringBuilder changes = new StringBuilder();
+
+
+	public RDFDeltaWriter(File deltaDir) throws IOException {
+		this(deltaDir, false);
+	}
+
+	/**
+	 * @param keepPreviousPatches if true, the patches of the previous run are not removed
+	 * 		(used when an interrupted run is resumed, and the datasets it already completed are skipped)
+	 */
+	public RDFDeltaWriter(File deltaDir, boolean keepPreviousPatches) throws IOException {
+		this(deltaDir, keepPreviousPatches, ShardSpec.ALL);
+	}
+
+	/**
+	 * @param shard the shard of the datasets handled by this writer
+	 */
+	public RDFDeltaWriter(File deltaDir, boolean keepPreviousPatches, final ShardSpec shard) throws IOException {
+		this.deltaDir = deltaDir;
+		this.shard = shard;
+		if ( ! deltaDir.isDirectory() && ! deltaDir.mkdirs()) {
+			throw new IOException("Could not create the delta directory " + deltaDir);
+		}
+		if (keepPreviousPatches) {
+			return;
+		}
+		//remove the patches of a previous run, so that they are not applied again
+		File[] oldPatches = deltaDir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(PATCH_FILE_EXTENSION) &&
+						shard.contains(name.substring(0, name.length() - PATCH_FILE_EXTENSION.length()));
+			}
+		});
+		for (File oldPatch : oldPatches) {
+			oldPatch.delete();
+		}
+	}
+
+
+	/**
+	 * Reads the canonical graph of the converted metadata file of a dataset, or returns 
+	 * an empty graph if the file does not exist, or it can not be parsed.
+	 */
+	public CanonicalGraph readGraph(String datasetId, File rdfFile) {
+		if ( ! rdfFile.exists()) {
+			return CanonicalGraph.EMPTY;
+		}
+		try {
+			return CanonicalGraph.read(rdfFile, datasetId);
+		} catch (Exception e) {
+			System.out.println("Could not read " + rdfFile + ". All its statements will be considered new. " + e.getMessage());
+			return CanonicalGraph.EMPTY;
+		}
+	}
+
+	/**
+	 * Reads the canonical graph of a dataset from an archive, or returns an empty graph
+	 * if the dataset is not in the archive, or its metadata can not be parsed.
+	 */
+	public CanonicalGraph readGraph(MetadataArchive archive, String datasetId) {
+		try {
+			InputStream is = archive.openInputStream(datasetId);
+			if (is == null) {
+				return CanonicalGraph.EMPTY;
+			}
+			try {
+				return CanonicalGraph.read(is, HealthDataConstants.HEALTHDATA_GOV_DATASET_BASE_URI + datasetId + HealthDataConstants.RDF_FILE_EXTENSION, datasetId);
+			}
+			finally {
+				is.close();
+			}
+		} catch (Exception e) {
+			System.out.println("Could not read " + datasetId + " from the archive. All its statements will be considered new. " + e.getMessage());
+			return CanonicalGraph.EMPTY;
+		}
+	}
+
+	/**
+	 * Writes the patch of a dataset, if its graph changed.
+	 */
+	public void writeDelta(String datasetId, CanonicalGraph previous, CanonicalGraph current) throws IOException {
+		List<String> removed = previous.minus(current);
+		List<String> added = current.minus(previous);
+		if (removed.isEmpty() && added.isEmpty()) {
+			unchangedCount++;
+			return;
+		}
+
+		String change;
+		if (previous.size() == 0) {
+			newCount++;
+			change = "new";
+		}
+		else if (current.size() == 0) {
+			deletedCount++;
+			change = "deleted";
+		}
+		else {
+			changedCount++;
+			change = "changed";
+		}
+		addedStatementCount += added.size();
+		removedStatementCount += removed.size();
+		changes.append(datasetId).append('\t').append(change)
+			.append("\t+").append(added.size()).append("\t-").append(removed.size()).append(LINE_SEPARATOR);
+
+		AtomicFileOutput output = new AtomicFileOutput(new File(deltaDir, datasetId + PATCH_FILE_EXTENSION));
+		try {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(output.getOutputStream(), "UTF-8"));
+			for (String statement : removed) {
+				writer.write("D ");
+				writer.write(statement);
+				writer.write(LINE_SEPARATOR);
+			}
+			for (String statement : added) {
+				writer.write("A ");
+				writer.write(statement);
+				writer.write(LINE_SEPARATOR);
+			}
+			writer.flush();
+			output.commit();
+		}
+		finally {
+			output.abort();
+		}
+	}
+
+	/**
+	 * Writes removal patches for the datasets deleted since the previous run, from
+	 * their converted metadata files written by the previous run (by dataset id).
+	 * The files themselves are not touched.
+	 */
+	public void writeDeletedDatasetDeltas(Map<String, File> deletedDatasetFiles) throws IOException {
+		for (Map.Entry<String, File> entry : new TreeMap<String, File>(deletedDatasetFiles).entrySet()) {
+			writeDelta(entry.getKey(), readGraph(entry.getKey(), entry.getValue()), CanonicalGraph.EMPTY);
+		}
+	}
+
+	/**
+	 * Writes removal patches for the datasets deleted since the previous run, from
+	 * the archive of the previous run.
+	 */
+	public void writeDeletedDatasetDeltas(MetadataArchive previousArchive, Collection<String> deletedDatasetIds) throws IOException {
+		for (String datasetId : deletedDatasetIds) {
+			writeDelta(datasetId, readGraph(previousArchive, datasetId), CanonicalGraph.EMPTY);
+		}
+	}
+
+	public void writeSummary() throws IOException {
+		AtomicFileOutput output = new AtomicFileOutput(new File(deltaDir, shard.getFileName(SUMMARY_FILE_NAME)));
+		try {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(output.getOutputStream(), "UTF-8"));
+			writer.write(getSummary());
+			writer.write(LINE_SEPARATOR);
+			writer.write(changes.toString());
+			writer.flush();
+			output.commit();
+		}
+		finally {
+			output.abort();
+		}
+	}
+
+	public String getSummary() {
+		return "unchanged: " + unchangedCount + ", changed: " + changedCount +
+				", new: " + newCount + ", deleted: " + deletedCount +
+				", statements added: " + addedStatementCount + ", statements removed: " + removedStatementCount;
+	}
+
+}
@@ -0,0 +1,141 @@
+package org.healthdata.metadata;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.repository.sail.SailRepositoryConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.memory.MemoryStore;
+
+/**
+ * A pool of in-memory repositories (each with an open connection) used by the conversions
+ * of {@link DatasetMetadataUpdater}. Instead of creating, initializing and shutting down
+ * a new {@link MemoryStore} for every dataset, a conversion takes a repository from the
+ * pool, and gives it back cleared when it is done, so in a long run every worker thread
+ * keeps reusing the same few repositories. <br>
+ * A repository is in use by a single conversion at a time. At most
+ * {@link #MAX_IDLE_REPOSITORIES} idle repositories are kept, the others are shut down.
+ *
+ * @author agent
+ *
+ */
+class RepositoryPool {
+
+	public static final int MAX_IDLE_REPOSITORIES = 64;
+
+	private final ConcurrentLinkedQueue<PooledRepository> idleRepositories = new ConcurrentLinkedQueue<PooledRepository>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private final AtomicInteger createdCount = new AtomicInteger();
+
+
+	/**
+	 * A repository of the pool, with its (only) connection.
+	 */
+	static class PooledRepository {
+
+		private final ClearableMemoryStore sail;
+		private final SailRepositoryConnection conn;
+
+		private PooledRepository() throws SailException, RepositoryException {
+			sail = new ClearableMemoryStore();
+			sail.initialize();
+			conn = new SailRepository(sail).getConnection();
+		}
+
+		public SailRepositoryConnection getConnection() {
+			return conn;
+		}
+
+		/**
+		 * Removes all the statements (from all the contexts) and all the namespaces.
+		 */
+		private void clear() throws RepositoryException {
+			conn.clear();
+			conn.clearNamespaces();
+			sail.removeDeletedStatements();
+		}
+
+		private void shutDown() {
+			try {
+				conn.close();
+				sail.shutDown();
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	/**
+	 * A memory store that allows to purge the deleted statements right away. The store
+	 * keeps the deleted statements (for the snapshots of the concurrent readers) until
+	 * a background cleanup, which lags behind when the store is cleared and refilled
+	 * in a tight loop, so its statement lists would keep growing.
+	 */
+	private static class ClearableMemoryStore extends MemoryStore {
+
+		/**
+		 * The deleted statements are removed by {@link #removeDeletedStatements()},
+		 * when the repository is cleared, instead of a background thread.
+		 */
+		@Override
+		protected void scheduleSnapshotCleanup() {
+		}
+
+		private void removeDeletedStatements() throws RepositoryException {
+			try {
+				cleanSnapshots();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RepositoryException(e);
+			}
+		}
+	}
+
+
+	/**
+	 * Returns an empty repository, reusing an idle one, if there is any.
+	 */
+	public PooledRepository acquire() throws SailException, RepositoryException {
+		PooledRepository repository = idleRepositories.poll();
+		if (repository != null) {
+			idleCount.decrementAndGet();
+			return repository;
+		}
+		createdCount.incrementAndGet();
+		return new PooledRepository();
+	}
+
+	/**
+	 * Clears <code>repository</code> and returns it to the pool. A repository that
+	 * can not be cleared is shut down, and it is not reused.
+	 */
+	public void release(PooledRepository repository) {
+		try {
+			repository.clear();
+		}
+		catch (RepositoryException e) {
+			e.printStackTrace();
+			repository.shutDown();
+			return;
+		}
+		if (idleCount.incrementAndGet() > MAX_IDLE_REPOSITORIES) {
+			idleCount.decrementAndGet();
+			repository.shutDown();
+			return;
+		}
+		idleRepositories.offer(repository);
+	}
+
+	/**
+	 * Returns the number of repositories created by the pool (i.e. which could not be reused).
+	 */
+	public int getCreatedCount() {
+		return createdCount.get();
+	}
+
+}
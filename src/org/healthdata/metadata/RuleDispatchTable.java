@@ -0,0 +1,332 @@
+package org.healthdata.metadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.healthdata.metadata.util.ConfigMap;
+import org.healthdata.metadata.util.URIInterner;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.RepositoryResult;
+
+/**
+ * The rules of a {@link ConversionPlan} (the preserve, replace and dct:relation rules
+ * of {@link DatasetMetadataUpdater}), compiled for a given set of namespace prefixes:
+ * the property names of the configuration files are resolved to URIs, the keys and
+ * values are parsed, and the rules are indexed by the property they apply to. <br>
+ * With the table the statements of a dataset are routed to their rules in a single
+ * pass (see {@link #route(RepositoryResult, Resource, BNodeSubgraphExtractor)}), with
+ * one lookup per statement, instead of querying the repository once for every rule,
+ * so the cost of converting a dataset does not grow with the number of configured rules
+ * the dataset does not use. <br>
+ * A table is immutable, and it can be shared by any number of concurrent conversions.
+ *
+ * @author agent
+ *
+ */
+class RuleDispatchTable {
+
+	enum RuleType {PRESERVE_URI_VALUES, PRESERVE_LITERAL_VALUES, PRESERVE_BNODE_VALUES, REPLACE,
+		CONVERT_RELATION, PRESERVE_RELATION};
+
+	/** the suffixes (of form " (N)", where N is a number) that were added to the relation keys to ensure uniqueness of keys */
+	private static final Pattern KEY_SUFFIX_PATTERN = Pattern.compile("(\\s*\\(\\d+\\))$");
+
+
+	/**
+	 * A compiled entry of a configuration file.
+	 */
+	static class Rule {
+
+		final RuleType type;
+		/** the property matched by the rule (null for the dct:relation rules) */
+		final URI property;
+		final String propertyName;
+		/** the property within the BNode value of <code>property</code> (replace rules only, optional) */
+		final URI subProperty;
+		final String subPropertyName;
+		/** the new property (replace and convert relation rules) */
+		final URI newProperty;
+		final String newPropertyName;
+		/** the map of the (old) values to URIs (replace and convert relation rules, optional) */
+		final ConfigMap valueToURIMap;
+		/** the label of the dct:relation (dct:relation rules only) */
+		final String relationLabel;
+
+		private Rule(RuleType type, URI property, String propertyName, URI subProperty, String subPropertyName,
+				URI newProperty, String newPropertyName, ConfigMap valueToURIMap, String relationLabel) {
+			this.type = type;
+			this.property = property;
+			this.propertyName = propertyName;
+			this.subProperty = subProperty;
+			this.subPropertyName = subPropertyName;
+			this.newProperty = newProperty;
+			this.newPropertyName = newPropertyName;
+			this.valueToURIMap = valueToURIMap;
+			this.relationLabel = relationLabel;
+		}
+	}
+
+
+	private final Map<RuleType, List<Rule>> rulesByType = new HashMap<RuleType, List<Rule>>();
+	private final Map<URI, Rule[]> rulesByProperty = new HashMap<URI, Rule[]>();
+	private final Set<String> relationLabels = new HashSet<String>();
+	private int ruleCount = 0;
+
+
+	/**
+	 * Compiles the rules of <code>plan</code>, resolving the prefixed names with <code>prefixToNamespaceMap</code>.
+	 */
+	public RuleDispatchTable(ConversionPlan plan, Map<String, String> prefixToNamespaceMap) {
+		for (RuleType type : RuleType.values()) {
+			rulesByType.put(type, new ArrayList<Rule>());
+		}
+		compilePreserveRules(plan.getConfigMapForConfigKey(DatasetMetadataUpdater.KEY_PRESERVE_PROPERTIES_WITH_URI_VALUES_FILE),
+				RuleType.PRESERVE_URI_VALUES, prefixToNamespaceMap);
+		compilePreserveRules(plan.getConfigMapForConfigKey(DatasetMetadataUpdater.KEY_PRESERVE_PROPERTIES_WITH_LITERAL_VALUES_FILE),
+				RuleType.PRESERVE_LITERAL_VALUES, prefixToNamespaceMap);
+		compilePreserveRules(plan.getConfigMapForConfigKey(DatasetMetadataUpdater.KEY_PRESERVE_PROPERTIES_WITH_BNODE_VALUES_FILE),
+				RuleType.PRESERVE_BNODE_VALUES, prefixToNamespaceMap);
+		compileReplaceRules(plan.getConfigMapForConfigKey(DatasetMetadataUpdater.KEY_REPLACE_PROPERTIES_FILE),
+				plan, prefixToNamespaceMap);
+		compileConvertRelationRules(plan.getConfigMapForConfigKey(DatasetMetadataUpdater.KEY_CONVERT_RELATIONS_TO_PROPERTIES_FILE),
+				plan);
+		compilePreserveRelationRules(plan.getConfigMapForConfigKey(DatasetMetadataUpdater.KEY_PRESERVE_RELATIONS_FILE));
+
+		//the relations read by the coverage conversion
+		relationLabels.add(HealthDataConstants.KEY_COVERAGE_PERIOD_START);
+		relationLabels.add(HealthDataConstants.KEY_COVERAGE_PERIOD_END);
+	}
+
+
+	/**
+	 * Returns the rules of the given type, in the order of the configuration file.
+	 */
+	public List<Rule> getRules(RuleType type) {
+		return Collections.unmodifiableList(rulesByType.get(type));
+	}
+
+	public int size() {
+		return ruleCount;
+	}
+
+
+	//*********************************************************************//
+
+	private void compilePreserveRules(ConfigMap propertyList, RuleType type, Map<String, String> prefixToNamespaceMap) {
+		for (int i = 0; i < propertyList.size(); i++) {
+			String propertyName = propertyList.getKey(i);
+			addRule(new Rule(type, getURIForName(propertyName, prefixToNamespaceMap), propertyName,
+					null, null, null, null, null, null));
+		}
+	}
+
+	private void compileReplaceRules(ConfigMap propertiesToPropertiesMap, ConversionPlan plan, Map<String, String> prefixToNamespaceMap) {
+		for (int i = 0; i < propertiesToPropertiesMap.size(); i++) {
+			//separate multiple property names in the key (the second property name being a property on the BNode that is the value of the first property)
+			String[] keyParts = DatasetMetadataUpdater.splitMapKey(propertiesToPropertiesMap.getKey(i));
+			String oldPropertyName = keyParts[0];
+			String oldSubPropertyName = (keyParts.length > 1 ? keyParts[1] : null);
+			//separate new property name from file name of the value-to-URI map
+			String[] valueParts = DatasetMetadataUpdater.splitMapValue(propertiesToPropertiesMap.getValue(i));
+			String newPropertyName = valueParts[0];
+			ConfigMap propertyValueToURIMap = (valueParts.length > 1 ? plan.getConfigMap(valueParts[1]) : null);
+
+			addRule(new Rule(RuleType.REPLACE, getURIForName(oldPropertyName, prefixToNamespaceMap), oldPropertyName,
+					(oldSubPropertyName == null ? null : getURIForName(oldSubPropertyName, prefixToNamespaceMap)), oldSubPropertyName,
+					getURIForName(newPropertyName, prefixToNamespaceMap), newPropertyName,
+					propertyValueToURIMap, null));
+		}
+	}
+
+	private void compileConvertRelationRules(ConfigMap relationsToPropertiesMap, ConversionPlan plan) {
+		for (int i = 0; i < relationsToPropertiesMap.size(); i++) {
+			String key = KEY_SUFFIX_PATTERN.matcher(relationsToPropertiesMap.getKey(i)).replaceFirst("");
+			//separate property name from file name of the value-to-URI map
+			String[] valueParts = DatasetMetadataUpdater.splitMapValue(relationsToPropertiesMap.getValue(i));
+			String propertyName = valueParts[0];
+			ConfigMap propertyValueToURIMap = (valueParts.length > 1 ? plan.getConfigMap(valueParts[1]) : null);
+
+			//the new property is not resolved with the namespace prefixes
+			addRule(new Rule(RuleType.CONVERT_RELATION, null, null, null, null,
+					URIInterner.getURI(propertyName), propertyName, propertyValueToURIMap, key));
+		}
+	}
+
+	private void compilePreserveRelationRules(ConfigMap propertyList) {
+		for (int i = 0; i < propertyList.size(); i++) {
+			addRule(new Rule(RuleType.PRESERVE_RELATION, null, null, null, null, null, null, null, propertyList.getKey(i)));
+		}
+	}
+
+	private void addRule(Rule rule) {
+		rulesByType.get(rule.type).add(rule);
+		if (rule.property != null) {
+			Rule[] rules = rulesByProperty.get(rule.property);
+			Rule[] newRules = new Rule[rules == null ? 1 : rules.length + 1];
+			if (rules != null) {
+				System.arraycopy(rules, 0, newRules, 0, rules.length);
+			}
+			newRules[newRules.length - 1] = rule;
+			rulesByProperty.put(rule.property, newRules);
+		}
+		if (rule.relationLabel != null) {
+			relationLabels.add(rule.relationLabel);
+		}
+		ruleCount++;
+	}
+
+	private static URI getURIForName(String name, Map<String, String> prefixToNamespaceMap) {
+		return URIInterner.getURI(DatasetMetadataUpdater.convertNameToAbsoluteURI(name, prefixToNamespaceMap));
+	}
+
+
+	//*********************************************************************//
+
+	/**
+	 * Routes the statements of a dataset to the rules of this table, in a single pass over
+	 * <code>statements</code> (which is closed at the end). The statements having a blank node
+	 * subject are also passed to <code>bNodeSubgraphExtractor</code> (if not null), so that
+	 * it does not need to read them again.
+	 */
+	public Routing route(RepositoryResult<Statement> statements, Resource dsResource,
+			BNodeSubgraphExtractor bNodeSubgraphExtractor) throws RepositoryException {
+		Routing routing = new Routing();
+		URI relationProperty = URIInterner.getURI(HealthDataConstants.URI_PROP_DCT_RELATION);
+		try {
+			while (statements.hasNext()) {
+				Statement statement = statements.next();
+				Resource subject = statement.getSubject();
+				URI predicate = statement.getPredicate();
+				Value object = statement.getObject();
+
+				Rule[] rules = rulesByProperty.get(predicate);
+				if (rules != null) {
+					boolean isDsSubject = subject.equals(dsResource);
+					boolean isDsObject = object.equals(dsResource);
+					for (Rule rule : rules) {
+						if (isDsSubject) {
+							routing.add(routing.statementsWithDsSubject, rule, statement);
+						}
+						if (isDsObject && rule.type != RuleType.REPLACE) {
+							routing.add(routing.statementsWithDsObject, rule, statement);
+						}
+					}
+				}
+
+				//index the dct:relation BNodes
+				if (predicate.equals(RDFS.LABEL)) {
+					if (object instanceof Literal && relationLabels.contains(object.stringValue())) {
+						List<Resource> labelledSubjects = routing.subjectsByLabel.get(object);
+						if (labelledSubjects == null) {
+							labelledSubjects = new ArrayList<Resource>(1);
+							routing.subjectsByLabel.put((Literal) object, labelledSubjects);
+						}
+						labelledSubjects.add(subject);
+					}
+				}
+				else if (predicate.equals(relationProperty)) {
+					routing.relations.add(object);
+				}
+				else if (predicate.equals(RDF.VALUE)) {
+					if ( ! routing.valuesBySubject.containsKey(subject)) {
+						routing.valuesBySubject.put(subject, object);
+					}
+				}
+
+				if (bNodeSubgraphExtractor != null && subject instanceof BNode) {
+					bNodeSubgraphExtractor.index(statement);
+				}
+			}
+		}
+		finally {
+			statements.close();
+		}
+		if (bNodeSubgraphExtractor != null) {
+			bNodeSubgraphExtractor.setIndexed();
+		}
+		return routing;
+	}
+
+
+	/**
+	 * The statements of a single dataset, routed to the rules of the table,
+	 * and the index of its dct:relation BNodes.
+	 */
+	static class Routing {
+
+		private final Map<Rule, List<Statement>> statementsWithDsSubject = new HashMap<Rule, List<Statement>>();
+		private final Map<Rule, List<Statement>> statementsWithDsObject = new HashMap<Rule, List<Statement>>();
+		private final Map<Literal, List<Resource>> subjectsByLabel = new HashMap<Literal, List<Resource>>();
+		private final Set<Value> relations = new HashSet<Value>();
+		private final Map<Resource, Value> valuesBySubject = new HashMap<Resource, Value>();
+
+		private Routing() {
+		}
+
+		/**
+		 * Returns the statements of the rule's property having the dataset as their subject, in the order of the repository.
+		 */
+		public List<Statement> getStatementsWithDsSubject(Rule rule) {
+			return get(statementsWithDsSubject, rule);
+		}
+
+		/**
+		 * Returns the statements of the rule's property having the dataset as their object, in the order of the repository.
+		 */
+		public List<Statement> getStatementsWithDsObject(Rule rule) {
+			return get(statementsWithDsObject, rule);
+		}
+
+		/**
+		 * Returns the subjects having the label <code>label</code>, in the order of the repository
+		 * (only for the labels of the dct:relation rules).
+		 */
+		public List<Resource> getSubjectsWithLabel(Literal label) {
+			List<Resource> subjects = subjectsByLabel.get(label);
+			return (subjects == null ? Collections.<Resource>emptyList() : subjects);
+		}
+
+		/**
+		 * Returns true, if <code>value</code> is the value of a dct:relation property (of any subject).
+		 */
+		public boolean isRelation(Value value) {
+			return relations.contains(value);
+		}
+
+		/**
+		 * Returns the first rdf:value of <code>subject</code>, or null, if it has none.
+		 */
+		public Value getValue(Resource subject) {
+			return valuesBySubject.get(subject);
+		}
+
+		private void add(Map<Rule, List<Statement>> statementsByRule, Rule rule, Statement statement) {
+			List<Statement> statements = statementsByRule.get(rule);
+			if (statements == null) {
+				statements = new ArrayList<Statement>(2);
+				statementsByRule.put(rule, statements);
+			}
+			statements.add(statement);
+		}
+
+		private List<Statement> get(Map<Rule, List<Statement>> statementsByRule, Rule rule) {
+			List<Statement> statements = statementsByRule.get(rule);
+			return (statements == null ? Collections.<Statement>emptyList() : statements);
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+package org.healthdata.metadata;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An append-only journal of the datasets completed by a (long) run of {@link Downloader}
+ * or {@link Updater}, which allows a run that died halfway to be resumed from where it
+ * stopped, instead of processing all the datasets again. <br>
+ * The journal is a text file with one dataset id per line. The completed datasets are
+ * recorded in batches: at the end of every batch the output files of the batch are
+ * synced to the disk, and only then are their ids appended to the journal, which is
+ * synced too. This way the journal never lists a dataset whose output might be lost;
+ * at most the datasets of the last (unfinished) batch are processed again on resume.
+ * A line that was only partially written when the process died is ignored (and removed).
+ *
+ * @author agent
+ *
+ */
+class RunJournal {
+
+	public static final String JOURNAL_FILE_EXTENSION = ".journal";
+
+	private static final int BATCH_SIZE = 50;
+
+	private final File journalFile;
+	private final Set<String> completedIds = new HashSet<String>();
+	private final List<String> pendingIds = new ArrayList<String>(BATCH_SIZE);
+	private final List<File> pendingFiles = new ArrayList<File>(BATCH_SIZE);
+	private final FileOutputStream os;
+
+
+	/**
+	 * Opens the journal <code>journalFile</code>. If <code>resume</code> is true, the
+	 * datasets recorded by the previous run are considered completed, and the new ones
+	 * are appended, otherwise a new, empty journal is started.
+	 */
+	public RunJournal(File journalFile, boolean resume) throws IOException {
+		this.journalFile = journalFile;
+		if (resume && journalFile.exists()) {
+			readJournal();
+		}
+		os = new FileOutputStream(journalFile, resume);
+	}
+
+
+	/**
+	 * Returns the number of datasets recorded as completed by the previous run(s).
+	 */
+	public int getCompletedCount() {
+		return completedIds.size();
+	}
+
+	public boolean isCompleted(String datasetId) {
+		return completedIds.contains(datasetId);
+	}
+
+	/**
+	 * Records that the dataset was completed, and that its result was written to <code>outputFile</code>
+	 * (which may be null, if there is nothing to be synced). The record is written at the end of the batch.
+	 */
+	public void markCompleted(String datasetId, File outputFile) throws IOException {
+		pendingIds.add(datasetId);
+		if (outputFile != null) {
+			pendingFiles.add(outputFile);
+		}
+		if (pendingIds.size() >= BATCH_SIZE) {
+			flush();
+		}
+	}
+
+	/**
+	 * Syncs the output files of the current batch, and appends the completed datasets to the journal.
+	 */
+	public void flush() throws IOException {
+		if (pendingIds.isEmpty()) {
+			return;
+		}
+		for (File file : pendingFiles) {
+			syncFile(file);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (String datasetId : pendingIds) {
+			sb.append(datasetId).append('\n');
+		}
+		os.write(sb.toString().getBytes("UTF-8"));
+		os.getFD().sync();
+		completedIds.addAll(pendingIds);
+		pendingIds.clear();
+		pendingFiles.clear();
+	}
+
+	public void close() throws IOException {
+		try {
+			flush();
+		}
+		finally {
+			os.close();
+		}
+	}
+
+
+	private void readJournal() throws IOException {
+		byte[] content = new byte[(int) journalFile.length()];
+		DataInputStream is = new DataInputStream(new FileInputStream(journalFile));
+		try {
+			is.readFully(content);
+		}
+		finally {
+			is.close();
+		}
+		int validLength = content.length;
+		while (validLength > 0 && content[validLength - 1] != '\n') {
+			validLength--;
+		}
+		for (String datasetId : new String(content, 0, validLength, "UTF-8").split("\n")) {
+			if (datasetId.length() > 0) {
+				completedIds.add(datasetId);
+			}
+		}
+
+		//drop the partially written last line, so that the next record starts on a new line
+		if (validLength < content.length) {
+			System.out.println("Ignoring the incomplete last record of " + journalFile);
+			RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+			try {
+				raf.setLength(validLength);
+			}
+			finally {
+				raf.close();
+			}
+		}
+	}
+
+	private static void syncFile(File file) throws IOException {
+		if ( ! file.exists()) {
+			return;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.getFD().sync();
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+}
@@ -0,0 +1,86 @@
+package org.healthdata.metadata;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The record of what a shard of a {@link Downloader} or {@link Updater} run did: the
+ * manifest (<code>BASE.manifest</code>) lists every dataset of the shard with its status
+ * (one <code>DATASET_ID&lt;tab&gt;STATUS</code> line per dataset), and the metrics
+ * (<code>BASE.metrics</code>) give the number of datasets, the number of datasets with
+ * each status, and the running time, as <code>key=value</code> lines. The manifests and
+ * metrics of the shards are combined by the {@link ShardMerger}.
+ *
+ * @author agent
+ *
+ */
+class ShardManifest {
+
+	public static final String MANIFEST_FILE_EXTENSION = ".manifest";
+	public static final String METRICS_FILE_EXTENSION = ".metrics";
+
+	public static final String STATUS_FAILED = "failed";
+	public static final String STATUS_SKIPPED = "skipped";
+
+	static final String METRIC_SHARD = "shard";
+	static final String METRIC_DATASETS = "datasets";
+	static final String METRIC_ELAPSED_MILLIS = "elapsedMillis";
+
+	private final ShardSpec shard;
+	private final long startTime = System.currentTimeMillis();
+	private final Map<String, String> statusByDataset = new LinkedHashMap<String, String>();
+	private final Map<String, Integer> countByStatus = new LinkedHashMap<String, Integer>();
+
+
+	public ShardManifest(ShardSpec shard) {
+		this.shard = shard;
+	}
+
+
+	public void add(String datasetId, String status) {
+		String prevStatus = statusByDataset.put(datasetId, status);
+		if (prevStatus != null) {
+			countByStatus.put(prevStatus, countByStatus.get(prevStatus) - 1);
+		}
+		Integer count = countByStatus.get(status);
+		countByStatus.put(status, (count == null ? 1 : count + 1));
+	}
+
+	/**
+	 * Writes <code>BASE.manifest</code> and <code>BASE.metrics</code>, where <code>BASE</code> is the
+	 * path of <code>baseFile</code> (e.g. <code>downloader.shard-3-of-8</code> in the download directory).
+	 */
+	public void write(File baseFile) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> entry : statusByDataset.entrySet()) {
+			sb.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+		}
+		writeFile(new File(baseFile.getPath() + MANIFEST_FILE_EXTENSION), sb.toString());
+
+		sb = new StringBuilder();
+		sb.append(METRIC_SHARD).append('=').append(shard).append('\n');
+		sb.append(METRIC_DATASETS).append('=').append(statusByDataset.size()).append('\n');
+		for (Map.Entry<String, Integer> entry : countByStatus.entrySet()) {
+			sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+		}
+		sb.append(METRIC_ELAPSED_MILLIS).append('=').append(System.currentTimeMillis() - startTime).append('\n');
+		writeFile(new File(baseFile.getPath() + METRICS_FILE_EXTENSION), sb.toString());
+	}
+
+	static void writeFile(File file, String content) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			writer.write(content);
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+}
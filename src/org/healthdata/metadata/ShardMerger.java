@@ -0,0 +1,373 @@
+package org.healthdata.metadata;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.healthdata.metadata.util.AtomicFileOutput;
+
+/**
+ * This class provides functionality to combine the outputs of the shards of a
+ * {@link Downloader} or {@link Updater} run (started with the <code>-shard=K/N</code>
+ * option, see {@link ShardSpec}) into the output of a single run:
+ * <ul>
+ * <li>the metadata files (and the patches of a delta directory) of the shard directories
+ * are copied to the output directory (if they are not already there), and the datasets
+ * of the shard archives are copied into a single archive</li>
+ * <li>the manifests of the shards are concatenated (see {@link ShardManifest})</li>
+ * <li>the metrics of the shards are added up, and the shards whose metrics are missing
+ * are reported, so an incomplete run can be recognized</li>
+ * <li>the dead-letter files of the shards are concatenated, so the failed datasets of
+ * all the shards can be downloaded again with a single <code>-replay</code></li>
+ * <li>the delta summaries of the shards are added up into a single <code>summary.txt</code></li>
+ * </ul>
+ * The journals of the shards are not merged: an interrupted shard is resumed on its own.
+ *
+ * @author agent
+ *
+ */
+public class ShardMerger {
+
+	private static final String METRIC_SHARDS = "shards";
+	private static final String METRIC_MISSING_SHARDS = "missingShards";
+
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	/** the shard files of the inputs, grouped by their unsharded names, by shard index */
+	private final Map<String, TreeMap<Integer, File>> shardFiles = new TreeMap<String, TreeMap<Integer, File>>();
+	/** the shard count of the shard files, by their unsharded names */
+	private final Map<String, Integer> shardCounts = new HashMap<String, Integer>();
+
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		run(args);
+	}
+
+	/**
+	 * Runs the tool with the arguments of {@link #main(String[])}.
+	 *
+	 * @return true, if the arguments were valid, and the shards were merged
+	 */
+	public static boolean run(String[] args) {
+		if (args == null || args.length < 2) {
+			System.out.println("USAGE: ShardMerger MERGED_DIR SHARD_DIR... (or MERGED_ARCHIVE_FILE SHARD_ARCHIVE_FILE...)");
+			return false;
+		}
+		File[] inputs = new File[args.length - 1];
+		for (int i = 1; i < args.length; i++) {
+			inputs[i - 1] = new File(args[i]);
+		}
+		try {
+			ShardMerger shardMerger = new ShardMerger();
+			File output = new File(args[0]);
+			if (output.getName().endsWith(MetadataArchive.ARCHIVE_FILE_EXTENSION)) {
+				shardMerger.mergeArchives(output, inputs);
+			}
+			else {
+				shardMerger.mergeDirectories(output, inputs);
+			}
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+
+	/**
+	 * Merges the output directories of the shards (which can also be the same,
+	 * shared directory) into <code>mergedDir</code>.
+	 */
+	public void mergeDirectories(File mergedDir, File[] shardDirs) throws IOException {
+		if ( ! mergedDir.isDirectory() && ! mergedDir.mkdirs()) {
+			throw new IOException("Could not create the directory " + mergedDir);
+		}
+		int copiedCount = 0;
+		for (File shardDir : shardDirs) {
+			File[] files = shardDir.listFiles();
+			if (files == null) {
+				System.out.println("Could not read the directory " + shardDir);
+				continue;
+			}
+			boolean copy = ! shardDir.getCanonicalFile().equals(mergedDir.getCanonicalFile());
+			for (File file : files) {
+				if ( ! file.isFile()) {
+					continue;
+				}
+				if ( ! addShardFile(file) && copy && isDatasetFile(file.getName())) {
+					FileUtils.copyFileToDirectory(file, mergedDir);
+					copiedCount++;
+				}
+			}
+		}
+		if (copiedCount > 0) {
+			System.out.println(copiedCount + " files copied to " + mergedDir);
+		}
+		mergeShardFiles(mergedDir);
+	}
+
+	/**
+	 * Merges the archives of the shards into <code>mergedArchiveFile</code>, together with
+	 * the files written next to them (e.g. <code>ARCHIVE.shard-3-of-8.zip.manifest</code>).
+	 */
+	public void mergeArchives(File mergedArchiveFile, File[] shardArchiveFiles) throws IOException {
+		File tempArchiveFile = new File(mergedArchiveFile.getPath() + AtomicFileOutput.TEMP_FILE_EXTENSION);
+		MetadataArchive.Writer archiveWriter = new MetadataArchive.Writer(tempArchiveFile);
+		Set<String> datasetIds = new HashSet<String>();
+		try {
+			for (File shardArchiveFile : shardArchiveFiles) {
+				MetadataArchive shardArchive = new MetadataArchive(shardArchiveFile);
+				try {
+					for (String datasetId : shardArchive.getDatasetIds()) {
+						if ( ! datasetIds.add(datasetId)) {
+							System.out.println("Dataset " + datasetId + " of " + shardArchiveFile + " is already merged. It will be ignored.");
+							continue;
+						}
+						InputStream is = shardArchive.openInputStream(datasetId);
+						try {
+							IOUtils.copy(is, archiveWriter.beginDataset(datasetId));
+						}
+						finally {
+							is.close();
+						}
+					}
+				}
+				finally {
+					shardArchive.close();
+				}
+
+				final String shardArchiveName = shardArchiveFile.getName();
+				File[] sideFiles = shardArchiveFile.getAbsoluteFile().getParentFile().listFiles();
+				for (File sideFile : sideFiles) {
+					if (sideFile.getName().startsWith(shardArchiveName) && ! sideFile.getName().equals(shardArchiveName)) {
+						addShardFile(sideFile);
+					}
+				}
+			}
+		}
+		finally {
+			archiveWriter.close();
+		}
+		if ( (mergedArchiveFile.exists() && ! mergedArchiveFile.delete()) || ! tempArchiveFile.renameTo(mergedArchiveFile)) {
+			System.out.println("Could not replace " + mergedArchiveFile + ". The merged metadata files are in " + tempArchiveFile);
+		}
+		System.out.println(datasetIds.size() + " datasets merged into " + mergedArchiveFile);
+
+		//the files of the archive shards are merged next to the merged archive
+		File mergedDir = mergedArchiveFile.getAbsoluteFile().getParentFile();
+		String archiveBaseName = ShardSpec.getUnshardedFileName(shardArchiveFiles[0].getName());
+		Map<String, TreeMap<Integer, File>> archiveShardFiles = new TreeMap<String, TreeMap<Integer, File>>(shardFiles);
+		shardFiles.clear();
+		for (Map.Entry<String, TreeMap<Integer, File>> entry : archiveShardFiles.entrySet()) {
+			String name = entry.getKey();
+			if (name.startsWith(archiveBaseName)) {
+				name = mergedArchiveFile.getName() + name.substring(archiveBaseName.length());
+			}
+			shardFiles.put(name, entry.getValue());
+			shardCounts.put(name, shardCounts.get(entry.getKey()));
+		}
+		mergeShardFiles(mergedDir);
+	}
+
+
+	/**
+	 * Records <code>file</code>, if it was written by a shard, and returns true, otherwise returns false.
+	 */
+	private boolean addShardFile(File file) {
+		ShardSpec shard = ShardSpec.fromFileName(file.getName());
+		if (shard == null) {
+			return false;
+		}
+		String name = ShardSpec.getUnshardedFileName(file.getName());
+		Integer shardCount = shardCounts.get(name);
+		if (shardCount != null && shardCount != shard.getCount()) {
+			System.out.println("The shard count of " + file + " differs from the one of the other shards (" + shardCount + "). It will be ignored.");
+			return true;
+		}
+		shardCounts.put(name, shard.getCount());
+		TreeMap<Integer, File> files = shardFiles.get(name);
+		if (files == null) {
+			files = new TreeMap<Integer, File>();
+			shardFiles.put(name, files);
+		}
+		files.put(shard.getIndex(), file);
+		return true;
+	}
+
+	private boolean isDatasetFile(String fileName) {
+		return MetadataArchive.getDatasetId(fileName) != null || fileName.endsWith(RDFDeltaWriter.PATCH_FILE_EXTENSION);
+	}
+
+	private void mergeShardFiles(File mergedDir) throws IOException {
+		for (Map.Entry<String, TreeMap<Integer, File>> entry : shardFiles.entrySet()) {
+			String name = entry.getKey();
+			List<File> files = new ArrayList<File>(entry.getValue().values());
+			File mergedFile = new File(mergedDir, name);
+			if (name.endsWith(ShardManifest.MANIFEST_FILE_EXTENSION)) {
+				mergeManifests(mergedFile, files);
+			}
+			else if (name.endsWith(ShardManifest.METRICS_FILE_EXTENSION)) {
+				mergeMetrics(mergedFile, files, entry.getValue().keySet(), shardCounts.get(name));
+			}
+			else if (name.endsWith(Downloader.DEAD_LETTER_FILE_EXTENSION)) {
+				concatenate(mergedFile, files);
+			}
+			else if (name.equals(RDFDeltaWriter.SUMMARY_FILE_NAME)) {
+				mergeSummaries(mergedFile, files);
+			}
+			else {
+				//e.g. the journals
+				continue;
+			}
+			System.out.println("Merged the files of " + files.size() + " shards into " + mergedFile);
+		}
+	}
+
+	private void mergeManifests(File mergedFile, List<File> files) throws IOException {
+		Set<String> datasetIds = new HashSet<String>();
+		StringBuilder sb = new StringBuilder();
+		for (File file : files) {
+			for (String line : readLines(file)) {
+				String datasetId = line.substring(0, Math.max(line.indexOf('\t'), 0));
+				if ( ! datasetIds.add(datasetId)) {
+					System.out.println("Dataset " + datasetId + " is listed in the manifests of more than one shard");
+				}
+				sb.append(line).append('\n');
+			}
+		}
+		ShardManifest.writeFile(mergedFile, sb.toString());
+	}
+
+	private void mergeMetrics(File mergedFile, List<File> files, Set<Integer> shardIndexes, int shardCount) throws IOException {
+		Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+		for (File file : files) {
+			for (String line : readLines(file)) {
+				int separatorIdx = line.indexOf('=');
+				String key = line.substring(0, Math.max(separatorIdx, 0)).trim();
+				if (key.length() == 0 || key.equals(ShardManifest.METRIC_SHARD)) {
+					continue;
+				}
+				long value;
+				try {
+					value = Long.parseLong(line.substring(separatorIdx + 1).trim());
+				}
+				catch (NumberFormatException e) {
+					System.out.println("Invalid metric in " + file + ": " + line);
+					continue;
+				}
+				Long prevValue = metrics.get(key);
+				if (prevValue == null) {
+					metrics.put(key, value);
+				}
+				else if (key.equals(ShardManifest.METRIC_ELAPSED_MILLIS)) {
+					//the shards run in parallel
+					metrics.put(key, Math.max(prevValue, value));
+				}
+				else {
+					metrics.put(key, prevValue + value);
+				}
+			}
+		}
+
+		Set<Integer> missingShardIndexes = new TreeSet<Integer>();
+		for (int i = 1; i <= shardCount; i++) {
+			if ( ! shardIndexes.contains(i)) {
+				missingShardIndexes.add(i);
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(METRIC_SHARDS).append('=').append(shardIndexes.size()).append('/').append(shardCount).append('\n');
+		if ( ! missingShardIndexes.isEmpty()) {
+			String missing = missingShardIndexes.toString();
+			sb.append(METRIC_MISSING_SHARDS).append('=').append(missing.substring(1, missing.length() - 1)).append('\n');
+			System.out.println("The metrics of the shards " + missingShardIndexes + " of " + shardCount + " are missing from " + mergedFile);
+		}
+		for (Map.Entry<String, Long> metric : metrics.entrySet()) {
+			sb.append(metric.getKey()).append('=').append(metric.getValue()).append('\n');
+		}
+		ShardManifest.writeFile(mergedFile, sb.toString());
+	}
+
+	/**
+	 * Adds up the counts of the first lines of the summaries (see {@link RDFDeltaWriter#getSummary()}),
+	 * and appends the changed datasets listed by all of them.
+	 */
+	private void mergeSummaries(File mergedFile, List<File> files) throws IOException {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		StringBuilder changes = new StringBuilder();
+		for (File file : files) {
+			List<String> lines = readLines(file);
+			if (lines.isEmpty()) {
+				continue;
+			}
+			for (String count : lines.get(0).split(",")) {
+				int separatorIdx = count.indexOf(':');
+				if (separatorIdx < 0) {
+					continue;
+				}
+				String key = count.substring(0, separatorIdx).trim();
+				long value = Long.parseLong(count.substring(separatorIdx + 1).trim());
+				Long prevValue = counts.get(key);
+				counts.put(key, (prevValue == null ? value : prevValue + value));
+			}
+			for (String line : lines.subList(1, lines.size())) {
+				changes.append(line).append(LINE_SEPARATOR);
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Long> count : counts.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(count.getKey()).append(": ").append(count.getValue());
+		}
+		System.out.println("Delta: " + sb);
+		sb.append(LINE_SEPARATOR).append(changes);
+		ShardManifest.writeFile(mergedFile, sb.toString());
+	}
+
+	private void concatenate(File mergedFile, List<File> files) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (File file : files) {
+			for (String line : readLines(file)) {
+				sb.append(line).append(LINE_SEPARATOR);
+			}
+		}
+		ShardManifest.writeFile(mergedFile, sb.toString());
+	}
+
+	private List<String> readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().length() > 0) {
+					lines.add(line);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+}
@@ -0,0 +1,164 @@
+package org.healthdata.metadata;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Selects one of the <code>N</code> disjoint shards of the datasets (<code>K/N</code>, with
+ * <code>1 &lt;= K &lt;= N</code>), so that several {@link Downloader} or {@link Updater}
+ * processes, on one or on many hosts, can split the catalog without any coordination:
+ * a dataset belongs to the shard selected by the CRC-32 of its id, which does not depend
+ * on the JVM, the host, or the order of the dataset list. <br>
+ * The files written by a shard (journal, dead-letter file, archive, manifest) have
+ * the shard in their names (e.g. <code>downloader.shard-3-of-8.journal</code>), so the
+ * shards do not overwrite each other's files, even in a shared directory. The outputs
+ * of the shards are combined by the {@link ShardMerger}.
+ *
+ * @author agent
+ *
+ */
+class ShardSpec {
+
+	/** the single shard containing all the datasets (it does not change any file names) */
+	public static final ShardSpec ALL = new ShardSpec(1, 1);
+
+	private static final Pattern SHARD_FILE_NAME_PATTERN = Pattern.compile("\\.shard-(\\d+)-of-(\\d+)");
+
+	private final int index;
+	private final int count;
+
+
+	public ShardSpec(int index, int count) {
+		if (count < 1 || index < 1 || index > count) {
+			throw new IllegalArgumentException("Invalid shard " + index + "/" + count + " (it should be K/N, with 1 <= K <= N)");
+		}
+		this.index = index;
+		this.count = count;
+	}
+
+	/**
+	 * Parses a shard specification of the form <code>K/N</code>.
+	 */
+	public static ShardSpec parse(String spec) {
+		int separatorIdx = spec.indexOf('/');
+		if (separatorIdx < 0) {
+			throw new IllegalArgumentException("Invalid shard '" + spec + "' (it should be K/N, with 1 <= K <= N)");
+		}
+		try {
+			return new ShardSpec(Integer.parseInt(spec.substring(0, separatorIdx).trim()),
+					Integer.parseInt(spec.substring(separatorIdx + 1).trim()));
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid shard '" + spec + "' (it should be K/N, with 1 <= K <= N)");
+		}
+	}
+
+	/**
+	 * Returns the shard whose files include <code>fileName</code> (e.g.
+	 * <code>catalog.shard-3-of-8.zip.manifest</code>), or null, if it is not the name of a shard's file.
+	 */
+	public static ShardSpec fromFileName(String fileName) {
+		Matcher matcher = SHARD_FILE_NAME_PATTERN.matcher(fileName);
+		if ( ! matcher.find()) {
+			return null;
+		}
+		try {
+			return new ShardSpec(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+		}
+		catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns <code>fileName</code> without the shard part (e.g. <code>catalog.zip.manifest</code>
+	 * for <code>catalog.shard-3-of-8.zip.manifest</code>).
+	 */
+	public static String getUnshardedFileName(String fileName) {
+		return SHARD_FILE_NAME_PATTERN.matcher(fileName).replaceFirst("");
+	}
+
+
+	public int getIndex() {
+		return index;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns true, if this is only a part of the datasets (i.e. there is more than one shard).
+	 */
+	public boolean isPartial() {
+		return count > 1;
+	}
+
+	public boolean contains(String datasetId) {
+		if (count == 1) {
+			return true;
+		}
+		CRC32 crc = new CRC32();
+		try {
+			crc.update(datasetId.getBytes("UTF-8"));
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);	//UTF-8 is always supported
+		}
+		return crc.getValue() % count == index - 1;
+	}
+
+	/**
+	 * Returns the datasets of this shard, in the order of <code>datasetIds</code>.
+	 */
+	public List<String> select(List<String> datasetIds) {
+		if (count == 1) {
+			return datasetIds;
+		}
+		List<String> selectedIds = new ArrayList<String>();
+		for (String datasetId : datasetIds) {
+			if (contains(datasetId)) {
+				selectedIds.add(datasetId);
+			}
+		}
+		return selectedIds;
+	}
+
+	/**
+	 * Returns the name of the shard's version of the file <code>fileName</code>, with the shard
+	 * inserted before the extension (e.g. <code>downloader.shard-3-of-8.journal</code> for
+	 * <code>downloader.journal</code>). If there is only one shard, the name is not changed.
+	 */
+	public String getFileName(String fileName) {
+		if (count == 1) {
+			return fileName;
+		}
+		int extStartIdx = fileName.lastIndexOf('.');
+		if (extStartIdx <= 0) {
+			return fileName + getFileNameSuffix();
+		}
+		return fileName.substring(0, extStartIdx) + getFileNameSuffix() + fileName.substring(extStartIdx);
+	}
+
+	/**
+	 * Returns the shard's version of <code>file</code>, in the same directory (see {@link #getFileName(String)}).
+	 */
+	public File getFile(File file) {
+		return (count == 1 ? file : new File(file.getParentFile(), getFileName(file.getName())));
+	}
+
+	private String getFileNameSuffix() {
+		return ".shard-" + index + "-of-" + count;
+	}
+
+	@Override
+	public String toString() {
+		return index + "/" + count;
+	}
+
+}
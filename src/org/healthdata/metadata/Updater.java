@@ -1,56 +1,639 @@
 package org.healthdata.metadata;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.healthdata.metadata.DatasetMetadataUpdater.ConvertedMetadata;
+import org.healthdata.metadata.util.AtomicFileOutput;
+import org.healthdata.metadata.util.CompressionUtil;
+import org.openrdf.rio.RDFHandlerException;
 
 /**
  * This class provides functionality to convert all metadata files describing
  * a healthdata.org dataset using the {@link DatasetMetadataUpdater}. This class is
  * supposed to work with the files previously downloaded by {@link Downloader}.
+ * The old metadata files can be either uncompressed or gzip compressed files,
+ * or a {@link MetadataArchive} (whose name is given instead of the directory name).
+ * With the <code>-gzip</code> option the new metadata files are written gzip
+ * compressed, and with the <code>-archive</code> option they are all written
+ * into a single archive, whose name is given instead of the directory name. <br>
+ * With the <code>-delta=DIR</code> option, the new metadata files are also compared
+ * with the ones written by the previous run into the same directory (or archive), and
+ * the changes are written to DIR as patches (see {@link RDFDeltaWriter}). <br>
+ * The converted metadata of the datasets that are no longer on the hub is removed at the
+ * end of every run (after their removal patches are written), unless the list of datasets
+ * returned by the hub looks wrong (e.g. it is empty). <br>
+ * The new metadata files are written to temporary files, which are renamed only when
+ * they are complete. The converted datasets are recorded in a {@link RunJournal}, and
+ * with the <code>-resume</code> option the datasets converted by a previous (interrupted)
+ * run are not converted again. <br>
+ * The new metadata files (except for the archive) are written by a separate thread, so
+ * that the next dataset is converted while the result of the previous one is written. <br>
+ * With the <code>-shard=K/N</code> option only the K-th of N disjoint shards of the datasets
+ * is converted (see {@link ShardSpec}), so that the conversion can be split between several
+ * processes; their outputs are combined by the {@link ShardMerger}.
  * 
  * @author csnyulas
  *
  */
 public class Updater {
 
+	private static final String OPTION_DELTA = "-delta=";
+
+	private static final String PREVIOUS_VERSION_FILE_EXTENSION = ".prev";
+
+	private static final String RUN_NAME = "updater";
+	private static final String JOURNAL_FILE_NAME = RUN_NAME + RunJournal.JOURNAL_FILE_EXTENSION;
+
+	private static final String STATUS_CONVERTED = "converted";
+
+	/** the largest fraction of the datasets of the previous run that can be deleted by a run (see {@link #getDeletedDatasetIds}) */
+	private static final double MAX_DELETED_FRACTION = 0.5;
+
+	/** the maximum number of converted datasets whose results are waiting to be written */
+	private static final int MAX_PENDING_WRITES = 4;
+
+	private String hubBase = null;
+	private ShardSpec shard = ShardSpec.ALL;
+
 	/**
 	 * @param args
 	 */
 	public static void main(String[] args) {
-		if (args == null || args.length != 3) {
-			System.out.println("USAGE: HealthdataMetadataUpdater DIR_FOR_OLD_METADATA_FILES DIR_FOR_NEW_METADATA_FILES CONFIG_PROPERTIES_FILE");
-			return;
+		run(args);
+	}
+
+	/**
+	 * Runs the tool with the arguments of {@link #main(String[])}.
+	 *
+	 * @return true, if the arguments were valid, and the update run was completed
+	 * (the datasets that could not be converted are listed as failed in the manifest)
+	 */
+	public static boolean run(String[] args) {
+		String deltaDir = null;
+		boolean compress = false;
+		boolean archive = false;
+		boolean resume = false;
+		String hubBase = null;
+		ShardSpec shard = ShardSpec.ALL;
+		int argIdx = 0;
+		while (args != null && argIdx < args.length - 3) {
+			if (args[argIdx].startsWith(OPTION_DELTA)) {
+				deltaDir = args[argIdx].substring(OPTION_DELTA.length());
+			}
+			else if (args[argIdx].equals(Downloader.OPTION_GZIP)) {
+				compress = true;
+			}
+			else if (args[argIdx].equals(Downloader.OPTION_ARCHIVE)) {
+				archive = true;
+			}
+			else if (args[argIdx].equals(Downloader.OPTION_RESUME)) {
+				resume = true;
+			}
+			else if (args[argIdx].startsWith(Downloader.OPTION_HUB)) {
+				hubBase = args[argIdx].substring(Downloader.OPTION_HUB.length());
+			}
+			else if (args[argIdx].startsWith(Downloader.OPTION_SHARD)) {
+				try {
+					shard = ShardSpec.parse(args[argIdx].substring(Downloader.OPTION_SHARD.length()));
+				}
+				catch (IllegalArgumentException e) {
+					System.out.println("Invalid option: " + e.getMessage());
+					args = null;
+					break;
+				}
+			}
+			else {
+				break;
+			}
+			argIdx++;
 		}
-		String oldMetadataDir = args[0];
-		String newMetadataDir = args[1];
-		String configPropFileName = args[2];
+		if (args == null || args.length - argIdx != 3) {
+			System.out.println("USAGE: HealthdataMetadataUpdater [-delta=DIR_FOR_DELTA_FILES] [-gzip | -archive] [-resume] [-hub=HUB_BASE_URL] [-shard=K/N] DIR_FOR_OLD_METADATA_FILES DIR_FOR_NEW_METADATA_FILES CONFIG_PROPERTIES_FILE");
+			return false;
+		}
+		String oldMetadataDir = args[argIdx];
+		String newMetadataDir = args[argIdx + 1];
+		String configPropFileName = args[argIdx + 2];
 		
 		Updater hdUpdMngr = new Updater();
-		hdUpdMngr.updateAllMetadataFiles(oldMetadataDir, newMetadataDir, configPropFileName);
+		if (hubBase != null) {
+			hdUpdMngr.setHubBase(hubBase);
+		}
+		hdUpdMngr.setShard(shard);
+		if (archive) {
+			if (resume) {
+				System.out.println("The " + Downloader.OPTION_RESUME + " option is not supported with " + Downloader.OPTION_ARCHIVE + ". All the datasets will be converted.");
+			}
+			return hdUpdMngr.updateMetadataArchive(oldMetadataDir, new File(newMetadataDir), configPropFileName, deltaDir);
+		}
+		else {
+			return hdUpdMngr.updateAllMetadataFiles(oldMetadataDir, newMetadataDir, configPropFileName, deltaDir, compress, resume);
+		}
+	}
+
+
+	/**
+	 * Sets the base URL of the hub from which the list of datasets is retrieved (see {@link Downloader#setHubBase(String)}).
+	 */
+	public void setHubBase(String hubBase) {
+		this.hubBase = hubBase;
+	}
+
+	/**
+	 * Restricts the conversion to a shard of the datasets (see {@link ShardSpec}).
+	 */
+	public void setShard(ShardSpec shard) {
+		this.shard = shard;
+	}
+
+	private Downloader createDownloader() {
+		Downloader hdMetadataDownloader = new Downloader();
+		if (hubBase != null) {
+			hdMetadataDownloader.setHubBase(hubBase);
+		}
+		return hdMetadataDownloader;
 	}
 
 	
-	public void updateAllMetadataFiles(String oldMetadataDir, String newMetadataDir, 
+	public boolean updateAllMetadataFiles(String oldMetadataDir, String newMetadataDir, 
 			String configPropFileName) {
-		Downloader hdMetadataDownloader = new Downloader();
+		return updateAllMetadataFiles(oldMetadataDir, newMetadataDir, configPropFileName, null, false, false);
+	}
+
+	/**
+	 * Converts all the metadata files (gzip compressing the new ones, if <code>compress</code>
+	 * is true), and, if <code>deltaDir</code> is not null, writes the differences from the
+	 * previous run to <code>deltaDir</code>. If <code>resume</code> is true, the datasets
+	 * recorded as completed in the journal of the previous run, whose files exist, are skipped
+	 * (and the patches written for them by the previous run are kept).
+	 *
+	 * @return true, if the run was completed (even if some datasets could not be converted)
+	 */
+	public boolean updateAllMetadataFiles(String oldMetadataDir, String newMetadataDir, 
+			String configPropFileName, String deltaDir, boolean compress, boolean resume) {
+		Downloader hdMetadataDownloader = createDownloader();
 
 		try {
-			List<String> datasetIds = hdMetadataDownloader.getListOfDatasets(new URL(HealthDataConstants.HUB_HEALTHDATA_GOV_API_2_REST_DATASET));
+			RDFDeltaWriter deltaWriter = (deltaDir == null ? null : new RDFDeltaWriter(new File(deltaDir), resume, shard));
+			List<String> datasetIds = getDatasetIds(hdMetadataDownloader);
 			System.out.println(datasetIds);
-			for (String datasetId : datasetIds) {
-				System.out.println("Processing: " + datasetId);
-				String oldRDFFileName = hdMetadataDownloader.createAbsoluteRDFFileName(oldMetadataDir, datasetId);
-				String newRDFFileName = hdMetadataDownloader.createAbsoluteRDFFileName(newMetadataDir, datasetId);
-				DatasetMetadataUpdater.convertMetadataRdfFile(oldRDFFileName, newRDFFileName, configPropFileName);
+			ConversionPlan plan = DatasetMetadataUpdater.createConversionPlan(configPropFileName);
+			ShardManifest manifest = new ShardManifest(shard);
+			RunJournal journal = new RunJournal(new File(newMetadataDir, shard.getFileName(JOURNAL_FILE_NAME)), resume);
+			int skippedCount = 0;
+			MetadataArchive oldArchive = openArchive(oldMetadataDir);
+			//the results are written by a dedicated thread, while the next datasets are converted
+			ExecutorService resultWriter = Executors.newSingleThreadExecutor();
+			LinkedList<PendingDataset> pending = new LinkedList<PendingDataset>();
+			try {
+				for (String datasetId : datasetIds) {
+					String newRDFFileName = hdMetadataDownloader.createAbsoluteRDFFileName(newMetadataDir, datasetId, compress);
+					if (journal.isCompleted(datasetId) && new File(newRDFFileName).exists()) {
+						skippedCount++;
+						manifest.add(datasetId, ShardManifest.STATUS_SKIPPED);
+						continue;
+					}
+					System.out.println("Processing: " + datasetId);
+					CanonicalGraph previousGraph = null;
+					File[] previousVersion = null;
+					if (deltaWriter != null) {
+						previousVersion = keepPreviousVersion(hdMetadataDownloader, newMetadataDir, datasetId);
+						previousGraph = (previousVersion == null ? CanonicalGraph.EMPTY : deltaWriter.readGraph(datasetId, previousVersion[1]));
+					}
+					ConvertedMetadata result;
+					if (oldArchive == null) {
+						String oldRDFFileName = hdMetadataDownloader.findRDFFileName(oldMetadataDir, datasetId);
+						result = DatasetMetadataUpdater.convert(oldRDFFileName, plan);
+					}
+					else {
+						result = convertMetadata(oldArchive, datasetId, plan);
+					}
+					PendingDataset dataset = new PendingDataset(datasetId, new File(newRDFFileName), previousVersion, previousGraph);
+					if (result != null) {
+						dataset.written = resultWriter.submit(createWriteTask(result, dataset.file));
+					}
+					pending.add(dataset);
+
+					//complete the datasets whose results are already written, waiting only if too many are pending
+					while ( ! pending.isEmpty() && (pending.size() > MAX_PENDING_WRITES || pending.getFirst().isDone())) {
+						completeDataset(pending.removeFirst(), deltaWriter, journal, manifest);
+					}
+				}
+				while ( ! pending.isEmpty()) {
+					completeDataset(pending.removeFirst(), deltaWriter, journal, manifest);
+				}
+			}
+			finally {
+				//the results already handed over are still written, but they are not recorded as converted
+				resultWriter.shutdown();
+				journal.close();
+				if (oldArchive != null) {
+					oldArchive.close();
+				}
+			}
+			if (resume) {
+				System.out.println("Resumed: " + skippedCount + " datasets converted by the previous run were skipped");
+			}
+			Map<String, List<File>> previousFiles = getMetadataFiles(new File(newMetadataDir));
+			List<String> deletedDatasetIds = getDeletedDatasetIds(previousFiles.keySet(), datasetIds);
+			if (deltaWriter != null) {
+				Map<String, File> deletedDatasetFiles = new HashMap<String, File>();
+				for (String datasetId : deletedDatasetIds) {
+					deletedDatasetFiles.put(datasetId, previousFiles.get(datasetId).get(0));
+				}
+				deltaWriter.writeDeletedDatasetDeltas(deletedDatasetFiles);
+				deltaWriter.writeSummary();
+				System.out.println("Delta: " + deltaWriter.getSummary());
+			}
+			//the files are removed only after the patches are written from them
+			for (String datasetId : deletedDatasetIds) {
+				for (File file : previousFiles.get(datasetId)) {
+					if ( ! file.delete()) {
+						System.out.println("Could not delete " + file + ", the metadata file of the deleted dataset " + datasetId);
+					}
+				}
 			}
+			if (shard.isPartial()) {
+				manifest.write(new File(newMetadataDir, shard.getFileName(RUN_NAME)));
+			}
+			return true;
 		} catch (MalformedURLException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		return false;
+	}
+
+	/**
+	 * Returns a task writing <code>result</code> to <code>file</code>, which returns true, if the file was written.
+	 */
+	private static Callable<Boolean> createWriteTask(final ConvertedMetadata result, final File file) {
+		return new Callable<Boolean>() {
+			public Boolean call() {
+				try {
+					result.writeToFile(file);
+					return true;
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+					return false;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Waits until the result of the dataset is written (if it was converted), and then writes
+	 * its patch, and records it in the journal and the manifest.
+	 */
+	private void completeDataset(PendingDataset dataset, RDFDeltaWriter deltaWriter,
+			RunJournal journal, ShardManifest manifest) throws IOException {
+		boolean converted = dataset.waitUntilWritten();
+		if (deltaWriter != null) {
+			File currentRDFFile = dataset.file;
+			File[] previousVersion = dataset.previousVersion;
+			if (previousVersion != null && ! converted) {
+				//the previous version remains the current one
+				currentRDFFile = previousVersion[0];
+				if ( ! currentRDFFile.exists()) {
+					previousVersion[1].renameTo(currentRDFFile);
+				}
+			}
+			deltaWriter.writeDelta(dataset.datasetId, dataset.previousGraph, deltaWriter.readGraph(dataset.datasetId, currentRDFFile));
+			if (previousVersion != null) {
+				previousVersion[1].delete();
+			}
+		}
+		if (converted) {
+			journal.markCompleted(dataset.datasetId, dataset.file);
+		}
+		manifest.add(dataset.datasetId, (converted ? STATUS_CONVERTED : ShardManifest.STATUS_FAILED));
+	}
+
+
+	/**
+	 * A dataset converted by {@link Updater#updateAllMetadataFiles}, whose result
+	 * is being written by the result writer thread.
+	 */
+	private static class PendingDataset {
+		final String datasetId;
+		final File file;
+		final File[] previousVersion;
+		final CanonicalGraph previousGraph;
+		/** null, if the conversion failed */
+		Future<Boolean> written;
+
+		PendingDataset(String datasetId, File file, File[] previousVersion, CanonicalGraph previousGraph) {
+			this.datasetId = datasetId;
+			this.file = file;
+			this.previousVersion = previousVersion;
+			this.previousGraph = previousGraph;
+		}
+
+		boolean isDone() {
+			return written == null || written.isDone();
+		}
+
+		/**
+		 * Returns true, if the dataset was converted, and its result was written.
+		 */
+		boolean waitUntilWritten() throws IOException {
+			if (written == null) {
+				return false;
+			}
+			try {
+				return written.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the result of " + datasetId + " to be written");
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+				return false;
+			}
+		}
 	}
 
+
+	/**
+	 * Converts all the metadata files into a single archive, and, if <code>deltaDir</code>
+	 * is not null, writes the differences from the archive of the previous run (if
+	 * <code>newArchiveFile</code> already exists) to <code>deltaDir</code>. The new
+	 * archive is written to a temporary file, which replaces the previous archive
+	 * only when it is complete. The datasets that can not be converted keep their
+	 * entries of the previous archive.
+	 *
+	 * @return true, if the archive was replaced (even if some datasets could not be converted)
+	 */
+	public boolean updateMetadataArchive(String oldMetadataDir, File newArchiveFile, 
+			String configPropFileName, String deltaDir) {
+		Downloader hdMetadataDownloader = createDownloader();
+
+		try {
+			RDFDeltaWriter deltaWriter = (deltaDir == null ? null : new RDFDeltaWriter(new File(deltaDir), false, shard));
+			List<String> datasetIds = getDatasetIds(hdMetadataDownloader);
+			System.out.println(datasetIds);
+			ConversionPlan plan = DatasetMetadataUpdater.createConversionPlan(configPropFileName);
+			ShardManifest manifest = new ShardManifest(shard);
+			newArchiveFile = shard.getFile(newArchiveFile);
+			File tempArchiveFile = new File(newArchiveFile.getPath() + AtomicFileOutput.TEMP_FILE_EXTENSION);
+			MetadataArchive oldArchive = openArchive(oldMetadataDir);
+			MetadataArchive previousArchive = (newArchiveFile.exists() ? new MetadataArchive(newArchiveFile) : null);
+			MetadataArchive.Writer archiveWriter = new MetadataArchive.Writer(tempArchiveFile);
+			List<String> deletedDatasetIds = Collections.emptyList();
+			try {
+				for (String datasetId : datasetIds) {
+					System.out.println("Processing: " + datasetId);
+					//the entry is started only when the result is complete, so that a failed conversion leaves no partial entry
+					ConvertedMetadata result = null;
+					if (oldArchive == null) {
+						String oldRDFFileName = hdMetadataDownloader.findRDFFileName(oldMetadataDir, datasetId);
+						if (new File(oldRDFFileName).exists()) {
+							result = DatasetMetadataUpdater.convert(oldRDFFileName, plan);
+						}
+						else {
+							System.out.println("Could not find the metadata file " + oldRDFFileName);
+						}
+					}
+					else {
+						result = convertMetadata(oldArchive, datasetId, plan);
+					}
+					if (result != null) {
+						try {
+							result.writeTo(archiveWriter.beginDataset(datasetId));
+						} catch (RDFHandlerException e) {
+							throw new IOException("Could not write the metadata of " + datasetId + " to " + tempArchiveFile, e);
+						}
+						archiveWriter.endDataset();
+						manifest.add(datasetId, STATUS_CONVERTED);
+					}
+					else {
+						if (previousArchive != null && archiveWriter.copyDataset(previousArchive, datasetId)) {
+							System.out.println("The metadata of " + datasetId + " converted by the previous run is kept");
+						}
+						manifest.add(datasetId, ShardManifest.STATUS_FAILED);
+					}
+				}
+				if (previousArchive != null) {
+					deletedDatasetIds = getDeletedDatasetIds(previousArchive.getDatasetIds(), datasetIds);
+					//the datasets of the previous archive that are not deleted (because the dataset list looks wrong) are kept
+					for (String datasetId : previousArchive.getDatasetIds()) {
+						if (shard.contains(datasetId) && ! datasetIds.contains(datasetId) && ! deletedDatasetIds.contains(datasetId)) {
+							archiveWriter.copyDataset(previousArchive, datasetId);
+						}
+					}
+				}
+			}
+			finally {
+				archiveWriter.close();
+				if (oldArchive != null) {
+					oldArchive.close();
+				}
+				if (previousArchive != null) {
+					previousArchive.close();
+				}
+			}
+
+			if (deltaWriter != null) {
+				writeArchiveDelta(deltaWriter, newArchiveFile, tempArchiveFile, datasetIds, deletedDatasetIds);
+			}
+			if ( (newArchiveFile.exists() && ! newArchiveFile.delete()) || ! tempArchiveFile.renameTo(newArchiveFile)) {
+				System.out.println("Could not replace " + newArchiveFile + ". The new metadata files are in " + tempArchiveFile);
+				return false;
+			}
+			if (shard.isPartial()) {
+				manifest.write(newArchiveFile);
+			}
+			return true;
+		} catch (MalformedURLException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+
+	/**
+	 * Returns the datasets of the shard.
+	 */
+	private List<String> getDatasetIds(Downloader hdMetadataDownloader) throws IOException {
+		List<String> datasetIds = hdMetadataDownloader.getListOfDatasets();
+		if (datasetIds == null) {
+			throw new IOException("Could not get the list of datasets from the hub");
+		}
+		if (shard.isPartial()) {
+			datasetIds = shard.select(datasetIds);
+			System.out.println("Shard " + shard + ": " + datasetIds.size() + " datasets");
+		}
+		return datasetIds;
+	}
+
+	/**
+	 * Returns the converted metadata files (compressed or not) in <code>metadataDir</code>
+	 * of the datasets of the shard, by dataset id.
+	 */
+	private Map<String, List<File>> getMetadataFiles(File metadataDir) {
+		Map<String, List<File>> metadataFiles = new TreeMap<String, List<File>>();
+		File[] files = metadataDir.listFiles();
+		if (files == null) {
+			return metadataFiles;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			String datasetId = MetadataArchive.getDatasetId(file.getName());
+			if (datasetId != null && shard.contains(datasetId)) {
+				List<File> datasetFiles = metadataFiles.get(datasetId);
+				if (datasetFiles == null) {
+					datasetFiles = new ArrayList<File>();
+					metadataFiles.put(datasetId, datasetFiles);
+				}
+				datasetFiles.add(file);
+			}
+		}
+		return metadataFiles;
+	}
+
+	/**
+	 * Returns the datasets of the previous run (of the shard) that are no longer in the
+	 * list of datasets of the hub, and whose converted metadata should be removed. If the
+	 * list looks wrong (it is empty, it contains an empty id, or more than half of the
+	 * datasets of the previous run would be removed), no dataset is returned, and the
+	 * converted metadata of the previous run is kept.
+	 */
+	private List<String> getDeletedDatasetIds(Collection<String> previousDatasetIds, List<String> datasetIds) {
+		Set<String> currentDatasetIds = new HashSet<String>(datasetIds);
+		List<String> deletedDatasetIds = new ArrayList<String>();
+		int previousCount = 0;
+		for (String datasetId : previousDatasetIds) {
+			if (shard.contains(datasetId)) {
+				previousCount++;
+				if ( ! currentDatasetIds.contains(datasetId)) {
+					deletedDatasetIds.add(datasetId);
+				}
+			}
+		}
+		if (deletedDatasetIds.isEmpty()) {
+			return deletedDatasetIds;
+		}
+		String reason = null;
+		if (datasetIds.isEmpty()) {
+			reason = "the list of datasets is empty";
+		}
+		else if (currentDatasetIds.contains("")) {
+			reason = "the list of datasets contains an empty id";
+		}
+		else if (deletedDatasetIds.size() > previousCount * MAX_DELETED_FRACTION) {
+			reason = deletedDatasetIds.size() + " of the " + previousCount + " datasets of the previous run are not in the list of datasets";
+		}
+		if (reason != null) {
+			System.out.println("The converted metadata of the datasets missing from the hub is kept, because " + reason);
+			return new ArrayList<String>();
+		}
+		System.out.println("Deleted datasets: " + deletedDatasetIds);
+		return deletedDatasetIds;
+	}
+
+	/**
+	 * Renames the metadata file of a dataset (compressed or not) written by the previous run
+	 * to its previous version file, and returns both files, or null, if there is no such file.
+	 * The previous version is kept until the patch of the dataset is written, so that the
+	 * patch can still be computed when an interrupted run is resumed.
+	 */
+	private File[] keepPreviousVersion(Downloader hdMetadataDownloader, String metadataDir, String datasetId) throws IOException {
+		for (boolean compressed : new boolean[] {false, true}) {
+			File file = new File(hdMetadataDownloader.createAbsoluteRDFFileName(metadataDir, datasetId, compressed));
+			File previousVersionFile = getPreviousVersionFile(file);
+			if (previousVersionFile.exists()) {
+				return new File[] {file, previousVersionFile};
+			}
+			if (file.exists()) {
+				if ( ! file.renameTo(previousVersionFile)) {
+					throw new IOException("Could not rename " + file + " to " + previousVersionFile);
+				}
+				return new File[] {file, previousVersionFile};
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns <code>DATASET_ID.rdf.prev</code> (or <code>DATASET_ID.rdf.prev.gz</code>) for <code>DATASET_ID.rdf</code>
+	 * (or <code>DATASET_ID.rdf.gz</code>), a name which is not considered a metadata file name.
+	 */
+	private static File getPreviousVersionFile(File file) {
+		String path = file.getPath();
+		if (CompressionUtil.isCompressed(file)) {
+			path = path.substring(0, path.length() - CompressionUtil.GZIP_FILE_EXTENSION.length());
+			return new File(path + PREVIOUS_VERSION_FILE_EXTENSION + CompressionUtil.GZIP_FILE_EXTENSION);
+		}
+		return new File(path + PREVIOUS_VERSION_FILE_EXTENSION);
+	}
+
+	private MetadataArchive openArchive(String metadataDir) throws IOException {
+		File file = new File(metadataDir);
+		return (MetadataArchive.isArchive(file) ? new MetadataArchive(file) : null);
+	}
+
+	private ConvertedMetadata convertMetadata(MetadataArchive oldArchive, String datasetId, ConversionPlan plan) throws IOException {
+		InputStream is = oldArchive.openInputStream(datasetId);
+		if (is == null) {
+			System.out.println("Could not find the metadata of " + datasetId + " in the archive");
+			return null;
+		}
+		try {
+			return DatasetMetadataUpdater.convert(is, HealthDataConstants.HEALTHDATA_GOV_DATASET_BASE_URI + datasetId + HealthDataConstants.RDF_FILE_EXTENSION,
+					plan);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	private void writeArchiveDelta(RDFDeltaWriter deltaWriter, File previousArchiveFile, File newArchiveFile,
+			List<String> datasetIds, List<String> deletedDatasetIds) throws IOException {
+		MetadataArchive previousArchive = (previousArchiveFile.exists() ? new MetadataArchive(previousArchiveFile) : null);
+		MetadataArchive newArchive = new MetadataArchive(newArchiveFile);
+		try {
+			for (String datasetId : datasetIds) {
+				CanonicalGraph previousGraph = (previousArchive == null ? CanonicalGraph.EMPTY : deltaWriter.readGraph(previousArchive, datasetId));
+				deltaWriter.writeDelta(datasetId, previousGraph, deltaWriter.readGraph(newArchive, datasetId));
+			}
+			if (previousArchive != null) {
+				deltaWriter.writeDeletedDatasetDeltas(previousArchive, deletedDatasetIds);
+			}
+		}
+		finally {
+			newArchive.close();
+			if (previousArchive != null) {
+				previousArchive.close();
+			}
+		}
+		deltaWriter.writeSummary();
+		System.out.println("Delta: " + deltaWriter.getSummary());
+	}
 	
 }
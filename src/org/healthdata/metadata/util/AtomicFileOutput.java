@@ -0,0 +1,138 @@
+package org.healthdata.metadata.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a file through a temporary file (<code>FILE.part</code>, in the same
+ * directory), which is renamed to the target file only when it is complete (see
+ * {@link #commit()}). This way the target file is either the previous version, or
+ * the complete new one, but never a partially written file, even if the process
+ * dies while writing it. The file is gzip compressed, if the name of the target
+ * file ends with {@link CompressionUtil#GZIP_FILE_EXTENSION}. <br>
+ * The temporary file is synced to the disk before it is renamed, and so is the
+ * directory after the rename (where the JVM supports it), so that the new file is
+ * not lost, or left empty, by a crash of the operating system either.
+ *
+ * @author agent
+ *
+ */
+public class AtomicFileOutput {
+
+	public static final String TEMP_FILE_EXTENSION = ".part";
+
+	private final File file;
+	private final File tempFile;
+	private final OutputStream os;
+	private boolean syncOnClose = false;
+	private boolean closed = false;
+
+
+	public AtomicFileOutput(File file) throws IOException {
+		this.file = file;
+		this.tempFile = new File(file.getPath() + TEMP_FILE_EXTENSION);
+		this.os = CompressionUtil.openOutputStream(new SyncingFileOutputStream(tempFile), CompressionUtil.isCompressed(file));
+	}
+
+
+	public OutputStream getOutputStream() {
+		return os;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Closes and syncs the temporary file, and renames it to the target file.
+	 * If it fails, the temporary file is deleted by {@link #abort()}.
+	 */
+	public void commit() throws IOException {
+		syncOnClose = true;
+		os.close();
+		if ( ! tempFile.renameTo(file)) {
+			//on some platforms an existing file can not be replaced by renaming
+			if ( ! file.delete() || ! tempFile.renameTo(file)) {
+				throw new IOException("Could not rename " + tempFile + " to " + file);
+			}
+		}
+		closed = true;
+		syncDirectory(file.getAbsoluteFile().getParentFile());
+	}
+
+	/**
+	 * Closes and deletes the temporary file, leaving the target file unchanged.
+	 * It has no effect, if the file was already committed.
+	 */
+	public void abort() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			os.close();
+		} catch (IOException e) {
+			//we are deleting it anyway
+		}
+		tempFile.delete();
+	}
+
+
+	/*
+	 * Syncs the entry of the renamed file in the directory. It needs the NIO file API
+	 * of Java 7 (opening a directory fails with the older APIs), which is looked up
+	 * with reflection, so that the class can still run on Java 6, where the directory
+	 * is not synced. Some platforms (e.g. Windows) can not sync directories either.
+	 */
+	private static void syncDirectory(File dir) {
+		if (dir == null) {
+			return;
+		}
+		try {
+			Object path = File.class.getMethod("toPath").invoke(dir);
+			Class<?> pathClass = Class.forName("java.nio.file.Path");
+			Class<?> openOptionClass = Class.forName("java.nio.file.OpenOption");
+			Object options = Array.newInstance(openOptionClass, 1);
+			Array.set(options, 0, Class.forName("java.nio.file.StandardOpenOption").getField("READ").get(null));
+			FileChannel channel = (FileChannel) FileChannel.class.getMethod("open", pathClass, options.getClass()).invoke(null, path, options);
+			try {
+				channel.force(true);
+			}
+			finally {
+				channel.close();
+			}
+		} catch (Exception e) {
+			//the directory can not be synced on this JVM or platform
+		}
+	}
+
+
+	/**
+	 * Syncs the file to the disk before closing it, when the output is committed.
+	 */
+	private class SyncingFileOutputStream extends FileOutputStream {
+
+		SyncingFileOutputStream(File file) throws FileNotFoundException {
+			super(file);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (syncOnClose) {
+					flush();
+					getFD().sync();
+				}
+			}
+			finally {
+				super.close();
+			}
+		}
+	}
+
+}
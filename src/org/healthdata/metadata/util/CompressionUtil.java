@@ -0,0 +1,105 @@
+package org.healthdata.metadata.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opens files for reading and writing, compressing and decompressing them on the fly
+ * if their name ends with {@link #GZIP_FILE_EXTENSION}. The data is (de)compressed
+ * while it is streamed, so a file is never held in memory as a whole.
+ *
+ * @author agent
+ *
+ */
+public class CompressionUtil {
+
+	public static final String GZIP_FILE_EXTENSION = ".gz";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+
+	public static boolean isCompressed(File file) {
+		return file.getName().endsWith(GZIP_FILE_EXTENSION);
+	}
+
+	/**
+	 * Returns <code>fileName</code>, with the gzip extension appended, if <code>compress</code> is true.
+	 */
+	public static String getFileName(String fileName, boolean compress) {
+		return (compress ? fileName + GZIP_FILE_EXTENSION : fileName);
+	}
+
+	public static InputStream openInputStream(File file) throws IOException {
+		InputStream is = new FileInputStream(file);
+		try {
+			if (isCompressed(file)) {
+				return new GZIPInputStream(is, BUFFER_SIZE);
+			}
+			else {
+				return new BufferedInputStream(is, BUFFER_SIZE);
+			}
+		}
+		catch (IOException e) {
+			//not a valid gzip file
+			is.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens <code>file</code> for writing. Closing the returned stream finishes the
+	 * compressed data, if the file is compressed.
+	 */
+	public static OutputStream openOutputStream(File file) throws IOException {
+		return openOutputStream(file, isCompressed(file));
+	}
+
+	/**
+	 * Opens <code>file</code> for writing, compressing the data if <code>compress</code>
+	 * is true, regardless of the name of the file.
+	 */
+	public static OutputStream openOutputStream(File file, boolean compress) throws IOException {
+		return openOutputStream(new FileOutputStream(file), compress);
+	}
+
+	/**
+	 * Returns a buffered stream writing to <code>os</code>, compressing the data if
+	 * <code>compress</code> is true. Closing the returned stream closes <code>os</code>.
+	 */
+	public static OutputStream openOutputStream(OutputStream os, boolean compress) throws IOException {
+		if (compress) {
+			return new GZIPOutputStream(os, BUFFER_SIZE);
+		}
+		else {
+			return new BufferedOutputStream(os, BUFFER_SIZE);
+		}
+	}
+
+	/**
+	 * Returns a stream writing to <code>os</code>, which flushes, but does not
+	 * close <code>os</code>, when it is closed (e.g. to write an entry of an archive).
+	 */
+	public static OutputStream nonClosing(OutputStream os) {
+		return new FilterOutputStream(os) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		};
+	}
+
+}
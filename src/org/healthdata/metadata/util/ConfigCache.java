@@ -0,0 +1,81 @@
+package org.healthdata.metadata.util;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A JVM wide cache of the parsed configuration (Java properties) files. A file is
+ * parsed only the first time it is requested, and it is parsed again only if
+ * it was modified since. This way the configuration files are not re-read for 
+ * every dataset, and they are shared by all the steps executed in the same JVM. <br>
+ * The returned maps are immutable, so they can be shared without any locking.
+ *
+ * @author agent
+ *
+ */
+public class ConfigCache {
+
+	private static final ConcurrentMap<String, CachedConfigMap> cache = new ConcurrentHashMap<String, CachedConfigMap>();
+
+	private static final FlightRecorderEvent.Type CONFIG_LOAD_EVENT =
+			FlightRecorderEvent.forClass("org.healthdata.metadata.util.ConfigLoadEvent");
+
+
+	/**
+	 * Returns the (cached) content of the properties file, loaded into a {@link ConfigMap}.
+	 */
+	public static ConfigMap getConfigMap(File propertiesFile) throws IOException {
+		String key = propertiesFile.getCanonicalPath();
+		long lastModified = propertiesFile.lastModified();
+		long length = propertiesFile.length();
+
+		CachedConfigMap cached = cache.get(key);
+		if (cached == null || cached.lastModified != lastModified || cached.length != length) {
+			FlightRecorderEvent event = CONFIG_LOAD_EVENT.newEvent();
+			event.begin();
+			ConfigMap configMap;
+			FileReader reader = new FileReader(propertiesFile);
+			try {
+				configMap = ConfigMap.load(reader);
+			}
+			finally {
+				reader.close();
+			}
+			event.end();
+			if (event.shouldCommit()) {
+				event.set("file", key);
+				event.set("bytes", length);
+				event.set("entryCount", configMap.size());
+				event.commit();
+			}
+			cached = new CachedConfigMap(configMap, lastModified, length);
+			cache.put(key, cached);
+		}
+		return cached.configMap;
+	}
+
+	public static void clear() {
+		cache.clear();
+	}
+
+	public static int size() {
+		return cache.size();
+	}
+
+
+	private static class CachedConfigMap {
+		final ConfigMap configMap;
+		final long lastModified;
+		final long length;
+
+		CachedConfigMap(ConfigMap configMap, long lastModified, long length) {
+			this.configMap = configMap;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+
+}
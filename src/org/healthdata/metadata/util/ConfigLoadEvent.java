@@ -0,0 +1,33 @@
+package org.healthdata.metadata.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JDK Flight Recorder event recording the loading (parsing) of a configuration file
+ * by the {@link ConfigCache}. Requests served from the cache are not recorded.
+ *
+ * @author agent
+ *
+ */
+@Name("org.healthdata.metadata.ConfigLoad")
+@Label("Configuration File Load")
+@Category({"Healthdata", "Configuration"})
+@Description("The loading of a configuration (Java properties) file")
+class ConfigLoadEvent extends Event {
+
+	@Label("File")
+	String file;
+
+	@Label("Bytes")
+	@DataAmount(DataAmount.BYTES)
+	long bytes;
+
+	@Label("Entries")
+	int entryCount;
+
+}
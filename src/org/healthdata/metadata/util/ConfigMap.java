@@ -0,0 +1,144 @@
+package org.healthdata.metadata.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * An immutable map from strings to strings, which keeps the order in which the
+ * entries were read from a properties file (as {@link LinkedProperties} does).
+ * Unlike {@link Properties}, which is a synchronized {@link java.util.Hashtable},
+ * lookups do not take any lock, so a single instance can be shared by any number
+ * of concurrent conversions. <br>
+ * The entries can be iterated by position (see {@link #getKey(int)} and
+ * {@link #getValue(int)}), without looking them up again. The identity map
+ * ({@link #identity()}) maps every key to itself, and it has no entries to iterate.
+ *
+ * @author agent
+ *
+ */
+public class ConfigMap {
+
+	public static final ConfigMap EMPTY = new ConfigMap(new String[0], new String[0]);
+
+	private static final ConfigMap IDENTITY = new IdentityConfigMap();
+
+	private final String[] keys;
+	private final String[] values;
+	/** never modified after construction, so it is safe to read concurrently */
+	private final Map<String, String> index;
+
+
+	private ConfigMap(String[] keys, String[] values) {
+		this.keys = keys;
+		this.values = values;
+		this.index = new HashMap<String, String>(keys.length * 2);
+		for (int i = 0; i < keys.length; i++) {
+			index.put(keys[i], values[i]);
+		}
+	}
+
+
+	/**
+	 * Reads a map in the format of a Java properties file.
+	 */
+	public static ConfigMap load(Reader reader) throws IOException {
+		Properties properties = new LinkedProperties();
+		properties.load(reader);
+		return fromProperties(properties);
+	}
+
+	/**
+	 * Creates a map with the entries of <code>properties</code>, in the order
+	 * in which they are enumerated by {@link Properties#keys()}.
+	 */
+	public static ConfigMap fromProperties(Properties properties) {
+		String[] keys = new String[properties.size()];
+		String[] values = new String[keys.length];
+		int i = 0;
+		Enumeration<Object> propKeys = properties.keys();
+		while (propKeys.hasMoreElements() && i < keys.length) {
+			String key = propKeys.nextElement().toString();
+			keys[i] = key;
+			values[i] = properties.getProperty(key);
+			i++;
+		}
+		return new ConfigMap(keys, values);
+	}
+
+	/**
+	 * Returns the map which maps every string to itself.
+	 */
+	public static ConfigMap identity() {
+		return IDENTITY;
+	}
+
+
+	/**
+	 * Returns the value of <code>key</code>, or null, if there is no such key.
+	 */
+	public String get(String key) {
+		return index.get(key);
+	}
+
+	public String get(String key, String defaultValue) {
+		String value = get(key);
+		return (value == null ? defaultValue : value);
+	}
+
+	public boolean containsKey(String key) {
+		return index.containsKey(key);
+	}
+
+	/**
+	 * Returns the number of entries that can be iterated.
+	 */
+	public int size() {
+		return keys.length;
+	}
+
+	public boolean isEmpty() {
+		return keys.length == 0;
+	}
+
+	public String getKey(int i) {
+		return keys[i];
+	}
+
+	public String getValue(int i) {
+		return values[i];
+	}
+
+	public List<String> keys() {
+		return Collections.unmodifiableList(Arrays.asList(keys));
+	}
+
+	public List<String> values() {
+		return Collections.unmodifiableList(Arrays.asList(values));
+	}
+
+
+	private static class IdentityConfigMap extends ConfigMap {
+
+		IdentityConfigMap() {
+			super(new String[0], new String[0]);
+		}
+
+		@Override
+		public String get(String key) {
+			return key;
+		}
+
+		@Override
+		public boolean containsKey(String key) {
+			return true;
+		}
+	}
+
+}
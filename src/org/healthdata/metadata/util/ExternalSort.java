@@ -0,0 +1,164 @@
+package org.healthdata.metadata.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts the lines of a (possibly very large) text file, removing the duplicates,
+ * with a bounded amount of memory: the lines are sorted in runs of at most
+ * <code>maxLinesInMemory</code> lines, which are written to temporary files, and
+ * the runs are then merged. Only one line of each run is kept in memory while merging.
+ *
+ * @author agent
+ *
+ */
+public class ExternalSort {
+
+	public static final int DEFAULT_MAX_LINES_IN_MEMORY = 100000;
+
+	private static final String ENCODING = "UTF-8";
+
+
+	/**
+	 * Writes the distinct lines of <code>input</code> to <code>output</code>, in
+	 * ascending (String) order, and returns their number.
+	 */
+	public static long sortUnique(File input, File output) throws IOException {
+		return sortUnique(input, output, DEFAULT_MAX_LINES_IN_MEMORY);
+	}
+
+	public static long sortUnique(File input, File output, int maxLinesInMemory) throws IOException {
+		List<File> runs = new ArrayList<File>();
+		try {
+			BufferedReader reader = openReader(input);
+			try {
+				List<String> lines = new ArrayList<String>();
+				String line;
+				while ((line = reader.readLine()) != null) {
+					lines.add(line);
+					if (lines.size() >= maxLinesInMemory) {
+						runs.add(writeRun(lines));
+						lines.clear();
+					}
+				}
+				if ( ! lines.isEmpty() || runs.isEmpty()) {
+					runs.add(writeRun(lines));
+				}
+			}
+			finally {
+				reader.close();
+			}
+			return merge(runs, output);
+		}
+		finally {
+			for (File run : runs) {
+				run.delete();
+			}
+		}
+	}
+
+	private static File writeRun(List<String> lines) throws IOException {
+		Collections.sort(lines);
+		File run = File.createTempFile("sortrun", ".txt");
+		BufferedWriter writer = openWriter(run);
+		try {
+			String previous = null;
+			for (String line : lines) {
+				if ( ! line.equals(previous)) {
+					writer.write(line);
+					writer.newLine();
+					previous = line;
+				}
+			}
+		}
+		finally {
+			writer.close();
+		}
+		return run;
+	}
+
+	private static long merge(List<File> runs, File output) throws IOException {
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+		long count = 0;
+		BufferedWriter writer = openWriter(output);
+		try {
+			for (File run : runs) {
+				RunReader runReader = new RunReader(openReader(run));
+				if (runReader.advance()) {
+					queue.add(runReader);
+				}
+				else {
+					runReader.close();
+				}
+			}
+			String previous = null;
+			while ( ! queue.isEmpty()) {
+				RunReader runReader = queue.poll();
+				if ( ! runReader.line.equals(previous)) {
+					writer.write(runReader.line);
+					writer.newLine();
+					previous = runReader.line;
+					count++;
+				}
+				if (runReader.advance()) {
+					queue.add(runReader);
+				}
+				else {
+					runReader.close();
+				}
+			}
+		}
+		finally {
+			for (RunReader runReader : queue) {
+				runReader.close();
+			}
+			writer.close();
+		}
+		return count;
+	}
+
+	private static BufferedReader openReader(File file) throws IOException {
+		return new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+	}
+
+	private static BufferedWriter openWriter(File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), ENCODING));
+	}
+
+
+	/**
+	 * The current line of a sorted run.
+	 */
+	private static class RunReader implements Comparable<RunReader> {
+		private final BufferedReader reader;
+		String line;
+
+		RunReader(BufferedReader reader) {
+			this.reader = reader;
+		}
+
+		boolean advance() throws IOException {
+			line = reader.readLine();
+			return line != null;
+		}
+
+		void close() throws IOException {
+			reader.close();
+		}
+
+		public int compareTo(RunReader other) {
+			return line.compareTo(other.line);
+		}
+	}
+
+}
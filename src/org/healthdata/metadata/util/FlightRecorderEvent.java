@@ -0,0 +1,203 @@
+package org.healthdata.metadata.util;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An optional JDK Flight Recorder event. The JFR event classes (subclasses of
+ * <code>jdk.jfr.Event</code>) are used only through this wrapper, and they are loaded
+ * by name, so that the tools still run (and compile, without the event classes) on
+ * JVMs that have no JFR API, e.g. Java 6 and 7, where all the events are no-ops. <br>
+ * The usage is the same as for a JFR event, except that the fields are set with
+ * {@link #set(String, Object)}:
+ * <pre>
+ * FlightRecorderEvent event = EVENT_TYPE.newEvent();
+ * event.begin();
+ * ...
+ * event.end();
+ * if (event.shouldCommit()) {
+ *     event.set("datasetId", datasetId);
+ *     event.commit();
+ * }
+ * </pre>
+ * The fields are set with reflection, so events should record coarse operations
+ * (e.g. a download or the conversion of a dataset), not the steps of a tight loop.
+ *
+ * @author agent
+ *
+ */
+public class FlightRecorderEvent {
+
+	private static final String JFR_EVENT_CLASS_NAME = "jdk.jfr.Event";
+
+	private static final FlightRecorderEvent DISABLED = new FlightRecorderEvent(null, null);
+
+	private static Method beginMethod;
+	private static Method endMethod;
+	private static Method isEnabledMethod;
+	private static Method shouldCommitMethod;
+	private static Method commitMethod;
+	private static final boolean jfrAvailable = initJfrMethods();
+
+
+	private final Type type;
+	private final Object event;
+
+
+	private FlightRecorderEvent(Type type, Object event) {
+		this.type = type;
+		this.event = event;
+	}
+
+
+	/**
+	 * Returns the type of the events of the JFR event class <code>className</code>.
+	 * If the JFR API or the class is not available, the events of the returned type
+	 * are never recorded.
+	 */
+	public static Type forClass(String className) {
+		return new Type(className);
+	}
+
+	/**
+	 * Returns true, if the JFR API is available in this JVM.
+	 */
+	public static boolean isJfrAvailable() {
+		return jfrAvailable;
+	}
+
+
+	public void begin() {
+		invoke(beginMethod);
+	}
+
+	public void end() {
+		invoke(endMethod);
+	}
+
+	/**
+	 * Returns true, if the event type is enabled in a running recording.
+	 */
+	public boolean isEnabled() {
+		return event != null && (Boolean) invoke(isEnabledMethod);
+	}
+
+	/**
+	 * Returns true, if the event should be committed (i.e. it is enabled, and
+	 * it is longer than the threshold of the recording), in which case its fields
+	 * should be set, and it should be committed.
+	 */
+	public boolean shouldCommit() {
+		return event != null && (Boolean) invoke(shouldCommitMethod);
+	}
+
+	/**
+	 * Sets the field <code>fieldName</code> of the event.
+	 */
+	public void set(String fieldName, Object value) {
+		if (event == null) {
+			return;
+		}
+		Field field = type.fields.get(fieldName);
+		if (field == null) {
+			throw new IllegalArgumentException("The event class " + type.className + " has no field " + fieldName);
+		}
+		try {
+			field.set(event, value);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public void commit() {
+		invoke(commitMethod);
+	}
+
+
+	private Object invoke(Method method) {
+		if (event == null) {
+			return null;
+		}
+		try {
+			return method.invoke(event);
+		} catch (Exception e) {
+			throw new IllegalStateException("Could not invoke " + method.getName() + " on the event " + type.className, e);
+		}
+	}
+
+	private static boolean initJfrMethods() {
+		try {
+			Class<?> eventClass = Class.forName(JFR_EVENT_CLASS_NAME);
+			beginMethod = eventClass.getMethod("begin");
+			endMethod = eventClass.getMethod("end");
+			isEnabledMethod = eventClass.getMethod("isEnabled");
+			shouldCommitMethod = eventClass.getMethod("shouldCommit");
+			commitMethod = eventClass.getMethod("commit");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+
+	/**
+	 * A JFR event class, which creates the events (see {@link #newEvent()}).
+	 */
+	public static class Type {
+		private final String className;
+		private final Constructor<?> constructor;
+		private final Map<String, Field> fields = new HashMap<String, Field>();
+
+		private Type(String className) {
+			this.className = className;
+			this.constructor = (jfrAvailable ? loadEventClass() : null);
+		}
+
+		/**
+		 * Returns true, if the events of this type can be recorded in this JVM.
+		 */
+		public boolean isAvailable() {
+			return constructor != null;
+		}
+
+		/**
+		 * Creates a new event, which is not recorded, if the event class is not available.
+		 */
+		public FlightRecorderEvent newEvent() {
+			if (constructor == null) {
+				return DISABLED;
+			}
+			try {
+				return new FlightRecorderEvent(this, constructor.newInstance());
+			} catch (Exception e) {
+				throw new IllegalStateException("Could not create the event " + className, e);
+			}
+		}
+
+		private Constructor<?> loadEventClass() {
+			try {
+				Class<?> eventClass = Class.forName(className);
+				for (Field field : eventClass.getDeclaredFields()) {
+					field.setAccessible(true);
+					fields.put(field.getName(), field);
+				}
+				Constructor<?> constructor = eventClass.getDeclaredConstructor();
+				constructor.setAccessible(true);
+				return constructor;
+			} catch (ClassNotFoundException e) {
+				//the event classes were not compiled (e.g. with a JDK without JFR)
+				return null;
+			} catch (NoSuchMethodException e) {
+				throw new IllegalArgumentException("The event class " + className + " has no default constructor", e);
+			} catch (LinkageError e) {
+				return null;
+			}
+		}
+	}
+
+}
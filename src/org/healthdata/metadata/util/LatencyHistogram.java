@@ -0,0 +1,108 @@
+package org.healthdata.metadata.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A simple, thread safe latency histogram with fixed (roughly logarithmic)
+ * millisecond buckets. It is meant to be shared by all the requests of a run,
+ * and to be reported once, at the end of the run.
+ *
+ * @author agent
+ *
+ */
+public class LatencyHistogram {
+
+	private static final long[] BUCKET_UPPER_BOUNDS_MS = {
+		1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, Long.MAX_VALUE
+	};
+
+	private final String name;
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_UPPER_BOUNDS_MS.length);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+
+	public LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+
+	public String getName() {
+		return name;
+	}
+
+	public void record(long elapsedNanos) {
+		long elapsedMs = elapsedNanos / 1000000;
+		int i = 0;
+		while (elapsedMs >= BUCKET_UPPER_BOUNDS_MS[i]) {
+			i++;
+		}
+		buckets.incrementAndGet(i);
+		count.incrementAndGet();
+		totalNanos.addAndGet(elapsedNanos);
+		long currMax = maxNanos.get();
+		while (elapsedNanos > currMax && ! maxNanos.compareAndSet(currMax, elapsedNanos)) {
+			currMax = maxNanos.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public double getMeanMillis() {
+		long n = count.get();
+		return (n == 0 ? 0 : totalNanos.get() / 1000000.0 / n);
+	}
+
+	public double getMaxMillis() {
+		return maxNanos.get() / 1000000.0;
+	}
+
+	/**
+	 * Returns an upper bound (the upper bound of the matching bucket) of the
+	 * given percentile, in milliseconds, or -1 if nothing was recorded.
+	 */
+	public long getPercentileUpperBoundMillis(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return -1;
+		}
+		long rank = (long) Math.ceil(n * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKET_UPPER_BOUNDS_MS.length; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return BUCKET_UPPER_BOUNDS_MS[i];
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	public String getReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(name).append(": count=").append(getCount());
+		sb.append(String.format(", mean=%.1fms, max=%.1fms", getMeanMillis(), getMaxMillis()));
+		sb.append(", p50<").append(formatBound(getPercentileUpperBoundMillis(50)));
+		sb.append(", p90<").append(formatBound(getPercentileUpperBoundMillis(90)));
+		sb.append(", p99<").append(formatBound(getPercentileUpperBoundMillis(99)));
+		sb.append("\n");
+		long lowerBound = 0;
+		for (int i = 0; i < BUCKET_UPPER_BOUNDS_MS.length; i++) {
+			long bucketCount = buckets.get(i);
+			if (bucketCount > 0) {
+				sb.append(String.format("  [%6dms, %8s) %d\n", lowerBound,
+						formatBound(BUCKET_UPPER_BOUNDS_MS[i]), bucketCount));
+			}
+			lowerBound = BUCKET_UPPER_BOUNDS_MS[i];
+		}
+		return sb.toString();
+	}
+
+	private String formatBound(long boundMs) {
+		return (boundMs == Long.MAX_VALUE ? "inf" : boundMs + "ms");
+	}
+
+}
@@ -0,0 +1,167 @@
+package org.healthdata.metadata.util;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The retry policy of the requests sent to remote services (the hub, BioPortal).
+ * A failed attempt is retried a bounded number of times, waiting exponentially
+ * longer (with some random jitter) before every retry, unless the failure is
+ * permanent, i.e. the server reports that the request itself is wrong (e.g. 404 Not Found).
+ * Timeouts (408), throttling (429), server errors (5xx) and I/O errors are retried. <br>
+ * The policy can be shared by the threads of a run.
+ *
+ * @author agent
+ *
+ */
+public class RetryPolicy {
+
+	private volatile int maxRetries;
+	private volatile long initialBackoff;
+	private volatile long maxBackoff;
+
+	private final Random random = new Random();
+	private final AtomicLong retryCount = new AtomicLong();
+
+
+	public RetryPolicy(int maxRetries, long initialBackoff, long maxBackoff) {
+		this.maxRetries = maxRetries;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+
+
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	public void setBackoff(long initialBackoff, long maxBackoff) {
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+
+	public void setInitialBackoff(long initialBackoff) {
+		this.initialBackoff = initialBackoff;
+	}
+
+	/**
+	 * Returns the number of retries made so far.
+	 */
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+
+	/**
+	 * An attempt of an operation accessing a remote service, which can be retried.
+	 */
+	public static abstract class Attempt<T> {
+		public abstract T run() throws IOException;
+	}
+
+	/**
+	 * Runs <code>attempt</code>, and, if it fails with a transient error (e.g. a timeout,
+	 * a refused connection or a 5xx response), runs it again, at most <code>maxRetries</code>
+	 * times, waiting exponentially longer (with some random jitter) before every retry.
+	 *
+	 * @param url the URL accessed by the attempt, to be reported with the failures
+	 * @throws IOException the exception of the last attempt, if all the attempts failed
+	 */
+	public <T> T run(String url, Attempt<T> attempt) throws IOException {
+		long backoff = initialBackoff;
+		for (int retry = 0; ; retry++) {
+			try {
+				return attempt.run();
+			}
+			catch (IOException e) {
+				if (retry >= maxRetries || isPermanentFailure(e)) {
+					throw e;
+				}
+				long delay = backoff + (backoff > 1 ? (long) (random.nextDouble() * backoff / 2) : 0);
+				System.out.println("Accessing " + url + " failed (" + e + "). Retrying in " + delay + " ms.");
+				retryCount.incrementAndGet();
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+				backoff = Math.min(backoff * 2, maxBackoff);
+			}
+		}
+	}
+
+	public static boolean isPermanentFailure(IOException e) {
+		if (e instanceof HttpStatusException) {
+			int status = ((HttpStatusException) e).getStatus();
+			//the request itself is wrong (e.g. 404), except for timeouts and throttling
+			return status >= 400 && status < 500 && status != HttpURLConnection.HTTP_CLIENT_TIMEOUT && status != 429;
+		}
+		return (e instanceof FileNotFoundException) || (e instanceof MalformedURLException);
+	}
+
+
+	/**
+	 * Opens a connection to <code>url</code> (with any protocol) with the given timeouts,
+	 * and returns its input stream. For HTTP an error response is signaled with an
+	 * {@link HttpStatusException}, after its content is consumed, so that the connection
+	 * can be reused.
+	 *
+	 * @param acceptedTypes the content types to be sent in the Accept header of HTTP requests
+	 */
+	public static InputStream openInputStream(URL url, int connectTimeout, int readTimeout, String... acceptedTypes) throws IOException {
+		URLConnection conn = url.openConnection();
+		conn.setConnectTimeout(connectTimeout);
+		conn.setReadTimeout(readTimeout);
+		for (String acceptedType : acceptedTypes) {
+			conn.addRequestProperty("Accept", acceptedType);
+		}
+		if (conn instanceof HttpURLConnection) {
+			HttpURLConnection httpConn = (HttpURLConnection) conn;
+			int status = httpConn.getResponseCode();
+			if (status >= 400) {
+				String message = httpConn.getResponseMessage();
+				InputStream errorStream = httpConn.getErrorStream();
+				if (errorStream != null) {
+					try {
+						byte[] buffer = new byte[8192];
+						while (errorStream.read(buffer) != -1) {
+							//consume the error response
+						}
+					}
+					finally {
+						errorStream.close();
+					}
+				}
+				throw new HttpStatusException(url, status, message);
+			}
+		}
+		return conn.getInputStream();
+	}
+
+
+	/**
+	 * Signals an HTTP error response.
+	 */
+	public static class HttpStatusException extends IOException {
+		private static final long serialVersionUID = 1L;
+		private final int status;
+
+		public HttpStatusException(URL url, int status, String message) {
+			super("HTTP " + status + (message == null ? "" : " " + message) + " for " + url);
+			this.status = status;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+	}
+
+}
@@ -0,0 +1,44 @@
+package org.healthdata.metadata.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.URIImpl;
+
+/**
+ * A JVM wide pool of {@link URI} objects, so that the URIs coming from the
+ * configuration files (properties, classes, value maps) are created only once,
+ * and they are shared by all the datasets and all the steps executed in the same JVM. <br>
+ * Only URIs from a bounded set (e.g. the ones in configuration files) should be
+ * interned, as the pool is never trimmed.
+ *
+ * @author agent
+ *
+ */
+public class URIInterner {
+
+	private static final ConcurrentMap<String, URI> uris = new ConcurrentHashMap<String, URI>();
+
+
+	public static URI getURI(String uri) {
+		URI res = uris.get(uri);
+		if (res == null) {
+			res = new URIImpl(uri);
+			URI prev = uris.putIfAbsent(uri, res);
+			if (prev != null) {
+				res = prev;
+			}
+		}
+		return res;
+	}
+
+	public static void clear() {
+		uris.clear();
+	}
+
+	public static int size() {
+		return uris.size();
+	}
+
+}
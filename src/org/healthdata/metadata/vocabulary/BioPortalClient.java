@@ -0,0 +1,222 @@
+package org.healthdata.metadata.vocabulary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.healthdata.metadata.util.FlightRecorderEvent;
+import org.healthdata.metadata.util.LatencyHistogram;
+import org.healthdata.metadata.util.RetryPolicy;
+import org.ncbo.stanford.bean.search.Page;
+import org.ncbo.stanford.util.BioPortalServerConstants;
+import org.ncbo.stanford.util.BioPortalUtil;
+import org.ncbo.stanford.util.BioportalSearch;
+import org.ncbo.stanford.util.HTMLUtil;
+
+/**
+ * A long-lived client for the BioPortal REST services, meant to be shared by
+ * all the lookups of a run. Compared to creating a new {@link BioportalSearch}
+ * (and a new XStream parser) for every term, this client:<br>
+ *  - reuses one parser for all the responses<br>
+ *  - reads every response fully and closes it, so that the underlying HTTP
+ *  connection is returned to the JDK's keep-alive pool and reused for the next request<br>
+ *  - applies connect and read timeouts<br>
+ *  - retries failed requests with an exponential, jittered backoff (see {@link RetryPolicy})<br>
+ *  - records the latency of every request in a {@link LatencyHistogram}<br>
+ * The REST base URL and the API key are configurable, so that a local stand-in
+ * server can be used instead of the production BioPortal.
+ *
+ * @author agent
+ *
+ */
+public class BioPortalClient {
+
+	public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+	public static final int DEFAULT_READ_TIMEOUT_MS = 30000;
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	public static final long DEFAULT_BACKOFF_BASE_MS = 200;
+	public static final long DEFAULT_BACKOFF_MAX_MS = 10000;
+
+	private static final String BUFFERED_RESPONSE_PROTOCOL = "bpresponse";
+
+	private static final FlightRecorderEvent.Type SEARCH_EVENT =
+			FlightRecorderEvent.forClass("org.healthdata.metadata.vocabulary.BioPortalSearchEvent");
+
+	private final String restBase;
+	private final String apiKey;
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT_MS;
+	private int readTimeout = DEFAULT_READ_TIMEOUT_MS;
+	private final RetryPolicy retryPolicy = new RetryPolicy(DEFAULT_MAX_RETRIES, DEFAULT_BACKOFF_BASE_MS, DEFAULT_BACKOFF_MAX_MS);
+
+	private final BioportalSearch searchParser = new BioportalSearch();
+	private final LatencyHistogram latency = new LatencyHistogram("BioPortal search requests");
+	private final AtomicLong failureCount = new AtomicLong();
+
+
+	/**
+	 * Creates a client for the production BioPortal REST services.
+	 */
+	public BioPortalClient() {
+		this(null, null);
+	}
+
+	/**
+	 * @param restBase the base URL of the BioPortal REST services, or null for the production BioPortal
+	 * @param apiKey the API key to be sent with every request, or null for the default key
+	 */
+	public BioPortalClient(String restBase, String apiKey) {
+		if (restBase == null) {
+			restBase = BioPortalServerConstants.BP_REST_BASE;
+		}
+		this.restBase = (restBase.endsWith("/") ? restBase : restBase + "/");
+		this.apiKey = (apiKey == null ? BioPortalServerConstants.BP_PRODUCTION_PROTEGE_API_KEY_VALUE : apiKey);
+	}
+
+
+	public String getRestBase() {
+		return restBase;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		retryPolicy.setMaxRetries(maxRetries);
+	}
+
+	public void setBackoff(long backoffBaseMs, long backoffMaxMs) {
+		retryPolicy.setBackoff(backoffBaseMs, backoffMaxMs);
+	}
+
+	public LatencyHistogram getLatencyHistogram() {
+		return latency;
+	}
+
+
+	/**
+	 * Searches the given ontologies for the given term.
+	 *
+	 * @return the first page of search results, or null if there are no results
+	 * @throws IOException if the request failed after all the retries
+	 */
+	public Page search(String ontologyIds, String searchTerm) throws IOException {
+		FlightRecorderEvent event = SEARCH_EVENT.newEvent();
+		event.begin();
+		byte[] response = null;
+		Page page = null;
+		boolean succeeded = false;
+		try {
+			URL url = new URL(createSearchUrl(ontologyIds, searchTerm));
+			response = fetch(url);
+			page = searchParser.getSearchResults(createBufferedResponseURL(url, response));
+			succeeded = true;
+			return page;
+		}
+		finally {
+			event.end();
+			if (event.shouldCommit()) {
+				event.set("searchTerm", searchTerm);
+				event.set("ontologyIds", ontologyIds);
+				event.set("bytes", (long) (response == null ? 0 : response.length));
+				event.set("resultCount", getResultCount(page));
+				event.set("succeeded", succeeded);
+				event.commit();
+			}
+		}
+	}
+
+	private static int getResultCount(Page page) {
+		if (page == null || page.getContents() == null || page.getContents().getSearchResultList() == null) {
+			return 0;
+		}
+		return page.getContents().getSearchResultList().size();
+	}
+
+	public String createSearchUrl(String ontologyIds, String searchTerm) throws UnsupportedEncodingException {
+		String searchText = HTMLUtil.encodeURI(searchTerm.replaceAll("/", " "));
+		String urlStr = restBase
+				+ BioPortalServerConstants.SEARCH_REST + "/" + searchText + "?"
+				+ "ontologyids=" + ontologyIds;
+		return BioPortalUtil.addRestCallSuffixToUrl(urlStr,
+				BioPortalServerConstants.API_KEY_PARAM + "=" + apiKey);
+	}
+
+
+	/**
+	 * Retrieves the full content of <code>url</code>, retrying failed attempts
+	 * as described by the {@link RetryPolicy}.
+	 */
+	private byte[] fetch(final URL url) throws IOException {
+		try {
+			return retryPolicy.run(url.toString(), new RetryPolicy.Attempt<byte[]>() {
+				public byte[] run() throws IOException {
+					long start = System.nanoTime();
+					try {
+						return readFully(RetryPolicy.openInputStream(url, connectTimeout, readTimeout, "application/xml"));
+					}
+					finally {
+						latency.record(System.nanoTime() - start);
+					}
+				}
+			});
+		} catch (IOException e) {
+			failureCount.incrementAndGet();
+			throw e;
+		}
+	}
+
+	private byte[] readFully(InputStream is) throws IOException {
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(8192);
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = is.read(buffer)) != -1) {
+				bos.write(buffer, 0, n);
+			}
+			return bos.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+
+	/*
+	 * BioportalSearch can only parse the content of a URL, so we wrap the
+	 * already downloaded response in a URL that serves it from memory.
+	 */
+	private URL createBufferedResponseURL(URL url, final byte[] response) throws IOException {
+		URLStreamHandler handler = new URLStreamHandler() {
+			@Override
+			protected URLConnection openConnection(URL u) {
+				return new URLConnection(u) {
+					@Override
+					public void connect() {
+						connected = true;
+					}
+					@Override
+					public InputStream getInputStream() {
+						return new ByteArrayInputStream(response);
+					}
+				};
+			}
+		};
+		return new URL(BUFFERED_RESPONSE_PROTOCOL, null, -1, url.getFile(), handler);
+	}
+
+
+	public String getReport() {
+		return latency.getReport() +
+				"  retries=" + retryPolicy.getRetryCount() + ", failed requests=" + failureCount.get();
+	}
+
+}
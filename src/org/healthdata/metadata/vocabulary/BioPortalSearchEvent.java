@@ -0,0 +1,41 @@
+package org.healthdata.metadata.vocabulary;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A JDK Flight Recorder event recording a BioPortal search of the {@link BioPortalClient}
+ * (including all the retries, and the parsing of the response).
+ *
+ * @author agent
+ *
+ */
+@Name("org.healthdata.metadata.BioPortalSearch")
+@Label("BioPortal Search")
+@Category({"Healthdata", "Vocabulary"})
+@Description("A search of a term in BioPortal, including the retries and the parsing of the response")
+@StackTrace(false)
+class BioPortalSearchEvent extends Event {
+
+	@Label("Search Term")
+	String searchTerm;
+
+	@Label("Ontologies")
+	String ontologyIds;
+
+	@Label("Bytes")
+	@DataAmount(DataAmount.BYTES)
+	long bytes;
+
+	@Label("Results")
+	int resultCount;
+
+	@Label("Succeeded")
+	boolean succeeded;
+
+}
@@ -0,0 +1,255 @@
+package org.healthdata.metadata.vocabulary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class provides functionality to process a large line based input file
+ * on multiple threads. The input file is split at line boundaries into chunks
+ * of (approximately) equal size; each chunk is memory mapped, decoded and its
+ * lines are processed by a {@link LineRenderer} on a thread pool. The rendered
+ * chunks are written to the output in their original order, while only a
+ * bounded number of chunks are kept in memory at any time.
+ *
+ * @author agent
+ *
+ */
+public class ChunkedLineProcessor {
+
+	public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+	private static final int BOUNDARY_SCAN_BUFFER_SIZE = 8192;
+
+	/**
+	 * Renders a single input line to the output. Implementations are called
+	 * concurrently from multiple threads, and must be thread safe.
+	 */
+	public interface LineRenderer {
+		void renderLine(String line, Writer writer) throws IOException;
+	}
+
+
+	private final int threadCount;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private Charset charset = Charset.defaultCharset();
+
+
+	public ChunkedLineProcessor(int threadCount) {
+		this.threadCount = Math.max(1, threadCount);
+	}
+
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public void setCharset(Charset charset) {
+		this.charset = charset;
+	}
+
+
+	/**
+	 * Processes all the lines of <code>inputFile</code>, except the first
+	 * <code>ignoredLinesCount</code> lines, writing the output of <code>renderer</code>
+	 * for every line (followed by a line separator) to <code>writer</code>.
+	 */
+	public void process(File inputFile, int ignoredLinesCount, LineRenderer renderer,
+			Writer writer) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(inputFile, "r");
+		FileChannel channel = raf.getChannel();
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			long size = channel.size();
+			long start = skipLines(channel, 0, ignoredLinesCount);
+			int maxPendingChunks = threadCount * 2;
+			LinkedList<Future<CharSequence>> pending = new LinkedList<Future<CharSequence>>();
+
+			while (start < size) {
+				long end = Math.min(size, start + chunkSize);
+				if (end < size) {
+					end = skipLines(channel, end, 1);
+				}
+				pending.add(executor.submit(new ChunkTask(channel, start, end, renderer)));
+				start = end;
+
+				if (pending.size() >= maxPendingChunks) {
+					writer.append(getResult(pending.removeFirst()));
+				}
+			}
+			while ( ! pending.isEmpty()) {
+				writer.append(getResult(pending.removeFirst()));
+			}
+		}
+		finally {
+			executor.shutdownNow();
+			channel.close();
+			raf.close();
+		}
+	}
+
+
+	private CharSequence getResult(Future<CharSequence> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a chunk to be processed");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException("Failed to process chunk: " + cause);
+		}
+	}
+
+
+	/**
+	 * Returns the position following the <code>lineCount</code>-th line break
+	 * (LF, CRLF or CR, as in {@link ChunkTask}) found starting from <code>position</code>,
+	 * or the size of the channel, if there are fewer line breaks.
+	 */
+	private long skipLines(FileChannel channel, long position, int lineCount) throws IOException {
+		if (lineCount <= 0) {
+			return position;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(BOUNDARY_SCAN_BUFFER_SIZE);
+		ByteBuffer nextByte = ByteBuffer.allocate(1);
+		int found = 0;
+		long pos = position;
+		int n;
+		while ((n = channel.read(buffer, pos)) > 0) {
+			int i = 0;
+			while (i < n) {
+				byte b = buffer.get(i++);
+				if (b == '\n' || b == '\r') {
+					if (b == '\r') {
+						//a CRLF is a single line break, also if the LF is beyond the buffer
+						if (i < n) {
+							if (buffer.get(i) == '\n') {
+								i++;
+							}
+						}
+						else {
+							nextByte.clear();
+							if (channel.read(nextByte, pos + n) > 0 && nextByte.get(0) == '\n') {
+								i++;
+							}
+						}
+					}
+					found++;
+					if (found == lineCount) {
+						return pos + i;
+					}
+				}
+			}
+			pos += i;
+			buffer.clear();
+		}
+		return channel.size();
+	}
+
+
+	private class ChunkTask implements Callable<CharSequence> {
+
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+		private final LineRenderer renderer;
+
+		ChunkTask(FileChannel channel, long start, long end, LineRenderer renderer) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.renderer = renderer;
+		}
+
+		public CharSequence call() throws IOException {
+			MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			CharBuffer chars = charset.decode(bytes);
+			ChunkWriter out = new ChunkWriter((int) (end - start));
+
+			int lineStart = 0;
+			int length = chars.length();
+			for (int i = 0; i < length; i++) {
+				char c = chars.get(i);
+				if (c == '\n' || c == '\r') {
+					renderer.renderLine(chars.subSequence(lineStart, i).toString(), out);
+					out.write(LINE_SEPARATOR);
+					if (c == '\r' && i + 1 < length && chars.get(i + 1) == '\n') {
+						i++;
+					}
+					lineStart = i + 1;
+				}
+			}
+			if (lineStart < length) {
+				renderer.renderLine(chars.subSequence(lineStart, length).toString(), out);
+				out.write(LINE_SEPARATOR);
+			}
+			return out.getBuffer();
+		}
+	}
+
+
+	/**
+	 * An unsynchronized in-memory writer (as opposed to {@link java.io.StringWriter}).
+	 */
+	static class ChunkWriter extends Writer {
+
+		private final StringBuilder buffer;
+
+		ChunkWriter(int initialCapacity) {
+			buffer = new StringBuilder(initialCapacity);
+		}
+
+		StringBuilder getBuffer() {
+			return buffer;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			buffer.append(cbuf, off, len);
+		}
+
+		@Override
+		public void write(String str) {
+			buffer.append(str);
+		}
+
+		@Override
+		public void write(String str, int off, int len) {
+			buffer.append(str, off, off + len);
+		}
+
+		@Override
+		public void write(int c) {
+			buffer.append((char) c);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+}
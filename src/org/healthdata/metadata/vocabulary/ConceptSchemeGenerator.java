@@ -1,22 +1,45 @@
 package org.healthdata.metadata.vocabulary;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.healthdata.metadata.HealthDataConstants;
-import org.openrdf.model.Resource;
+import org.healthdata.metadata.util.ExternalSort;
 import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
 import org.openrdf.model.impl.URIImpl;
 import org.openrdf.model.vocabulary.RDF;
-import org.openrdf.repository.RepositoryException;
-import org.openrdf.repository.RepositoryResult;
-import org.openrdf.repository.sail.SailRepository;
-import org.openrdf.repository.sail.SailRepositoryConnection;
-import org.openrdf.rio.RDFFormat;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
 import org.openrdf.rio.RDFParseException;
-import org.openrdf.sail.SailException;
-import org.openrdf.sail.memory.MemoryStore;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+import org.openrdf.rio.rdfxml.RDFXMLParser;
 
 /**
  * This class provides functionality to create a SKOS concept scheme from the 
@@ -28,7 +51,19 @@ import org.openrdf.sail.memory.MemoryStore;
  *  - the input OWL ontology
  *  - the class that provides the filtering for the output
  *  - the name of the output OWL file
- *  - the name (URI) of the SKOS concept scheme in the ouptut
+ *  - the name (URI) of the SKOS concept scheme in the ouptut<br>
+ * Alternatively, in batch mode, the main method takes as argument the option -batch,
+ * the input OWL ontology, and a tab separated job file, each line of which contains 
+ * the class name, the -inst or -hier option, the name of the output OWL file, and the
+ * name of the SKOS concept scheme for one concept scheme. In this mode the input 
+ * ontology is parsed only once, and the concept schemes are generated in parallel.
+ * The input ontology is not loaded into memory: it is parsed in a streaming 
+ * fashion. In the -inst mode the URIs of the instances are spooled to a temporary
+ * file, which is sorted on disk without the duplicates (so that an instance typed
+ * more than once is added only once), and the concepts are written from it, in the
+ * order of their URIs. In the -hier mode only an index of the rdfs:subClassOf
+ * relations is built, from which the concepts (with their skos:broader and
+ * skos:narrower concepts) are written to the output.
  *  
  * @author csnyulas
  *
@@ -37,25 +72,39 @@ public class ConceptSchemeGenerator extends UtilityWithOptionalArguments {
 
 	private static final String OPTION_INSTANCES_MODE = "-inst";
 	private static final String OPTION_HIERARCHY_MODE = "-hier";
+	private static final String OPTION_BATCH_MODE = "-batch";
+	private static final String JOB_FILE_COMMENT_PREFIX = "#";
 	
 	private enum Mode {Instances, Hierarchy};
 
-	private Mode operationMode;
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
 
-	private MemoryStore sail;
-	private SailRepository repository;
-	private SailRepositoryConnection conn;
+	private Mode operationMode;
 
 	/**
 	 * @param args
 	 */
 	public static void main(String[] args){
+		run(args);
+	}
+
+	/**
+	 * Runs the tool with the arguments of {@link #main(String[])}.
+	 *
+	 * @return true, if the arguments were valid, and all the concept schemes were generated
+	 */
+	public static boolean run(String[] args) {
+		if (args != null && args.length == 3 && args[0].equals(OPTION_BATCH_MODE)) {
+			return new ConceptSchemeGenerator().generateOutputsInBatch(args[1], args[2]);
+		}
 		if (args == null || args.length != 5) {
 			usage();
+			return false;
 		}
 		Mode opMode = parseOperationModeOption(args[0]);
 		if (opMode == null) {
 			usage();
+			return false;
 		}
 		String inputOWLFileName = args[1];
 		String className = args[2];
@@ -65,13 +114,14 @@ public class ConceptSchemeGenerator extends UtilityWithOptionalArguments {
 		ConceptSchemeGenerator conceptSchemeGen = new ConceptSchemeGenerator();
 		conceptSchemeGen.setOperationMode(opMode);
 		
-		conceptSchemeGen.generateOutput(inputOWLFileName, className, outputOWLFileName, conceptSchemeName);
+		return conceptSchemeGen.generateOutput(inputOWLFileName, className, outputOWLFileName, conceptSchemeName);
 	}
 
 
 	private static void usage() {
 		System.out.println("USAGE: ConceptSchemeGenerator -inst|-hier INPUT_OWL_FILE CLASS_NAME OUTPUT_OWL_FILE CONCEPT_SCHEME_NAME");
-		System.exit(0);
+		System.out.println("   or: ConceptSchemeGenerator -batch INPUT_OWL_FILE JOB_FILE");
+		System.out.println("       where each line of the (tab separated) JOB_FILE contains: CLASS_NAME -inst|-hier OUTPUT_OWL_FILE CONCEPT_SCHEME_NAME");
 	}
 
 
@@ -93,121 +143,510 @@ public class ConceptSchemeGenerator extends UtilityWithOptionalArguments {
 	}
 
 
-	private void generateOutput(String inputOWLFileName, String className,
+	private boolean generateOutput(String inputOWLFileName, String className,
 			String outputOWLFileName, String conceptSchemeName) {
-		boolean exception = false;
-		try {
-			openInputOntology(inputOWLFileName);
-		} catch (SailException e) {
-			e.printStackTrace();
-			exception = true;
-		} catch (RDFParseException e) {
-			e.printStackTrace();
-			exception = true;
-		} catch (RepositoryException e) {
-			e.printStackTrace();
-			exception = true;
-		} catch (IOException e) {
-			e.printStackTrace();
-			exception = true;
-		}
-		if (exception) {
-			log.severe("Operation will be aborted");
-			return;
-		}
-
 		BufferedWriter writer;
 		try {
 			writer = openOutputStream(outputOWLFileName);
 		} catch (IOException e) {
 			e.printStackTrace();
 			log.severe("Operation will be aborted");
-			return;
+			return false;
+		}
+		if (writer == null) {
+			return false;
 		}
 		
 		try {
 			if (operationMode == Mode.Instances) {
-				createConceptSchemeForInstances(className, conceptSchemeName, writer);
+				createConceptSchemeForInstances(inputOWLFileName, className, conceptSchemeName, writer);
 			} else {
-				createConceptSchemeForHierarchy(className, conceptSchemeName, writer);
+				createConceptSchemeForHierarchy(inputOWLFileName, className, conceptSchemeName, writer);
 			}
-		} catch (RepositoryException e) {
+		} catch (RDFParseException e) {
 			e.printStackTrace();
 			log.severe("Operation will be aborted");
-			return;
-		} catch (IOException e) {
+			return false;
+		} catch (RDFHandlerException e) {
 			e.printStackTrace();
 			log.severe("Operation will be aborted");
-			return;
-		}
-		
-		try {
-			writer.close();
+			return false;
 		} catch (IOException e) {
 			e.printStackTrace();
+			log.severe("Operation will be aborted");
+			return false;
+		} finally {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
-		try {
-			conn.close();
-		} catch (RepositoryException e) {
-			e.printStackTrace();
-		}
+		
 		System.out.println("Done!");
+		return true;
 	}
 
 
-	private void openInputOntology(String inputOWLFileName) throws SailException, RDFParseException, RepositoryException, IOException {
+	/**
+	 * Parses the input ontology in a streaming fashion, passing every statement
+	 * to <code>handler</code>, without loading the ontology into memory.
+	 */
+	void parseInputOntology(String inputOWLFileName, RDFHandler handler) 
+			throws RDFParseException, RDFHandlerException, IOException {
 		File inputFile = new File(inputOWLFileName);
 		String inputFileName = inputFile.getName();
-		sail = new MemoryStore();
-		sail.initialize();
-		repository = new SailRepository(sail);
-		conn = repository.getConnection();
-		conn.add(inputFile, HealthDataConstants.HEALTHDATA_GOV_DATASET_BASE_URI + inputFileName, RDFFormat.RDFXML);
-		
+		RDFParser parser = new RDFXMLParser();
+		parser.setRDFHandler(handler);
+		InputStream is = new BufferedInputStream(new FileInputStream(inputFile));
+		try {
+			parser.parse(is, HealthDataConstants.HEALTHDATA_GOV_DATASET_BASE_URI + inputFileName);
+		}
+		finally {
+			is.close();
+		}
 	}
 
 
-	private void createConceptSchemeForInstances(String className,
-			String conceptSchemeName, BufferedWriter writer) throws RepositoryException, IOException {
-		URIImpl uriClass = new URIImpl(className);
-		RepositoryResult<Statement> statements = conn.getStatements(null, RDF.TYPE, uriClass, false);
+	/**
+	 * Parses an ontology read from <code>reader</code>, as if it were read from the file
+	 * <code>inputOWLFileName</code> (see {@link #parseInputOntology(String, RDFHandler)}).
+	 */
+	void parseInputOntology(Reader reader, String inputOWLFileName, RDFHandler handler) 
+			throws RDFParseException, RDFHandlerException, IOException {
+		RDFParser parser = new RDFXMLParser();
+		parser.setRDFHandler(handler);
+		parser.parse(reader, HealthDataConstants.HEALTHDATA_GOV_DATASET_BASE_URI + new File(inputOWLFileName).getName());
+	}
+
+
+	private void createConceptSchemeForInstances(String inputOWLFileName, String className,
+			String conceptSchemeName, BufferedWriter writer) 
+			throws RDFParseException, RDFHandlerException, IOException {
+		final URI uriClass = new URIImpl(className);
 		
-		writePreamble(writer, conceptSchemeName);
-		String conceptSchemeStatement = "    <owl:NamedIndividual rdf:about=\"" + conceptSchemeName + "\">\n";
-
-		while (statements.hasNext()) {
-			Statement st = statements.next();
-			Resource subject = st.getSubject();
-			System.out.println(subject.stringValue());
-
-			String conceptStatement = 
-					  "    <owl:NamedIndividual rdf:about=\"" + subject + "\">\n"
-					+ "        <rdf:type rdf:resource=\"&skos;Concept\"/>\n"
-					+ "        <skos:inScheme rdf:resource=\"" + conceptSchemeName + "\"/>\n"
-					+ "        <skos:topConceptOf rdf:resource=\"" + conceptSchemeName + "\"/>\n"
-					//+ "        <rdfs:label>" + getTheLabel + "</rdfs:label>\n"
-					+ "    </owl:NamedIndividual>\n";
+		//the instances are spooled to a temporary file, which is then sorted, without the duplicates
+		//(an instance may be typed more than once), so that they are not kept in memory
+		File instancesFile = File.createTempFile("instances", ".txt");
+		File sortedInstancesFile = File.createTempFile("instances", ".sorted.txt");
+		try {
+			final BufferedWriter instancesWriter = openSpoolWriter(instancesFile);
+			try {
+				parseInputOntology(inputOWLFileName, new RDFHandlerBase() {
+					@Override
+					public void handleStatement(Statement st) throws RDFHandlerException {
+						if (RDF.TYPE.equals(st.getPredicate()) && uriClass.equals(st.getObject()) 
+								&& st.getSubject() instanceof URI) {
+							try {
+								instancesWriter.write(st.getSubject().stringValue());
+								instancesWriter.newLine();
+							} catch (IOException e) {
+								throw new RDFHandlerException(e);
+							}
+						}
+					}
+				});
+			}
+			finally {
+				instancesWriter.close();
+			}
+			long instanceCount = ExternalSort.sortUnique(instancesFile, sortedInstancesFile);
 			
-			conceptSchemeStatement += "        <skos:hasTopConcept rdf:resource=\"" + subject + "\"/>\n";
+			writePreamble(writer, conceptSchemeName);
+			BufferedReader reader = openSpoolReader(sortedInstancesFile);
+			try {
+				String instance;
+				while ((instance = reader.readLine()) != null) {
+					writeConcept(writer, instance, conceptSchemeName, true);
+				}
+			}
+			finally {
+				reader.close();
+			}
 			
-			writer.write(conceptStatement);
+			//the skos:hasTopConcept entries are written in a second pass over the sorted instances
+			writer.write("    <owl:NamedIndividual rdf:about=\"" + escapeXml(conceptSchemeName) + "\">\n");
+			reader = openSpoolReader(sortedInstancesFile);
+			try {
+				String instance;
+				while ((instance = reader.readLine()) != null) {
+					writeHasTopConcept(writer, instance);
+				}
+			}
+			finally {
+				reader.close();
+			}
+			writer.write("    </owl:NamedIndividual>\n");
 			writer.newLine();
+			
+			writePrologue(writer);
+			System.out.println("Added " + instanceCount + " instances of " + className + " to the concept scheme");
+		}
+		finally {
+			instancesFile.delete();
+			sortedInstancesFile.delete();
 		}
+	}
+
+	private static BufferedWriter openSpoolWriter(File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+	}
+
+	private static BufferedReader openSpoolReader(File file) throws IOException {
+		return new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+	}
+
+
+	private void createConceptSchemeForHierarchy(String inputOWLFileName, String className, 
+			String conceptSchemeName, BufferedWriter writer) 
+			throws RDFParseException, RDFHandlerException, IOException {
+		//build the subclass index in a single pass over the input
+		final HierarchyIndex index = new HierarchyIndex();
+		parseInputOntology(inputOWLFileName, new RDFHandlerBase() {
+			@Override
+			public void handleStatement(Statement st) throws RDFHandlerException {
+				if (RDFS.SUBCLASSOF.equals(st.getPredicate()) 
+						&& st.getSubject() instanceof URI && st.getObject() instanceof URI) {
+					index.addSubclass(st.getSubject().stringValue(), st.getObject().stringValue());
+				}
+			}
+		});
 		
-		conceptSchemeStatement += "    </owl:NamedIndividual>\n";
-		writer.write(conceptSchemeStatement);
+		writeConceptSchemeForHierarchy(index, className, conceptSchemeName, writer);
+	}
+
+
+	/**
+	 * Writes the concept scheme containing all the descendants of <code>className</code>,
+	 * as found in <code>index</code>. The index is only read, so this method can be 
+	 * called concurrently for the same index.
+	 */
+	private void writeConceptSchemeForHierarchy(HierarchyIndex index, String className, 
+			String conceptSchemeName, BufferedWriter writer) throws IOException {
+		int root = index.getId(className);
+		if (root < 0) {
+			log.warning("The class " + className + " has no subclasses in the input ontology");
+		}
+		int[] descendants = index.getDescendants(root);
+		BitSet isDescendant = new BitSet(index.size());
+		for (int node : descendants) {
+			isDescendant.set(node);
+		}
+		
+		writePreamble(writer, conceptSchemeName);
+		
+		List<String> broader = new ArrayList<String>();
+		List<String> narrower = new ArrayList<String>();
+		for (int node : descendants) {
+			boolean isTopConcept = false;
+			broader.clear();
+			narrower.clear();
+			for (int parent : index.getParents(node)) {
+				if (parent == root) {
+					isTopConcept = true;
+				}
+				else if (isDescendant.get(parent)) {
+					broader.add(index.getName(parent));
+				}
+			}
+			for (int child : index.getChildren(node)) {
+				if (child != root) {
+					narrower.add(index.getName(child));
+				}
+			}
+			writeConcept(writer, index.getName(node), conceptSchemeName, isTopConcept, broader, narrower);
+		}
+		
+		writer.write("    <owl:NamedIndividual rdf:about=\"" + escapeXml(conceptSchemeName) + "\">\n");
+		if (root >= 0) {
+			for (int topConcept : index.getChildren(root)) {
+				if (topConcept != root) {
+					writeHasTopConcept(writer, index.getName(topConcept));
+				}
+			}
+		}
+		writer.write("    </owl:NamedIndividual>\n");
 		writer.newLine();
 		
 		writePrologue(writer);
+		System.out.println("Added " + descendants.length + " descendants of " + className + " to the concept scheme " + conceptSchemeName);
 	}
+	
 
+	private void writeConcept(Writer writer, String concept, String conceptSchemeName, 
+			boolean isTopConcept) throws IOException {
+		writeConcept(writer, concept, conceptSchemeName, isTopConcept, 
+				Collections.<String>emptyList(), Collections.<String>emptyList());
+	}
 
-	private void createConceptSchemeForHierarchy(String className, String conceptSchemeName,
-			BufferedWriter writer) {
-		// TODO Auto-generated method stub
-		System.out.println("Not implemented yet");
+	private void writeConcept(Writer writer, String concept, String conceptSchemeName, 
+			boolean isTopConcept, List<String> broader, List<String> narrower) throws IOException {
+		writer.write("    <owl:NamedIndividual rdf:about=\"");
+		writer.write(escapeXml(concept));
+		writer.write("\">\n");
+		writer.write("        <rdf:type rdf:resource=\"&skos;Concept\"/>\n");
+		writer.write("        <skos:inScheme rdf:resource=\"");
+		writer.write(escapeXml(conceptSchemeName));
+		writer.write("\"/>\n");
+		if (isTopConcept) {
+			writer.write("        <skos:topConceptOf rdf:resource=\"");
+			writer.write(escapeXml(conceptSchemeName));
+			writer.write("\"/>\n");
+		}
+		for (String broaderConcept : broader) {
+			writer.write("        <skos:broader rdf:resource=\"");
+			writer.write(escapeXml(broaderConcept));
+			writer.write("\"/>\n");
+		}
+		for (String narrowerConcept : narrower) {
+			writer.write("        <skos:narrower rdf:resource=\"");
+			writer.write(escapeXml(narrowerConcept));
+			writer.write("\"/>\n");
+		}
+		//writer.write("        <rdfs:label>" + getTheLabel + "</rdfs:label>\n");
+		writer.write("    </owl:NamedIndividual>\n");
+		writer.write(LINE_SEPARATOR);
 	}
-	
+
+	private void writeHasTopConcept(Writer writer, String concept) throws IOException {
+		writer.write("        <skos:hasTopConcept rdf:resource=\"");
+		writer.write(escapeXml(concept));
+		writer.write("\"/>\n");
+	}
+
+	private static String escapeXml(String text) {
+		if (text.indexOf('&') < 0 && text.indexOf('<') < 0 && text.indexOf('"') < 0) {
+			return text;
+		}
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
+	}
+
+	//**************************** Batch mode *****************************************//
+
+	private boolean generateOutputsInBatch(final String inputOWLFileName, String jobFileName) {
+		return generateOutputsInBatch(new OntologyInput() {
+			public void parse(RDFHandler handler) throws RDFParseException, RDFHandlerException, IOException {
+				parseInputOntology(inputOWLFileName, handler);
+			}
+		}, jobFileName);
+	}
+
+
+	/**
+	 * The input ontology of the batch mode, which is parsed only once.
+	 */
+	interface OntologyInput {
+		/**
+		 * Parses the ontology, passing every statement to <code>handler</code>.
+		 */
+		void parse(RDFHandler handler) throws RDFParseException, RDFHandlerException, IOException;
+	}
+
+	/**
+	 * Generates the concept schemes described in the job file from an ontology that
+	 * is parsed (only once) by <code>input</code>, and returns true, if all of them
+	 * were generated.
+	 */
+	boolean generateOutputsInBatch(OntologyInput input, String jobFileName) {
+		List<ConceptSchemeJob> jobs;
+		try {
+			jobs = readJobFile(jobFileName);
+		} catch (IOException e) {
+			e.printStackTrace();
+			jobs = null;
+		}
+		if (jobs == null || jobs.isEmpty()) {
+			log.severe("No valid jobs could be read from " + jobFileName + ". Operation will be aborted");
+			return false;
+		}
+
+		//parse the input only once, collecting everything needed by all the jobs
+		final BatchStatementCollector collector = new BatchStatementCollector(jobs);
+		try {
+			input.parse(collector);
+		} catch (RDFParseException e) {
+			e.printStackTrace();
+			log.severe("Operation will be aborted");
+			return false;
+		} catch (RDFHandlerException e) {
+			e.printStackTrace();
+			log.severe("Operation will be aborted");
+			return false;
+		} catch (IOException e) {
+			e.printStackTrace();
+			log.severe("Operation will be aborted");
+			return false;
+		}
+
+		int threadCount = Math.min(jobs.size(), Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (final ConceptSchemeJob job : jobs) {
+			results.add(executor.submit(new Callable<Void>() {
+				public Void call() throws IOException {
+					runJob(job, collector);
+					return null;
+				}
+			}));
+		}
+		executor.shutdown();
+
+		int failedJobs = 0;
+		for (int i = 0; i < jobs.size(); i++) {
+			try {
+				results.get(i).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				executor.shutdownNow();
+				log.severe("Interrupted while waiting for the concept schemes to be generated");
+				return false;
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+				log.severe("Generation of " + jobs.get(i).outputOWLFileName + " failed");
+				failedJobs++;
+			}
+		}
+
+		System.out.println("Done! Generated " + (jobs.size() - failedJobs) + " of " + jobs.size() + " concept schemes.");
+		return failedJobs == 0;
+	}
+
+
+	private List<ConceptSchemeJob> readJobFile(String jobFileName) throws IOException {
+		BufferedReader reader = openInputStream(jobFileName);
+		if (reader == null) {
+			return null;
+		}
+		List<ConceptSchemeJob> jobs = new ArrayList<ConceptSchemeJob>();
+		CsvReader csvReader = new CsvReader(reader, CSV_FIELD_SEPARATOR_TAB.charAt(0));
+		try {
+			while (csvReader.readRecord()) {
+				String[] fields = csvReader.getFields();
+				if (fields.length == 1 && fields[0].trim().isEmpty() 
+						|| fields[0].startsWith(JOB_FILE_COMMENT_PREFIX)) {
+					continue;
+				}
+				if (fields.length != 4) {
+					log.severe("Invalid line " + csvReader.getRecordCount() + " in job file " + jobFileName + 
+							": it should contain CLASS_NAME, -inst|-hier, OUTPUT_OWL_FILE and CONCEPT_SCHEME_NAME, separated by tabs");
+					return null;
+				}
+				Mode mode = parseOperationModeOption(fields[1].trim());
+				if (mode == null) {
+					return null;
+				}
+				jobs.add(new ConceptSchemeJob(fields[0].trim(), mode, fields[2].trim(), fields[3].trim()));
+			}
+		}
+		finally {
+			csvReader.close();
+		}
+		return jobs;
+	}
+
+
+	private void runJob(ConceptSchemeJob job, BatchStatementCollector collector) throws IOException {
+		BufferedWriter writer = openOutputStream(job.outputOWLFileName);
+		if (writer == null) {
+			throw new IOException("Output file " + job.outputOWLFileName + " could not be created");
+		}
+		try {
+			if (job.mode == Mode.Instances) {
+				writeConceptSchemeForInstances(collector.getInstances(job.className), 
+						job.className, job.conceptSchemeName, writer);
+			}
+			else {
+				writeConceptSchemeForHierarchy(collector.getHierarchyIndex(), 
+						job.className, job.conceptSchemeName, writer);
+			}
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+
+	private void writeConceptSchemeForInstances(Collection<String> instances, String className, 
+			String conceptSchemeName, BufferedWriter writer) throws IOException {
+		writePreamble(writer, conceptSchemeName);
+		for (String instance : instances) {
+			writeConcept(writer, instance, conceptSchemeName, true);
+		}
+		writer.write("    <owl:NamedIndividual rdf:about=\"" + escapeXml(conceptSchemeName) + "\">\n");
+		for (String instance : instances) {
+			writeHasTopConcept(writer, instance);
+		}
+		writer.write("    </owl:NamedIndividual>\n");
+		writer.newLine();
+		writePrologue(writer);
+		System.out.println("Added " + instances.size() + " instances of " + className + " to the concept scheme " + conceptSchemeName);
+	}
+
+
+	private static class ConceptSchemeJob {
+		final String className;
+		final Mode mode;
+		final String outputOWLFileName;
+		final String conceptSchemeName;
+
+		ConceptSchemeJob(String className, Mode mode, String outputOWLFileName, String conceptSchemeName) {
+			this.className = className;
+			this.mode = mode;
+			this.outputOWLFileName = outputOWLFileName;
+			this.conceptSchemeName = conceptSchemeName;
+		}
+	}
+
+
+	/**
+	 * Collects, in a single pass over the input ontology, the instances of all the
+	 * classes used by -inst jobs, and (only if there are -hier jobs) the class hierarchy.
+	 * After the parsing is done, the collected data is only read (possibly concurrently).
+	 */
+	private static class BatchStatementCollector extends RDFHandlerBase {
+
+		private final Map<String, Set<String>> instancesByClass = new HashMap<String, Set<String>>();
+		private final HierarchyIndex hierarchyIndex;
+
+		BatchStatementCollector(List<ConceptSchemeJob> jobs) {
+			boolean needsHierarchy = false;
+			for (ConceptSchemeJob job : jobs) {
+				if (job.mode == Mode.Instances) {
+					instancesByClass.put(job.className, new TreeSet<String>());
+				}
+				else {
+					needsHierarchy = true;
+				}
+			}
+			hierarchyIndex = (needsHierarchy ? new HierarchyIndex() : null);
+		}
+
+		@Override
+		public void handleStatement(Statement st) {
+			if ( ! (st.getSubject() instanceof URI)) {
+				return;
+			}
+			if (RDF.TYPE.equals(st.getPredicate())) {
+				Set<String> instances = instancesByClass.get(st.getObject().stringValue());
+				if (instances != null) {
+					instances.add(st.getSubject().stringValue());
+				}
+			}
+			else if (hierarchyIndex != null && RDFS.SUBCLASSOF.equals(st.getPredicate()) 
+					&& st.getObject() instanceof URI) {
+				hierarchyIndex.addSubclass(st.getSubject().stringValue(), st.getObject().stringValue());
+			}
+		}
+
+		Collection<String> getInstances(String className) {
+			return instancesByClass.get(className);
+		}
+
+		HierarchyIndex getHierarchyIndex() {
+			return hierarchyIndex;
+		}
+	}
+
 
 	private void writePreamble(BufferedWriter writer, String conceptSchemeName) throws IOException {
 		String text = "<?xml version=\"1.0\"?>\n"
@@ -230,7 +669,7 @@ public class ConceptSchemeGenerator extends UtilityWithOptionalArguments {
 				+ "	 \n"
 				+ "    <owl:Ontology rdf:about=\"http://purl.bioontology.org/healthdata/schemes\"/>\n"
 				+ "\n"
-				+ "    <owl:NamedIndividual rdf:about=\"" + conceptSchemeName + "\">\n"
+				+ "    <owl:NamedIndividual rdf:about=\"" + escapeXml(conceptSchemeName) + "\">\n"
 				+ "        <rdf:type rdf:resource=\"&skos;ConceptScheme\"/>\n"
 				+ "    </owl:NamedIndividual>\n";
 				
@@ -0,0 +1,291 @@
+package org.healthdata.metadata.vocabulary;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A streaming reader for CSV (or TSV) files, following RFC 4180: fields may be
+ * enclosed in double quotes, in which case they can contain separators, line breaks
+ * and (doubled) double quotes. Records can be terminated by LF, CRLF or CR. <br>
+ * The reader is lenient with malformed input: a quote that does not start a field
+ * is taken literally, and so is any text following the closing quote of a field. <br>
+ * The field buffers are reused from one record to the next, so the values of a record
+ * must be retrieved (e.g. with {@link #getFields()}) before reading the next record.
+ * Instances are not thread safe.
+ *
+ * @author agent
+ *
+ */
+public class CsvReader {
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final char QUOTE = '"';
+
+	private final char separator;
+	private final Reader in;
+
+	private char[] buffer = new char[BUFFER_SIZE];
+	private int pos = 0;
+	private int limit = 0;
+	private boolean eof = false;
+
+	private final List<StringBuilder> fields = new ArrayList<StringBuilder>();
+	private int fieldCount = 0;
+	private final StringBuilder rawRecord = new StringBuilder();
+	private boolean keepRawRecord = false;
+	private long recordCount = 0;
+
+
+	/**
+	 * Creates a reader for the records of <code>in</code>.
+	 */
+	public CsvReader(Reader in, char separator) {
+		this.in = in;
+		this.separator = separator;
+	}
+
+	/**
+	 * Creates a reader that can be used only to parse single records with {@link #parse(String)}.
+	 */
+	public CsvReader(char separator) {
+		this(null, separator);
+		this.eof = true;
+	}
+
+
+	public char getSeparator() {
+		return separator;
+	}
+
+	/**
+	 * Specifies whether the original text of the records should be kept
+	 * (see {@link #getRawRecord()}). It is not kept by default.
+	 */
+	public void setKeepRawRecord(boolean keepRawRecord) {
+		this.keepRawRecord = keepRawRecord;
+	}
+
+
+	/**
+	 * Reads the next record.
+	 *
+	 * @return false, if the end of the input was reached, and there are no more records
+	 */
+	public boolean readRecord() throws IOException {
+		if (pos >= limit && ! fill()) {
+			return false;
+		}
+
+		fieldCount = 0;
+		rawRecord.setLength(0);
+		StringBuilder field = nextField();
+		boolean atFieldStart = true;
+		boolean inQuotes = false;
+
+		while (pos < limit || fill()) {
+			//copy the longest run of ordinary characters at once
+			int runStart = pos;
+			if (inQuotes) {
+				while (pos < limit && buffer[pos] != QUOTE) {
+					pos++;
+				}
+			}
+			else {
+				while (pos < limit && ! isSpecial(buffer[pos])) {
+					pos++;
+				}
+			}
+			if (pos > runStart) {
+				field.append(buffer, runStart, pos - runStart);
+				if (keepRawRecord) {
+					rawRecord.append(buffer, runStart, pos - runStart);
+				}
+				atFieldStart = false;
+			}
+			if (pos >= limit) {
+				continue;
+			}
+
+			char c = buffer[pos++];
+			if (inQuotes) {
+				//c is a quote
+				if (keepRawRecord) {
+					rawRecord.append(c);
+				}
+				if ((pos < limit || fill()) && buffer[pos] == QUOTE) {
+					if (keepRawRecord) {
+						rawRecord.append(QUOTE);
+					}
+					pos++;
+					field.append(QUOTE);
+				}
+				else {
+					inQuotes = false;
+				}
+			}
+			else if (c == '\n') {
+				break;
+			}
+			else if (c == '\r') {
+				if ((pos < limit || fill()) && buffer[pos] == '\n') {
+					pos++;
+				}
+				break;
+			}
+			else if (c == separator) {
+				if (keepRawRecord) {
+					rawRecord.append(c);
+				}
+				field = nextField();
+				atFieldStart = true;
+			}
+			else {
+				//c is a quote
+				if (keepRawRecord) {
+					rawRecord.append(c);
+				}
+				if (atFieldStart) {
+					inQuotes = true;
+				}
+				else {
+					field.append(c);
+				}
+				atFieldStart = false;
+			}
+		}
+
+		recordCount++;
+		return true;
+	}
+
+	/**
+	 * Skips the next <code>count</code> records.
+	 *
+	 * @return the number of records actually skipped
+	 */
+	public int skipRecords(int count) throws IOException {
+		int i = 0;
+		while (i < count && readRecord()) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Parses <code>record</code> as a single, complete record, which can then
+	 * be accessed with the methods {@link #getFieldCount()}, {@link #getField(int)}, etc.
+	 * Line breaks (that are not part of a quoted field) terminate the record.
+	 */
+	public void parse(String record) {
+		if (in != null) {
+			throw new IllegalStateException("Only readers that are not bound to an input can parse records");
+		}
+		int length = record.length();
+		if (buffer.length < length) {
+			buffer = new char[Math.max(length, buffer.length * 2)];
+		}
+		record.getChars(0, length, buffer, 0);
+		pos = 0;
+		limit = length;
+		try {
+			if ( ! readRecord()) {
+				//empty record
+				fieldCount = 0;
+				rawRecord.setLength(0);
+				nextField();
+			}
+		} catch (IOException e) {
+			//can not happen, as there is no underlying input
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+	public int getFieldCount() {
+		return fieldCount;
+	}
+
+	public String getField(int i) {
+		if (i < 0 || i >= fieldCount) {
+			throw new IndexOutOfBoundsException("Field " + i + " of a record with " + fieldCount + " fields");
+		}
+		return fields.get(i).toString();
+	}
+
+	public String[] getFields() {
+		String[] res = new String[fieldCount];
+		for (int i = 0; i < fieldCount; i++) {
+			res[i] = fields.get(i).toString();
+		}
+		return res;
+	}
+
+	/**
+	 * Returns the text of the last record, as it appeared in the input
+	 * (including quotes), without the terminating line break, if 
+	 * {@link #setKeepRawRecord(boolean)} was enabled.
+	 */
+	public String getRawRecord() {
+		return rawRecord.toString();
+	}
+
+	/**
+	 * Returns the number of records read so far (including the skipped ones).
+	 */
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	public void close() throws IOException {
+		if (in != null) {
+			in.close();
+		}
+	}
+
+
+	private boolean isSpecial(char c) {
+		return c == separator || c == QUOTE || c == '\n' || c == '\r';
+	}
+
+	private StringBuilder nextField() {
+		StringBuilder field;
+		if (fieldCount < fields.size()) {
+			field = fields.get(fieldCount);
+			field.setLength(0);
+		}
+		else {
+			field = new StringBuilder();
+			fields.add(field);
+		}
+		fieldCount++;
+		return field;
+	}
+
+	/*
+	 * Refills the buffer, if it was completely consumed.
+	 * Returns false if there is no more input.
+	 */
+	private boolean fill() throws IOException {
+		if (pos < limit) {
+			return true;
+		}
+		if (eof) {
+			return false;
+		}
+		int n = in.read(buffer, 0, buffer.length);
+		while (n == 0) {
+			n = in.read(buffer, 0, buffer.length);
+		}
+		if (n < 0) {
+			eof = true;
+			pos = limit = 0;
+			return false;
+		}
+		pos = 0;
+		limit = n;
+		return true;
+	}
+
+}
@@ -0,0 +1,141 @@
+package org.healthdata.metadata.vocabulary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact index of a class hierarchy (i.e. of rdfs:subClassOf relations),
+ * built in a single pass over the statements of an ontology. Classes are
+ * identified by consecutive int ids, and both the subclass and the superclass
+ * adjacency lists are kept, so that the hierarchy below a class can be traversed
+ * without querying the ontology for every node.
+ *
+ * @author agent
+ *
+ */
+class HierarchyIndex {
+
+	private static final int[] NO_NODES = new int[0];
+
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private final List<String> names = new ArrayList<String>();
+	private final List<IntList> children = new ArrayList<IntList>();
+	private final List<IntList> parents = new ArrayList<IntList>();
+
+
+	public void addSubclass(String subclass, String superclass) {
+		int sub = getOrCreateId(subclass);
+		int sup = getOrCreateId(superclass);
+		//classes typically have very few superclasses, so a linear search is cheap
+		if (parents.get(sub).contains(sup)) {
+			return;
+		}
+		children.get(sup).add(sub);
+		parents.get(sub).add(sup);
+	}
+
+	public int size() {
+		return names.size();
+	}
+
+	/**
+	 * Returns the id of <code>name</code>, or -1, if it does not appear in the hierarchy.
+	 */
+	public int getId(String name) {
+		Integer id = ids.get(name);
+		return (id == null ? -1 : id.intValue());
+	}
+
+	public String getName(int id) {
+		return names.get(id);
+	}
+
+	public int[] getChildren(int id) {
+		return children.get(id).toArray();
+	}
+
+	public int[] getParents(int id) {
+		return parents.get(id).toArray();
+	}
+
+	/**
+	 * Returns the ids of all the (direct and indirect) subclasses of <code>root</code>,
+	 * in breadth first order, each of them exactly once. The traversal is iterative,
+	 * and it is safe in presence of cycles (<code>root</code> itself is never included).
+	 */
+	public int[] getDescendants(int root) {
+		if (root < 0) {
+			return NO_NODES;
+		}
+		BitSet visited = new BitSet(size());
+		visited.set(root);
+		IntList queue = new IntList();
+		queue.add(root);
+		int head = 0;
+		while (head < queue.size()) {
+			IntList nodeChildren = children.get(queue.get(head++));
+			for (int i = 0; i < nodeChildren.size(); i++) {
+				int child = nodeChildren.get(i);
+				if ( ! visited.get(child)) {
+					visited.set(child);
+					queue.add(child);
+				}
+			}
+		}
+		int[] res = queue.toArray();
+		return Arrays.copyOfRange(res, 1, res.length);
+	}
+
+
+	private int getOrCreateId(String name) {
+		Integer id = ids.get(name);
+		if (id == null) {
+			id = names.size();
+			ids.put(name, id);
+			names.add(name);
+			children.add(new IntList());
+			parents.add(new IntList());
+		}
+		return id;
+	}
+
+
+	private static class IntList {
+
+		private int[] values = NO_NODES;
+		private int size = 0;
+
+		void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, Math.max(4, size * 2));
+			}
+			values[size++] = value;
+		}
+
+		int get(int i) {
+			return values[i];
+		}
+
+		int size() {
+			return size;
+		}
+
+		boolean contains(int value) {
+			for (int i = 0; i < size; i++) {
+				if (values[i] == value) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+}
@@ -2,7 +2,9 @@ package org.healthdata.metadata.vocabulary;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
 
 /**
  * This class provides functionality to generate OWL axioms from the content of 
@@ -11,23 +13,46 @@ import java.io.IOException;
  * replacing all the placeholders of the form %$N%  - where N=1,2,3,... - with a 
  * value from the column 1,2,3,... <br>
  * This functionality is extremely useful, for example in creating OWL vocabularies 
- * from the content of CSV files.
+ * from the content of CSV files. <br>
+ * Large input files can be processed on multiple threads (see the '-p[N]' option), 
+ * in which case the input is split into chunks at line boundaries, and the output
+ * of each chunk is written in the original order. In this mode quoted fields 
+ * can not contain line breaks. <br>
+ * In a {@link VocabularyPipeline} the records are received directly from the previous
+ * stage, and the rendered axioms are passed on as text to the next stage.
  * 
  * @author csnyulas
  *
  */
 public class OWLAxiomGenerator extends UtilityWithOptionalArguments {
 
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+	/** the (approximate) size of the text chunks passed to the next stage of a pipeline */
+	private static final int PIPELINE_CHUNK_SIZE = 8 * 1024;
+
+	private int threadCount = 0;
+
 
 	/**
 	 * @param args
 	 */
 	public static void main(String[] args) {
+		run(args);
+	}
+
+	/**
+	 * Runs the tool with the arguments of {@link #main(String[])}.
+	 *
+	 * @return true, if the arguments were valid, and the output file was generated
+	 */
+	public static boolean run(String[] args) {
 		if (args == null || args.length < 3) {
 			usage();
+			return false;
 		}
 		String separatorOption = extractSeparatorOptionFromArguments(args);
 		int ignoreLinesOption = extractIgnoreLinesOptionFromArguments(args);
+		int parallelismOption = extractParallelismOptionFromArguments(args);
 		String inputCsvFileName = args[args.length - 3];
 		String templateFileName = args[args.length - 2];
 		String outputOWLFileName = args[args.length - 1];
@@ -37,17 +62,28 @@ public class OWLAxiomGenerator extends UtilityWithOptionalArguments {
 			owlAxiomGen.setCSVFieldSeparator(separatorOption);
 		}
 		owlAxiomGen.setIgnoredLinesCount(ignoreLinesOption);
+		owlAxiomGen.setThreadCount(parallelismOption);
 		try {
 			owlAxiomGen.generateOutput(inputCsvFileName, templateFileName, outputOWLFileName);
+			return true;
 		} catch (IOException ioe) {
 			ioe.printStackTrace();
+			return false;
 		}
 	}
 
 
 	private static void usage() {
-		System.out.println("USAGE: OWLStatementGenerator [-sC|-sT|-sc|-st] [-i[N]] INPUT_CSV_FILE TEMPLATE_FILE OUTPUT_OWL_FILE");
-		System.exit(0);
+		System.out.println("USAGE: OWLStatementGenerator [-sC|-sT|-sc|-st] [-i[N]] [-p[N]] INPUT_CSV_FILE TEMPLATE_FILE OUTPUT_OWL_FILE");
+	}
+
+	
+	/**
+	 * @param threadCount the number of threads used to process the input, 
+	 * or 0 (the default), to process the input sequentially on the calling thread
+	 */
+	public void setThreadCount(int threadCount) {
+		this.threadCount = threadCount;
 	}
 
 	
@@ -55,11 +91,11 @@ public class OWLAxiomGenerator extends UtilityWithOptionalArguments {
 			String outputOWLFileName) throws IOException {
 		
 		//open input & output files
-		BufferedReader reader;
+		CsvReader reader;
 		BufferedReader templReader;
 		BufferedWriter writer;
 		try {
-			reader = openInputStream(inputCsvFileName);
+			reader = openCsvInputStream(inputCsvFileName);
 			templReader = openInputStream(templateFileName);
 			writer = openOutputStream(outputOWLFileName);
 		}
@@ -71,24 +107,19 @@ public class OWLAxiomGenerator extends UtilityWithOptionalArguments {
 		}
 		
 		//read template
-		String template = "";
-		String line = templReader.readLine();
-		while (line != null) {
-			template += line;
-			line = templReader.readLine();
-			
-			//add a new line character after all lines, except the last one
-			if (line != null) {
-				template += "\n";
-			}
-		}
+		OWLAxiomTemplate template = OWLAxiomTemplate.read(templReader);
 		templReader.close();
 		
-		//read and process input line by line
-		line = readFirstValidLine(reader);
-		while (line != null) {
-			processLine(line, template, writer);
-			line = reader.readLine();
+		if (threadCount > 0) {
+			//process input in chunks on multiple threads
+			reader.close();
+			processInParallel(new File(inputCsvFileName), template, writer);
+		}
+		else {
+			//read and process input record by record
+			while (reader.readRecord()) {
+				processRecord(reader, template, writer);
+			}
 		}
 		
 		writer.close();
@@ -97,20 +128,59 @@ public class OWLAxiomGenerator extends UtilityWithOptionalArguments {
 	}
 
 
-	private void processLine(String line, String template, BufferedWriter writer) throws IOException {
-		String[] parts = parseLine(line);
-		
-		//1. replace place holders in template with values from input
-		String res = template;
-		for (int i = 0; i < parts.length; i++) {
-			res = res.replaceAll("%\\$" + (i + 1) + "%", parts[i]);
-		}
+	private void processRecord(CsvReader record, OWLAxiomTemplate template, BufferedWriter writer) throws IOException {
+		String[] parts = record.getFields();
 		
-		//2. write line to output
-		writer.write(res);
+		//write the template to the output, with the place holders replaced by values from input
+		template.render(parts, writer);
 		writer.newLine();
 	}
 
 
+	/**
+	 * Renders every record received from <code>input</code> with <code>template</code>,
+	 * passing the rendered text to <code>output</code> (and, if <code>writer</code>
+	 * is not null, also writing it to <code>writer</code>), and closes <code>output</code>.
+	 */
+	void renderRecords(PipelineBuffer<String[]> input, OWLAxiomTemplate template, 
+			PipelineBuffer<String> output, Writer writer) throws IOException {
+		ChunkedLineProcessor.ChunkWriter chunk = new ChunkedLineProcessor.ChunkWriter(2 * PIPELINE_CHUNK_SIZE);
+		String[] record;
+		while ((record = input.take()) != null) {
+			template.render(record, chunk);
+			chunk.write(LINE_SEPARATOR);
+			if (chunk.getBuffer().length() >= PIPELINE_CHUNK_SIZE) {
+				passChunk(chunk, output, writer);
+			}
+		}
+		passChunk(chunk, output, writer);
+		output.close();
+	}
+
+	private void passChunk(ChunkedLineProcessor.ChunkWriter chunk, PipelineBuffer<String> output, 
+			Writer writer) throws IOException {
+		if (chunk.getBuffer().length() == 0) {
+			return;
+		}
+		String text = chunk.getBuffer().toString();
+		chunk.getBuffer().setLength(0);
+		if (writer != null) {
+			writer.write(text);
+		}
+		output.put(text);
+	}
+
+
+	private void processInParallel(File inputCsvFile, final OWLAxiomTemplate template, 
+			Writer writer) throws IOException {
+		ChunkedLineProcessor processor = new ChunkedLineProcessor(threadCount);
+		processor.process(inputCsvFile, ignoredLinesCount, new ChunkedLineProcessor.LineRenderer() {
+			public void renderLine(String line, Writer out) throws IOException {
+				template.render(parseLine(line), out);
+			}
+		}, writer);
+	}
+
+
 
 }
@@ -0,0 +1,109 @@
+package org.healthdata.metadata.vocabulary;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A template used by {@link OWLAxiomGenerator}, parsed once into a sequence of
+ * literal text segments and placeholders of the form %$N% (where N=1,2,3,...).
+ * Rendering writes the segments and the values of the corresponding columns
+ * directly into the output, without building intermediate strings, and without
+ * interpreting any special characters (e.g. '$' or '\') in the values.<br>
+ * Placeholders referring to a column that is not present in a given line
+ * are written to the output unchanged.
+ *
+ * @author agent
+ *
+ */
+public class OWLAxiomTemplate {
+
+	private static final String PLACEHOLDER_START = "%$";
+	private static final char PLACEHOLDER_END = '%';
+
+	/*
+	 * literals[i] is written before the placeholder with column index columns[i];
+	 * the last literal is written after the last placeholder.
+	 */
+	private final String[] literals;
+	private final int[] columns;
+	private final String[] placeholders;
+
+
+	private OWLAxiomTemplate(List<String> literals, List<Integer> columns, List<String> placeholders) {
+		this.literals = literals.toArray(new String[literals.size()]);
+		this.columns = new int[columns.size()];
+		for (int i = 0; i < this.columns.length; i++) {
+			this.columns[i] = columns.get(i);
+		}
+		this.placeholders = placeholders.toArray(new String[placeholders.size()]);
+	}
+
+
+	/**
+	 * Reads the content of a template file, preserving the line breaks between
+	 * the lines (but not adding one after the last line), and parses it.
+	 */
+	public static OWLAxiomTemplate read(BufferedReader templReader) throws IOException {
+		StringBuilder template = new StringBuilder();
+		String line = templReader.readLine();
+		while (line != null) {
+			template.append(line);
+			line = templReader.readLine();
+
+			//add a new line character after all lines, except the last one
+			if (line != null) {
+				template.append('\n');
+			}
+		}
+		return parse(template.toString());
+	}
+
+	public static OWLAxiomTemplate parse(String template) {
+		List<String> literals = new ArrayList<String>();
+		List<Integer> columns = new ArrayList<Integer>();
+		List<String> placeholders = new ArrayList<String>();
+
+		int literalStart = 0;
+		int pos = template.indexOf(PLACEHOLDER_START);
+		while (pos >= 0) {
+			int digitsStart = pos + PLACEHOLDER_START.length();
+			int digitsEnd = digitsStart;
+			while (digitsEnd < template.length() && Character.isDigit(template.charAt(digitsEnd))) {
+				digitsEnd++;
+			}
+			if (digitsEnd > digitsStart && digitsEnd - digitsStart < 10 && digitsEnd < template.length()
+					&& template.charAt(digitsEnd) == PLACEHOLDER_END) {
+				int column = Integer.parseInt(template.substring(digitsStart, digitsEnd));
+				literals.add(template.substring(literalStart, pos));
+				columns.add(column - 1);
+				placeholders.add(template.substring(pos, digitsEnd + 1));
+				literalStart = digitsEnd + 1;
+				pos = template.indexOf(PLACEHOLDER_START, literalStart);
+			}
+			else {
+				pos = template.indexOf(PLACEHOLDER_START, pos + 1);
+			}
+		}
+		literals.add(template.substring(literalStart));
+
+		return new OWLAxiomTemplate(literals, columns, placeholders);
+	}
+
+
+	/**
+	 * Writes the template to <code>writer</code>, replacing every placeholder
+	 * with the value of the corresponding column in <code>values</code>.
+	 */
+	public void render(String[] values, Writer writer) throws IOException {
+		for (int i = 0; i < columns.length; i++) {
+			writer.write(literals[i]);
+			int column = columns[i];
+			writer.write(column >= 0 && column < values.length ? values[column] : placeholders[i]);
+		}
+		writer.write(literals[columns.length]);
+	}
+
+}
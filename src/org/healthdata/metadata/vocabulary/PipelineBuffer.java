@@ -0,0 +1,179 @@
+package org.healthdata.metadata.vocabulary;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded buffer connecting two stages of a {@link VocabularyPipeline}, running on
+ * different threads. The producing stage blocks when the buffer is full, so a fast
+ * stage never gets more than {@link #getCapacity()} items ahead of a slow one, and
+ * the items are never all held in memory. <br>
+ * The producer ends the stream with {@link #close()}, or, if it fails, with
+ * {@link #fail(Throwable)}, in which case the consumer gets an exception instead
+ * of the end of the stream (so a partial input is never taken for a complete one).
+ * If the consumer stops early, it calls {@link #abort()}, which makes the producer
+ * fail at the next item, instead of blocking forever.
+ *
+ * @author agent
+ *
+ */
+public class PipelineBuffer<T> {
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private static final long POLL_INTERVAL_MILLIS = 100;
+
+	/** marks the end of the stream (the queue holds only items of type T, and this marker) */
+	private static final Object END = new Object();
+
+	private final BlockingQueue<Object> queue;
+	private final int capacity;
+	private volatile Throwable failure = null;
+	private volatile boolean aborted = false;
+	private boolean ended = false;
+
+
+	public PipelineBuffer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public PipelineBuffer(int capacity) {
+		this.capacity = capacity;
+		this.queue = new ArrayBlockingQueue<Object>(capacity + 1);	//leave room for the end marker
+	}
+
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Adds an item, waiting while the buffer is full.
+	 */
+	public void put(T item) throws IOException {
+		offer(item);
+	}
+
+	/**
+	 * Ends the stream: the consumer gets the items added so far, followed by the end of the stream.
+	 */
+	public void close() throws IOException {
+		offer(END);
+	}
+
+	/**
+	 * Ends the stream with a failure: the consumer gets the items added so far, followed by
+	 * an exception caused by <code>cause</code>.
+	 */
+	public void fail(Throwable cause) {
+		failure = cause;
+		try {
+			offer(END);
+		}
+		catch (IOException e) {
+			//the consumer already stopped
+		}
+	}
+
+	/**
+	 * Called by the consumer, when it stops before the end of the stream: the producer
+	 * fails when it adds the next item.
+	 */
+	public void abort() {
+		aborted = true;
+		queue.clear();
+	}
+
+	/**
+	 * Returns the next item, waiting while the buffer is empty, or null, at the end of the stream.
+	 */
+	@SuppressWarnings("unchecked")
+	public T take() throws IOException {
+		if (ended) {
+			return null;
+		}
+		Object item;
+		try {
+			item = queue.take();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the previous stage of the pipeline");
+		}
+		if (item != END) {
+			return (T) item;
+		}
+		ended = true;
+		if (failure != null) {
+			IOException ioe = new IOException("The previous stage of the pipeline failed: " + failure);
+			ioe.initCause(failure);
+			throw ioe;
+		}
+		return null;
+	}
+
+	private void offer(Object item) throws IOException {
+		try {
+			while ( ! queue.offer(item, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (aborted) {
+					throw new IOException("The next stage of the pipeline stopped");
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the next stage of the pipeline");
+		}
+		if (aborted) {
+			queue.clear();
+			throw new IOException("The next stage of the pipeline stopped");
+		}
+	}
+
+
+	/**
+	 * Returns a reader of the text chunks of <code>buffer</code>, as a single stream of characters.
+	 * Closing the reader before the end of the stream aborts the buffer.
+	 */
+	public static Reader openReader(final PipelineBuffer<String> buffer) {
+		return new Reader() {
+			private String chunk = "";
+			private int pos = 0;
+			private boolean eof = false;
+
+			@Override
+			public int read(char[] cbuf, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				while (pos >= chunk.length()) {
+					if (eof) {
+						return -1;
+					}
+					String next = buffer.take();
+					if (next == null) {
+						eof = true;
+						return -1;
+					}
+					chunk = next;
+					pos = 0;
+				}
+				int n = Math.min(len, chunk.length() - pos);
+				chunk.getChars(pos, pos + n, cbuf, off);
+				pos += n;
+				return n;
+			}
+
+			@Override
+			public void close() {
+				if ( ! eof) {
+					buffer.abort();
+				}
+			}
+		};
+	}
+
+}
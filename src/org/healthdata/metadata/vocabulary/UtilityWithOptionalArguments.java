@@ -12,9 +12,12 @@ public class UtilityWithOptionalArguments {
 
 	private static final String OPTION_SEPARATOR = "-s";
 	private static final String OPTION_IGNORE = "-i";
+	private static final String OPTION_PARALLEL = "-p";
 	private static final String OPTION_ONTOLOGY_VERSION_ID = "-ont=";
+	private static final String OPTION_BIOPORTAL_REST_BASE = "-bp=";
+	private static final String OPTION_BIOPORTAL_API_KEY = "-apikey=";
 	
-	private static final String CSV_FIELD_SEPARATOR_TAB = "\t";
+	protected static final String CSV_FIELD_SEPARATOR_TAB = "\t";
 	private static final String CSV_FIELD_SEPARATOR_COMMA = ",";
 	protected static final String DEFAULT_CSV_FIELD_SEPARATOR = CSV_FIELD_SEPARATOR_TAB;
 
@@ -24,6 +27,8 @@ public class UtilityWithOptionalArguments {
 	protected String csvFieldSeparator = DEFAULT_CSV_FIELD_SEPARATOR;
 	protected int ignoredLinesCount = 0;
 	
+	private final ThreadLocal<CsvReader> lineParser = new ThreadLocal<CsvReader>();
+	
 	
 	public void setCSVFieldSeparator(String csvFieldSeparator) {
 		this.csvFieldSeparator = csvFieldSeparator;
@@ -84,6 +89,35 @@ public class UtilityWithOptionalArguments {
 		return res;
 	}
 
+	/**
+	 * Returns the number of threads requested by an argument of form '-p[N]', 
+	 * where '-p' (without N) means one thread per available processor,
+	 * or 0, if there is no such argument.
+	 */
+	protected static int extractParallelismOptionFromArguments(String[] args) {
+		int res = 0;
+		for (String arg : args) {
+			if (arg.startsWith(OPTION_PARALLEL)) {
+				String opt = arg.substring(OPTION_PARALLEL.length());
+				if (opt.isEmpty()) {
+					res = Runtime.getRuntime().availableProcessors();
+				}
+				else {
+					try {
+						res = Integer.parseInt(opt);
+					} catch (NumberFormatException e) {
+						log.warning("Invalid 'parallel' option. " +
+								"The correct way to specify it, is either '-p' or '-pN', " +
+								"where N is the number of threads to be used.\n" +
+								"The argument '" + arg + "' will be disregarded.");
+					}
+				}
+			}
+		}
+		
+		return res;
+	}
+
 	protected static String extractOntologyVersionIdOptionFromArguments(String[] args) {
 		for (String arg : args) {
 			if (arg.startsWith(OPTION_ONTOLOGY_VERSION_ID)) {
@@ -95,6 +129,24 @@ public class UtilityWithOptionalArguments {
 		return null;
 	}
 
+	protected static String extractBioPortalRestBaseOptionFromArguments(String[] args) {
+		return extractOptionalValueFromArguments(args, OPTION_BIOPORTAL_REST_BASE);
+	}
+
+	protected static String extractBioPortalApiKeyOptionFromArguments(String[] args) {
+		return extractOptionalValueFromArguments(args, OPTION_BIOPORTAL_API_KEY);
+	}
+
+	protected static String extractOptionalValueFromArguments(String[] args, String option) {
+		for (String arg : args) {
+			if (arg.startsWith(option)) {
+				return arg.substring(option.length());
+			}
+		}
+		
+		return null;
+	}
+
 
 	protected BufferedReader openInputStream(String fileName) throws IOException {
 		File in = new File(fileName);
@@ -129,26 +181,38 @@ public class UtilityWithOptionalArguments {
 	}
 	
 	
-	protected String readFirstValidLine(BufferedReader reader) throws IOException {
-		String line = reader.readLine();
-		
-		//jump over ignored lines
-		int i = 0;
-		while (line != null && i < ignoredLinesCount) {
-			line = reader.readLine();
-			i++;
+	/**
+	 * Opens a CSV reader for the input file, and jumps over the ignored lines
+	 * (more precisely, records, as a quoted field can span multiple lines).
+	 */
+	protected CsvReader openCsvInputStream(String fileName) throws IOException {
+		BufferedReader reader = openInputStream(fileName);
+		if (reader == null) {
+			return null;
 		}
 		
-		return line;
+		CsvReader csvReader = new CsvReader(reader, csvFieldSeparator.charAt(0));
+		csvReader.skipRecords(ignoredLinesCount);
+		
+		return csvReader;
 	}
 	
+	/**
+	 * Parses a single line of the input file. Fields enclosed in quotes are 
+	 * handled as in {@link CsvReader}, except that they can not contain line breaks.
+	 * This method can be called concurrently from multiple threads.
+	 */
 	protected String[] parseLine(String line) {
+		char separator = csvFieldSeparator.charAt(0);
+		CsvReader parser = lineParser.get();
+		if (parser == null || parser.getSeparator() != separator) {
+			parser = new CsvReader(separator);
+			lineParser.set(parser);
+		}
 		
-		//TODO: Make sure you deal with fields that are enclosed in quotes!!!
-		
-		String[] parts = line.split(csvFieldSeparator);
+		parser.parse(line);
 
-		return parts;
+		return parser.getFields();
 	}
 
 }
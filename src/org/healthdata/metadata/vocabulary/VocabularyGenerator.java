@@ -1,19 +1,13 @@
 package org.healthdata.metadata.vocabulary;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.util.Arrays;
 
 import org.ncbo.stanford.bean.search.Page;
 import org.ncbo.stanford.bean.search.SearchBean;
 import org.ncbo.stanford.bean.search.SearchResultListBean;
-import org.ncbo.stanford.util.BioPortalServerConstants;
-import org.ncbo.stanford.util.BioPortalUtil;
-import org.ncbo.stanford.util.BioportalSearch;
-import org.ncbo.stanford.util.HTMLUtil;
 
 /**
  * This class provides functionality to identify vocabulary entries from an ontology
@@ -21,7 +15,9 @@ import org.ncbo.stanford.util.HTMLUtil;
  * containing terms organized in columns, and a BioPortal (virtual) ontology id, and 
  * genertaes a new CSV file, with the content of the input file, plus an extra column, 
  * which contains term URIs from the given BioPortal ontology that best matches the terms 
- * in the last column in the input file.
+ * in the last column in the input file. <br>
+ * The extended records can also be passed directly to the next stage of a
+ * {@link VocabularyPipeline}, instead of (or besides) being written to a file.
  * 
  * @author csnyulas
  *
@@ -29,41 +25,57 @@ import org.ncbo.stanford.util.HTMLUtil;
 public class VocabularyGenerator extends UtilityWithOptionalArguments {
 
 	private String ontVersionId;
+	private BioPortalClient bpClient;
 
 	
 	/**
 	 * @param args
 	 */
 	public static void main(String[] args) {
+		run(args);
+	}
+
+	/**
+	 * Runs the tool with the arguments of {@link #main(String[])}.
+	 *
+	 * @return true, if the arguments were valid, and the output file was generated
+	 */
+	public static boolean run(String[] args) {
 		if (args == null || args.length < 3) {
 			usage();
+			return false;
 		}
 		String separatorOption = extractSeparatorOptionFromArguments(args);
 		int ignoreLinesOption = extractIgnoreLinesOptionFromArguments(args);
 		String ontVersionIdOption = extractOntologyVersionIdOptionFromArguments(args);
 		if (ontVersionIdOption == null) {
 			usage();
+			return false;
 		}
+		String bpRestBaseOption = extractBioPortalRestBaseOptionFromArguments(args);
+		String bpApiKeyOption = extractBioPortalApiKeyOptionFromArguments(args);
 		String inputCsvFileName = args[args.length - 2];
 		String outputCsvFileName = args[args.length - 1];
 		
 		VocabularyGenerator vocabGen = new VocabularyGenerator();
 		vocabGen.setOntologyVersionId(ontVersionIdOption);
+		vocabGen.setBioPortalClient(new BioPortalClient(bpRestBaseOption, bpApiKeyOption));
 		if (separatorOption != null) {
 			vocabGen.setCSVFieldSeparator(separatorOption);
 		}
 		vocabGen.setIgnoredLinesCount(ignoreLinesOption);
 		try {
 			vocabGen.generateOutput(inputCsvFileName, outputCsvFileName);
+			return true;
 		} catch (IOException ioe) {
 			ioe.printStackTrace();
+			return false;
 		}
 	}
 
 
 	private static void usage() {
-		System.out.println("USAGE: VocabularyGenerator [-sC|-sT|-sc|-st] [-i[N]] -ont=BP_ONT_VERSION_ID INPUT_CSV_FILE OUTPUT_CSV_FILE");
-		System.exit(0);
+		System.out.println("USAGE: VocabularyGenerator [-sC|-sT|-sc|-st] [-i[N]] [-bp=BP_REST_BASE_URL] [-apikey=BP_API_KEY] -ont=BP_ONT_VERSION_ID INPUT_CSV_FILE OUTPUT_CSV_FILE");
 	}
 
 	
@@ -72,15 +84,19 @@ public class VocabularyGenerator extends UtilityWithOptionalArguments {
 		
 	}
 
+	public void setBioPortalClient(BioPortalClient bpClient) {
+		this.bpClient = bpClient;
+	}
+
 	
 	private void generateOutput(String inputCsvFileName,
 			String outputCsvFileName) throws IOException {
 		
 		//open input & output files
-		BufferedReader reader;
+		CsvReader reader;
 		BufferedWriter writer;
 		try {
-			reader = openInputStream(inputCsvFileName);
+			reader = openCsvInputStream(inputCsvFileName);
 			writer = openOutputStream(outputCsvFileName);
 		}
 		catch (IOException ioe) {
@@ -90,52 +106,86 @@ public class VocabularyGenerator extends UtilityWithOptionalArguments {
 			throw new IOException("Failure to open both input and output files");
 		}
 		
-		//read and process input line by line
-		String line = readFirstValidLine(reader);
-		while (line != null) {
-			processLine(line, writer);
-			line = reader.readLine();
+		if (bpClient == null) {
+			bpClient = new BioPortalClient();
+		}
+		
+		//read and process input record by record
+		reader.setKeepRawRecord(true);
+		while (reader.readRecord()) {
+			processRecord(reader, writer, null);
 		}
 		
 		writer.close();
 		reader.close();
+		System.out.println(bpClient.getReport());
 		System.out.println("Done!");
 	}
 	
+	/**
+	 * Passes the records of the input file, extended with the best matching term URIs,
+	 * to <code>output</code> (and, if <code>writer</code> is not null, also writes them
+	 * to <code>writer</code>, as {@link #main(String[])} does), and closes <code>output</code>.
+	 */
+	void generateRecords(String inputCsvFileName, PipelineBuffer<String[]> output, 
+			BufferedWriter writer) throws IOException {
+		CsvReader reader = openCsvInputStream(inputCsvFileName);
+		if (reader == null) {
+			throw new IOException("Failure to open the input file " + inputCsvFileName);
+		}
+		if (bpClient == null) {
+			bpClient = new BioPortalClient();
+		}
+		
+		try {
+			reader.setKeepRawRecord(true);
+			while (reader.readRecord()) {
+				processRecord(reader, writer, output);
+			}
+		}
+		finally {
+			reader.close();
+		}
+		output.close();
+		System.out.println(bpClient.getReport());
+	}
+	
 	
-	private void processLine(String line, BufferedWriter writer) throws IOException {
-		String[] parts = parseLine(line);
-		String last = parts[parts.length - 1];
+	private void processRecord(CsvReader record, BufferedWriter writer, 
+			PipelineBuffer<String[]> output) throws IOException {
+		String last = record.getField(record.getFieldCount() - 1);
 
 		//1. find individual
 		String vocabURI = getBPSearchResult(ontVersionId, last);
 		
 		//2. write line to output
-		writer.write(line + csvFieldSeparator + vocabURI);
-		writer.newLine();
+		if (writer != null) {
+			writer.write(record.getRawRecord() + csvFieldSeparator + vocabURI);
+			writer.newLine();
+		}
+		if (output != null) {
+			String[] fields = record.getFields();
+			String[] extendedFields = Arrays.copyOf(fields, fields.length + 1);
+			extendedFields[fields.length] = String.valueOf(vocabURI);
+			output.put(extendedFields);
+		}
 	}
 
 
-	private String getBPSearchResult(String ontVersionId, String searchTerm) throws MalformedURLException, IOException {
+	private String getBPSearchResult(String ontVersionId, String searchTerm) throws IOException {
 		if (searchTerm == null || searchTerm.trim().length() == 0) {
 			return null;
 		}
 		
-		String searchText = searchTerm;
+		Page p;
 		try {
-			searchText = HTMLUtil.encodeURI(searchTerm.replaceAll("/", " "));
+			p = bpClient.search(ontVersionId, searchTerm);
 		} catch (UnsupportedEncodingException e) {
 			return null;
 		}
-
-		BioportalSearch sd = new BioportalSearch();
-		String urlStr = BioPortalServerConstants.BP_REST_BASE
-				+ BioPortalServerConstants.SEARCH_REST + "/" + searchText + "?"
-				+ "ontologyids=" + ontVersionId 
-				// + "&objecttypes=class&maxnumhits=20"
-				;
-		urlStr = BioPortalUtil.getUrlWithDefaultSuffix(urlStr);
-		Page p = sd.getSearchResults(new URL(urlStr));
+		if (p == null) {
+			return null;
+		}
 		SearchResultListBean data = p.getContents();
 		
 		SearchBean candidateRes = null;
@@ -0,0 +1,364 @@
+package org.healthdata.metadata.vocabulary;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+
+/**
+ * This class provides functionality to run the three steps of a vocabulary build
+ * ({@link VocabularyGenerator}, {@link OWLAxiomGenerator} and the batch mode of
+ * {@link ConceptSchemeGenerator}) in a single process, without going through the disk
+ * between them: the records of the input CSV file, extended with the best matching
+ * BioPortal terms, are passed directly to the rendering of the OWL axioms, and the
+ * rendered axioms are parsed directly by the concept scheme generator, while the
+ * next records are still being looked up. The stages run on their own threads, and
+ * they are connected by bounded buffers (see {@link PipelineBuffer}), so neither the
+ * records nor the axioms are ever all held in memory. <br>
+ * The generated axioms are parsed as if they were inserted at the end of the base
+ * ontology (which should not contain them already): the base ontology is parsed first,
+ * and then the axioms, in a document with the same header (entity declarations,
+ * namespaces and base URI) as the base ontology. <br>
+ * The intermediate files of the separate steps (the extended CSV file and the OWL
+ * fragment) are optional: they are written only if the <code>-csv=FILE</code> or
+ * <code>-owl=FILE</code> options are given. The arguments are:<br>
+ *  - the options of {@link VocabularyGenerator} (the separator, the ignored lines, and the BioPortal options)<br>
+ *  - the input CSV file (as for {@link VocabularyGenerator})<br>
+ *  - the template file (as for {@link OWLAxiomGenerator})<br>
+ *  - the base ontology, into which the generated axioms would be inserted<br>
+ *  - the job file of the concept schemes (as for the batch mode of {@link ConceptSchemeGenerator})
+ *
+ * @author agent
+ *
+ */
+public class VocabularyPipeline extends UtilityWithOptionalArguments {
+
+	private static final String OPTION_CSV_OUTPUT = "-csv=";
+	private static final String OPTION_OWL_OUTPUT = "-owl=";
+	private static final String OPTION_BUFFER = "-buffer=";
+
+	private static final String RDF_ROOT_START = "<rdf:RDF";
+	private static final String RDF_ROOT_END = "</rdf:RDF>\n";
+
+	private String ontVersionId;
+	private BioPortalClient bpClient;
+	private String csvOutputFileName = null;
+	private String owlOutputFileName = null;
+	private int bufferCapacity = PipelineBuffer.DEFAULT_CAPACITY;
+
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		run(args);
+	}
+
+	/**
+	 * Runs the tool with the arguments of {@link #main(String[])}.
+	 *
+	 * @return true, if the arguments were valid, and all the outputs were generated
+	 */
+	public static boolean run(String[] args) {
+		if (args == null || args.length < 5) {
+			usage();
+			return false;
+		}
+		String separatorOption = extractSeparatorOptionFromArguments(args);
+		int ignoreLinesOption = extractIgnoreLinesOptionFromArguments(args);
+		String ontVersionIdOption = extractOntologyVersionIdOptionFromArguments(args);
+		if (ontVersionIdOption == null) {
+			usage();
+			return false;
+		}
+		String bpRestBaseOption = extractBioPortalRestBaseOptionFromArguments(args);
+		String bpApiKeyOption = extractBioPortalApiKeyOptionFromArguments(args);
+		String bufferOption = extractOptionalValueFromArguments(args, OPTION_BUFFER);
+		String inputCsvFileName = args[args.length - 4];
+		String templateFileName = args[args.length - 3];
+		String baseOWLFileName = args[args.length - 2];
+		String jobFileName = args[args.length - 1];
+
+		VocabularyPipeline pipeline = new VocabularyPipeline();
+		pipeline.setOntologyVersionId(ontVersionIdOption);
+		pipeline.setBioPortalClient(new BioPortalClient(bpRestBaseOption, bpApiKeyOption));
+		if (separatorOption != null) {
+			pipeline.setCSVFieldSeparator(separatorOption);
+		}
+		pipeline.setIgnoredLinesCount(ignoreLinesOption);
+		pipeline.setCsvOutputFileName(extractOptionalValueFromArguments(args, OPTION_CSV_OUTPUT));
+		pipeline.setOwlOutputFileName(extractOptionalValueFromArguments(args, OPTION_OWL_OUTPUT));
+		if (bufferOption != null) {
+			try {
+				pipeline.setBufferCapacity(Integer.parseInt(bufferOption));
+			} catch (NumberFormatException e) {
+				log.warning("Invalid buffer size '" + bufferOption + "'. The default buffer size will be used.");
+			}
+		}
+		return pipeline.run(inputCsvFileName, templateFileName, baseOWLFileName, jobFileName);
+	}
+
+
+	private static void usage() {
+		System.out.println("USAGE: VocabularyPipeline [-sC|-sT|-sc|-st] [-i[N]] [-bp=BP_REST_BASE_URL] [-apikey=BP_API_KEY] -ont=BP_ONT_VERSION_ID " +
+				"[-csv=OUTPUT_CSV_FILE] [-owl=OUTPUT_OWL_FILE] [-buffer=N] INPUT_CSV_FILE TEMPLATE_FILE BASE_OWL_FILE JOB_FILE");
+	}
+
+
+	public void setOntologyVersionId(String ontVersionId) {
+		this.ontVersionId = ontVersionId;
+	}
+
+	public void setBioPortalClient(BioPortalClient bpClient) {
+		this.bpClient = bpClient;
+	}
+
+	/**
+	 * @param csvOutputFileName the file to which the extended records are also written
+	 * (as by {@link VocabularyGenerator}), or null (the default), if they should not be written to a file
+	 */
+	public void setCsvOutputFileName(String csvOutputFileName) {
+		this.csvOutputFileName = csvOutputFileName;
+	}
+
+	/**
+	 * @param owlOutputFileName the file to which the generated axioms are also written
+	 * (as by {@link OWLAxiomGenerator}), or null (the default), if they should not be written to a file
+	 */
+	public void setOwlOutputFileName(String owlOutputFileName) {
+		this.owlOutputFileName = owlOutputFileName;
+	}
+
+	/**
+	 * @param bufferCapacity the number of records (or text chunks) held by the buffers between the stages
+	 */
+	public void setBufferCapacity(int bufferCapacity) {
+		this.bufferCapacity = Math.max(1, bufferCapacity);
+	}
+
+
+	/**
+	 * Runs the pipeline, and returns true, if all the concept schemes were generated.
+	 */
+	public boolean run(final String inputCsvFileName, String templateFileName,
+			final String baseOWLFileName, String jobFileName) {
+		final OWLAxiomTemplate template;
+		final String baseOntologyHeader;
+		final BufferedWriter csvWriter;
+		final BufferedWriter owlWriter;
+		try {
+			BufferedReader templReader = openInputStream(templateFileName);
+			if (templReader == null) {
+				return false;
+			}
+			try {
+				template = OWLAxiomTemplate.read(templReader);
+			}
+			finally {
+				templReader.close();
+			}
+			baseOntologyHeader = readOntologyHeader(baseOWLFileName);
+			csvWriter = (csvOutputFileName == null ? null : openOutputStream(csvOutputFileName));
+			owlWriter = (owlOutputFileName == null ? null : openOutputStream(owlOutputFileName));
+			if ( (csvOutputFileName != null && csvWriter == null) || (owlOutputFileName != null && owlWriter == null) ) {
+				return false;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			log.severe("Operation will be aborted");
+			return false;
+		}
+
+		final VocabularyGenerator vocabGen = new VocabularyGenerator();
+		vocabGen.setOntologyVersionId(ontVersionId);
+		vocabGen.setBioPortalClient(bpClient);
+		vocabGen.setCSVFieldSeparator(csvFieldSeparator);
+		vocabGen.setIgnoredLinesCount(ignoredLinesCount);
+		final OWLAxiomGenerator owlAxiomGen = new OWLAxiomGenerator();
+		final ConceptSchemeGenerator conceptSchemeGen = new ConceptSchemeGenerator();
+
+		final PipelineBuffer<String[]> records = new PipelineBuffer<String[]>(bufferCapacity);
+		final PipelineBuffer<String> axioms = new PipelineBuffer<String>(bufferCapacity);
+		Stage vocabularyStage = new Stage("VocabularyGenerator", null, records) {
+			@Override
+			void process() throws IOException {
+				vocabGen.generateRecords(inputCsvFileName, records, csvWriter);
+			}
+		};
+		Stage axiomStage = new Stage("OWLAxiomGenerator", records, axioms) {
+			@Override
+			void process() throws IOException {
+				owlAxiomGen.renderRecords(records, template, axioms, owlWriter);
+			}
+		};
+		vocabularyStage.start();
+		axiomStage.start();
+
+		final boolean[] axiomsOpened = new boolean[1];
+		boolean success = conceptSchemeGen.generateOutputsInBatch(new ConceptSchemeGenerator.OntologyInput() {
+			public void parse(RDFHandler handler) throws RDFParseException, RDFHandlerException, IOException {
+				axiomsOpened[0] = true;
+				//closing the reader before the end of the axioms (e.g. if the parsing fails) stops the previous stages
+				Reader reader = new ConcatenatedReader(new StringReader(baseOntologyHeader),
+						PipelineBuffer.openReader(axioms), new StringReader(RDF_ROOT_END));
+				try {
+					conceptSchemeGen.parseInputOntology(baseOWLFileName, handler);
+					conceptSchemeGen.parseInputOntology(reader, baseOWLFileName, handler);
+				}
+				finally {
+					reader.close();
+				}
+			}
+		}, jobFileName);
+		if ( ! axiomsOpened[0]) {
+			//the axioms were not read at all (e.g. the job file could not be read), so the previous stages are stopped here
+			axioms.abort();
+		}
+
+		success &= vocabularyStage.finish();
+		success &= axiomStage.finish();
+		success &= close(csvWriter, csvOutputFileName);
+		success &= close(owlWriter, owlOutputFileName);
+		System.out.println(success ? "Done!" : "The vocabulary pipeline failed");
+		return success;
+	}
+
+
+	/**
+	 * Returns the beginning of an ontology (in RDF/XML) up to, and including, the start tag
+	 * of its root element, i.e. the XML declaration, the entity declarations and the namespaces.
+	 */
+	private String readOntologyHeader(String owlFileName) throws IOException {
+		BufferedReader reader = openInputStream(owlFileName);
+		if (reader == null) {
+			throw new IOException("Failure to open the base ontology " + owlFileName);
+		}
+		try {
+			StringBuilder header = new StringBuilder();
+			boolean inRootStartTag = false;
+			int c;
+			while ((c = reader.read()) != -1) {
+				header.append((char) c);
+				if (inRootStartTag) {
+					if (c == '>') {
+						return header.append('\n').toString();
+					}
+				}
+				else if (header.length() >= RDF_ROOT_START.length()) {
+					inRootStartTag = (header.indexOf(RDF_ROOT_START, header.length() - RDF_ROOT_START.length()) >= 0);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		throw new IOException("The base ontology " + owlFileName + " has no " + RDF_ROOT_START + " element");
+	}
+
+	private boolean close(Writer writer, String fileName) {
+		if (writer == null) {
+			return true;
+		}
+		try {
+			writer.close();
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			log.severe("Output file " + fileName + " could not be written");
+			return false;
+		}
+	}
+
+
+	/**
+	 * A stage of the pipeline, running on its own thread. If the stage fails, the
+	 * next stage gets the failure (instead of the end of the stream), and the previous
+	 * stage is stopped.
+	 */
+	private abstract static class Stage extends Thread {
+
+		private final PipelineBuffer<?> input;
+		private final PipelineBuffer<?> output;
+		private volatile Throwable failure = null;
+
+		Stage(String name, PipelineBuffer<?> input, PipelineBuffer<?> output) {
+			super(name);
+			this.input = input;
+			this.output = output;
+		}
+
+		abstract void process() throws IOException;
+
+		@Override
+		public void run() {
+			try {
+				process();
+			}
+			catch (Throwable t) {
+				failure = t;
+				output.fail(t);
+				if (input != null) {
+					input.abort();
+				}
+			}
+		}
+
+		/**
+		 * Waits for the stage to finish, and returns true, if it did not fail.
+		 */
+		boolean finish() {
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			if (failure != null) {
+				failure.printStackTrace();
+				log.severe("The " + getName() + " stage of the vocabulary pipeline failed");
+				return false;
+			}
+			return true;
+		}
+	}
+
+
+	/**
+	 * Reads the content of several readers, one after the other.
+	 */
+	private static class ConcatenatedReader extends Reader {
+
+		private final Reader[] readers;
+		private int current = 0;
+
+		ConcatenatedReader(Reader... readers) {
+			this.readers = readers;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			while (current < readers.length) {
+				int n = readers[current].read(cbuf, off, len);
+				if (n != -1) {
+					return n;
+				}
+				current++;
+			}
+			return -1;
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (Reader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+}
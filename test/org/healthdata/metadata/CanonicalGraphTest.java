@@ -0,0 +1,240 @@
+package org.healthdata.metadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+/**
+ * Checks the canonical form of graphs with blank nodes (see {@link CanonicalGraph}):
+ * that it does not depend on the order of the statements, nor on the ids of the
+ * blank nodes, also for blank nodes with identical content and for cycles of blank
+ * nodes, and that it contains no blank node labels. <br>
+ * The graphs are described as lists of triples, in which the terms starting with
+ * <code>_:</code> are blank nodes, the ones starting with <code>"</code> are literals,
+ * and all the others are IRIs in the <code>http://example.org/</code> namespace.
+ *
+ * @author agent
+ *
+ */
+public class CanonicalGraphTest {
+
+	private static final String NS = "http://example.org/";
+	private static final String DATASET_ID = "test-dataset";
+	private static final int PERMUTATION_COUNT = 50;
+
+	private static final ValueFactory valueFactory = new ValueFactoryImpl();
+
+	private static int failureCount = 0;
+
+
+	public static void main(String[] args) {
+		checkIdenticalBlankNodes();
+		checkNestedIdenticalBlankNodes();
+		checkCycle();
+		checkSymmetricCycle();
+		checkUnchangedBlankNodesKeepTheirIRIs();
+		checkDatasetIdsSeparateIRIs();
+
+		if (failureCount > 0) {
+			System.out.println(failureCount + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+
+
+	private static void checkIdenticalBlankNodes() {
+		String[][] triples = {
+				{"s", "contact", "_:a"},
+				{"s", "contact", "_:b"},
+				{"_:a", "name", "\"x"},
+				{"_:b", "name", "\"x"},
+		};
+		CanonicalGraph graph = checkPermutations("identical blank nodes", triples);
+		check("identical blank nodes: no statement is lost", graph.size() == triples.length);
+		check("identical blank nodes: two skolem IRIs", countSkolemIRIs(graph) == 2);
+	}
+
+	private static void checkNestedIdenticalBlankNodes() {
+		String[][] triples = {
+				{"s", "publisher", "_:p1"},
+				{"s", "publisher", "_:p2"},
+				{"_:p1", "contact", "_:c1"},
+				{"_:p2", "contact", "_:c2"},
+				{"_:c1", "name", "\"x"},
+				{"_:c2", "name", "\"x"},
+		};
+		CanonicalGraph graph = checkPermutations("nested identical blank nodes", triples);
+		check("nested identical blank nodes: no statement is lost", graph.size() == triples.length);
+		check("nested identical blank nodes: four skolem IRIs", countSkolemIRIs(graph) == 4);
+	}
+
+	private static void checkCycle() {
+		String[][] triples = {
+				{"s", "first", "_:x"},
+				{"_:x", "next", "_:y"},
+				{"_:y", "next", "_:z"},
+				{"_:z", "next", "_:x"},
+				{"_:y", "name", "\"y"},
+		};
+		CanonicalGraph graph = checkPermutations("cycle", triples);
+		check("cycle: no statement is lost", graph.size() == triples.length);
+		check("cycle: three skolem IRIs", countSkolemIRIs(graph) == 3);
+	}
+
+	private static void checkSymmetricCycle() {
+		//neither the content, nor the position distinguishes the two nodes of the cycle
+		String[][] triples = {
+				{"_:x", "next", "_:y"},
+				{"_:y", "next", "_:x"},
+				{"_:x", "name", "\"n"},
+				{"_:y", "name", "\"n"},
+		};
+		CanonicalGraph graph = checkPermutations("symmetric cycle", triples);
+		check("symmetric cycle: no statement is lost", graph.size() == triples.length);
+		check("symmetric cycle: two skolem IRIs", countSkolemIRIs(graph) == 2);
+	}
+
+	private static void checkUnchangedBlankNodesKeepTheirIRIs() {
+		String[][] previous = {
+				{"s", "contact", "_:a"},
+				{"_:a", "name", "\"a"},
+				{"s", "publisher", "_:b"},
+				{"_:b", "name", "\"b"},
+				{"_:b", "next", "_:c"},
+				{"_:c", "next", "_:b"},
+		};
+		String[][] current = {
+				{"s", "contact", "_:a"},
+				{"_:a", "name", "\"a"},
+				{"s", "publisher", "_:b"},
+				{"_:b", "name", "\"changed"},
+				{"_:b", "next", "_:c"},
+				{"_:c", "next", "_:b"},
+		};
+		CanonicalGraph previousGraph = createGraph(previous, new Random(1));
+		CanonicalGraph currentGraph = createGraph(current, new Random(2));
+		List<String> removed = previousGraph.minus(currentGraph);
+		List<String> added = currentGraph.minus(previousGraph);
+		//the group of _:b and _:c is replaced, while _:a is not touched
+		check("unchanged blank nodes: only the changed group is removed", removed.size() == 4 && ! containsLiteral(removed, "\"a\""));
+		check("unchanged blank nodes: only the changed group is added", added.size() == 4 && ! containsLiteral(added, "\"a\""));
+	}
+
+	private static void checkDatasetIdsSeparateIRIs() {
+		String[][] triples = {
+				{"s", "contact", "_:a"},
+				{"_:a", "name", "\"a"},
+		};
+		List<Statement> statements = createStatements(triples, new Random(1));
+		CanonicalGraph graph = CanonicalGraph.fromStatements(statements, DATASET_ID);
+		CanonicalGraph otherGraph = CanonicalGraph.fromStatements(statements, "other-dataset");
+		check("dataset ids: different skolem IRIs", graph.minus(otherGraph).size() == triples.length);
+	}
+
+
+	/**
+	 * Checks that the canonical form of the graph is the same for a number of random
+	 * orders of its statements, each with other blank node ids, and returns it.
+	 */
+	private static CanonicalGraph checkPermutations(String name, String[][] triples) {
+		Random random = new Random(triples.length);
+		CanonicalGraph expected = createGraph(triples, random);
+		boolean same = true;
+		for (int i = 0; i < PERMUTATION_COUNT && same; i++) {
+			CanonicalGraph graph = createGraph(triples, random);
+			if ( ! graph.getStatements().equals(expected.getStatements())) {
+				System.out.println(expected.getStatements() + "\nvs.\n" + graph.getStatements());
+				same = false;
+			}
+		}
+		check(name + ": independent of the statement order and of the blank node ids", same);
+		boolean noBNodeLabels = true;
+		for (String statement : expected.getStatements()) {
+			noBNodeLabels &= ! statement.contains("_:");
+		}
+		check(name + ": no blank node labels", noBNodeLabels);
+		return expected;
+	}
+
+	private static CanonicalGraph createGraph(String[][] triples, Random random) {
+		return CanonicalGraph.fromStatements(createStatements(triples, random), DATASET_ID);
+	}
+
+	/**
+	 * Creates the statements in a random order, with new blank node ids.
+	 */
+	private static List<Statement> createStatements(String[][] triples, Random random) {
+		Map<String, BNode> bNodes = new HashMap<String, BNode>();
+		List<Statement> statements = new ArrayList<Statement>();
+		for (String[] triple : triples) {
+			statements.add(valueFactory.createStatement(
+					(Resource) createValue(triple[0], bNodes), 
+					(URI) createValue(triple[1], bNodes), 
+					createValue(triple[2], bNodes)));
+		}
+		Collections.shuffle(statements, random);
+		return statements;
+	}
+
+	private static Value createValue(String term, Map<String, BNode> bNodes) {
+		if (term.startsWith("_:")) {
+			BNode bNode = bNodes.get(term);
+			if (bNode == null) {
+				bNode = valueFactory.createBNode();
+				bNodes.put(term, bNode);
+			}
+			return bNode;
+		}
+		if (term.startsWith("\"")) {
+			return valueFactory.createLiteral(term.substring(1));
+		}
+		return valueFactory.createURI(NS + term);
+	}
+
+
+	private static int countSkolemIRIs(CanonicalGraph graph) {
+		Set<String> iris = new HashSet<String>();
+		for (String statement : graph.getStatements()) {
+			for (String term : statement.split(" ")) {
+				if (term.startsWith("<" + CanonicalGraph.SKOLEM_IRI_BASE)) {
+					iris.add(term);
+				}
+			}
+		}
+		return iris.size();
+	}
+
+	private static boolean containsLiteral(List<String> statements, String literal) {
+		for (String statement : statements) {
+			if (statement.contains(literal)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void check(String name, boolean condition) {
+		if (condition) {
+			System.out.println("OK: " + name);
+		}
+		else {
+			System.out.println("FAILED: " + name);
+			failureCount++;
+		}
+	}
+
+}
@@ -0,0 +1,176 @@
+package org.healthdata.metadata.vocabulary;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares {@link CsvReader} with the <code>BufferedReader.readLine</code> + 
+ * <code>String.split</code> tokenizer it replaced: it checks that both produce 
+ * the same fields for every line of a generated input file (one without quoted 
+ * and trailing empty fields, which only the CsvReader handles), and then prints 
+ * the time needed by each of them to read the whole file.
+ * 
+ * @author agent
+ *
+ */
+public class CsvReaderBenchmark {
+
+	private static final String OPTION_LINES = "-lines=";
+	private static final String OPTION_ROUNDS = "-rounds=";
+
+	private static final int DEFAULT_LINE_COUNT = 1000000;
+	private static final int DEFAULT_ROUND_COUNT = 5;
+
+	private static final String ENCODING = "UTF-8";
+
+
+	public static void main(String[] args) throws IOException {
+		int lineCount = DEFAULT_LINE_COUNT;
+		int roundCount = DEFAULT_ROUND_COUNT;
+		for (String arg : args) {
+			if (arg.startsWith(OPTION_LINES)) {
+				lineCount = Integer.parseInt(arg.substring(OPTION_LINES.length()));
+			}
+			else if (arg.startsWith(OPTION_ROUNDS)) {
+				roundCount = Integer.parseInt(arg.substring(OPTION_ROUNDS.length()));
+			}
+			else {
+				System.out.println("USAGE: CsvReaderBenchmark [-lines=N] [-rounds=N]");
+				System.exit(0);
+			}
+		}
+
+		boolean ok = true;
+		for (char separator : new char[] {'\t', ','}) {
+			File input = File.createTempFile("csv_benchmark", ".txt");
+			try {
+				writeInput(input, separator, lineCount);
+				ok &= compare(input, separator);
+				for (int i = 0; i < roundCount; i++) {
+					long splitTime = System.nanoTime();
+					long splitFields = readWithSplit(input, separator);
+					splitTime = System.nanoTime() - splitTime;
+					long csvTime = System.nanoTime();
+					long csvFields = readWithCsvReader(input, separator);
+					csvTime = System.nanoTime() - csvTime;
+					System.out.println("separator '" + (separator == '\t' ? "\\t" : String.valueOf(separator)) + 
+							"', round " + (i + 1) + ": " +
+							"readLine + split " + (splitTime / 1000000) + "ms (" + splitFields + " fields), " +
+							"CsvReader " + (csvTime / 1000000) + "ms (" + csvFields + " fields)");
+				}
+			}
+			finally {
+				input.delete();
+			}
+		}
+
+		if ( ! ok ) {
+			System.exit(1);
+		}
+	}
+
+
+	/**
+	 * Writes lines of the form <code>CODE&lt;sep&gt;Some description N</code>, similar 
+	 * to the input files of the vocabulary generators.
+	 */
+	private static void writeInput(File file, char separator, int lineCount) throws IOException {
+		Random random = new Random(lineCount);
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), ENCODING));
+		try {
+			for (int i = 0; i < lineCount; i++) {
+				writer.write("C" + random.nextInt(100000));
+				writer.write(separator);
+				writer.write("Description of term " + i + " (" + Integer.toHexString(random.nextInt()) + ")");
+				if (i % 10 == 0) {
+					writer.write(separator);
+					writer.write(Long.toString(random.nextLong()));
+				}
+				writer.newLine();
+			}
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+
+	private static boolean compare(File file, char separator) throws IOException {
+		BufferedReader lineReader = openReader(file);
+		CsvReader csvReader = new CsvReader(openReader(file), separator);
+		String regex = String.valueOf(separator);
+		try {
+			long lineNo = 0;
+			String line;
+			while ((line = lineReader.readLine()) != null) {
+				lineNo++;
+				String[] expected = line.split(regex);
+				if ( ! csvReader.readRecord() ) {
+					System.out.println("CsvReader stopped before line " + lineNo);
+					return false;
+				}
+				String[] actual = csvReader.getFields();
+				if ( ! Arrays.equals(expected, actual) ) {
+					System.out.println("Different fields on line " + lineNo + ": " + 
+							Arrays.asList(expected) + " vs. " + Arrays.asList(actual));
+					return false;
+				}
+			}
+			if (csvReader.readRecord()) {
+				System.out.println("CsvReader returned more than " + lineNo + " records");
+				return false;
+			}
+			System.out.println("Same fields on all the " + lineNo + " lines");
+			return true;
+		}
+		finally {
+			lineReader.close();
+			csvReader.close();
+		}
+	}
+
+
+	private static long readWithSplit(File file, char separator) throws IOException {
+		BufferedReader reader = openReader(file);
+		String regex = String.valueOf(separator);
+		long fieldCount = 0;
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				fieldCount += line.split(regex).length;
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return fieldCount;
+	}
+
+	private static long readWithCsvReader(File file, char separator) throws IOException {
+		CsvReader reader = new CsvReader(openReader(file), separator);
+		long fieldCount = 0;
+		try {
+			while (reader.readRecord()) {
+				fieldCount += reader.getFields().length;
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return fieldCount;
+	}
+
+
+	private static BufferedReader openReader(File file) throws IOException {
+		return new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+	}
+
+}
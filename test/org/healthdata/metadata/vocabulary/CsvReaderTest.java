@@ -0,0 +1,159 @@
+package org.healthdata.metadata.vocabulary;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the records read by {@link CsvReader}: quoted fields, doubled quotes,
+ * separators and line breaks inside quotes, the LF, CRLF and CR line terminators,
+ * trailing empty fields and an unterminated quote. <br>
+ * Every input is read both at once and one character at a time, so that the
+ * quotes and line terminators are also split between two fills of the buffer.
+ *
+ * @author agent
+ *
+ */
+public class CsvReaderTest {
+
+	private static int failureCount = 0;
+
+
+	public static void main(String[] args) throws IOException {
+		checkRecords("plain fields", "a,b,c\nd,e,f\n",
+				new String[] {"a", "b", "c"},
+				new String[] {"d", "e", "f"});
+		checkRecords("quoted fields", "\"a\",\"b c\",d\n",
+				new String[] {"a", "b c", "d"});
+		checkRecords("doubled quotes", "\"say \"\"hi\"\"\",\"\"\"\"\n",
+				new String[] {"say \"hi\"", "\""});
+		checkRecords("separator inside quotes", "\"a,b\",c\n",
+				new String[] {"a,b", "c"});
+		checkRecords("line breaks inside quotes", "\"a\nb\",\"c\r\nd\",e\nf,g\n",
+				new String[] {"a\nb", "c\r\nd", "e"},
+				new String[] {"f", "g"});
+		checkRecords("CRLF terminators", "a,b\r\nc,d\r\n",
+				new String[] {"a", "b"},
+				new String[] {"c", "d"});
+		checkRecords("CR terminators", "a,b\rc,d\r",
+				new String[] {"a", "b"},
+				new String[] {"c", "d"});
+		checkRecords("no terminator after the last record", "a,b\nc,d",
+				new String[] {"a", "b"},
+				new String[] {"c", "d"});
+		checkRecords("trailing empty fields", "a,,\n,\n\n",
+				new String[] {"a", "", ""},
+				new String[] {"", ""},
+				new String[] {""});
+		checkRecords("empty quoted field", "\"\",a\n",
+				new String[] {"", "a"});
+		checkRecords("quote inside an unquoted field", "a\"b,c\n",
+				new String[] {"a\"b", "c"});
+		checkRecords("text after a closing quote", "\"a\"b,c\n",
+				new String[] {"ab", "c"});
+		//the field of an unterminated quote extends to the end of the input
+		checkRecords("unterminated quote", "a,\"b,c\nd\n",
+				new String[] {"a", "b,c\nd\n"});
+		checkRecords("tab separator", "a\t\"b\tc\"\t\n",
+				'\t', new String[] {"a", "b\tc", ""});
+
+		checkRawRecord();
+		checkParse();
+
+		if (failureCount > 0) {
+			System.out.println(failureCount + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+
+
+	private static void checkRecords(String name, String input, String[]... expected) throws IOException {
+		checkRecords(name, input, ',', expected);
+	}
+
+	private static void checkRecords(String name, String input, char separator, String[]... expected) throws IOException {
+		List<String[]> records = readRecords(new StringReader(input), separator);
+		check(name, equals(records, expected));
+		List<String[]> recordsByChar = readRecords(new OneCharReader(new StringReader(input)), separator);
+		check(name + " (one character at a time)", equals(recordsByChar, expected));
+	}
+
+	private static void checkRawRecord() throws IOException {
+		CsvReader reader = new CsvReader(new StringReader("\"a,\"\"b\"\"\",c\r\nd\n"), ',');
+		reader.setKeepRawRecord(true);
+		reader.readRecord();
+		check("raw record keeps the quotes", "\"a,\"\"b\"\"\",c".equals(reader.getRawRecord()));
+		reader.readRecord();
+		check("raw record of the next record", "d".equals(reader.getRawRecord()));
+		check("record count", reader.getRecordCount() == 2 && ! reader.readRecord());
+	}
+
+	private static void checkParse() {
+		CsvReader reader = new CsvReader(',');
+		reader.parse("\"a,b\",,c");
+		check("parse", Arrays.equals(reader.getFields(), new String[] {"a,b", "", "c"}));
+		reader.parse("");
+		check("parse an empty record", Arrays.equals(reader.getFields(), new String[] {""}));
+	}
+
+
+	private static List<String[]> readRecords(Reader in, char separator) throws IOException {
+		List<String[]> records = new ArrayList<String[]>();
+		CsvReader reader = new CsvReader(in, separator);
+		try {
+			while (reader.readRecord()) {
+				records.add(reader.getFields());
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return records;
+	}
+
+	private static boolean equals(List<String[]> records, String[][] expected) {
+		if (records.size() != expected.length) {
+			return false;
+		}
+		for (int i = 0; i < expected.length; i++) {
+			if ( ! Arrays.equals(records.get(i), expected[i])) {
+				System.out.println("Record " + i + ": " + Arrays.toString(records.get(i)) +
+						" instead of " + Arrays.toString(expected[i]));
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void check(String name, boolean condition) {
+		if (condition) {
+			System.out.println("OK: " + name);
+		}
+		else {
+			System.out.println("FAILED: " + name);
+			failureCount++;
+		}
+	}
+
+
+	/**
+	 * Returns at most one character per read.
+	 */
+	private static class OneCharReader extends FilterReader {
+
+		OneCharReader(Reader in) {
+			super(in);
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			return super.read(cbuf, off, Math.min(len, 1));
+		}
+	}
+
+}